@@ -197,12 +197,14 @@ public abstract class JIAExtensibleDialog extends JPanel implements IRecursiveAc
     
     /**
      * Dispara el proceso de guardado de cambios realizados para todos los diálogos de la jerarquía.
+     * Los diálogos sin cambios pendientes (ver {@link #isModified}) no se guardan.
      */
     protected final void salvar() {
         
         this.listaHijos.forEach((dialog) -> { dialog.salvar(); });
         
-        this.saveThis();
+        if(this.isModified())
+            this.saveThis();
     }
     
     /**
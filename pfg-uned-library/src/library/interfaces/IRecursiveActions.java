@@ -56,6 +56,19 @@ public interface IRecursiveActions {
         throw new RuntimeException("Se debe redefinir la implementación de este método [saveThis].");
     }
     
+    /**
+     * Indica si el diálogo tiene cambios que guardar. Si no los tiene, no se invoca su método saveThis.
+     * <p>
+     * Se le da una implementación por defecto que devuelve siempre verdadero, de forma que todos los
+     * diálogos se guardan salvo que el diseñador redefina este método para evitar guardados innecesarios.
+     *
+     * @return Verdadero si el diálogo tiene cambios pendientes de guardar, falso en otro caso
+     */
+    default boolean isModified() {
+        
+        return true;
+    }
+    
     /**
      * Limpia y se ocupa de las tareas de finalización en el cierre de un diálogo.
      * <p>
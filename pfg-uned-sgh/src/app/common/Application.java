@@ -56,9 +56,10 @@ public class Application {
     /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
     
     private void initDataBase() {
-        // se intenta leer la DB de fichero y en caso de no existir se crea una nueva
-        DataBase temp = Utils.readDB();
-        db = temp != null ? temp : new DataBase();
+        // se lee la DB de fichero (o se crea una nueva en caso de no existir) y se le aplica el diario
+        db = Utils.readDB();
+        // a partir de aquí la persistencia se realiza en segundo plano, y una última vez al terminar
+        Utils.startCheckpoints(db);
     }
     
     private void showLoginForm() {
@@ -80,9 +81,11 @@ public class Application {
         
         // Dado que la pantalla de Login es el punto de salida de la aplicación, cada vez que la cerremos
         // de manera definitiva, y con ella la aplicación (pulsando en la X o en el botón de 'Cancelar'),
-        // debemos activar la persistencia con el fin de conservar el estado de ejecución de la apicación
+        // debemos activar la persistencia con el fin de conservar el estado de ejecución de la apicación.
+        // Se solicita en segundo plano, sin bloquear la interfaz; el punto de control final al terminar
+        // la máquina virtual garantiza que no se pierde ningún cambio pendiente
         if(currentRole == null)
-            Utils.writeDB(db);
+            Utils.requestCheckpoint();
         
         else {
             switch(currentRole) {
@@ -99,7 +102,7 @@ public class Application {
     private void openTriajeMenu() {
         
         final MenuTriajeVC menuTriajeVC = (MenuTriajeVC) Utils.initDialog(
-                new MenuTriajeVC(new MenuTriajeModel(db.getRegisteredPatients())));
+                new MenuTriajeVC(new MenuTriajeModel(db.getPatients())));
         
         JIASimpleDialog menuTriaje = (JIASimpleDialog)
             Utils.generateDialog(JIAExtensibleDialog.Type.SIMPLE, "menuTriajeVC", "MENÚ PRINCIPAL TRIAJE");
@@ -115,7 +118,7 @@ public class Application {
     private void openFacultativoMenu() {
         
         final MenuFacultativoVC menuFacultativoVC = (MenuFacultativoVC) Utils.initDialog(
-                new MenuFacultativoVC(new MenuFacultativoModel(db.getRegisteredPatients())));
+                new MenuFacultativoVC(new MenuFacultativoModel(db.getPatients())));
         
         JIASimpleDialog menuFacultativo = (JIASimpleDialog)
             Utils.generateDialog(JIAExtensibleDialog.Type.SIMPLE, "menuFacultativoVC", "MENÚ PRINCIPAL FACULTATIVO");
@@ -19,6 +19,9 @@ package app.common;
 import app.common.enums.PatientSexEnum;
 import app.common.enums.PatientStateEnum;
 import app.common.enums.UserRoleEnum;
+import app.common.persistence.InMemoryPatientRepository;
+import app.common.persistence.PatientHashMap;
+import app.common.persistence.PatientRepository;
 import app.model.datospaciente.entity.DNI;
 import app.model.datospaciente.DatosBancariosModel;
 import app.model.datospaciente.DatosClinicosModel;
@@ -26,6 +29,9 @@ import app.model.datospaciente.DatoGeneralesModel;
 import app.model.datospaciente.DatosPersonalesModel;
 import app.model.datospaciente.ResumenPacienteModel;
 import app.model.datospaciente.entity.Birthdate;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,18 +45,36 @@ import java.util.TreeMap;
  */
 public class DataBase implements Serializable {
     
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = 3086014691637147606L;
+    
     // Rol actual del usuario que ha iniciado sesión en el sistema
     private UserRoleEnum currentRole;
     // Colección de usuarios (profesionales) registrados: <user,pass>
     private final Map<String, String> registeredUsers = new HashMap<>();
-    // Colección de pacientes registrados: <codeSNS,ResumenPacienteModel>
-    private final Map<Long, ResumenPacienteModel> registeredPatients = new TreeMap<>();
+    // Colección de pacientes registrados: <codeSNS,ResumenPacienteModel>; en el flujo de serialización, un TreeMap
+    // como el de las bases de datos ya existentes en disco
+    private Map<Long, ResumenPacienteModel> registeredPatients = new PatientHashMap();
+    // Repositorio de acceso a los pacientes; por defecto, en memoria sobre la colección anterior
+    private transient PatientRepository patientRepository;
     
     protected DataBase() {
-        // Usuarios registrados en el sistema
-        initRegisteredUsers();
-        // Pacientes registrados en el sistema
-        initRegisteredPatients();
+        this(true);
+    }
+    
+    /**
+     * Crea la base de datos, con o sin los usuarios y pacientes iniciales. Sin ellos,
+     * queda vacía para rellenarla a partir de los datos guardados en disco.
+     * 
+     * @param initialData Verdadero para cargar los usuarios y pacientes iniciales
+     */
+    protected DataBase(boolean initialData) {
+        if(initialData) {
+            // Usuarios registrados en el sistema
+            initRegisteredUsers();
+            // Pacientes registrados en el sistema
+            initRegisteredPatients();
+        }
     }
     
     private void initRegisteredUsers() {
@@ -64,7 +88,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Tristán", "Tiburcio Rodriguez",
-                new DNI(10000001, 'A'), 900000001L, PatientStateEnum.Registrado);
+                new DNI(10000001, 'S'), 900000001L, PatientStateEnum.Registrado);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Hombre);
@@ -72,7 +96,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Maura", "Lope Nieves",
-                new DNI(10000002, 'B'), 900000002L, PatientStateEnum.Espera);
+                new DNI(10000002, 'Q'), 900000002L, PatientStateEnum.Espera);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Mujer);
@@ -80,7 +104,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Pastor", "Marino Salcedo",
-                new DNI(10000003, 'C'), 900000003L, PatientStateEnum.Registrado);
+                new DNI(10000003, 'V'), 900000003L, PatientStateEnum.Registrado);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Desconocido);
@@ -88,7 +112,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Ascensión", "Lucía Chávez",
-                new DNI(10000004, 'D'), 900000004L, PatientStateEnum.Ingreso);
+                new DNI(10000004, 'H'), 900000004L, PatientStateEnum.Ingreso);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Desconocido);
@@ -96,7 +120,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Samanta", "Machado Guitiérrez",
-                new DNI(10000005, 'E'), 900000005L, PatientStateEnum.Alta);
+                new DNI(10000005, 'L'), 900000005L, PatientStateEnum.Alta);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Mujer);
@@ -104,7 +128,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Leoncio", "Perla Orellana",
-                new DNI(10000006, 'F'), 900000006L, PatientStateEnum.Alta);
+                new DNI(10000006, 'C'), 900000006L, PatientStateEnum.Alta);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Hombre);
@@ -112,7 +136,7 @@ public class DataBase implements Serializable {
         
         
         datosGenerales = new DatoGeneralesModel("Felisa", "Laura Guerra",
-                new DNI(10000007, 'G'), 900000007L, PatientStateEnum.Registrado);
+                new DNI(10000007, 'K'), 900000007L, PatientStateEnum.Registrado);
         patient = new ResumenPacienteModel(datosGenerales, new DatosPersonalesModel(),
                 new DatosClinicosModel(), new DatosBancariosModel());
         patient.getDatosPersonales().setPatientSex(PatientSexEnum.Mujer);
@@ -120,7 +144,7 @@ public class DataBase implements Serializable {
         patient.getDatosBancarios().setHealthInsurance(Boolean.TRUE);
         patient.getDatosBancarios().setInsuranceCompany("ADESLAS");
         patient.getDatosClinicos().setAsignedDoctor("Pepito Juan Froilán");
-        patient.getDatosPersonales().setBirthDate(new Birthdate(23, 05, 1992));
+        patient.getDatosPersonales().setBirthDate(Birthdate.of(23, 5, 1992));
         patient.getDatosPersonales().setPostalAddress("Calle Falsa 1,2,3");
         patient.getDatosPersonales().setEmail("email@ejemplo.net");
         registeredPatients.put(900000007L, patient);
@@ -144,6 +168,50 @@ public class DataBase implements Serializable {
         return registeredPatients;
     }
 
+    /**
+     * Sustituye la colección de pacientes por otra implementación del mapa, como la respaldada por
+     * el almacén en memoria proyectada. Debe mantener el orden por código SNS.
+     * 
+     * @param patients La nueva colección de pacientes
+     */
+    public void setRegisteredPatients(Map<Long, ResumenPacienteModel> patients) {
+        registeredPatients = patients;
+        patientRepository = null;
+    }
+
+    /**
+     * Repositorio a través del cual la aplicación accede a los pacientes registrados.
+     * 
+     * @return El repositorio asignado o, si no se ha asignado ninguno, uno en memoria sobre la colección de pacientes
+     */
+    public PatientRepository getPatients() {
+        if(patientRepository == null)
+            patientRepository = new InMemoryPatientRepository(this);
+        return patientRepository;
+    }
+
+    /**
+     * Asigna el repositorio de pacientes, que debe trabajar sobre la colección de pacientes de esta base de datos.
+     * 
+     * @param patientRepository El repositorio, como el respaldado en disco
+     */
+    public void setPatientRepository(PatientRepository patientRepository) {
+        this.patientRepository = patientRepository;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("currentRole", currentRole);
+        fields.put("registeredUsers", registeredUsers);
+        fields.put("registeredPatients", new TreeMap<>(registeredPatients));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        registeredPatients = new PatientHashMap(registeredPatients);
+    }
+
     /////////////////////// CLASE INTERNA PARA ERRORES ///////////////////////////////////////////////////////////
     
     /**
@@ -16,20 +16,35 @@
  */
 package app.common;
 
+import app.common.persistence.CheckpointScheduler;
+import app.common.persistence.FilePatientRepository;
+import app.common.persistence.JdbcPatientRepository;
+import app.common.persistence.PatientCodec;
+import app.common.persistence.PatientRepository;
+import app.common.persistence.SchemaVersionException;
+import app.common.persistence.ShardedSnapshot;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.DNI;
 import java.awt.Component;
 import java.awt.Container;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSlider;
@@ -38,6 +53,7 @@ import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import library.JIAExtensibleDialog;
 import library.JIAFactory;
 
@@ -139,44 +155,271 @@ public class Utils {
     
     /////////////////////// UTLIDADES PERSISTENCIA //////////////////////////////////////////////////////////
     
-    // Objeto para deserializar ficheros desde disco
-    private static ObjectInputStream ois;
-    // Objeto para serializar objetos a disco
-    private static ObjectOutputStream oos;
     // Fichero auxiliar para obtener la ruta de ejecución actual
     private static final File FILE_AUX = new File("");
+    // Trazas de los errores de persistencia
+    private static final Logger L = Logger.getLogger(Utils.class.getName());
+    // Planificador de los puntos de control en segundo plano
+    private static CheckpointScheduler checkpoints;
+    // Repositorio de pacientes respaldado en disco: instantánea repartida en fragmentos y diario
+    private static FilePatientRepository repository;
+    // Repositorio de pacientes en uso por la aplicación: el de disco, o el SQL si se ha configurado
+    private static PatientRepository patients;
+    // Secciones guardadas durante el evento en curso de la interfaz, que se persisten juntas al terminarlo
+    private static final List<SeccionPacienteModel> savedSections = new ArrayList<>();
+    // Diálogo en el que se avisa si las secciones guardadas no se pueden persistir
+    private static Component savedSectionsParent;
 
     /**
-     * Permite recuperar la base de datos en disco situada en el archivo "dataBase.dat".
+     * Permite recuperar la base de datos en disco, repartida en los fragmentos "dataBase.N.dat" (o, antes de
+     * repartirla, en el archivo "dataBase.dat"), aplicando sobre ella los cambios registrados en el diario
+     * "dataBase.journal" desde esa instantánea. Sus pacientes quedan accesibles a través de un
+     * {@link FilePatientRepository}, que persiste los cambios que se guarden.
+     * <p>
+     * Si no existe la instantánea, o no se puede leer, el diario se aplica sobre una base de datos nueva. Si solo
+     * algún fragmento está dañado, se avisa al usuario: sus pacientes no se cargan, y el fragmento se conserva
+     * sin escribir encima hasta que se restaure.
+     * De la instantánea solo se carga el índice de pacientes: los datos personales, clínicos y bancarios
+     * de cada uno se leen de disco cuando se abre su ficha.
+     * <p>
+     * Si se indica la URL de una base de datos SQL en la propiedad de sistema {@value JdbcPatientRepository#URL_PROPERTY},
+     * los pacientes se mantienen en ella, a través de un {@link JdbcPatientRepository}. La primera vez que se abre,
+     * vacía, se le trasladan los pacientes de la base de datos en disco (o los iniciales).
      * 
-     * @return un objeto del tipo ServicioDatosInterface, leído de disco
+     * @return la base de datos reconstruida a partir de la instantánea y el diario
+     * @throws IllegalStateException Si la base de datos en disco se guardó con una versión del esquema que esta
+     *          versión de la aplicación no sabe leer, o su diario está dañado y no se puede aplicar
      */
     public static DataBase readDB() {
-        DataBase dataBase = null;
-
         try {
-            String path = FILE_AUX.getCanonicalPath() + "\\src\\database\\dataBase.dat";
-            ois = new ObjectInputStream(new FileInputStream(path));
-            dataBase = (DataBase) ois.readObject();
+            ShardedSnapshot snapshot = new ShardedSnapshot(getDataBaseFile("dataBase"));
+            DataBase dataBase = readSnapshot(snapshot);
+            if(!snapshot.getDamagedFiles().isEmpty())
+                showDamagedFiles(snapshot.getDamagedFiles());
+
+            if(dataBase == null)
+                dataBase = new DataBase();
+            else
+                dataBase.getRegisteredPatients().values().forEach(ResumenPacienteModel::linkSections);
+
+            File journalFile = getDataBaseFile("dataBase.journal");
+            repository = new FilePatientRepository(dataBase, snapshot, journalFile);
+            dataBase.setPatientRepository(repository);
+            patients = repository;
+            try {
+                repository.replay(); }
+            catch(IOException ioe) {
+                // arrancar sin el diario perdería sus cambios en el siguiente punto de control
+                L.log(Level.SEVERE, "No se ha podido aplicar el diario de la base de datos", ioe);
+                throw new IllegalStateException("No se ha podido aplicar el diario de la base de datos: restaure "
+                        + "el fichero " + journalFile + " antes de volver a arrancar", ioe); }
+
+            String url = System.getProperty(JdbcPatientRepository.URL_PROPERTY);
+            if(url != null)
+                openSqlDataBase(dataBase, url);
             return dataBase; }
-        catch(FileNotFoundException fnfe) {
-            return null; }
-        catch(ClassNotFoundException | IOException e) { }
-        
-        return dataBase;
+        catch(IOException ioe) {
+            // sin acceso a los ficheros de la base de datos, se trabaja solo en memoria
+            L.log(Level.SEVERE, "No se ha podido abrir la base de datos en disco", ioe);
+            return new DataBase(); }
+    }
+
+    /**
+     * Arranca los puntos de control de la base de datos: periódicamente, en un hilo en segundo plano,
+     * se consolida el diario en una nueva instantánea, y al terminar la aplicación se registran además
+     * los cambios pendientes. Ninguna escritura en disco se realiza en el hilo de la interfaz.
+     * <p>
+     * El intervalo se configura con la propiedad de sistema {@value CheckpointScheduler#INTERVAL_PROPERTY}.
+     * 
+     * @param dataBase la base de datos en uso por la aplicación
+     */
+    public static void startCheckpoints(DataBase dataBase) {
+        checkpoints = new CheckpointScheduler(
+                () -> checkpoint(),
+                () -> { writeDB(dataBase); checkpoint(); closeSqlDataBase(); });
+        checkpoints.start();
+    }
+
+    /**
+     * Solicita un punto de control inmediato, que se realiza en segundo plano.
+     */
+    public static void requestCheckpoint() {
+        if(checkpoints != null)
+            checkpoints.request();
     }
 
     /**
-     * Permite serializar la base de datos en disco en un archivo llamado "dataBase.dat".
+     * Permite persistir en disco los cambios pendientes de la base de datos. Solo se escriben, en el
+     * diario, las secciones de los pacientes modificados desde el último guardado; el volcado de los
+     * fragmentos con pacientes modificados (con el formato compacto de {@link PatientCodec}) queda para
+     * la compactación. Con la base de datos SQL, los pacientes modificados se guardan en una transacción.
+     * <p>
+     * Si la base de datos no está respaldada en disco no se escribe nada.
      * 
      * @param dataBase el objeto de la base de datos para escribirlo en disco
      */
     public static void writeDB(DataBase dataBase) {
+        dataBase.getPatients().flush();
+    }
+
+    /**
+     * Persiste una sección de paciente recién guardada: se registra en el diario, de forma que el cambio
+     * persista sin necesidad de volver a escribir la base de datos completa, o se guarda en la base de
+     * datos SQL. Si la sección no tiene cambios pendientes no se escribe nada.
+     * <p>
+     * Las secciones guardadas durante un mismo evento de la interfaz (el guardado de la ficha del paciente
+     * guarda cada uno de sus diálogos) se persisten juntas al terminar el evento: con una sola espera al diario,
+     * o en una sola transacción de la base de datos SQL. Fuera del hilo de la interfaz se persiste en el momento.
+     * <p>
+     * Si no se puede escribir, el cambio sigue en memoria, pendiente, y se consolida en el siguiente punto de
+     * control; se avisa de ello en el diálogo (ver {@link #showSaveError}).
+     * 
+     * @param section la sección del paciente que se acaba de guardar
+     * @param parent el diálogo en el que se ha guardado
+     */
+    public static void saveSection(SeccionPacienteModel section, Component parent) {
+        if(!SwingUtilities.isEventDispatchThread()) {
+            persistSections(Collections.singletonList(section), parent);
+            return;
+        }
+        // la primera sección del evento programa la escritura de todas, para cuando termine
+        if(savedSections.isEmpty()) {
+            savedSectionsParent = parent;
+            SwingUtilities.invokeLater(Utils::persistSavedSections);
+        }
+        savedSections.add(section);
+    }
+
+    /**
+     * Avisa de que los cambios guardados en un diálogo no se han podido persistir en disco.
+     * 
+     * @param parent el diálogo cuyos cambios no se han podido persistir
+     */
+    public static void showSaveError(Component parent) {
+        JOptionPane.showMessageDialog(parent, "No se han podido guardar los cambios en disco. Se conservan en memoria"
+                + " y se volverán a intentar guardar en el siguiente punto de control.", "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * Comprueba que un DNI no esté registrado ya para otro paciente. La búsqueda usa el índice por DNI de la
+     * base de datos, o el de la base de datos SQL.
+     * 
+     * @param dni el DNI a asignar
+     * @param codeSNS el código SNS del paciente al que se asigna
+     * @return Verdadero si el DNI no lo tiene ningún otro paciente
+     */
+    public static boolean isDNIAvailable(DNI dni, Long codeSNS) {
+        ResumenPacienteModel owner = patients != null ? patients.findByDNI(dni) : null;
+        return owner == null || owner.getDatosGenerales() == null || Objects.equals(owner.getDatosGenerales().getCodeSNS(), codeSNS);
+    }
+
+    private static void persistSavedSections() {
+        List<SeccionPacienteModel> sections = new ArrayList<>(savedSections);
+        Component parent = savedSectionsParent;
+        savedSections.clear();
+        savedSectionsParent = null;
+        persistSections(sections, parent);
+    }
+
+    private static void persistSections(List<SeccionPacienteModel> sections, Component parent) {
+        try {
+            if(patients != null)
+                patients.saveSections(sections); }
+        catch(UncheckedIOException uioe) {
+            // ya registrado en el log por el repositorio
+            showSaveError(parent); }
+    }
+
+    private static void checkpoint() throws IOException {
+        if(repository != null)
+            repository.checkpoint();
+    }
+
+    private static void openSqlDataBase(DataBase dataBase, String url) {
+        JdbcPatientRepository sql;
+        try {
+            sql = new JdbcPatientRepository(url); }
+        catch(SQLException sqle) {
+            // se sigue trabajando con la base de datos en disco
+            L.log(Level.SEVERE, "No se ha podido abrir la base de datos SQL " + url, sqle);
+            return; }
+
+        try {
+            if(sql.size() == 0 && dataBase.getPatients().size() > 0) {
+                // primera apertura: se trasladan los pacientes, en una sola transacción
+                List<ResumenPacienteModel> imported = new ArrayList<>(dataBase.getPatients().size());
+                dataBase.getPatients().forEach(imported::add);
+                sql.saveAll(imported);
+                L.log(Level.INFO, "Trasladados {0} pacientes a la base de datos SQL", imported.size());
+            } }
+        catch(UncheckedIOException | IllegalArgumentException e) {
+            // el traslado se ha deshecho: se sigue trabajando con la base de datos en disco, y se vuelve a
+            // intentar en el siguiente arranque
+            L.log(Level.SEVERE, "No se han podido trasladar los pacientes a la base de datos SQL " + url, e);
+            sql.close();
+            return; }
+        dataBase.setPatientRepository(sql);
+        patients = sql;
+    }
+
+    private static void closeSqlDataBase() {
+        if(patients instanceof JdbcPatientRepository)
+            ((JdbcPatientRepository) patients).close();
+    }
+
+    private static DataBase readSnapshot(ShardedSnapshot snapshot) {
         try {
-            String path = FILE_AUX.getCanonicalPath() + "\\src\\database\\dataBase.dat";
-            oos = new ObjectOutputStream(new FileOutputStream(path));
-            oos.writeObject(dataBase); }
-        catch(IOException ioe) { }
+            // las bases de datos en un solo fichero, o en el formato antiguo (serialización de Java), se siguen
+            // pudiendo leer; en otro caso solo se carga (o se proyecta) el índice de pacientes de cada fragmento,
+            // y sus detalles se leen al abrir cada ficha
+            DataBase dataBase = new DataBase(false);
+            snapshot.read(dataBase);
+            return dataBase; }
+        catch(FileNotFoundException fnfe) {
+            // primera ejecución: todavía no hay instantánea
+            return null; }
+        catch(SchemaVersionException sve) {
+            // los datos no están dañados, sino que no los sabe leer esta versión de la aplicación: no se pueden
+            // apartar y sustituir por la base de datos inicial, así que se detiene el arranque
+            L.log(Level.SEVERE, "La base de datos en disco no es compatible con esta versión de la aplicación", sve);
+            throw new IllegalStateException("La base de datos en disco no es compatible con esta versión"
+                    + " de la aplicación: " + sve.getMessage(), sve); }
+        catch(IOException ioe) {
+            // los bloques dañados ya se omiten al leer: aquí el fichero es ilegible en su conjunto, y se aparta
+            // (junto con el diario) para que la base de datos inicial no lo sustituya en el siguiente volcado
+            L.log(Level.SEVERE, "No se ha podido leer la instantánea de la base de datos", ioe);
+            setAsideDamaged();
+            snapshot.markAllModified();
+            return null; }
+    }
+
+    private static void showDamagedFiles(List<File> damaged) {
+        // los cambios se siguen guardando en el diario, que no se descarta mientras no se restauren los ficheros
+        L.log(Level.SEVERE, "Fragmentos dañados de la base de datos: {0}", damaged);
+        if(!GraphicsEnvironment.isHeadless())
+            JOptionPane.showMessageDialog(null, "Hay ficheros dañados en la base de datos, y no se han cargado todos"
+                    + " los pacientes:\n" + damaged + "\nLos cambios se conservan en el diario hasta que se restauren"
+                    + " los ficheros, o se aparten para darlos por perdidos.", "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    private static void setAsideDamaged() {
+        String suffix = ".damaged-" + System.currentTimeMillis();
+        try {
+            List<File> files = new ArrayList<>();
+            for(String fileName : new String[] { "dataBase.dat", "dataBase.shards", "dataBase.journal", "dataBase.journal.old" })
+                files.add(getDataBaseFile(fileName));
+            for(int shard = 0; getDataBaseFile("dataBase." + shard + ".dat").exists(); shard++)
+                files.add(getDataBaseFile("dataBase." + shard + ".dat"));
+            
+            for(File file : files)
+                if(file.exists() && !file.renameTo(new File(file.getPath() + suffix)))
+                    L.log(Level.SEVERE, "No se ha podido apartar el fichero dañado {0}", file); }
+        catch(IOException ioe) {
+            L.log(Level.SEVERE, "No se han podido apartar los ficheros dañados de la base de datos", ioe); }
+    }
+
+    private static File getDataBaseFile(String fileName) throws IOException {
+        return new File(FILE_AUX.getCanonicalPath() + "\\src\\database\\" + fileName);
     }
 
     /////////////////////// FUNCIONALIDADES PRIVADAS ////////////////////////////////////////////////////////
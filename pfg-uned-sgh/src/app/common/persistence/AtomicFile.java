@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Escritura atómica de ficheros: el contenido se vuelca en un fichero temporal junto al destino, se fuerza
+ * su escritura física en disco (fsync) y solo entonces se renombra sobre el fichero anterior.
+ * <p>
+ * De esta forma una caída a mitad de escritura nunca deja un fichero a medias: tras ella se conserva
+ * íntegro el fichero anterior o el nuevo, y como mucho un temporal huérfano que se sobrescribe en la
+ * siguiente escritura.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class AtomicFile {
+
+    /**
+     * Operación que escribe el contenido completo del fichero.
+     */
+    public interface Content {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private AtomicFile() { }
+
+    /**
+     * Escribe de forma atómica el fichero indicado.
+     *
+     * @param target El fichero a escribir (o reemplazar)
+     * @param content La operación que escribe su contenido
+     * @throws IOException Si no se puede escribir el fichero; en tal caso el fichero anterior queda intacto
+     */
+    public static void write(File target, Content content) throws IOException {
+        replace(writeTemp(target, content), target);
+    }
+
+    /**
+     * Primera mitad de la escritura atómica: escribe el contenido en el fichero temporal del destino
+     * y fuerza su escritura en disco, sin publicarlo todavía.
+     *
+     * @param target El fichero a escribir (o reemplazar)
+     * @param content La operación que escribe su contenido
+     * @return El fichero temporal, listo para {@link #replace}
+     * @throws IOException Si no se puede escribir el fichero temporal
+     */
+    public static File writeTemp(File target, Content content) throws IOException {
+
+        File temp = new File(target.getPath() + ".tmp");
+
+        try(FileOutputStream file = new FileOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024))) {
+            content.writeTo(out);
+            out.flush();
+            // se fuerza la escritura en disco antes de publicar el fichero con el renombrado
+            file.getFD().sync();
+        }
+        catch(IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        return temp;
+    }
+
+    /**
+     * Segunda mitad de la escritura atómica: renombra el fichero temporal sobre el destino.
+     *
+     * @param temp El fichero temporal escrito con {@link #writeTemp}
+     * @param target El fichero a reemplazar
+     * @throws IOException Si no se puede renombrar; en tal caso el fichero anterior queda intacto
+     */
+    public static void replace(File temp, File target) throws IOException {
+
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); }
+        catch(AtomicMoveNotSupportedException amnse) {
+            // sistemas de ficheros sin renombrado atómico: se reemplaza igualmente, sin esa garantía
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING); }
+    }
+}
\ No newline at end of file
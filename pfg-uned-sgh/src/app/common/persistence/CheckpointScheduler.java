@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Planificador de puntos de control (checkpoints) de la base de datos: ejecuta en un hilo en segundo plano,
+ * cada cierto intervalo, la operación que consolida en disco el estado de la base de datos, y una última
+ * vez, de forma síncrona, al terminar la máquina virtual (shutdown hook).
+ * <p>
+ * El intervalo, en segundos, se puede configurar con la propiedad de sistema {@value #INTERVAL_PROPERTY};
+ * si no se indica se usa {@value #DEFAULT_INTERVAL}. Un intervalo de 0 desactiva los puntos de control
+ * periódicos, manteniendo el del cierre.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class CheckpointScheduler {
+
+    /**
+     * Propiedad de sistema con el intervalo, en segundos, entre puntos de control.
+     */
+    public static final String INTERVAL_PROPERTY = "sgh.checkpoint.interval";
+
+    /**
+     * Intervalo por defecto, en segundos, entre puntos de control.
+     */
+    public static final long DEFAULT_INTERVAL = 60;
+
+    /**
+     * Operación de punto de control.
+     */
+    public interface Checkpoint {
+        void run() throws Exception;
+    }
+
+    private static final Logger L = Logger.getLogger(CheckpointScheduler.class.getName());
+
+    private final Checkpoint periodic;
+    private final Checkpoint onShutdown;
+    private final long interval;
+    // Hilo único en segundo plano, que no impide el cierre de la aplicación
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "checkpoint");
+        thread.setDaemon(true);
+        return thread; });
+
+    /**
+     * Crea un planificador con el intervalo configurado en la propiedad {@value #INTERVAL_PROPERTY}.
+     *
+     * @param periodic El punto de control periódico
+     * @param onShutdown El punto de control final, al terminar la máquina virtual
+     */
+    public CheckpointScheduler(Checkpoint periodic, Checkpoint onShutdown) {
+        this(periodic, onShutdown, Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL));
+    }
+
+    /**
+     * Crea un planificador con el intervalo indicado.
+     *
+     * @param periodic El punto de control periódico
+     * @param onShutdown El punto de control final, al terminar la máquina virtual
+     * @param interval El intervalo, en segundos, entre puntos de control (0 para desactivarlos)
+     */
+    public CheckpointScheduler(Checkpoint periodic, Checkpoint onShutdown, long interval) {
+        this.periodic = periodic;
+        this.onShutdown = onShutdown;
+        this.interval = interval;
+    }
+
+    /**
+     * Arranca los puntos de control periódicos y registra el punto de control final.
+     */
+    public void start() {
+
+        if(interval > 0)
+            executor.scheduleWithFixedDelay(() -> run(periodic), interval, interval, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            executor.shutdownNow();
+            run(onShutdown);
+        }, "checkpoint-shutdown"));
+    }
+
+    /**
+     * Solicita un punto de control inmediato, que se ejecuta en segundo plano sin bloquear al llamante.
+     */
+    public void request() {
+
+        if(!executor.isShutdown())
+            executor.execute(() -> run(periodic));
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private static void run(Checkpoint checkpoint) {
+
+        // cualquier error se traza y se deja para el siguiente punto de control, sin perder el planificador
+        try { checkpoint.run(); }
+        catch(Exception e) { L.log(Level.WARNING, "No se ha podido completar el punto de control", e); }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Conjunto de enteros no negativos comprimido, para los índices de mapas de bits de los pacientes. Los valores se
+ * agrupan en bloques de 65536 consecutivos (por sus 16 bits altos), y cada bloque se guarda según su densidad:
+ * como lista ordenada de sus 16 bits bajos mientras tiene como mucho {@value #ARRAY_MAX} valores, y como mapa de
+ * bits de 8 KB a partir de ahí. Un valor ocupa así como mucho 2 bytes, y los bloques vacíos nada.
+ * <p>
+ * La intersección y la unión se calculan bloque a bloque, sin descomprimir: palabra a palabra entre mapas de bits,
+ * por mezcla entre listas, y consultando el mapa de bits entre una lista y un mapa. No es seguro entre hilos.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class CompressedBitmap {
+
+    // Valores a partir de los cuales un bloque pasa de lista a mapa de bits, que ocupa lo mismo (8 KB)
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    // Bloques con algún valor, en orden: sus 16 bits altos, y su contenido
+    private char[] keys = new char[0];
+    private Container[] containers = new Container[0];
+    private int size;
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Añade un valor.
+     *
+     * @param value El valor, no negativo
+     */
+    public void add(int value) {
+
+        int index = indexOf((char) (value >>> 16));
+        if(index < 0) {
+            index = -index - 1;
+            insert(index, (char) (value >>> 16), new ArrayContainer());
+        }
+        containers[index] = containers[index].add((char) value);
+    }
+
+    /**
+     * Retira un valor, si estaba.
+     *
+     * @param value El valor
+     */
+    public void remove(int value) {
+
+        int index = indexOf((char) (value >>> 16));
+        if(index < 0)
+            return;
+        containers[index] = containers[index].remove((char) value);
+        if(containers[index].cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        }
+    }
+
+    /**
+     * @param value El valor
+     * @return Verdadero si el valor está en el conjunto
+     */
+    public boolean contains(int value) {
+        int index = indexOf((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * @return El número de valores del conjunto
+     */
+    public int cardinality() {
+        int cardinality = 0;
+        for(int i = 0; i < size; i++)
+            cardinality += containers[i].cardinality();
+        return cardinality;
+    }
+
+    /**
+     * @return Verdadero si el conjunto no tiene ningún valor
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Intersección con otro conjunto.
+     *
+     * @param other El otro conjunto
+     * @return Un conjunto nuevo con los valores de ambos
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while(i < size && j < other.size) {
+            if(keys[i] < other.keys[j])
+                i++;
+            else if(keys[i] > other.keys[j])
+                j++;
+            else {
+                Container container = containers[i++].and(other.containers[j++]);
+                if(container.cardinality() > 0)
+                    result.append(keys[i - 1], container);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Unión con otro conjunto.
+     *
+     * @param other El otro conjunto
+     * @return Un conjunto nuevo con los valores de cualquiera de los dos
+     */
+    public CompressedBitmap or(CompressedBitmap other) {
+
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0, j = 0;
+        while(i < size || j < other.size) {
+            if(j == other.size || (i < size && keys[i] < other.keys[j]))
+                result.append(keys[i], containers[i++].copy());
+            else if(i == size || keys[i] > other.keys[j])
+                result.append(other.keys[j], other.containers[j++].copy());
+            else
+                result.append(keys[i], containers[i++].or(other.containers[j++]));
+        }
+        return result;
+    }
+
+    /**
+     * @return Los valores del conjunto, en orden ascendente
+     */
+    public int[] toArray() {
+        int[] values = new int[cardinality()];
+        int[] count = { 0 };
+        forEach((value) -> values[count[0]++] = value);
+        return values;
+    }
+
+    /**
+     * Recorre los valores del conjunto, en orden ascendente.
+     *
+     * @param action La operación con cada valor
+     */
+    public void forEach(IntConsumer action) {
+        for(int i = 0; i < size; i++)
+            containers[i].forEach(keys[i] << 16, action);
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private int indexOf(char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(int index, char key, Container container) {
+
+        if(size == keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(4, size * 2));
+            containers = Arrays.copyOf(containers, keys.length);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(containers, index, containers, index + 1, size - index);
+        keys[index] = key;
+        containers[index] = container;
+        size++;
+    }
+
+    private void append(char key, Container container) {
+        insert(size, key, container);
+    }
+
+    /**
+     * Contenido de un bloque: sus 16 bits bajos. Las operaciones que cambian su densidad devuelven el bloque
+     * en la forma que le corresponde, que puede ser otro.
+     */
+    private static abstract class Container {
+
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract Container and(Container other);
+
+        abstract Container or(Container other);
+
+        abstract Container copy();
+
+        abstract void forEach(int high, IntConsumer action);
+    }
+
+    /**
+     * Bloque poco denso, como lista ordenada de valores.
+     */
+    private static final class ArrayContainer extends Container {
+
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if(index >= 0)
+                return this;
+            if(cardinality == ARRAY_MAX)
+                return toBitmap().add(value);
+
+            index = -index - 1;
+            if(cardinality == values.length)
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if(index >= 0) {
+                System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+                cardinality--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+
+            char[] result = new char[Math.min(cardinality, other.cardinality())];
+            int count = 0;
+            if(other instanceof BitmapContainer) {
+                for(int i = 0; i < cardinality; i++)
+                    if(other.contains(values[i]))
+                        result[count++] = values[i];
+            }
+            else {
+                ArrayContainer array = (ArrayContainer) other;
+                for(int i = 0, j = 0; i < cardinality && j < array.cardinality; ) {
+                    if(values[i] < array.values[j])
+                        i++;
+                    else if(values[i] > array.values[j])
+                        j++;
+                    else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container or(Container other) {
+
+            if(other instanceof BitmapContainer)
+                return other.or(this);
+
+            ArrayContainer array = (ArrayContainer) other;
+            char[] result = new char[cardinality + array.cardinality];
+            int count = 0, i = 0, j = 0;
+            while(i < cardinality || j < array.cardinality) {
+                if(j == array.cardinality || (i < cardinality && values[i] < array.values[j]))
+                    result[count++] = values[i++];
+                else if(i == cardinality || values[i] > array.values[j])
+                    result[count++] = array.values[j++];
+                else {
+                    result[count++] = values[i++];
+                    j++;
+                }
+            }
+            ArrayContainer union = new ArrayContainer(result, count);
+            return count > ARRAY_MAX ? union.toBitmap() : union;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(cardinality, 1)), cardinality);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for(int i = 0; i < cardinality; i++)
+                action.accept(high | values[i]);
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for(int i = 0; i < cardinality; i++)
+                bitmap.add(values[i]);
+            return bitmap;
+        }
+    }
+
+    /**
+     * Bloque denso, como mapa de bits de los 65536 valores posibles.
+     */
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer() {
+            this(new long[BITMAP_WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            if((words[value >>> 6] & bit) == 0) {
+                words[value >>> 6] |= bit;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long bit = 1L << value;
+            if((words[value >>> 6] & bit) != 0) {
+                words[value >>> 6] &= ~bit;
+                cardinality--;
+            }
+            return cardinality <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        Container and(Container other) {
+
+            if(other instanceof ArrayContainer)
+                return other.and(this);
+
+            long[] result = new long[BITMAP_WORDS];
+            int count = 0;
+            for(int i = 0; i < BITMAP_WORDS; i++) {
+                result[i] = words[i] & ((BitmapContainer) other).words[i];
+                count += Long.bitCount(result[i]);
+            }
+            BitmapContainer intersection = new BitmapContainer(result, count);
+            return count <= ARRAY_MAX ? intersection.toArray() : intersection;
+        }
+
+        @Override
+        Container or(Container other) {
+
+            BitmapContainer union = new BitmapContainer(words.clone(), cardinality);
+            if(other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                for(int i = 0; i < array.cardinality; i++)
+                    union.add(array.values[i]);
+                return union;
+            }
+
+            int count = 0;
+            for(int i = 0; i < BITMAP_WORDS; i++) {
+                union.words[i] |= ((BitmapContainer) other).words[i];
+                count += Long.bitCount(union.words[i]);
+            }
+            union.cardinality = count;
+            return union;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for(int i = 0; i < BITMAP_WORDS; i++)
+                for(long word = words[i]; word != 0; word &= word - 1)
+                    action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+        }
+
+        private ArrayContainer toArray() {
+            char[] values = new char[Math.max(cardinality, 1)];
+            int count = 0;
+            for(int i = 0; i < BITMAP_WORDS; i++)
+                for(long word = words[i]; word != 0; word &= word - 1)
+                    values[count++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+            return new ArrayContainer(values, count);
+        }
+    }
+}
\ No newline at end of file
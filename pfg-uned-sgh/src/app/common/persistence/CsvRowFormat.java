@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formato CSV de {@link PatientTransfer} (RFC 4180): una primera fila con los nombres de las columnas, valores
+ * separados por comas, y entre comillas dobles los que contienen comas, comillas o saltos de línea. Las listas
+ * se escriben con un elemento por línea dentro de la celda.
+ *
+ * @author Alberto Bausá Cano
+ */
+final class CsvRowFormat {
+
+    // Marca de orden de bytes con que algunas hojas de cálculo comienzan los ficheros UTF-8
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private CsvRowFormat() { }
+
+    /**
+     * Lectura de un fichero CSV, fila a fila.
+     */
+    static final class Reader implements PatientTransfer.RowReader {
+
+        private final java.io.Reader in;
+        private List<String> header;
+        // Línea en curso, y línea en que comienza la última fila leída
+        private long line = 1;
+        private long rowLine;
+
+        Reader(java.io.Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Map<String, Object> next() throws IOException {
+
+            if(header == null) {
+                header = readRecord();
+                if(header == null)
+                    return null;
+                if(!header.get(0).isEmpty() && header.get(0).charAt(0) == BYTE_ORDER_MARK)
+                    header.set(0, header.get(0).substring(1));
+            }
+
+            List<String> fields;
+            do {
+                fields = readRecord();
+            } while(fields != null && fields.size() == 1 && fields.get(0).isEmpty()); // líneas en blanco
+
+            if(fields == null)
+                return null;
+            if(fields.size() != header.size())
+                throw new IllegalArgumentException("se esperaban " + header.size() + " columnas y hay " + fields.size());
+
+            Map<String, Object> row = new LinkedHashMap<>();
+            for(int i = 0; i < fields.size(); i++)
+                row.put(header.get(i), fields.get(i));
+            return row;
+        }
+
+        @Override
+        public long line() {
+            return rowLine;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private List<String> readRecord() throws IOException {
+
+            rowLine = line;
+            int c = read();
+            if(c == -1)
+                return null;
+
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+
+            while(true) {
+                if(quoted) {
+                    if(c == -1)
+                        throw new IOException("Comillas sin cerrar en la fila de la línea " + rowLine);
+                    if(c == '"') {
+                        c = read();
+                        if(c != '"') {
+                            // fin del valor entre comillas: el carácter leído se trata fuera de ellas
+                            quoted = false;
+                            continue;
+                        }
+                        field.append('"');
+                    }
+                    else if(c != '\r')
+                        field.append((char) c);
+                }
+                else if(c == '"' && field.length() == 0)
+                    quoted = true;
+                else if(c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                }
+                else if(c == '\n' || c == -1) {
+                    fields.add(field.toString());
+                    return fields;
+                }
+                else if(c != '\r')
+                    field.append((char) c);
+
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            int c = in.read();
+            if(c == '\n')
+                line++;
+            return c;
+        }
+    }
+
+    /**
+     * Escritura de un fichero CSV, fila a fila, con las columnas indicadas.
+     */
+    static final class Writer implements PatientTransfer.RowWriter {
+
+        private final java.io.Writer out;
+        private final List<String> columns;
+
+        Writer(java.io.Writer out, List<String> columns) throws IOException {
+            this.out = out;
+            this.columns = columns;
+            writeRecord(new ArrayList<>(columns));
+        }
+
+        @Override
+        public void write(Map<String, Object> row) throws IOException {
+
+            List<Object> values = new ArrayList<>(columns.size());
+            for(String column : columns)
+                values.add(row.get(column));
+            writeRecord(values);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        private void writeRecord(List<?> values) throws IOException {
+
+            for(int i = 0; i < values.size(); i++) {
+                if(i > 0)
+                    out.write(',');
+
+                Object value = values.get(i);
+                String text = value == null ? ""
+                        : value instanceof List ? String.join("\n", stringsOf((List<?>) value)) : value.toString();
+                if(text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0)
+                    out.write('"' + text.replace("\"", "\"\"") + '"');
+                else
+                    out.write(text);
+            }
+            out.write("\r\n");
+        }
+
+        private static List<String> stringsOf(List<?> values) {
+            List<String> strings = new ArrayList<>(values.size());
+            for(Object value : values)
+                strings.add(value != null ? value.toString() : "");
+            return strings;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Repositorio de pacientes respaldado en disco: los pacientes se consultan en el mapa de la base de datos,
+ * leída de una {@link ShardedSnapshot}, y cada cambio guardado se registra en el {@link Journal}. Cuando el
+ * diario supera su umbral, o en cada punto de control, se consolida en una nueva instantánea de los
+ * fragmentos modificados (ver {@link JournalCompactor}).
+ * <p>
+ * Las búsquedas por apellidos, estado y médico asignado usan los índices secundarios persistentes de
+ * {@link PatientIndexes}, que se abren (o se reconstruyen, si están desfasados) al aplicar el diario, se
+ * actualizan con cada sección guardada y se consolidan junto con cada nueva instantánea. Hasta entonces, o si
+ * un índice no está disponible, se recorren los pacientes. La búsqueda por DNI, y la comprobación de que un
+ * paciente nuevo no tiene el DNI de otro, usan el índice persistente por DNI; solo si no está disponible, el
+ * índice en memoria del repositorio.
+ * <p>
+ * Guardar espera a que el diario confirme en disco sus registros: el diario agrupa los registros que llegan a
+ * la vez y los confirma con una sola escritura (ver {@link Journal}), y al guardar varios pacientes a la vez se
+ * espera una sola vez por todos ellos. Una sección solo deja de tener cambios pendientes una vez confirmada.
+ * <p>
+ * Si no se puede escribir en el diario, guardar falla con una {@link UncheckedIOException}: el cambio sigue en
+ * memoria, con su fragmento marcado, y se consolida en el siguiente punto de control aunque el diario esté vacío.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class FilePatientRepository extends InMemoryPatientRepository {
+
+    private static final Logger L = Logger.getLogger(FilePatientRepository.class.getName());
+
+    private final ShardedSnapshot snapshot;
+    private final Journal journal;
+    private final JournalCompactor compactor;
+    private final PatientIndexes indexes;
+    // Indica si el diario no se ha podido aplicar: mientras tanto no se compacta, para no descartar sus registros
+    private volatile boolean unappliedJournal;
+
+    /**
+     * Sección añadida al diario, a la espera de su confirmación.
+     */
+    private static final class AppendedSection {
+
+        private final SeccionPacienteModel section;
+        private final CompletableFuture<Void> committed;
+
+        private AppendedSection(SeccionPacienteModel section, CompletableFuture<Void> committed) {
+            this.section = section;
+            this.committed = committed;
+        }
+    }
+
+    /**
+     * Crea el repositorio sobre la base de datos ya leída de la instantánea (o recién creada, si no la había).
+     * El diario no se aplica hasta llamar a {@link #replay()}.
+     *
+     * @param dataBase La base de datos
+     * @param snapshot La instantánea de la que se ha leído, y en la que se consolida el diario
+     * @param journalFile El fichero del diario
+     */
+    public FilePatientRepository(DataBase dataBase, ShardedSnapshot snapshot, File journalFile) {
+        super(dataBase);
+        this.snapshot = snapshot;
+        this.journal = new Journal(journalFile, snapshot.getDictionary());
+        this.indexes = new PatientIndexes(snapshot);
+        this.compactor = new JournalCompactor(journal, () -> {
+                    snapshot.write(dataBase);
+                    indexes.write(snapshot.getStamp()); },
+                JournalCompactor.DEFAULT_THRESHOLD);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Aplica sobre la base de datos los cambios registrados en el diario desde la última instantánea, y abre
+     * (o reconstruye) los índices secundarios.
+     *
+     * Si el diario no se puede aplicar, el repositorio deja de compactarlo (ver {@link #checkpoint()}).
+     *
+     * @return El número de registros aplicados
+     * @throws IOException Si no es posible leer el diario o aplicar alguno de sus registros
+     */
+    public int replay() throws IOException {
+
+        Set<Long> replayed = new LinkedHashSet<>();
+        try {
+            return journal.replay(dataBase, (codeSNS) -> {
+                // los fragmentos de los pacientes reproducidos deben volcarse en la siguiente compactación,
+                // que descarta el diario
+                snapshot.markModified(codeSNS);
+                replayed.add(codeSNS); }); }
+        catch(IOException ioe) {
+            unappliedJournal = true;
+            throw ioe; }
+        finally {
+            List<ResumenPacienteModel> replayedPatients = replayed.stream()
+                    .map(patients::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            indexes.load(snapshot.getStamp(), unretainedPatients(), replayedPatients); }
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findBySurname(String surname) {
+
+        List<Long> found = indexes.findBySurname(surname);
+        return found != null ? patientsOf(found) : super.findBySurname(surname);
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findByState(PatientStateEnum state) {
+
+        List<Long> found = indexes.findByState(state);
+        return found != null ? patientsOf(found) : super.findByState(state);
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findByAssignedDoctor(String doctor) {
+
+        List<Long> found = indexes.findByAssignedDoctor(doctor);
+        return found != null ? patientsOf(found) : super.findByAssignedDoctor(doctor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se registran en el diario sus secciones con cambios pendientes, o todas si el paciente es nuevo.
+     *
+     * @throws UncheckedIOException Si no se pueden registrar en el diario; los cambios siguen pendientes
+     */
+    @Override
+    public void save(ResumenPacienteModel patient) {
+        saveAll(Collections.singletonList(patient));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se registran en el diario las secciones con cambios pendientes de cada paciente, o todas si el paciente es
+     * nuevo, y se espera a la vez a que se escriban todos los registros.
+     *
+     * @throws UncheckedIOException Si no se pueden registrar en el diario; los cambios siguen pendientes
+     */
+    @Override
+    public void saveAll(Collection<ResumenPacienteModel> patients) {
+
+        List<AppendedSection> appended = new ArrayList<>();
+        try {
+            for(ResumenPacienteModel patient : patients) {
+                boolean added = !this.patients.containsKey(codeOf(patient));
+                super.save(patient);
+
+                // los datos generales primero: al reproducir el diario, son los que dan de alta a un paciente nuevo
+                append(patient.getDatosGenerales(), added, appended);
+                append(patient.getDatosPersonales(), added, appended);
+                append(patient.getDatosClinicos(), added, appended);
+                append(patient.getDatosBancarios(), added, appended);
+            }
+        }
+        finally {
+            awaitCommit(appended);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Solo se registra en el diario la propia sección, de forma que el cambio persista sin necesidad
+     * de volver a escribir la base de datos completa.
+     *
+     * @throws UncheckedIOException Si no se puede registrar en el diario; el cambio sigue pendiente
+     */
+    @Override
+    public void saveSection(SeccionPacienteModel section) {
+        saveSections(Collections.singletonList(section));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se registran en el diario las secciones, y se espera a la vez a que se escriban todos los registros.
+     *
+     * @throws UncheckedIOException Si no se pueden registrar en el diario; los cambios siguen pendientes
+     */
+    @Override
+    public void saveSections(Collection<? extends SeccionPacienteModel> sections) {
+
+        List<AppendedSection> appended = new ArrayList<>(sections.size());
+        try {
+            for(SeccionPacienteModel section : sections)
+                append(section, false, appended); }
+        finally {
+            awaitCommit(appended); }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Los errores de escritura se registran en el log: los cambios siguen pendientes, y se consolidan en el
+     * siguiente punto de control.
+     */
+    @Override
+    public void flush() {
+        try {
+            // del almacén proyectado basta con los pacientes ya construidos: el resto no puede tener cambios
+            saveAll(LazyPatientMap.loadedValues(patients).stream()
+                    .filter(ResumenPacienteModel::isDirty)
+                    .collect(Collectors.toList()));
+            journal.sync(); }
+        catch(IOException | UncheckedIOException e) {
+            L.log(Level.SEVERE, "No se han podido escribir en el diario los cambios pendientes", e); }
+    }
+
+    /**
+     * Consolida el diario en una nueva instantánea, si tiene registros o hay cambios que no se pudieron
+     * registrar en él. Si el diario no se pudo aplicar al abrir el repositorio, no se compacta nunca: sus
+     * registros se conservan hasta que se restaure el diario y se vuelva a abrir.
+     *
+     * @throws IOException Si no se puede escribir la instantánea, o el diario no se pudo aplicar; el diario se conserva
+     */
+    public void checkpoint() throws IOException {
+
+        if(unappliedJournal)
+            throw new IOException("No se consolida un diario que no se ha podido aplicar");
+        // sin registros en el diario ni fragmentos modificados la instantánea ya está al día
+        journal.sync();
+        if(!journal.isEmpty() || snapshot.isModified())
+            compactor.compact();
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * El médico asignado de los pacientes sin cargar se toma de su índice secundario.
+     */
+    @Override
+    protected PatientColumns buildColumns() {
+
+        PatientColumns columns = super.buildColumns();
+        if(!indexes.forEachAssignedDoctor((doctor, codeSNS) -> columns.setAssignedDoctor(codeSNS, doctor)))
+            // sin el índice, hay que leer los datos clínicos de todos los pacientes
+            stream().forEach((patient) -> columns.setAssignedDoctor(codeOf(patient),
+                    patient.getDatosClinicos() != null ? patient.getDatosClinicos().getAsignedDoctor() : null));
+        return columns;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se busca en el índice persistente por DNI y, solo si no está disponible, en el índice en memoria.
+     */
+    @Override
+    protected Long findCodeByDNI(DNI dni) {
+
+        List<Long> found = indexes.findByDNI(dni);
+        if(found == null)
+            return super.findCodeByDNI(dni);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    private void append(SeccionPacienteModel section, boolean force, List<AppendedSection> appended) {
+
+        if(section == null || (!force && !section.isDirty()) || section.getCodeSNS() == null)
+            return;
+
+        Long codeSNS = section.getCodeSNS();
+        // el fragmento se marca antes de escribir en el diario, para que ninguna compactación lo omita
+        snapshot.markModified(codeSNS);
+        try {
+            // el registro se escribe en segundo plano, agrupado con los que lleguen a la vez
+            appended.add(new AppendedSection(section, journal.append(section))); }
+        catch(IOException ioe) {
+            L.log(Level.SEVERE, "No se ha podido registrar en el diario el paciente " + codeSNS, ioe);
+            throw new UncheckedIOException("No se ha podido registrar en el diario el paciente " + codeSNS, ioe); }
+
+        // y se actualizan en el sitio el índice proyectado del paciente, y sus índices secundarios
+        snapshot.updateIndex(codeSNS);
+        ResumenPacienteModel patient = patients.get(codeSNS);
+        if(patient != null) {
+            indexes.update(patient, section);
+            if(section == patient.getDatosGenerales()) {
+                updateDNIIndex(patient);
+                updateSearchIndex(patient);
+            }
+            else if(section instanceof DatosClinicosModel)
+                updateTriageQueue(patient);
+            updateColumns(patient);
+        }
+    }
+
+    private void awaitCommit(List<AppendedSection> appended) {
+
+        IOException failure = null;
+        Long failed = null;
+        for(AppendedSection pending : appended)
+            try {
+                journal.awaitCommit(pending.committed);
+                // solo una vez en disco deja la sección de tener cambios pendientes
+                pending.section.clearDirty(); }
+            catch(IOException ioe) {
+                // el cambio sigue en memoria, y su fragmento marcado, hasta la siguiente instantánea
+                failure = ioe;
+                failed = pending.section.getCodeSNS(); }
+
+        if(!appended.isEmpty() && !unappliedJournal)
+            compactor.checkThreshold();
+        if(failure != null) {
+            L.log(Level.SEVERE, "No se ha podido registrar en el diario el paciente " + failed, failure);
+            throw new UncheckedIOException("No se ha podido registrar en el diario el paciente " + failed, failure);
+        }
+    }
+
+    private List<ResumenPacienteModel> patientsOf(List<Long> codes) {
+
+        List<ResumenPacienteModel> found = new ArrayList<>(codes.size());
+        for(Long codeSNS : codes) {
+            ResumenPacienteModel patient = patients.get(codeSNS);
+            if(patient != null)
+                found.add(patient);
+        }
+        return found;
+    }
+
+    private Iterable<ResumenPacienteModel> unretainedPatients() {
+        // para reconstruir los índices se recorren todos los pacientes sin mantenerlos en memoria
+        return () -> patients.keySet().stream()
+                .map((codeSNS) -> LazyPatientMap.peek(patients, codeSNS))
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+}
\ No newline at end of file
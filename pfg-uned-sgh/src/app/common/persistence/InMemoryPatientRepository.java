@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Repositorio de pacientes sobre un mapa en memoria por código SNS, sin persistencia. El mapa puede ser
+ * cualquiera ordenado por código SNS, como el de la base de datos o el del almacén proyectado.
+ * <p>
+ * La búsqueda por DNI usa un índice por DNI en memoria, en tiempo constante, que se construye en la primera
+ * búsqueda y se mantiene con cada paciente guardado; no se puede registrar un paciente nuevo con el DNI de otro.
+ * Las búsquedas por estado o médico asignado y los filtros combinados usan la tabla de resumen por columnas
+ * ({@link PatientColumns}); las búsquedas por apellidos recorren todos los pacientes. La búsqueda mientras se
+ * escribe usa un {@link PatientSearchIndex}, que se construye en la primera búsqueda y de nuevo cuando queda
+ * desfasado. La cola por urgencia y la tabla por columnas se construyen la primera vez que se usan, y a partir
+ * de entonces se mantienen con cada paciente guardado.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class InMemoryPatientRepository implements PatientRepository {
+
+    // Pacientes registrados: <codeSNS,ResumenPacienteModel>
+    protected final Map<Long, ResumenPacienteModel> patients;
+    // Base de datos de los pacientes; nula si el repositorio es un mapa suelto
+    protected final DataBase dataBase;
+    // Índice de los pacientes por DNI: <DNI empaquetado,codeSNS>, y el DNI indexado de cada paciente; nulos
+    // hasta la primera búsqueda por DNI
+    private Map<Long, Long> codesByDNI;
+    private Map<Long, Long> dnisByCode;
+    // Índice de la búsqueda mientras se escribe; nulo hasta la primera búsqueda
+    private volatile PatientSearchIndex searchIndex;
+    // Cola de pacientes por urgencia; nula hasta que se pide
+    private volatile TriageQueue triageQueue;
+    // Tabla de resumen por columnas, para los filtros; nula hasta el primero
+    private volatile PatientColumns columns;
+
+    /**
+     * Crea un repositorio vacío.
+     */
+    public InMemoryPatientRepository() {
+        this(new PatientHashMap());
+    }
+
+    /**
+     * Crea un repositorio sobre el mapa de pacientes indicado, que no se copia.
+     *
+     * @param patients Los pacientes, por código SNS y en ese orden
+     */
+    public InMemoryPatientRepository(Map<Long, ResumenPacienteModel> patients) {
+        this.patients = patients;
+        this.dataBase = null;
+    }
+
+    /**
+     * Crea un repositorio sobre los pacientes de la base de datos indicada.
+     *
+     * @param dataBase La base de datos
+     */
+    public InMemoryPatientRepository(DataBase dataBase) {
+        this.patients = dataBase.getRegisteredPatients();
+        this.dataBase = dataBase;
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    @Override
+    public ResumenPacienteModel findBySNS(long codeSNS) {
+        return patients instanceof PatientHashMap ? ((PatientHashMap) patients).get(codeSNS) : patients.get(codeSNS);
+    }
+
+    @Override
+    public ResumenPacienteModel findByDNI(DNI dni) {
+
+        Long codeSNS = dni != null ? findCodeByDNI(dni) : null;
+        return codeSNS != null ? patients.get(codeSNS) : null;
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findBySurname(String surname) {
+        String key = PatientIndexes.textKey(surname);
+        return scan(generales((generales) -> key != null && key.equals(PatientIndexes.textKey(generales.getSurname()))));
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findByState(PatientStateEnum state) {
+        return state != null ? findByFilter(new PatientFilter().state(state)) : new ArrayList<>();
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findByAssignedDoctor(String doctor) {
+        return PatientIndexes.textKey(doctor) != null ? findByFilter(new PatientFilter().doctor(doctor)) : new ArrayList<>();
+    }
+
+    @Override
+    public List<ResumenPacienteModel> findRange(long fromSNS, long toSNS) {
+
+        if(fromSNS >= toSNS)
+            return new ArrayList<>();
+        if(patients instanceof PatientHashMap)
+            return ((PatientHashMap) patients).valuesBetween(fromSNS, toSNS);
+        if(patients instanceof NavigableMap)
+            return new ArrayList<>(((NavigableMap<Long, ResumenPacienteModel>) patients).subMap(fromSNS, toSNS).values());
+
+        return patients.entrySet().stream()
+                .filter((entry) -> entry.getKey() >= fromSNS && entry.getKey() < toSNS)
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Los filtros no recorren los pacientes, sino su tabla de resumen por columnas.
+     */
+    @Override
+    public List<ResumenPacienteModel> findByFilter(PatientFilter filter) {
+
+        long[] codes = columns().find(filter);
+        List<ResumenPacienteModel> found = new ArrayList<>(codes.length);
+        for(long codeSNS : codes) {
+            ResumenPacienteModel patient = patients.get(codeSNS);
+            if(patient != null)
+                found.add(patient);
+        }
+        return found;
+    }
+
+    @Override
+    public int countByFilter(PatientFilter filter) {
+        return columns().count(filter);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Las búsquedas no recorren los pacientes, sino su índice de búsqueda.
+     */
+    @Override
+    public List<ResumenPacienteModel> search(String query, int limit) {
+
+        List<ResumenPacienteModel> found = new ArrayList<>();
+        for(Long codeSNS : searchIndex().search(query, limit)) {
+            ResumenPacienteModel patient = patients.get(codeSNS);
+            if(patient != null)
+                found.add(patient);
+        }
+        return found;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException Si el paciente es nuevo y su DNI ya está registrado para otro paciente
+     */
+    @Override
+    public void save(ResumenPacienteModel patient) {
+
+        Long codeSNS = codeOf(patient);
+        if(patients.get(codeSNS) != patient) {
+            DNI dni = patient.getDatosGenerales().getDni();
+            Long owner = dni != null && !patients.containsKey(codeSNS) ? findCodeByDNI(dni) : null;
+            if(owner != null && !owner.equals(codeSNS))
+                throw new IllegalArgumentException("El DNI " + dni + " ya está registrado para otro paciente");
+            patients.put(codeSNS, patient);
+        }
+        patient.linkSections();
+        updateDNIIndex(patient);
+        updateSearchIndex(patient);
+        updateTriageQueue(patient);
+        updateColumns(patient);
+    }
+
+    @Override
+    public void saveAll(Collection<ResumenPacienteModel> patients) {
+        patients.forEach(this::save);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * La cola es la misma en cada llamada, y sigue los cambios de prioridad de los pacientes guardados.
+     */
+    @Override
+    public synchronized TriageQueue triageQueue() {
+
+        if(triageQueue == null)
+            triageQueue = new TriageQueue(this::indexedPatients, this::findBySNS);
+        return triageQueue;
+    }
+
+    @Override
+    public Stream<ResumenPacienteModel> stream() {
+        return patients.values().stream();
+    }
+
+    @Override
+    public Iterator<ResumenPacienteModel> iterator() {
+        return patients.values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return patients.size();
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Código SNS de un paciente a registrar.
+     *
+     * @param patient El paciente
+     * @return Su código SNS
+     * @throws IllegalArgumentException Si el paciente no tiene código SNS
+     */
+    protected static Long codeOf(ResumenPacienteModel patient) {
+
+        if(patient.getDatosGenerales() == null || patient.getDatosGenerales().getCodeSNS() == null)
+            throw new IllegalArgumentException("El paciente no tiene código SNS");
+        return patient.getDatosGenerales().getCodeSNS();
+    }
+
+    /**
+     * Busca el código SNS del paciente con el DNI indicado en el índice por DNI, que se construye en la primera
+     * búsqueda recorriendo los pacientes. Si el DNI está repetido (bases de datos anteriores a la comprobación),
+     * prevalece el paciente de menor código SNS.
+     *
+     * @param dni El DNI
+     * @return El código SNS del paciente, o nulo si no hay ninguno con ese DNI
+     */
+    protected synchronized Long findCodeByDNI(DNI dni) {
+
+        if(codesByDNI == null) {
+            Map<Long, Long> byDNI = new HashMap<>();
+            Map<Long, Long> byCode = new HashMap<>();
+            for(Iterator<ResumenPacienteModel> it = indexedPatients(); it.hasNext(); ) {
+                DatoGeneralesModel generales = it.next().getDatosGenerales();
+                if(generales != null && generales.getDni() != null && generales.getCodeSNS() != null) {
+                    byDNI.putIfAbsent(generales.getDni().pack(), generales.getCodeSNS());
+                    byCode.put(generales.getCodeSNS(), generales.getDni().pack());
+                }
+            }
+            codesByDNI = byDNI;
+            dnisByCode = byCode;
+        }
+        return codesByDNI.get(dni.pack());
+    }
+
+    /**
+     * Registra en el índice por DNI, si ya está construido, el DNI actual de un paciente.
+     *
+     * @param patient El paciente recién guardado
+     */
+    protected synchronized void updateDNIIndex(ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        if(codesByDNI == null || generales == null || generales.getCodeSNS() == null)
+            return;
+
+        Long codeSNS = generales.getCodeSNS();
+        Long previous = dnisByCode.remove(codeSNS);
+        if(previous != null && codeSNS.equals(codesByDNI.get(previous)))
+            codesByDNI.remove(previous);
+        if(generales.getDni() != null) {
+            codesByDNI.putIfAbsent(generales.getDni().pack(), codeSNS);
+            dnisByCode.put(codeSNS, generales.getDni().pack());
+        }
+    }
+
+    /**
+     * Registra en el índice de búsqueda, si ya está construido, los datos generales actuales de un paciente.
+     *
+     * @param patient El paciente recién guardado
+     */
+    protected void updateSearchIndex(ResumenPacienteModel patient) {
+        PatientSearchIndex index = searchIndex;
+        if(index != null)
+            index.update(patient);
+    }
+
+    /**
+     * Registra en la cola por urgencia, si ya está construida, la prioridad actual de un paciente.
+     *
+     * @param patient El paciente recién guardado
+     */
+    protected void updateTriageQueue(ResumenPacienteModel patient) {
+        TriageQueue queue = triageQueue;
+        if(queue != null)
+            queue.update(patient);
+    }
+
+    /**
+     * Registra en la tabla por columnas, si ya está construida, los datos actuales de un paciente.
+     *
+     * @param patient El paciente recién guardado
+     */
+    protected void updateColumns(ResumenPacienteModel patient) {
+        PatientColumns table = columns;
+        if(table != null)
+            table.update(patient);
+    }
+
+    /**
+     * Construye la tabla por columnas a partir de los pacientes, sin cargar sus detalles.
+     *
+     * @return La tabla
+     */
+    protected PatientColumns buildColumns() {
+        return new PatientColumns(this::indexedPatients);
+    }
+
+    private synchronized PatientColumns columns() {
+
+        if(columns == null)
+            columns = buildColumns();
+        return columns;
+    }
+
+    private synchronized PatientSearchIndex searchIndex() {
+
+        if(searchIndex == null || searchIndex.isStale())
+            searchIndex = new PatientSearchIndex(this::indexedPatients);
+        return searchIndex;
+    }
+
+    /**
+     * Recorre los pacientes sin retenerlos, para construir los índices: de los proyectados basta con su índice.
+     */
+    private Iterator<ResumenPacienteModel> indexedPatients() {
+        return patients.keySet().stream()
+                .map((codeSNS) -> LazyPatientMap.peek(patients, codeSNS))
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    private List<ResumenPacienteModel> scan(Predicate<ResumenPacienteModel> filter) {
+        return stream().filter(filter).collect(Collectors.toList());
+    }
+
+    private static Predicate<ResumenPacienteModel> generales(Predicate<DatoGeneralesModel> filter) {
+        return (patient) -> patient.getDatosGenerales() != null && filter.test(patient.getDatosGenerales());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,903 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import app.model.datospaciente.entity.DNI;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Repositorio de pacientes sobre una base de datos SQL embebida, accedida por JDBC (por ejemplo H2 o SQLite
+ * en un fichero local). El controlador JDBC no se distribuye con la aplicación: basta con añadirlo al classpath
+ * e indicar la URL de conexión en la propiedad de sistema {@value #URL_PROPERTY}.
+ * <p>
+ * Esquema normalizado: una tabla por sección del paciente ('patient' para los datos generales, 'personal_data',
+ * 'clinical_data' y 'bank_data'), todas con el código SNS como clave primaria, y una tabla 'allergy' con una
+ * fila por alergia. Hay índices por DNI, estado y prioridad de triaje, de forma que las búsquedas, los intervalos
+ * y los recuentos los resuelve la propia base de datos, sin recorrer los pacientes en memoria.
+ * <p>
+ * Los recorridos leen solo las columnas del índice (datos generales, sexo, fecha de nacimiento y prioridad),
+ * por páginas ordenadas por código SNS; las secciones de detalle se leen al abrir cada ficha. Cada guardado
+ * escribe las secciones con cambios pendientes mediante sentencias preparadas por lotes, en una única transacción.
+ * <p>
+ * Los errores de SQL de las consultas se registran en el log, y la consulta no devuelve ningún paciente. Si no se
+ * puede guardar, guardar falla con una {@link UncheckedIOException}: la transacción se deshace y el cambio sigue en
+ * memoria, pendiente del siguiente guardado.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class JdbcPatientRepository implements PatientRepository {
+
+    /**
+     * Propiedad de sistema con la URL JDBC de la base de datos (por ejemplo "jdbc:h2:file:/ruta/sgh").
+     */
+    public static final String URL_PROPERTY = "sgh.jdbc.url";
+
+    // Número de pacientes leídos en cada página de los recorridos
+    private static final int PAGE_SIZE = 1000;
+
+    private static final Logger L = Logger.getLogger(JdbcPatientRepository.class.getName());
+
+    // Tablas de cada sección, con sus columnas en el orden en que se asignan (el código SNS va siempre al final)
+    private static final Table PATIENT = new Table("patient",
+            new String[] { "name", "surname", "dni_digits", "dni_letter", "state" },
+            new int[] { Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.CHAR, Types.SMALLINT });
+    private static final Table PERSONAL_DATA = new Table("personal_data",
+            new String[] { "sex", "birth_day", "birth_month", "birth_year", "email", "postal_address", "phone_number" },
+            new int[] { Types.SMALLINT, Types.SMALLINT, Types.SMALLINT, Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.BIGINT });
+    private static final Table CLINICAL_DATA = new Table("clinical_data",
+            new String[] { "asigned_doctor", "current_medication", "rcp", "allergy_count", "triaje_priority" },
+            new int[] { Types.VARCHAR, Types.VARCHAR, Types.BOOLEAN, Types.INTEGER, Types.INTEGER });
+    private static final Table BANK_DATA = new Table("bank_data",
+            new String[] { "account_number", "health_insurance", "insurance_company" },
+            new int[] { Types.BIGINT, Types.BOOLEAN, Types.VARCHAR });
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS patient (code_sns BIGINT PRIMARY KEY, name VARCHAR(255), surname VARCHAR(255),"
+                + " dni_digits INTEGER, dni_letter CHAR(1), state SMALLINT)",
+        "CREATE TABLE IF NOT EXISTS personal_data (code_sns BIGINT PRIMARY KEY REFERENCES patient(code_sns),"
+                + " sex SMALLINT, birth_day SMALLINT, birth_month SMALLINT, birth_year INTEGER,"
+                + " email VARCHAR(255), postal_address VARCHAR(255), phone_number BIGINT)",
+        "CREATE TABLE IF NOT EXISTS clinical_data (code_sns BIGINT PRIMARY KEY REFERENCES patient(code_sns),"
+                + " asigned_doctor VARCHAR(255), current_medication VARCHAR(4000), rcp BOOLEAN,"
+                + " allergy_count INTEGER, triaje_priority INTEGER)",
+        "CREATE TABLE IF NOT EXISTS allergy (code_sns BIGINT NOT NULL REFERENCES patient(code_sns),"
+                + " position INTEGER NOT NULL, allergy VARCHAR(255), PRIMARY KEY (code_sns, position))",
+        "CREATE TABLE IF NOT EXISTS bank_data (code_sns BIGINT PRIMARY KEY REFERENCES patient(code_sns),"
+                + " account_number BIGINT, health_insurance BOOLEAN, insurance_company VARCHAR(255))",
+        "CREATE INDEX IF NOT EXISTS patient_dni ON patient (dni_digits, dni_letter)",
+        "CREATE INDEX IF NOT EXISTS patient_state ON patient (state)",
+        "CREATE INDEX IF NOT EXISTS clinical_data_priority ON clinical_data (triaje_priority)"
+    };
+
+    // Tablas con las columnas del índice de un paciente
+    private static final String INDEX_TABLES = " FROM patient p"
+            + " LEFT JOIN personal_data d ON d.code_sns = p.code_sns LEFT JOIN clinical_data c ON c.code_sns = p.code_sns";
+    // Fecha de nacimiento como el número aaaammdd, que conserva el orden de las fechas
+    private static final String BIRTH_NUMBER = "(d.birth_year * 10000 + d.birth_month * 100 + d.birth_day)";
+    // Columnas del índice de un paciente, las únicas que se leen en búsquedas y recorridos
+    private static final String INDEX_QUERY = "SELECT p.code_sns, p.name, p.surname, p.dni_digits, p.dni_letter, p.state,"
+            + " d.sex, d.birth_day, d.birth_month, d.birth_year, c.triaje_priority" + INDEX_TABLES;
+
+    private final Connection connection;
+    // Pacientes ya construidos, por código SNS: cada paciente se devuelve siempre como el mismo objeto,
+    // de forma que los cambios hechos en la interfaz no se pierdan al volver a consultarlo. Las referencias
+    // son débiles, para que los recorridos e importaciones masivas no retengan a todos los pacientes
+    private final Map<Long, PatientReference> loaded = new HashMap<>();
+    // Referencias de los pacientes ya liberados, pendientes de retirar de 'loaded'
+    private final ReferenceQueue<ResumenPacienteModel> released = new ReferenceQueue<>();
+    // Cola de pacientes por urgencia; nula hasta que se pide
+    private TriageQueue triageQueue;
+
+    /**
+     * Abre la base de datos indicada, creando el esquema si todavía no existe.
+     *
+     * @param url La URL JDBC de la base de datos
+     * @throws SQLException Si no se puede abrir la base de datos o crear el esquema
+     */
+    public JdbcPatientRepository(String url) throws SQLException {
+
+        connection = DriverManager.getConnection(url);
+        try {
+            connection.setAutoCommit(false);
+            try(Statement statement = connection.createStatement()) {
+                for(String ddl : SCHEMA)
+                    statement.execute(ddl);
+            }
+            connection.commit(); }
+        catch(SQLException sqle) {
+            connection.close();
+            throw sqle; }
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    @Override
+    public synchronized ResumenPacienteModel findBySNS(long codeSNS) {
+
+        ResumenPacienteModel patient = cached(codeSNS);
+        if(patient != null)
+            return patient;
+
+        List<ResumenPacienteModel> found = query(INDEX_QUERY + " WHERE p.code_sns = ?", 1, codeSNS);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @Override
+    public synchronized ResumenPacienteModel findByDNI(DNI dni) {
+
+        List<ResumenPacienteModel> found = query(INDEX_QUERY + " WHERE p.dni_digits = ? AND p.dni_letter = ?"
+                + " ORDER BY p.code_sns", 1, dni.getDigits(), String.valueOf(dni.getLetter()));
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se compara con {@code LOWER(TRIM(surname))}, que no aprovecha ningún índice de la base de datos.
+     */
+    @Override
+    public synchronized List<ResumenPacienteModel> findBySurname(String surname) {
+
+        String key = PatientIndexes.textKey(surname);
+        if(key == null)
+            return new ArrayList<>();
+        return query(INDEX_QUERY + " WHERE LOWER(TRIM(p.surname)) = ? ORDER BY p.code_sns", 0, key);
+    }
+
+    @Override
+    public synchronized List<ResumenPacienteModel> findByState(PatientStateEnum state) {
+
+        if(state == null)
+            return new ArrayList<>();
+        return query(INDEX_QUERY + " WHERE p.state = ? ORDER BY p.code_sns", 0, state.ordinal());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Se compara con {@code LOWER(TRIM(asigned_doctor))}, que no aprovecha ningún índice de la base de datos.
+     */
+    @Override
+    public synchronized List<ResumenPacienteModel> findByAssignedDoctor(String doctor) {
+
+        String key = PatientIndexes.textKey(doctor);
+        if(key == null)
+            return new ArrayList<>();
+        return query(INDEX_QUERY + " WHERE LOWER(TRIM(c.asigned_doctor)) = ? ORDER BY p.code_sns", 0, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * El filtro lo resuelve la base de datos, con sus índices por estado y prioridad de triaje. La condición de
+     * médico asignado se compara con {@code LOWER(TRIM(asigned_doctor))}, que no aprovecha ningún índice.
+     */
+    @Override
+    public synchronized List<ResumenPacienteModel> findByFilter(PatientFilter filter) {
+
+        List<Object> parameters = new ArrayList<>();
+        return query(INDEX_QUERY + whereOf(filter, parameters) + orderOf(filter), 0, parameters.toArray());
+    }
+
+    @Override
+    public synchronized int countByFilter(PatientFilter filter) {
+
+        List<Object> parameters = new ArrayList<>();
+        try(PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*)" + INDEX_TABLES + whereOf(filter, parameters))) {
+            for(int i = 0; i < parameters.size(); i++)
+                statement.setObject(i + 1, parameters.get(i));
+            int count;
+            try(ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                count = rs.getInt(1);
+            }
+            connection.commit();
+            return count; }
+        catch(SQLException sqle) {
+            rollback();
+            L.log(Level.SEVERE, "No se ha podido contar los pacientes de la base de datos", sqle);
+            return 0; }
+    }
+
+    @Override
+    public synchronized List<ResumenPacienteModel> findRange(long fromSNS, long toSNS) {
+
+        if(fromSNS >= toSNS)
+            return new ArrayList<>();
+        return query(INDEX_QUERY + " WHERE p.code_sns >= ? AND p.code_sns < ? ORDER BY p.code_sns", 0, fromSNS, toSNS);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UncheckedIOException Si no se puede guardar en la base de datos; los cambios siguen pendientes
+     */
+    @Override
+    public void save(ResumenPacienteModel patient) {
+        saveAll(Collections.singletonList(patient));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Todos los pacientes se escriben en una única transacción, con un lote de sentencias por tabla. De cada
+     * paciente se escriben sus secciones con cambios pendientes, o todas si el paciente no se obtuvo de este
+     * repositorio (un alta, o un paciente importado de otra base de datos). Si se rechaza algún paciente, no
+     * se guarda ninguno.
+     *
+     * @throws IllegalArgumentException Si un paciente nuevo tiene el DNI de otro paciente, registrado o del mismo lote
+     * @throws UncheckedIOException Si no se puede guardar en la base de datos; los cambios siguen pendientes
+     */
+    @Override
+    public synchronized void saveAll(Collection<ResumenPacienteModel> patients) {
+
+        Batch generales = new Batch(PATIENT);
+        Batch personales = new Batch(PERSONAL_DATA);
+        Batch clinicos = new Batch(CLINICAL_DATA);
+        Batch bancarios = new Batch(BANK_DATA);
+        List<Object[]> allergies = new ArrayList<>();
+        List<Long> allergyOwners = new ArrayList<>();
+        List<DatoGeneralesModel> added = new ArrayList<>();
+
+        for(ResumenPacienteModel patient : patients) {
+            Long codeSNS = InMemoryPatientRepository.codeOf(patient);
+            boolean isNew = cached(codeSNS) != patient;
+            patient.linkSections();
+
+            DatoGeneralesModel model = patient.getDatosGenerales();
+            if(isNew)
+                added.add(model);
+            if(isNew || model.isDirty())
+                generales.add(model, model.getName(), model.getSurname(),
+                        model.getDni() != null ? model.getDni().getDigits() : null,
+                        model.getDni() != null ? String.valueOf(model.getDni().getLetter()) : null,
+                        model.getState() != null ? model.getState().ordinal() : null);
+
+            // las secciones de detalle sin cargar no pueden tener cambios
+            if(!isNew && !patient.isDetailLoaded())
+                continue;
+
+            DatosPersonalesModel personal = patient.getDatosPersonales();
+            if(personal != null && (isNew || personal.isDirty())) {
+                Birthdate birthDate = personal.getBirthDate();
+                personales.add(personal, personal.getPatientSex() != null ? personal.getPatientSex().ordinal() : null,
+                        birthDate != null ? birthDate.getDay() : null,
+                        birthDate != null ? birthDate.getMonth() : null,
+                        birthDate != null ? birthDate.getYear() : null,
+                        personal.getEmail(), personal.getPostalAddress(), personal.getPhoneNumber());
+            }
+
+            DatosClinicosModel clinical = patient.getDatosClinicos();
+            if(clinical != null && (isNew || clinical.isDirty())) {
+                String[] allergyList = clinical.getAllergies();
+                clinicos.add(clinical, clinical.getAsignedDoctor(), clinical.getCurrentMedication(), clinical.getRcp(),
+                        allergyList != null ? allergyList.length : null, clinical.getTriajePriority());
+                allergyOwners.add(codeSNS);
+                for(int i = 0; allergyList != null && i < allergyList.length; i++)
+                    allergies.add(new Object[] { codeSNS, i, allergyList[i] });
+            }
+
+            DatosBancariosModel bank = patient.getDatosBancarios();
+            if(bank != null && (isNew || bank.isDirty()))
+                bancarios.add(bank, bank.getAccountNumber(), bank.getHealthInsurance(), bank.getInsuranceCompany());
+        }
+
+        try {
+            checkDNIs(added);
+            // los datos generales primero, por las claves ajenas del resto de tablas
+            generales.execute();
+            personales.execute();
+            clinicos.execute();
+            executeBatch("DELETE FROM allergy WHERE code_sns = ?", new int[] { Types.BIGINT },
+                    allergyOwners.stream().map((code) -> new Object[] { code }).iterator());
+            executeBatch("INSERT INTO allergy (code_sns, position, allergy) VALUES (?, ?, ?)",
+                    new int[] { Types.BIGINT, Types.INTEGER, Types.VARCHAR }, allergies.iterator());
+            bancarios.execute();
+            connection.commit(); }
+        catch(SQLException sqle) {
+            rollback();
+            L.log(Level.SEVERE, "No se han podido guardar los pacientes en la base de datos", sqle);
+            throw new UncheckedIOException(new IOException("No se han podido guardar los pacientes en la base de datos", sqle)); }
+        catch(IllegalArgumentException iae) {
+            rollback();
+            throw iae; }
+
+        // solo una vez confirmada la transacción los pacientes pasan a estar guardados
+        for(ResumenPacienteModel patient : patients) {
+            cache(patient.getDatosGenerales().getCodeSNS(), patient);
+            if(triageQueue != null)
+                triageQueue.update(patient);
+        }
+        for(Batch batch : new Batch[] { generales, personales, clinicos, bancarios })
+            batch.sections.forEach(SeccionPacienteModel::clearDirty);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * La cola es la misma en cada llamada, y sigue los cambios de prioridad de los pacientes guardados.
+     */
+    @Override
+    public synchronized TriageQueue triageQueue() {
+        if(triageQueue == null)
+            triageQueue = new TriageQueue(this, this::findBySNS);
+        return triageQueue;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * La sección se guarda con el resto de cambios pendientes de su paciente, en una transacción. Si el
+     * paciente ya no estaba en memoria, se vuelve a leer y se le asigna la sección.
+     *
+     * @throws UncheckedIOException Si no se puede guardar en la base de datos; el cambio sigue pendiente
+     */
+    @Override
+    public void saveSection(SeccionPacienteModel section) {
+        saveSections(Collections.singletonList(section));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Las secciones se guardan con el resto de cambios pendientes de sus pacientes, en una única transacción.
+     *
+     * @throws UncheckedIOException Si no se puede guardar en la base de datos; los cambios siguen pendientes
+     */
+    @Override
+    public synchronized void saveSections(Collection<? extends SeccionPacienteModel> sections) {
+
+        Map<Long, ResumenPacienteModel> owners = new LinkedHashMap<>();
+        for(SeccionPacienteModel section : sections) {
+            if(section.getCodeSNS() == null || !section.isDirty())
+                continue;
+
+            ResumenPacienteModel patient = findBySNS(section.getCodeSNS());
+            if(patient == null) {
+                L.log(Level.WARNING, "No se guarda la sección del paciente {0}: no está registrado", section.getCodeSNS());
+                continue;
+            }
+            attach(patient, section);
+            owners.put(section.getCodeSNS(), patient);
+        }
+        if(!owners.isEmpty())
+            saveAll(owners.values());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Los pacientes modificados se guardan en una única transacción. Si no se pueden guardar, el error se
+     * registra en el log y los cambios siguen pendientes.
+     */
+    @Override
+    public synchronized void flush() {
+
+        List<ResumenPacienteModel> dirty = new ArrayList<>();
+        for(PatientReference reference : loaded.values()) {
+            ResumenPacienteModel patient = reference.get();
+            if(patient != null && patient.isDirty())
+                dirty.add(patient);
+        }
+        try {
+            if(!dirty.isEmpty())
+                saveAll(dirty); }
+        catch(UncheckedIOException uioe) {
+            // ya registrado en el log por saveAll
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Los pacientes se leen por páginas, de forma que nunca hay en memoria más que una página de resultados
+     * (además de los pacientes ya construidos).
+     */
+    @Override
+    public Stream<ResumenPacienteModel> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public Iterator<ResumenPacienteModel> iterator() {
+        return new PageIterator();
+    }
+
+    @Override
+    public synchronized int size() {
+
+        try(Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM patient")) {
+            rs.next();
+            return rs.getInt(1); }
+        catch(SQLException sqle) {
+            L.log(Level.SEVERE, "No se ha podido contar los pacientes de la base de datos", sqle);
+            return 0; }
+    }
+
+    /**
+     * Cierra la conexión con la base de datos. Los cambios ya guardados están confirmados.
+     */
+    public synchronized void close() {
+        try {
+            connection.close(); }
+        catch(SQLException sqle) {
+            L.log(Level.WARNING, "No se ha podido cerrar la base de datos", sqle); }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private List<ResumenPacienteModel> query(String sql, int maxRows, Object... parameters) {
+
+        List<ResumenPacienteModel> found = new ArrayList<>();
+        try(PreparedStatement statement = connection.prepareStatement(sql)) {
+            for(int i = 0; i < parameters.length; i++)
+                statement.setObject(i + 1, parameters[i]);
+            statement.setMaxRows(maxRows);
+            try(ResultSet rs = statement.executeQuery()) {
+                while(rs.next())
+                    found.add(toPatient(rs));
+            }
+            connection.commit(); }
+        catch(SQLException sqle) {
+            rollback();
+            L.log(Level.SEVERE, "No se ha podido consultar la base de datos", sqle); }
+        return found;
+    }
+
+    /**
+     * Condiciones de un filtro combinado sobre las columnas del índice, con sus parámetros.
+     */
+    private static String whereOf(PatientFilter filter, List<Object> parameters) {
+
+        List<String> conditions = new ArrayList<>();
+        if(filter.getStates() != null)
+            conditions.add(in("p.state", filter.getStates(), parameters));
+        if(filter.getSexes() != null)
+            conditions.add(in("d.sex", filter.getSexes(), parameters));
+        if(filter.isByPriority()) {
+            conditions.add("c.triaje_priority BETWEEN ? AND ?");
+            parameters.add(filter.getMinPriority());
+            parameters.add(filter.getMaxPriority());
+        }
+        if(filter.getDoctor() != null) {
+            conditions.add("LOWER(TRIM(c.asigned_doctor)) = ?");
+            parameters.add(PatientIndexes.textKey(filter.getDoctor()));
+        }
+        // la fecha de nacimiento, como el número aaaammdd
+        if(filter.getBornFrom() != null || filter.getBornTo() != null)
+            conditions.add(BIRTH_NUMBER + " IS NOT NULL");
+        if(filter.getBornFrom() != null) {
+            conditions.add(BIRTH_NUMBER + " >= ?");
+            parameters.add(birthNumber(filter.getBornFrom()));
+        }
+        if(filter.getBornTo() != null) {
+            conditions.add(BIRTH_NUMBER + " <= ?");
+            parameters.add(birthNumber(filter.getBornTo()));
+        }
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+
+    private static String orderOf(PatientFilter filter) {
+        switch(filter.getSort()) {
+            case PRIORITY:
+                return " ORDER BY CASE WHEN c.triaje_priority IS NULL THEN 1 ELSE 0 END, c.triaje_priority DESC, p.code_sns";
+            case AGE:
+                return " ORDER BY CASE WHEN " + BIRTH_NUMBER + " IS NULL THEN 1 ELSE 0 END, " + BIRTH_NUMBER + ", p.code_sns";
+            default:
+                return " ORDER BY p.code_sns";
+        }
+    }
+
+    private static int birthNumber(LocalDate date) {
+        return date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+
+    private static String in(String column, Set<? extends Enum<?>> values, List<Object> parameters) {
+
+        if(values.isEmpty())
+            return "1 = 0";
+        values.forEach((value) -> parameters.add(value.ordinal()));
+        return column + " IN (" + String.join(", ", Collections.nCopies(values.size(), "?")) + ")";
+    }
+
+    private ResumenPacienteModel toPatient(ResultSet rs) throws SQLException {
+
+        long codeSNS = rs.getLong("code_sns");
+        ResumenPacienteModel patient = cached(codeSNS);
+        if(patient != null)
+            return patient;
+
+        DatoGeneralesModel generales = new DatoGeneralesModel();
+        generales.setCodeSNS(codeSNS);
+        generales.setName(rs.getString("name"));
+        generales.setSurname(rs.getString("surname"));
+        Integer digits = getInteger(rs, "dni_digits");
+        String letter = rs.getString("dni_letter");
+        if(digits != null || letter != null)
+            generales.setDni(new DNI(digits, letter != null && !letter.isEmpty() ? letter.charAt(0) : '\0'));
+        Integer state = getInteger(rs, "state");
+        generales.setState(state != null ? PatientStateEnum.values()[state] : null);
+        generales.clearDirty();
+
+        Integer sex = getInteger(rs, "sex");
+        Integer year = getInteger(rs, "birth_year");
+        patient = new ResumenPacienteModel(generales,
+                sex != null ? PatientSexEnum.values()[sex] : null,
+                year != null ? new Birthdate(getInteger(rs, "birth_day"), getInteger(rs, "birth_month"), year) : null,
+                getInteger(rs, "triaje_priority"),
+                this::loadDetails);
+        cache(codeSNS, patient);
+        return patient;
+    }
+
+    /**
+     * Comprueba, dentro de la transacción del guardado, que ningún paciente nuevo tenga el DNI de otro paciente
+     * ya registrado o de otro paciente nuevo del mismo lote.
+     */
+    private void checkDNIs(List<DatoGeneralesModel> added) throws SQLException {
+
+        Map<Long, Long> owners = new HashMap<>();
+        try(PreparedStatement statement = connection.prepareStatement(
+                "SELECT code_sns FROM patient WHERE dni_digits = ? AND dni_letter = ? AND code_sns <> ?")) {
+            for(DatoGeneralesModel model : added) {
+                DNI dni = model.getDni();
+                if(dni == null || dni.getDigits() == null)
+                    continue;
+
+                Long owner = owners.putIfAbsent(dni.pack(), model.getCodeSNS());
+                boolean taken = owner != null && !owner.equals(model.getCodeSNS());
+                if(!taken) {
+                    statement.setInt(1, dni.getDigits());
+                    statement.setString(2, String.valueOf(dni.getLetter()));
+                    statement.setLong(3, model.getCodeSNS());
+                    try(ResultSet rs = statement.executeQuery()) {
+                        taken = rs.next();
+                    }
+                }
+                if(taken)
+                    throw new IllegalArgumentException("El DNI " + dni + " ya está registrado para otro paciente");
+            }
+        }
+    }
+
+    private static void attach(ResumenPacienteModel patient, SeccionPacienteModel section) {
+
+        // la sección puede ser de una instancia anterior del paciente, ya liberada de la caché
+        if(section instanceof DatosPersonalesModel) {
+            if(patient.getDatosPersonales() != section)
+                patient.setDatosPersonales((DatosPersonalesModel) section);
+        }
+        else if(section instanceof DatosClinicosModel) {
+            if(patient.getDatosClinicos() != section)
+                patient.setDatosClinicos((DatosClinicosModel) section);
+        }
+        else if(section instanceof DatosBancariosModel) {
+            if(patient.getDatosBancarios() != section)
+                patient.setDatosBancarios((DatosBancariosModel) section);
+        }
+        else if(patient.getDatosGenerales() != section)
+            patient.setDatosGenerales((DatoGeneralesModel) section);
+    }
+
+    private ResumenPacienteModel cached(long codeSNS) {
+        PatientReference reference = loaded.get(codeSNS);
+        return reference != null ? reference.get() : null;
+    }
+
+    private void cache(long codeSNS, ResumenPacienteModel patient) {
+
+        Reference<? extends ResumenPacienteModel> reference;
+        while((reference = released.poll()) != null) {
+            long releasedSNS = ((PatientReference) reference).codeSNS;
+            if(loaded.get(releasedSNS) == reference)
+                loaded.remove(releasedSNS);
+        }
+        loaded.put(codeSNS, new PatientReference(codeSNS, patient, released));
+    }
+
+    private synchronized void loadDetails(ResumenPacienteModel patient) throws IOException {
+
+        long codeSNS = patient.getDatosGenerales().getCodeSNS();
+        try {
+            patient.attachDetails(readPersonales(codeSNS), readClinicos(codeSNS), readBancarios(codeSNS));
+            connection.commit(); }
+        catch(SQLException sqle) {
+            rollback();
+            throw new IOException("No se han podido leer los datos del paciente " + codeSNS, sqle); }
+    }
+
+    private DatosPersonalesModel readPersonales(long codeSNS) throws SQLException {
+
+        try(PreparedStatement statement = connection.prepareStatement(PERSONAL_DATA.select())) {
+            statement.setLong(1, codeSNS);
+            try(ResultSet rs = statement.executeQuery()) {
+                if(!rs.next())
+                    return null;
+
+                DatosPersonalesModel model = new DatosPersonalesModel();
+                Integer sex = getInteger(rs, "sex");
+                Integer year = getInteger(rs, "birth_year");
+                model.setPatientSex(sex != null ? PatientSexEnum.values()[sex] : null);
+                if(year != null)
+                    model.setBirthDate(new Birthdate(getInteger(rs, "birth_day"), getInteger(rs, "birth_month"), year));
+                model.setEmail(rs.getString("email"));
+                model.setPostalAddress(rs.getString("postal_address"));
+                model.setPhoneNumber(getLong(rs, "phone_number"));
+                model.clearDirty();
+                return model;
+            }
+        }
+    }
+
+    private DatosClinicosModel readClinicos(long codeSNS) throws SQLException {
+
+        DatosClinicosModel model = new DatosClinicosModel();
+        Integer allergyCount;
+        try(PreparedStatement statement = connection.prepareStatement(CLINICAL_DATA.select())) {
+            statement.setLong(1, codeSNS);
+            try(ResultSet rs = statement.executeQuery()) {
+                if(!rs.next())
+                    return null;
+
+                model.setAsignedDoctor(rs.getString("asigned_doctor"));
+                model.setCurrentMedication(rs.getString("current_medication"));
+                boolean rcp = rs.getBoolean("rcp");
+                model.setRcp(rs.wasNull() ? null : rcp);
+                model.setTriajePriority(getInteger(rs, "triaje_priority"));
+                allergyCount = getInteger(rs, "allergy_count");
+            }
+        }
+
+        if(allergyCount != null) {
+            String[] allergies = new String[allergyCount];
+            try(PreparedStatement statement = connection.prepareStatement(
+                    "SELECT position, allergy FROM allergy WHERE code_sns = ? ORDER BY position")) {
+                statement.setLong(1, codeSNS);
+                try(ResultSet rs = statement.executeQuery()) {
+                    while(rs.next())
+                        if(rs.getInt(1) < allergies.length)
+                            allergies[rs.getInt(1)] = rs.getString(2);
+                }
+            }
+            model.setAllergies(allergies);
+        }
+
+        model.clearDirty();
+        return model;
+    }
+
+    private DatosBancariosModel readBancarios(long codeSNS) throws SQLException {
+
+        try(PreparedStatement statement = connection.prepareStatement(BANK_DATA.select())) {
+            statement.setLong(1, codeSNS);
+            try(ResultSet rs = statement.executeQuery()) {
+                if(!rs.next())
+                    return null;
+
+                DatosBancariosModel model = new DatosBancariosModel();
+                model.setAccountNumber(getLong(rs, "account_number"));
+                boolean healthInsurance = rs.getBoolean("health_insurance");
+                model.setHealthInsurance(rs.wasNull() ? null : healthInsurance);
+                model.setInsuranceCompany(rs.getString("insurance_company"));
+                model.clearDirty();
+                return model;
+            }
+        }
+    }
+
+    private void executeBatch(String sql, int[] types, Iterator<Object[]> rows) throws SQLException {
+
+        if(!rows.hasNext())
+            return;
+        try(PreparedStatement statement = connection.prepareStatement(sql)) {
+            while(rows.hasNext()) {
+                bind(statement, types, rows.next());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback(); }
+        catch(SQLException sqle) {
+            L.log(Level.WARNING, "No se ha podido deshacer la transacción", sqle); }
+    }
+
+    private static void bind(PreparedStatement statement, int[] types, Object[] values) throws SQLException {
+        for(int i = 0; i < values.length; i++)
+            if(values[i] == null)
+                statement.setNull(i + 1, types[i]);
+            else
+                statement.setObject(i + 1, values[i], types[i]);
+    }
+
+    private static Integer getInteger(ResultSet rs, String column) throws SQLException {
+        int value = rs.getInt(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Long getLong(ResultSet rs, String column) throws SQLException {
+        long value = rs.getLong(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    /**
+     * Referencia débil a un paciente ya construido, con su código SNS para retirarla de la caché.
+     */
+    private static final class PatientReference extends WeakReference<ResumenPacienteModel> {
+
+        final long codeSNS;
+
+        PatientReference(long codeSNS, ResumenPacienteModel patient, ReferenceQueue<ResumenPacienteModel> queue) {
+            super(patient, queue);
+            this.codeSNS = codeSNS;
+        }
+    }
+
+    /**
+     * Tabla de una sección del paciente, con el código SNS como clave primaria.
+     */
+    private static final class Table {
+
+        final String name;
+        final String[] columns;
+        // Tipos SQL de las columnas, seguidos del del código SNS
+        final int[] types;
+
+        Table(String name, String[] columns, int[] types) {
+            this.name = name;
+            this.columns = columns;
+            this.types = new int[types.length + 1];
+            System.arraycopy(types, 0, this.types, 0, types.length);
+            this.types[types.length] = Types.BIGINT;
+        }
+
+        String select() {
+            return "SELECT " + String.join(", ", columns) + " FROM " + name + " WHERE code_sns = ?";
+        }
+
+        String update() {
+            return "UPDATE " + name + " SET " + String.join(" = ?, ", columns) + " = ? WHERE code_sns = ?";
+        }
+
+        String insert() {
+            return "INSERT INTO " + name + " (" + String.join(", ", columns) + ", code_sns) VALUES ("
+                    + String.join(", ", Collections.nCopies(columns.length + 1, "?")) + ")";
+        }
+    }
+
+    /**
+     * Lote de escrituras sobre una tabla: primero se actualizan por lotes las filas existentes, y a
+     * continuación se insertan, también por lotes, las que no se han podido actualizar.
+     */
+    private final class Batch {
+
+        final Table table;
+        // Valores de cada fila, terminados por el código SNS
+        final List<Object[]> rows = new ArrayList<>();
+        // Secciones escritas, para marcarlas como guardadas al confirmar la transacción
+        final List<SeccionPacienteModel> sections = new ArrayList<>();
+
+        Batch(Table table) {
+            this.table = table;
+        }
+
+        void add(SeccionPacienteModel section, Object... values) {
+            Object[] row = new Object[values.length + 1];
+            System.arraycopy(values, 0, row, 0, values.length);
+            row[values.length] = section.getCodeSNS();
+            rows.add(row);
+            sections.add(section);
+        }
+
+        void execute() throws SQLException {
+
+            if(rows.isEmpty())
+                return;
+
+            int[] updated;
+            try(PreparedStatement update = connection.prepareStatement(table.update())) {
+                for(Object[] row : rows) {
+                    bind(update, table.types, row);
+                    update.addBatch();
+                }
+                updated = update.executeBatch();
+            }
+
+            List<Object[]> missing = new ArrayList<>();
+            for(int i = 0; i < rows.size(); i++)
+                if(updated[i] == 0)
+                    missing.add(rows.get(i));
+            executeBatch(table.insert(), table.types, missing.iterator());
+        }
+    }
+
+    /**
+     * Recorrido de todos los pacientes por páginas, ordenadas por código SNS: cada página continúa a partir
+     * del último código de la anterior, de forma que la base de datos la resuelve con la clave primaria.
+     */
+    private final class PageIterator implements Iterator<ResumenPacienteModel> {
+
+        private Iterator<ResumenPacienteModel> page = Collections.emptyIterator();
+        private long lastSNS = Long.MIN_VALUE;
+        private boolean exhausted;
+
+        @Override
+        public boolean hasNext() {
+
+            if(!page.hasNext() && !exhausted) {
+                List<ResumenPacienteModel> next;
+                synchronized(JdbcPatientRepository.this) {
+                    next = query(INDEX_QUERY + " WHERE p.code_sns > ? ORDER BY p.code_sns", PAGE_SIZE, lastSNS);
+                }
+                exhausted = next.size() < PAGE_SIZE;
+                if(!next.isEmpty())
+                    lastSNS = next.get(next.size() - 1).getDatosGenerales().getCodeSNS();
+                page = next.iterator();
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public ResumenPacienteModel next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return page.next();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.persistence.SchemaMigrations.Record;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Diario de escritura anticipada (write-ahead journal) para los cambios sobre los pacientes.
+ * <p>
+ * Cada vez que se guarda una de las secciones de un paciente (datos generales, personales, clínicos
+ * o bancarios) se añade al final del fichero un registro con el contenido completo de esa sección,
+ * identificado por el código SNS del paciente. El estado de la base de datos se reconstruye a partir
+ * de la última instantánea más la reproducción, en orden, de los registros del diario. Al contener
+ * cada registro la sección completa, reproducir dos veces el mismo registro no altera el resultado.
+ * <p>
+ * Formato de cada registro: [int longitud][int CRC-32][byte sección][long codeSNS][versiones][sección], donde la
+ * longitud y la suma de control cubren todo lo que sigue a la suma, y la sección va codificada con
+ * {@link PatientCodec}, precedida de las versiones del formato y del esquema con que se escribió (solo la del
+ * formato en los registros anteriores a la versión 4). Los registros de versiones anteriores del esquema se
+ * migran al reproducirlos. Solo un registro incompleto al final del fichero (su longitud va más allá del final),
+ * fruto de una caída a mitad de escritura, se descarta y se trunca antes de volver a escribir en el diario; un
+ * registro completo que no supera su suma de control o no se puede decodificar hace fallar la reproducción,
+ * sin tocar el fichero.
+ * <p>
+ * Las escrituras se confirman en grupo (group commit): un único hilo de escritura recoge los registros
+ * pendientes, los escribe de una vez y fuerza el fichero a disco con un solo {@link FileChannel#force},
+ * tras lo que se da por confirmado a la vez a todos los que esperaban. Los registros que llegan mientras se
+ * fuerza un grupo forman el siguiente; además, si el último grupo tenía varios registros (ráfaga de cambios),
+ * el hilo espera tras el primero como máximo el retardo configurado en la propiedad de sistema
+ * {@value #COMMIT_DELAY_PROPERTY} (en milisegundos; {@value #DEFAULT_COMMIT_DELAY} por defecto) a que lleguen
+ * otros, de forma que compartan una única escritura en disco. Un cambio aislado se escribe sin esperas.
+ * <p>
+ * Para la compactación el diario se rota: los registros actuales pasan a un fichero auxiliar
+ * (con extensión '.old') que solo se elimina una vez volcada con éxito la nueva instantánea.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class Journal {
+
+    // Identificadores de la sección del paciente contenida en cada registro
+    public static final byte SECTION_GENERALES = 0;
+    public static final byte SECTION_PERSONALES = 1;
+    public static final byte SECTION_CLINICOS = 2;
+    public static final byte SECTION_BANCARIOS = 3;
+
+    /**
+     * Propiedad de sistema con el retardo máximo, en milisegundos, con que se agrupan los registros en una escritura.
+     */
+    public static final String COMMIT_DELAY_PROPERTY = "sgh.journal.commitDelay";
+
+    /**
+     * Retardo máximo por defecto, en milisegundos, con que se agrupan los registros en una escritura.
+     */
+    public static final long DEFAULT_COMMIT_DELAY = 5;
+
+    // Margen, en milisegundos, que se da a la escritura en disco de un registro tras su retardo de agrupación
+    private static final long WRITE_TIMEOUT = 5000;
+    // Tamaño del prefijo de cada registro: longitud + suma de control
+    private static final int PREFIX_SIZE = 4 + 4;
+    // Tamaño de la cabecera de cada registro tras el prefijo: sección + codeSNS
+    private static final int HEADER_SIZE = 1 + 8;
+    // Máximo de registros que se escriben juntos, para no retrasar indefinidamente a los primeros
+    private static final int MAX_GROUP_SIZE = 1024;
+
+    private static final Logger L = Logger.getLogger(Journal.class.getName());
+
+    // Fichero del diario en curso
+    private final File file;
+    // Fichero con los registros rotados pendientes de consolidar en una instantánea
+    private final File rotatedFile;
+    // Canal de escritura (en modo 'append') sobre el diario en curso
+    private FileChannel channel;
+    // Retardo máximo, en nanosegundos, con que se agrupan los registros en una escritura
+    private final long commitDelay;
+    // Diccionario de las cadenas repetidas de los registros, nulo si se escriben completas
+    private final StringDictionary dictionary;
+    // Registros pendientes de escribir, en orden de llegada
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    // Hilo de escritura, que se arranca con el primer registro
+    private Thread writer;
+
+    /**
+     * Registro a la espera de escribirse, junto con su confirmación.
+     */
+    private static final class PendingRecord {
+        // Nulo en las marcas que solo esperan a que se escriba lo anterior
+        private final byte[] record;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        private PendingRecord(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Crea un diario sobre el fichero indicado, con el retardo de agrupación configurado en la propiedad
+     * {@value #COMMIT_DELAY_PROPERTY}. El fichero no se abre hasta la primera escritura.
+     *
+     * @param file El fichero del diario
+     * @param dictionary El diccionario de las cadenas repetidas, el de la instantánea, o nulo para escribirlas completas
+     */
+    public Journal(File file, StringDictionary dictionary) {
+        this(file, Long.getLong(COMMIT_DELAY_PROPERTY, DEFAULT_COMMIT_DELAY), dictionary);
+    }
+
+    /**
+     * Crea un diario sin diccionario, con las cadenas completas en cada registro. El fichero no se abre hasta la
+     * primera escritura.
+     *
+     * @param file El fichero del diario
+     * @param commitDelay El retardo máximo, en milisegundos, con que se agrupan los registros en una escritura
+     */
+    public Journal(File file, long commitDelay) {
+        this(file, commitDelay, null);
+    }
+
+    /**
+     * Crea un diario sobre el fichero indicado. El fichero no se abre hasta la primera escritura.
+     *
+     * @param file El fichero del diario
+     * @param commitDelay El retardo máximo, en milisegundos, con que se agrupan los registros en una escritura
+     * @param dictionary El diccionario de las cadenas repetidas, el de la instantánea, o nulo para escribirlas completas
+     */
+    public Journal(File file, long commitDelay, StringDictionary dictionary) {
+        this.file = file;
+        this.rotatedFile = new File(file.getPath() + ".old");
+        this.commitDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, commitDelay));
+        this.dictionary = dictionary;
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Añade al diario un registro con el contenido completo de la sección de paciente indicada.
+     * El paciente se identifica por el código SNS de la propia sección.
+     * <p>
+     * La sección se codifica en el momento de la llamada, pero se escribe en segundo plano, agrupada con los
+     * registros que lleguen a la vez: la llamada no espera a la escritura en disco (ver {@link #awaitCommit}).
+     * Los registros se escriben en el orden en que se añaden.
+     *
+     * @param section La sección del paciente que se acaba de guardar
+     * @return La confirmación del registro, que se completa una vez forzado a disco (o con el error de escritura)
+     * @throws IOException Si no es posible codificar la sección
+     */
+    public CompletableFuture<Void> append(SeccionPacienteModel section) throws IOException {
+
+        byte[] payload = serialize(section);
+
+        ByteBuffer record = ByteBuffer.allocate(PREFIX_SIZE + HEADER_SIZE + payload.length);
+        record.position(PREFIX_SIZE);
+        record.put(sectionOf(section));
+        record.putLong(section.getCodeSNS());
+        record.put(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), PREFIX_SIZE, HEADER_SIZE + payload.length);
+        record.putInt(0, HEADER_SIZE + payload.length);
+        record.putInt(4, (int) crc.getValue());
+
+        return enqueue(new PendingRecord(record.array()));
+    }
+
+    /**
+     * Espera a que se confirme un registro añadido con {@link #append}: como máximo su retardo de agrupación
+     * (ver {@value #COMMIT_DELAY_PROPERTY}) más un margen de {@value #WRITE_TIMEOUT} ms para escribirlo en disco.
+     *
+     * @param committed La confirmación del registro
+     * @throws IOException Si no se ha podido escribir, o no se ha confirmado a tiempo (en cuyo caso aún puede
+     * llegar a escribirse)
+     */
+    public void awaitCommit(CompletableFuture<Void> committed) throws IOException {
+
+        try {
+            committed.get(commitDelay + TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT), TimeUnit.NANOSECONDS); }
+        catch(ExecutionException ee) {
+            if(ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            throw new IOException(ee.getCause()); }
+        catch(TimeoutException te) {
+            throw new IOException("El diario " + file + " no ha confirmado el registro a tiempo", te); }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrumpida la espera al diario " + file); }
+    }
+
+    /**
+     * Espera a que se escriban en disco todos los registros añadidos hasta el momento.
+     *
+     * @throws IOException Si no se ha podido escribir alguno de ellos
+     */
+    public void sync() throws IOException {
+        await(enqueue(new PendingRecord(null)));
+    }
+
+    /**
+     * Reproduce sobre la base de datos todos los registros del diario, primero los rotados y a continuación
+     * los del diario en curso. Un registro de datos generales de un paciente que no existe en la base de datos
+     * lo da de alta; el resto de registros de un paciente que todavía no existe se aplican al darlo de alta.
+     * Ningún registro completo se descarta: si alguno está dañado o queda sin poder aplicarse, la reproducción
+     * falla y el diario queda intacto.
+     *
+     * @param dataBase La base de datos, cargada previamente desde la última instantánea
+     * @return El número de registros aplicados
+     * @throws IOException Si no es posible leer el diario o alguno de sus registros completos
+     */
+    public int replay(DataBase dataBase) throws IOException {
+        return replay(dataBase, (codeSNS) -> { });
+    }
+
+    /**
+     * Reproduce sobre la base de datos todos los registros del diario, como {@link #replay(DataBase)},
+     * notificando el código SNS del paciente de cada registro aplicado.
+     *
+     * @param dataBase La base de datos, cargada previamente desde la última instantánea
+     * @param applied Notificación de cada registro aplicado, con el código SNS de su paciente
+     * @return El número de registros aplicados
+     * @throws IOException Si no es posible leer el diario o alguno de sus registros completos
+     */
+    public int replay(DataBase dataBase, LongConsumer applied) throws IOException {
+        sync();
+        synchronized(this) {
+            Map<Long, List<SeccionPacienteModel>> orphans = new LinkedHashMap<>();
+            int count = replay(rotatedFile, dataBase, applied, orphans) + replay(file, dataBase, applied, orphans);
+            if(!orphans.isEmpty())
+                throw new IOException("El diario " + file + " contiene registros de pacientes sin dar de alta: "
+                        + orphans.keySet());
+            return count;
+        }
+    }
+
+    /**
+     * Devuelve el tamaño en bytes del diario en curso, sin contar los registros rotados.
+     *
+     * @return El tamaño del diario
+     */
+    public synchronized long size() {
+        return file.length();
+    }
+
+    /**
+     * Indica si el diario no contiene ningún registro, ni en curso ni rotado. No cuenta los registros
+     * pendientes de escribir (ver {@link #sync()}).
+     *
+     * @return Verdadero si no hay registros pendientes de consolidar en una instantánea
+     */
+    public synchronized boolean isEmpty() {
+        return file.length() == 0 && !rotatedFile.exists();
+    }
+
+    /**
+     * Rota el diario en curso, de forma que los nuevos registros se escriban en un diario vacío.
+     * Si quedaban registros rotados de una compactación anterior sin terminar, se conservan,
+     * añadiendo a continuación los registros del diario en curso. Los registros pendientes de escribir
+     * se escriben antes en el diario en curso.
+     *
+     * @throws IOException Si no es posible rotar el diario
+     */
+    public void rotate() throws IOException {
+        sync();
+        synchronized(this) {
+            rotateFile();
+        }
+    }
+
+    /**
+     * Elimina los registros rotados. Solo debe invocarse tras volcar con éxito una nueva instantánea.
+     */
+    public synchronized void discardRotated() {
+        rotatedFile.delete();
+    }
+
+    /**
+     * Escribe los registros pendientes y cierra el fichero del diario, si estaba abierto. El diario se vuelve
+     * a abrir con el siguiente registro.
+     *
+     * @throws IOException Si se produce un error al escribir los registros pendientes o al cerrar el fichero
+     */
+    public void close() throws IOException {
+        sync();
+        synchronized(this) {
+            closeChannel();
+        }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private CompletableFuture<Void> enqueue(PendingRecord pending) {
+
+        synchronized(queue) {
+            if(writer == null) {
+                writer = new Thread(this::writeLoop, "journal-writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+        queue.add(pending);
+        return pending.committed;
+    }
+
+    private static void await(CompletableFuture<Void> committed) throws IOException {
+
+        try {
+            committed.join(); }
+        catch(CompletionException ce) {
+            if(ce.getCause() instanceof IOException)
+                throw (IOException) ce.getCause();
+            throw new IOException(ce.getCause()); }
+    }
+
+    private void writeLoop() {
+
+        List<PendingRecord> group = new ArrayList<>();
+        int lastGroupSize = 0;
+        while(true) {
+            try {
+                group.add(queue.take());
+                // si llegan cambios a la vez, se da un margen para que se sumen al grupo; uno aislado no espera
+                long deadline = System.nanoTime() + (lastGroupSize > 1 ? commitDelay : 0);
+                while(group.size() < MAX_GROUP_SIZE) {
+                    if(queue.drainTo(group, MAX_GROUP_SIZE - group.size()) > 0)
+                        continue;
+                    long remaining = deadline - System.nanoTime();
+                    PendingRecord next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if(next == null)
+                        break;
+                    group.add(next);
+                }
+            }
+            catch(InterruptedException ie) { } // el hilo no se interrumpe: se escribe lo que ya se haya recogido
+
+            try {
+                write(group);
+                group.forEach((pending) -> pending.committed.complete(null)); }
+            catch(IOException | RuntimeException e) {
+                L.log(Level.SEVERE, "No se han podido escribir " + group.size() + " registros en el diario " + file, e);
+                group.forEach((pending) -> pending.committed.completeExceptionally(e)); }
+            lastGroupSize = group.size();
+            group.clear();
+        }
+    }
+
+    private synchronized void write(List<PendingRecord> group) throws IOException {
+
+        List<ByteBuffer> records = new ArrayList<>(group.size());
+        for(PendingRecord pending : group)
+            if(pending.record != null)
+                records.add(ByteBuffer.wrap(pending.record));
+        if(records.isEmpty())
+            return;
+
+        if(channel == null)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[records.size()]);
+        ByteBuffer last = buffers[buffers.length - 1];
+        while(last.hasRemaining())
+            channel.write(buffers);
+        // un único forzado a disco para todo el grupo
+        channel.force(false);
+    }
+
+    private void closeChannel() throws IOException {
+
+        if(channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void rotateFile() throws IOException {
+
+        closeChannel();
+        if(!file.exists())
+            return;
+
+        if(!rotatedFile.exists()) {
+            if(!file.renameTo(rotatedFile))
+                throw new IOException("No se ha podido rotar el diario " + file);
+        }
+        else {
+            try(FileInputStream in = new FileInputStream(file);
+                    FileOutputStream rotated = new FileOutputStream(rotatedFile, true)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while((read = in.read(buffer)) != -1)
+                    rotated.write(buffer, 0, read);
+            }
+            if(!file.delete())
+                throw new IOException("No se ha podido vaciar el diario " + file);
+        }
+    }
+
+
+    private int replay(File journalFile, DataBase dataBase, LongConsumer onApplied,
+            Map<Long, List<SeccionPacienteModel>> orphans) throws IOException {
+
+        if(!journalFile.exists())
+            return 0;
+
+        int applied = 0;
+        long validLength = 0;
+        long fileLength = journalFile.length();
+        CRC32 crc = new CRC32();
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            // un prefijo o un registro que van más allá del final son los de una escritura interrumpida por una caída
+            while(fileLength - validLength >= PREFIX_SIZE) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if(length >= 0 && validLength + PREFIX_SIZE + length > fileLength)
+                    break;
+                if(length < HEADER_SIZE)
+                    throw new IOException("Registro dañado en la posición " + validLength + " del diario " + journalFile
+                            + ": longitud " + length);
+
+                byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record, 0, length);
+                if((int) crc.getValue() != checksum)
+                    throw new IOException("Registro dañado en la posición " + validLength + " del diario " + journalFile
+                            + ": no coincide la suma de control");
+
+                ByteBuffer header = ByteBuffer.wrap(record);
+                byte section = header.get();
+                long codeSNS = header.getLong();
+                try {
+                    apply(dataBase, codeSNS, deserialize(section, record), orphans); }
+                catch(IOException | RuntimeException e) {
+                    throw new IOException("No se puede aplicar el registro de la posición " + validLength
+                            + " del diario " + journalFile, e); }
+                applied++;
+                onApplied.accept(codeSNS);
+                validLength += PREFIX_SIZE + length;
+            }
+        }
+
+        // se descarta el registro incompleto del final, para que los siguientes queden bien alineados
+        if(validLength < fileLength)
+            try(RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(validLength);
+            }
+
+        return applied;
+    }
+
+    private static void apply(DataBase dataBase, long codeSNS, SeccionPacienteModel model,
+            Map<Long, List<SeccionPacienteModel>> orphans) {
+
+        ResumenPacienteModel patient = dataBase.getRegisteredPatients().get(codeSNS);
+
+        if(patient == null) {
+            if(!(model instanceof DatoGeneralesModel)) {
+                // sección de un paciente cuyo alta llega más adelante: se aplica al darlo de alta
+                orphans.computeIfAbsent(codeSNS, (key) -> new ArrayList<>()).add(model);
+                return;
+            }
+            // paciente dado de alta después de la instantánea
+            patient = new ResumenPacienteModel((DatoGeneralesModel) model, new DatosPersonalesModel(),
+                    new DatosClinicosModel(), new DatosBancariosModel());
+            List<SeccionPacienteModel> pending = orphans.remove(codeSNS);
+            if(pending != null)
+                for(SeccionPacienteModel section : pending)
+                    setSection(patient, section);
+            dataBase.getRegisteredPatients().put(codeSNS, patient);
+        }
+        else
+            setSection(patient, model);
+    }
+
+    private static void setSection(ResumenPacienteModel patient, SeccionPacienteModel section) {
+
+        if(section instanceof DatosPersonalesModel)
+            patient.setDatosPersonales((DatosPersonalesModel) section);
+        else if(section instanceof DatosClinicosModel)
+            patient.setDatosClinicos((DatosClinicosModel) section);
+        else if(section instanceof DatosBancariosModel)
+            patient.setDatosBancarios((DatosBancariosModel) section);
+        else
+            patient.setDatosGenerales((DatoGeneralesModel) section);
+    }
+
+    private static byte sectionOf(SeccionPacienteModel section) {
+
+        if(section instanceof DatosPersonalesModel)
+            return SECTION_PERSONALES;
+        else if(section instanceof DatosClinicosModel)
+            return SECTION_CLINICOS;
+        else if(section instanceof DatosBancariosModel)
+            return SECTION_BANCARIOS;
+        else
+            return SECTION_GENERALES;
+    }
+
+    private byte[] serialize(SeccionPacienteModel section) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        PatientCodec.writeVersion(out);
+        PatientCodec.writeSection(out, section, dictionary);
+        return bytes.toByteArray();
+    }
+
+    private SeccionPacienteModel deserialize(byte section, byte[] record) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, HEADER_SIZE, record.length - HEADER_SIZE));
+        int schema = PatientCodec.readVersion(in).schema;
+
+        switch(section) {
+            case SECTION_PERSONALES:
+                return PatientCodec.readSection(in, Record.PERSONALES, schema, dictionary);
+            case SECTION_CLINICOS:
+                return PatientCodec.readSection(in, Record.CLINICOS, schema, dictionary);
+            case SECTION_BANCARIOS:
+                return PatientCodec.readSection(in, Record.BANCARIOS, schema, dictionary);
+            default:
+                return PatientCodec.readSection(in, Record.GENERALES, schema, dictionary);
+        }
+    }
+}
\ No newline at end of file
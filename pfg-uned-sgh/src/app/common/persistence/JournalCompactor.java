@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compactador del diario: cuando el diario supera un tamaño umbral, vuelca en segundo plano una nueva
+ * instantánea de la base de datos y descarta los registros que ya han quedado incluidos en ella.
+ * <p>
+ * El orden de las operaciones garantiza que no se pierde ningún cambio ante una caída: primero se rota
+ * el diario, después se escribe la instantánea y solo entonces se eliminan los registros rotados.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class JournalCompactor {
+
+    /**
+     * Umbral por defecto, en bytes, a partir del cual se compacta el diario.
+     */
+    public static final long DEFAULT_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Operación que vuelca en disco la instantánea completa de la base de datos.
+     */
+    public interface SnapshotWriter {
+        void write() throws IOException;
+    }
+
+    private static final Logger L = Logger.getLogger(JournalCompactor.class.getName());
+
+    private final Journal journal;
+    private final SnapshotWriter snapshotWriter;
+    private final long threshold;
+    // Hilo único en segundo plano para las compactaciones, que no impide el cierre de la aplicación
+    private final ExecutorService executor = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "journal-compactor");
+        thread.setDaemon(true);
+        return thread; });
+    // Indica si ya hay una compactación pendiente, para no encolar varias seguidas
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * Crea un compactador para el diario indicado.
+     *
+     * @param journal El diario a compactar
+     * @param snapshotWriter La operación de volcado de la instantánea
+     * @param threshold El tamaño en bytes a partir del cual se compacta
+     */
+    public JournalCompactor(Journal journal, SnapshotWriter snapshotWriter, long threshold) {
+        this.journal = journal;
+        this.snapshotWriter = snapshotWriter;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Comprueba el tamaño del diario y, si supera el umbral, programa una compactación en segundo plano.
+     */
+    public void checkThreshold() {
+
+        if(journal.size() > threshold && pending.compareAndSet(false, true))
+            executor.execute(() -> {
+                try { compact(); }
+                catch(IOException ioe) {
+                    // los registros rotados se conservan hasta el próximo intento
+                    L.log(Level.WARNING, "No se ha podido compactar el diario", ioe); }
+                finally { pending.set(false); }
+            });
+    }
+
+    /**
+     * Compacta el diario de forma síncrona: rota el diario, vuelca la instantánea y descarta lo rotado.
+     *
+     * @throws IOException Si falla alguno de los pasos; en tal caso no se descarta ningún registro
+     */
+    public synchronized void compact() throws IOException {
+
+        journal.rotate();
+        snapshotWriter.write();
+        journal.discardRotated();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formato JSON de {@link PatientTransfer}: una lista de objetos, uno por paciente y por línea. Se admiten
+ * también los objetos sin lista que los contenga, uno tras otro (JSON Lines).
+ * <p>
+ * La lectura se hace en flujo, objeto a objeto, sin cargar el fichero completo. Los números y los literales
+ * (true, false) se entregan como texto, que se interpreta según la columna.
+ *
+ * @author Alberto Bausá Cano
+ */
+final class JsonRowFormat {
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private JsonRowFormat() { }
+
+    /**
+     * Lectura de un fichero JSON, objeto a objeto.
+     */
+    static final class Reader implements PatientTransfer.RowReader {
+
+        private final java.io.Reader in;
+        // Carácter leído por adelantado, o -2 si no hay ninguno
+        private int peeked = -2;
+        // Línea en curso, y línea en que comienza el último objeto leído
+        private long line = 1;
+        private long rowLine;
+        private boolean started;
+        private boolean inArray;
+        private boolean finished;
+
+        Reader(java.io.Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public Map<String, Object> next() throws IOException {
+
+            if(finished)
+                return null;
+
+            int c = skipWhitespace();
+            if(!started) {
+                started = true;
+                if(c == '\uFEFF') {
+                    read();
+                    c = skipWhitespace();
+                }
+                if(c == '[') {
+                    inArray = true;
+                    read();
+                    if(skipWhitespace() == ']')
+                        return end();
+                    c = skipWhitespace();
+                }
+            }
+            else if(inArray) {
+                if(c == ']')
+                    return end();
+                expect(',');
+                c = skipWhitespace();
+            }
+
+            if(c == -1) {
+                if(inArray)
+                    throw syntaxError("falta el cierre de la lista");
+                return end();
+            }
+
+            rowLine = line;
+            Object value = readValue();
+            if(!(value instanceof Map))
+                throw new IllegalArgumentException("se esperaba un objeto");
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> row = (Map<String, Object>) value;
+            return row;
+        }
+
+        @Override
+        public long line() {
+            return rowLine;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private Map<String, Object> end() throws IOException {
+            if(inArray)
+                read();
+            finished = true;
+            return null;
+        }
+
+        private Object readValue() throws IOException {
+
+            int c = skipWhitespace();
+            switch(c) {
+                case '{':
+                    read();
+                    Map<String, Object> object = new LinkedHashMap<>();
+                    if(skipWhitespace() == '}') {
+                        read();
+                        return object;
+                    }
+                    do {
+                        if(skipWhitespace() != '"')
+                            throw syntaxError("se esperaba el nombre de un campo");
+                        String key = readString();
+                        expect(':');
+                        object.put(key, readValue());
+                    } while(skipWhitespace() == ',' && read() == ',');
+                    expect('}');
+                    return object;
+                case '[':
+                    read();
+                    List<Object> array = new ArrayList<>();
+                    if(skipWhitespace() == ']') {
+                        read();
+                        return array;
+                    }
+                    do {
+                        array.add(readValue());
+                    } while(skipWhitespace() == ',' && read() == ',');
+                    expect(']');
+                    return array;
+                case '"':
+                    return readString();
+                default:
+                    // número o literal: hasta el siguiente delimitador
+                    StringBuilder literal = new StringBuilder();
+                    while((c = peek()) != -1 && ",:]}\"".indexOf(c) < 0 && !Character.isWhitespace(c))
+                        literal.append((char) read());
+                    String text = literal.toString();
+                    if(text.isEmpty())
+                        throw syntaxError("valor no válido");
+                    return text.equals("null") ? null : text;
+            }
+        }
+
+        private String readString() throws IOException {
+
+            read(); // comillas de apertura
+            StringBuilder text = new StringBuilder();
+            while(true) {
+                int c = read();
+                if(c == -1 || c == '\n')
+                    throw syntaxError("cadena sin cerrar");
+                if(c == '"')
+                    return text.toString();
+                if(c != '\\') {
+                    text.append((char) c);
+                    continue;
+                }
+
+                c = read();
+                switch(c) {
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for(int i = 0; i < hex.length; i++)
+                            hex[i] = (char) read();
+                        try {
+                            text.append((char) Integer.parseInt(new String(hex), 16)); }
+                        catch(NumberFormatException nfe) {
+                            throw syntaxError("secuencia \\u no válida"); }
+                        break;
+                    case '"': case '\\': case '/':
+                        text.append((char) c);
+                        break;
+                    default:
+                        throw syntaxError("secuencia de escape no válida");
+                }
+            }
+        }
+
+        private void expect(char expected) throws IOException {
+            if(skipWhitespace() != expected)
+                throw syntaxError("se esperaba '" + expected + "'");
+            read();
+        }
+
+        private int skipWhitespace() throws IOException {
+            int c;
+            while((c = peek()) != -1 && Character.isWhitespace(c))
+                read();
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if(peeked == -2)
+                peeked = in.read();
+            return peeked;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            peeked = -2;
+            if(c == '\n')
+                line++;
+            return c;
+        }
+
+        private IOException syntaxError(String message) {
+            return new IOException("JSON no válido en la línea " + line + ": " + message);
+        }
+    }
+
+    /**
+     * Escritura de un fichero JSON: una lista con un objeto por línea.
+     */
+    static final class Writer implements PatientTransfer.RowWriter {
+
+        private final java.io.Writer out;
+        private boolean first = true;
+
+        Writer(java.io.Writer out) throws IOException {
+            this.out = out;
+            out.write('[');
+        }
+
+        @Override
+        public void write(Map<String, Object> row) throws IOException {
+
+            out.write(first ? "\n{" : ",\n{");
+            first = false;
+
+            boolean firstField = true;
+            for(Map.Entry<String, Object> field : row.entrySet()) {
+                if(!firstField)
+                    out.write(',');
+                firstField = false;
+                writeString(field.getKey());
+                out.write(':');
+                writeValue(field.getValue());
+            }
+            out.write('}');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.write("\n]\n");
+            out.close();
+        }
+
+        private void writeValue(Object value) throws IOException {
+
+            if(value == null)
+                out.write("null");
+            else if(value instanceof Number || value instanceof Boolean)
+                out.write(value.toString());
+            else if(value instanceof List) {
+                out.write('[');
+                boolean firstElement = true;
+                for(Object element : (List<?>) value) {
+                    if(!firstElement)
+                        out.write(',');
+                    firstElement = false;
+                    writeValue(element);
+                }
+                out.write(']');
+            }
+            else
+                writeString(value.toString());
+        }
+
+        private void writeString(String text) throws IOException {
+
+            out.write('"');
+            for(int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch(c) {
+                    case '"':  out.write("\\\""); break;
+                    case '\\': out.write("\\\\"); break;
+                    case '\n': out.write("\\n"); break;
+                    case '\r': out.write("\\r"); break;
+                    case '\t': out.write("\\t"); break;
+                    default:
+                        if(c < 0x20)
+                            out.write(String.format("\\u%04x", (int) c));
+                        else
+                            out.write(c);
+                }
+            }
+            out.write('"');
+        }
+    }
+}
\ No newline at end of file
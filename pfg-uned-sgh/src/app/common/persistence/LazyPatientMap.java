@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapa de pacientes que los construye bajo demanda, la primera vez que se consultan (como el de
+ * {@link MappedPatientStore}): además de las consultas del mapa, permite obtener un paciente sin retenerlo en
+ * memoria y recorrer solo los ya construidos.
+ * <p>
+ * Los métodos estáticos aplican estas operaciones a cualquier mapa de pacientes, sea o no de este tipo.
+ *
+ * @author Alberto Bausá Cano
+ */
+public interface LazyPatientMap extends Map<Long, ResumenPacienteModel> {
+
+    /**
+     * Devuelve el paciente sin guardarlo en el mapa si todavía no se había construido: útil para
+     * recorrer todos los pacientes (p.ej. al escribir una instantánea) sin mantenerlos en memoria.
+     *
+     * @param key El código SNS del paciente
+     * @return El paciente, o nulo si no está en el mapa
+     */
+    ResumenPacienteModel peek(Object key);
+
+    /**
+     * Devuelve los pacientes que ya se han construido (los únicos que pueden tener cambios).
+     *
+     * @return Los pacientes construidos, en orden de código SNS
+     */
+    List<ResumenPacienteModel> loadedValues();
+
+    /**
+     * Devuelve un paciente del mapa indicado sin retenerlo en memoria, si el mapa los construye bajo demanda.
+     *
+     * @param patients El mapa de pacientes
+     * @param codeSNS El código SNS del paciente
+     * @return El paciente, o nulo si no está en el mapa
+     */
+    static ResumenPacienteModel peek(Map<Long, ResumenPacienteModel> patients, Object codeSNS) {
+        return patients instanceof LazyPatientMap ?
+                ((LazyPatientMap) patients).peek(codeSNS) : patients.get(codeSNS);
+    }
+
+    /**
+     * Devuelve los pacientes del mapa indicado que ya están en memoria: todos, si el mapa no los construye bajo
+     * demanda.
+     *
+     * @param patients El mapa de pacientes
+     * @return Los pacientes en memoria
+     */
+    static Collection<ResumenPacienteModel> loadedValues(Map<Long, ResumenPacienteModel> patients) {
+        return patients instanceof LazyPatientMap ?
+                ((LazyPatientMap) patients).loadedValues() : patients.values();
+    }
+}
\ No newline at end of file
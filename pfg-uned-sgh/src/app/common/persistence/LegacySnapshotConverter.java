@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Conversor de las bases de datos guardadas con la serialización por defecto de Java (formato antiguo
+ * de "dataBase.dat") al formato compacto de {@link PatientCodec}, en la disposición de {@link SegmentedSnapshot}.
+ * <p>
+ * La lectura del formato antiguo la usa también la aplicación al arrancar, de forma que una base de datos
+ * antigua se carga sin pasos previos y queda convertida con la siguiente instantánea. Para convertir un
+ * fichero sin arrancar la aplicación: {@code java app.common.persistence.LegacySnapshotConverter origen destino}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class LegacySnapshotConverter {
+
+    // Cabecera (STREAM_MAGIC) de todo flujo de serialización de Java
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    // Códigos de salida de la conversión desde la línea de comandos
+    static final int EXIT_OK = 0;
+    static final int EXIT_USAGE = 1;
+    static final int EXIT_FAILED = 2;
+
+    private static final Logger L = Logger.getLogger(LegacySnapshotConverter.class.getName());
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private LegacySnapshotConverter() { }
+
+    /**
+     * Comprueba, sin consumirlo, si el flujo contiene una base de datos en el formato antiguo.
+     *
+     * @param in El flujo, que debe soportar mark/reset
+     * @return Verdadero si comienza por la cabecera de la serialización de Java
+     * @throws IOException Si se produce un error de lectura
+     */
+    public static boolean isLegacy(InputStream in) throws IOException {
+
+        in.mark(2);
+        int magic = (in.read() << 8) | in.read();
+        in.reset();
+        return magic == JAVA_SERIALIZATION_MAGIC;
+    }
+
+    /**
+     * Lee una base de datos en el formato antiguo.
+     *
+     * @param in El flujo con la base de datos serializada
+     * @return La base de datos leída
+     * @throws SchemaVersionException Si la base de datos se guardó con versiones de las clases incompatibles con las actuales
+     * @throws IOException Si el flujo no contiene una base de datos válida
+     */
+    public static DataBase readLegacy(InputStream in) throws IOException {
+
+        try {
+            return (DataBase) new ObjectInputStream(in).readObject();
+        }
+        catch(InvalidClassException ice) {
+            throw new SchemaVersionException("La base de datos en el formato antiguo no es compatible con la clase "
+                    + ice.classname, ice);
+        }
+        catch(ClassNotFoundException | ClassCastException e) {
+            throw new IOException("El fichero no contiene una base de datos en el formato antiguo", e);
+        }
+    }
+
+    /**
+     * Convierte una base de datos en el formato antiguo al formato compacto.
+     *
+     * @param source El fichero en el formato antiguo
+     * @param target El fichero de destino, en el formato compacto
+     * @throws IOException Si no se puede leer el origen o escribir el destino
+     */
+    public static void convert(File source, File target) throws IOException {
+
+        DataBase dataBase;
+        try(InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+            dataBase = readLegacy(in);
+        }
+
+        new SegmentedSnapshot(target).write(dataBase);
+    }
+
+    /**
+     * Conversión desde la línea de comandos. Termina con el código de salida de {@link #run(String[])}.
+     *
+     * @param args El fichero de origen (formato antiguo) y el de destino (formato compacto)
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Conversión desde la línea de comandos, sin terminar el proceso. El resultado se registra en el log.
+     *
+     * @param args El fichero de origen (formato antiguo) y el de destino (formato compacto)
+     * @return El código de salida: {@value #EXIT_OK} si se ha convertido, {@value #EXIT_USAGE} si los argumentos
+     * no son válidos y {@value #EXIT_FAILED} si la conversión no se ha podido completar
+     */
+    static int run(String[] args) {
+
+        if(args.length != 2) {
+            L.log(Level.SEVERE, "Uso: LegacySnapshotConverter <origen> <destino>");
+            return EXIT_USAGE;
+        }
+        try {
+            convert(new File(args[0]), new File(args[1]));
+            L.log(Level.INFO, "Convertida la base de datos {0} en {1}", args);
+            return EXIT_OK; }
+        catch(IOException ioe) {
+            L.log(Level.SEVERE, "No se ha podido convertir la base de datos " + args[0], ioe);
+            return EXIT_FAILED; }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.ResumenPacienteModel.DetailLoader;
+import app.model.datospaciente.entity.Birthdate;
+import app.model.datospaciente.entity.DNI;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+/**
+ * Almacén del índice de pacientes sobre un fichero proyectado en memoria ({@link FileChannel#map}), con
+ * una disposición fija: un hueco de {@value #SLOT_SIZE} bytes por paciente, ordenados por código SNS, con
+ * los campos escalares que necesitan los listados (código SNS, DNI, estado, sexo, prioridad, fecha de
+ * nacimiento y posición de los detalles en la instantánea), seguidos de un área de desbordamiento con las
+ * cadenas de longitud variable (nombre y apellidos).
+ * <p>
+ * Arrancar consiste en proyectar el fichero: los pacientes se construyen a partir de su hueco la primera vez
+ * que se consultan en el mapa de {@link #getPatients()}, y los cambios guardados se escriben en su hueco
+ * directamente sobre la proyección. El fichero es una caché del índice de {@link SegmentedSnapshot}: lleva
+ * la marca (longitud y suma de comprobación del índice) de la instantánea de la que procede, y si no coincide con la
+ * instantánea actual, o se creó con otra versión del esquema ({@link PatientCodec#SCHEMA_VERSION}), se reconstruye. Su durabilidad la garantizan la instantánea y el diario, de modo que
+ * las escrituras en el sitio no necesitan forzarse a disco.
+ * <p>
+ * Los pacientes dados de alta después de crear el almacén no tienen hueco: se mantienen en memoria, junto a los
+ * del fichero, hasta que el almacén se reconstruye a partir de una instantánea que ya los contiene.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class MappedPatientStore {
+
+    // "SGHI"
+    private static final int MAGIC = 0x53474849;
+    private static final int VERSION = 1;
+
+    // Cabecera: [int MAGIC][int versión][int número de huecos][int versión del esquema de los pacientes]
+    // [long longitud de la instantánea][long suma de comprobación de su índice][long fin del área de desbordamiento]
+    private static final int HEADER_SIZE = 40;
+    private static final int H_COUNT = 8, H_LENGTH = 16, H_CHECKSUM = 24, H_OVERFLOW_END = 32;
+
+    // Disposición de cada hueco
+    private static final int SLOT_SIZE = 80;
+    private static final int KEY = 0, DETAILS = 8, CODE = 16, NAME = 24, SURNAME = 32, DNI_DIGITS = 40,
+            DNI_LETTER = 44, STATE = 46, SEX = 47, PRIORITY = 48, BIRTH_DAY = 52, BIRTH_MONTH = 56,
+            BIRTH_YEAR = 60, FLAGS = 64;
+    private static final int HAS_GENERALES = 1, HAS_DNI = 1 << 1, HAS_BIRTHDATE = 1 << 2;
+
+    // Valores que representan un campo nulo
+    private static final int NULL_INT = Integer.MIN_VALUE;
+    private static final long NULL_LONG = Long.MIN_VALUE;
+    private static final long NULL_REF = -1;
+    private static final byte NULL_ORDINAL = -1;
+
+    // Margen con el que se amplía la proyección cuando se llena el área de desbordamiento
+    private static final int GROWTH = 64 * 1024;
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private final int count;
+    // Pacientes ya construidos a partir de su hueco, por posición
+    private final ResumenPacienteModel[] cache;
+    // Carga de los detalles de cada paciente, según su código SNS
+    private final LongFunction<DetailLoader> loaders;
+    // Pacientes dados de alta después de crear el almacén, que no tienen hueco
+    private final PatientHashMap added = new PatientHashMap();
+    private final PatientMap patients = new PatientMap();
+
+    private MappedPatientStore(RandomAccessFile file, LongFunction<DetailLoader> loaders) throws IOException {
+        this.file = file;
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        this.count = buffer.getInt(H_COUNT);
+        this.cache = new ResumenPacienteModel[count];
+        this.loaders = loaders;
+    }
+
+    /////////////////////// CREACIÓN Y APERTURA //////////////////////////////////////////////////////////////////
+
+    /**
+     * Proyecta un almacén existente, si corresponde a la instantánea indicada.
+     *
+     * @param indexFile El fichero del almacén
+     * @param snapshotLength La longitud de la instantánea actual
+     * @param snapshotChecksum La suma de comprobación del índice de la instantánea actual
+     * @param loaders La carga de los detalles de cada paciente, según su código SNS
+     * @return El almacén, o nulo si no existe, no es válido o procede de otra instantánea o de otra versión del esquema
+     * @throws IOException Si se produce un error al proyectar el fichero
+     */
+    public static MappedPatientStore open(File indexFile, long snapshotLength, long snapshotChecksum,
+            LongFunction<DetailLoader> loaders) throws IOException {
+
+        if(!indexFile.exists() || indexFile.length() < HEADER_SIZE)
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        if(raf.readInt() != MAGIC || raf.readInt() != VERSION
+                || raf.length() < HEADER_SIZE + (long) SLOT_SIZE * raf.readInt()
+                || raf.readInt() != PatientCodec.SCHEMA_VERSION) {
+            raf.close();
+            return null;
+        }
+        raf.seek(H_LENGTH);
+        if(raf.readLong() != snapshotLength || raf.readLong() != snapshotChecksum) {
+            raf.close();
+            return null;
+        }
+        return new MappedPatientStore(raf, loaders);
+    }
+
+    /**
+     * Crea (o reconstruye) el almacén a partir de los pacientes indicados y lo proyecta. La cabecera se escribe
+     * en último lugar, de forma que un almacén a medio crear nunca se considera válido.
+     *
+     * @param indexFile El fichero del almacén
+     * @param patients Los pacientes, ordenados por código SNS
+     * @param positions La posición empaquetada de los detalles de cada paciente en la instantánea
+     * @param snapshotLength La longitud de la instantánea
+     * @param snapshotChecksum La suma de comprobación del índice de la instantánea
+     * @param loaders La carga de los detalles de cada paciente, según su código SNS
+     * @return El almacén creado
+     * @throws IOException Si no se puede escribir el fichero
+     */
+    public static MappedPatientStore create(File indexFile, Map<Long, ResumenPacienteModel> patients,
+            Map<Long, Long> positions, long snapshotLength, long snapshotChecksum,
+            LongFunction<DetailLoader> loaders) throws IOException {
+
+        long slotsEnd = HEADER_SIZE + (long) SLOT_SIZE * patients.size();
+
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(0);
+        raf.setLength(slotsEnd + GROWTH);
+        raf.writeInt(0); // sin número mágico hasta terminar
+        raf.writeInt(VERSION);
+        raf.writeInt(patients.size());
+        raf.writeInt(PatientCodec.SCHEMA_VERSION);
+        raf.seek(H_OVERFLOW_END);
+        raf.writeLong(slotsEnd);
+
+        MappedPatientStore store = new MappedPatientStore(raf, loaders);
+        int slot = 0;
+        for(Map.Entry<Long, ResumenPacienteModel> entry : patients.entrySet()) {
+            store.buffer.putLong(offset(slot, KEY), entry.getKey());
+            store.buffer.putLong(offset(slot, NAME), NULL_REF);
+            store.buffer.putLong(offset(slot, SURNAME), NULL_REF);
+            Long position = positions.get(entry.getKey());
+            store.buffer.putLong(offset(slot, DETAILS), position != null ? position : NULL_LONG);
+            store.writeSlot(slot++, entry.getValue());
+        }
+        store.stamp(snapshotLength, snapshotChecksum);
+        return store;
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Devuelve los pacientes del almacén, como un mapa ordenado por código SNS cuyos valores se construyen
+     * (una única vez) al consultarlos. Los pacientes nuevos se añaden en memoria, sin hueco en el almacén.
+     *
+     * @return El mapa de pacientes
+     */
+    public Map<Long, ResumenPacienteModel> getPatients() {
+        return patients;
+    }
+
+    /**
+     * Devuelve la posición empaquetada de los detalles del paciente en la instantánea.
+     *
+     * @param codeSNS El código SNS del paciente
+     * @return La posición, o nulo si el paciente no está en el almacén
+     */
+    public synchronized Long detailPosition(long codeSNS) {
+
+        int slot = find(codeSNS);
+        long position = slot >= 0 ? buffer.getLong(offset(slot, DETAILS)) : NULL_LONG;
+        return position != NULL_LONG ? position : null;
+    }
+
+    /**
+     * Escribe en el sitio los campos del índice del paciente indicado, si ya se había construido.
+     *
+     * @param codeSNS El código SNS del paciente
+     */
+    public synchronized void update(long codeSNS) {
+
+        int slot = find(codeSNS);
+        if(slot >= 0 && cache[slot] != null)
+            writeSlot(slot, cache[slot]);
+    }
+
+    /**
+     * Actualiza el almacén tras escribir una nueva instantánea: las posiciones de los detalles, los campos de
+     * los pacientes construidos y la marca de la instantánea, forzando después su escritura en disco. Si hay
+     * pacientes sin hueco, o a alguno de los huecos le falta su posición en la nueva instantánea, el almacén se
+     * invalida para reconstruirlo en el siguiente arranque.
+     *
+     * @param positions La posición empaquetada de los detalles de cada paciente en la nueva instantánea
+     * @param snapshotLength La longitud de la nueva instantánea
+     * @param snapshotChecksum La suma de comprobación del índice de la nueva instantánea
+     * @return Verdadero si el almacén tiene las posiciones de todos sus huecos en la nueva instantánea; si no,
+     * las posiciones que guarda dejan de ser válidas y deben tomarse de la propia instantánea
+     */
+    public synchronized boolean refresh(Map<Long, Long> positions, long snapshotLength, long snapshotChecksum) {
+
+        for(int slot = 0; slot < count; slot++) {
+            Long position = positions.get(buffer.getLong(offset(slot, KEY)));
+            if(position == null) {
+                stamp(-1, -1);
+                return false;
+            }
+            buffer.putLong(offset(slot, DETAILS), position);
+            if(cache[slot] != null)
+                writeSlot(slot, cache[slot]);
+        }
+        // los pacientes sin hueco solo se incorporan al reconstruir el almacén
+        if(added.isEmpty())
+            stamp(snapshotLength, snapshotChecksum);
+        else
+            stamp(-1, -1);
+        return true;
+    }
+
+    /**
+     * Cierra el fichero del almacén. La proyección sigue siendo válida hasta que se libere.
+     *
+     * @throws IOException Si se produce un error al cerrar el fichero
+     */
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private static int offset(int slot, int field) {
+        return HEADER_SIZE + slot * SLOT_SIZE + field;
+    }
+
+    private int find(long codeSNS) {
+
+        int low = 0, high = count - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            long key = buffer.getLong(offset(mid, KEY));
+            if(key < codeSNS)
+                low = mid + 1;
+            else if(key > codeSNS)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private synchronized long keyAt(int slot) {
+        return buffer.getLong(offset(slot, KEY));
+    }
+
+    private void stamp(long snapshotLength, long snapshotChecksum) {
+
+        buffer.putLong(H_LENGTH, snapshotLength);
+        buffer.putLong(H_CHECKSUM, snapshotChecksum);
+        buffer.force();
+        buffer.putInt(0, MAGIC);
+        buffer.force();
+    }
+
+    private synchronized ResumenPacienteModel valueAt(int slot, boolean keep) {
+
+        if(cache[slot] != null)
+            return cache[slot];
+
+        ResumenPacienteModel patient = readSlot(slot);
+        if(keep)
+            cache[slot] = patient;
+        return patient;
+    }
+
+    private ResumenPacienteModel readSlot(int slot) {
+
+        int flags = buffer.get(offset(slot, FLAGS));
+        DatoGeneralesModel generales = null;
+        if((flags & HAS_GENERALES) != 0) {
+            DNI dni = (flags & HAS_DNI) != 0 ?
+                    new DNI(readInt(slot, DNI_DIGITS), buffer.getChar(offset(slot, DNI_LETTER))) : null;
+            long code = buffer.getLong(offset(slot, CODE));
+            byte state = buffer.get(offset(slot, STATE));
+            generales = new DatoGeneralesModel(readString(slot, NAME), readString(slot, SURNAME), dni,
+                    code != NULL_LONG ? code : null, state != NULL_ORDINAL ? PatientStateEnum.values()[state] : null);
+        }
+
+        byte sex = buffer.get(offset(slot, SEX));
+        Birthdate birthDate = (flags & HAS_BIRTHDATE) != 0 ?
+                new Birthdate(readInt(slot, BIRTH_DAY), readInt(slot, BIRTH_MONTH), readInt(slot, BIRTH_YEAR)) : null;
+
+        return new ResumenPacienteModel(generales, sex != NULL_ORDINAL ? PatientSexEnum.values()[sex] : null,
+                birthDate, readInt(slot, PRIORITY), loaders.apply(buffer.getLong(offset(slot, KEY))));
+    }
+
+    private void writeSlot(int slot, ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        Birthdate birthDate = patient.getBirthDate();
+        int flags = (generales != null ? HAS_GENERALES : 0)
+                | (generales != null && generales.getDni() != null ? HAS_DNI : 0)
+                | (birthDate != null ? HAS_BIRTHDATE : 0);
+
+        if(generales != null) {
+            writeString(slot, NAME, generales.getName());
+            writeString(slot, SURNAME, generales.getSurname());
+            buffer.putLong(offset(slot, CODE), generales.getCodeSNS() != null ? generales.getCodeSNS() : NULL_LONG);
+            buffer.put(offset(slot, STATE), ordinal(generales.getState()));
+            if(generales.getDni() != null) {
+                writeInt(slot, DNI_DIGITS, generales.getDni().getDigits());
+                buffer.putChar(offset(slot, DNI_LETTER), generales.getDni().getLetter());
+            }
+        }
+        if(birthDate != null) {
+            writeInt(slot, BIRTH_DAY, birthDate.getDay());
+            writeInt(slot, BIRTH_MONTH, birthDate.getMonth());
+            writeInt(slot, BIRTH_YEAR, birthDate.getYear());
+        }
+        buffer.put(offset(slot, SEX), ordinal(patient.getPatientSex()));
+        writeInt(slot, PRIORITY, patient.getTriajePriority());
+        buffer.put(offset(slot, FLAGS), (byte) flags);
+    }
+
+    private Integer readInt(int slot, int field) {
+
+        int value = buffer.getInt(offset(slot, field));
+        return value != NULL_INT ? value : null;
+    }
+
+    private void writeInt(int slot, int field, Integer value) {
+        buffer.putInt(offset(slot, field), value != null ? value : NULL_INT);
+    }
+
+    private static byte ordinal(Enum<?> value) {
+        return value != null ? (byte) value.ordinal() : NULL_ORDINAL;
+    }
+
+    private String readString(int slot, int field) {
+
+        long ref = buffer.getLong(offset(slot, field));
+        if(ref == NULL_REF)
+            return null;
+
+        byte[] bytes = new byte[(int) ref];
+        int position = (int) (ref >>> 32);
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(position + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeString(int slot, int field, String value) {
+
+        if(value == null) {
+            buffer.putLong(offset(slot, field), NULL_REF);
+            return;
+        }
+        if(value.equals(readString(slot, field)))
+            return;
+
+        // las cadenas nuevas se añaden al final del área de desbordamiento; la referencia se cambia después
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        long end = buffer.getLong(H_OVERFLOW_END);
+        ensureCapacity(end + bytes.length);
+        for(int i = 0; i < bytes.length; i++)
+            buffer.put((int) end + i, bytes[i]);
+        buffer.putLong(H_OVERFLOW_END, end + bytes.length);
+        buffer.putLong(offset(slot, field), end << 32 | bytes.length);
+    }
+
+    private void ensureCapacity(long size) {
+
+        if(size <= buffer.capacity())
+            return;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size + GROWTH); }
+        catch(IOException ioe) {
+            throw new IllegalStateException("No se ha podido ampliar el almacén de pacientes", ioe); }
+    }
+
+    /////////////////////// MAPA DE PACIENTES ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Vista de los pacientes del almacén como mapa ordenado por código SNS.
+     */
+    public class PatientMap extends AbstractMap<Long, ResumenPacienteModel> implements LazyPatientMap {
+
+        @Override
+        public int size() {
+            synchronized(MappedPatientStore.this) { return count + added.size(); }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key, false) != null;
+        }
+
+        @Override
+        public ResumenPacienteModel get(Object key) {
+            return get(key, true);
+        }
+
+        @Override
+        public ResumenPacienteModel peek(Object key) {
+            return get(key, false);
+        }
+
+        @Override
+        public List<ResumenPacienteModel> loadedValues() {
+
+            synchronized(MappedPatientStore.this) {
+                List<ResumenPacienteModel> loaded = new ArrayList<>();
+                Iterator<Map.Entry<Long, ResumenPacienteModel>> extra = added.entrySet().iterator();
+                Map.Entry<Long, ResumenPacienteModel> nextExtra = extra.hasNext() ? extra.next() : null;
+                for(int slot = 0; slot < count; slot++) {
+                    if(cache[slot] == null)
+                        continue;
+                    for(long key = keyAt(slot); nextExtra != null && nextExtra.getKey() < key;
+                            nextExtra = extra.hasNext() ? extra.next() : null)
+                        loaded.add(nextExtra.getValue());
+                    loaded.add(cache[slot]);
+                }
+                for(; nextExtra != null; nextExtra = extra.hasNext() ? extra.next() : null)
+                    loaded.add(nextExtra.getValue());
+                return loaded;
+            }
+        }
+
+        @Override
+        public ResumenPacienteModel put(Long key, ResumenPacienteModel value) {
+
+            synchronized(MappedPatientStore.this) {
+                int slot = find(key);
+                if(slot < 0)
+                    return added.put(key, value);
+                ResumenPacienteModel previous = cache[slot];
+                cache[slot] = value;
+                writeSlot(slot, value);
+                return previous;
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<Long, ResumenPacienteModel>> entrySet() {
+
+            return new AbstractSet<Map.Entry<Long, ResumenPacienteModel>>() {
+                @Override public int size() { return PatientMap.this.size(); }
+                @Override public Iterator<Map.Entry<Long, ResumenPacienteModel>> iterator() {
+                    // los pacientes sin hueco se intercalan por código SNS con los del almacén
+                    List<Map.Entry<Long, ResumenPacienteModel>> extra;
+                    synchronized(MappedPatientStore.this) { extra = new ArrayList<>(added.entrySet()); }
+                    return new Iterator<Map.Entry<Long, ResumenPacienteModel>>() {
+                        private int next = 0, nextExtra = 0;
+                        @Override public boolean hasNext() { return next < count || nextExtra < extra.size(); }
+                        @Override public Map.Entry<Long, ResumenPacienteModel> next() {
+                            if(!hasNext())
+                                throw new NoSuchElementException();
+                            if(nextExtra < extra.size() && (next >= count
+                                    || extra.get(nextExtra).getKey() < keyAt(next)))
+                                return extra.get(nextExtra++);
+                            return new SlotEntry(next++);
+                        }
+                    };
+                }
+            };
+        }
+
+        private ResumenPacienteModel get(Object key, boolean keep) {
+
+            if(!(key instanceof Long))
+                return null;
+            synchronized(MappedPatientStore.this) {
+                int slot = find((Long) key);
+                return slot >= 0 ? valueAt(slot, keep) : added.get((Long) key);
+            }
+        }
+    }
+
+    /**
+     * Entrada del mapa de pacientes: la clave se lee del hueco, y el valor se construye al pedirlo.
+     */
+    private class SlotEntry implements Map.Entry<Long, ResumenPacienteModel> {
+
+        private final int slot;
+
+        SlotEntry(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Long getKey() {
+            return keyAt(slot);
+        }
+
+        @Override
+        public ResumenPacienteModel getValue() {
+            return valueAt(slot, true);
+        }
+
+        @Override
+        public ResumenPacienteModel setValue(ResumenPacienteModel value) {
+            return patients.put(getKey(), value);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,637 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.common.persistence.SchemaMigrations.Record;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import app.model.datospaciente.entity.DNI;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Codificador binario compacto para el modelo de pacientes, escrito a mano sobre DataOutput/DataInput.
+ * <p>
+ * A diferencia de la serialización por defecto de Java, no escribe descriptores de clase ni metadatos
+ * de los campos: cada modelo se codifica como una máscara de bits con los campos presentes (no nulos),
+ * seguida únicamente del valor de esos campos. Los enteros se escriben como enteros de longitud variable
+ * (varint, en codificación zigzag), los enumerados por su ordinal y las cadenas con writeUTF.
+ * <p>
+ * Desde la versión 2 del esquema, las cadenas que se repiten entre pacientes (médico asignado, medicación actual,
+ * alergias y compañía aseguradora) se escriben por su código en un {@link StringDictionary}, con
+ * {@link #writeString}; sin diccionario (parámetro nulo), se escriben completas.
+ * <p>
+ * Las secciones de datos personales, clínicos y bancarios solo codifican sus campos propios: el código
+ * SNS lo toman de los datos generales de su paciente, al asignarse a él (ver {@link ResumenPacienteModel#linkSections}).
+ * Los modelos leídos se devuelven sin cambios pendientes de persistir.
+ * <p>
+ * Todo fichero comienza por la cabecera [int MAGIC][byte versión][byte versión del esquema][usuarios], con los
+ * usuarios precedidos de su número. En la versión 1 le siguen los pacientes completos, uno tras otro; desde la
+ * versión 2 la disposición de los pacientes la define {@link SegmentedSnapshot}.
+ * <p>
+ * La versión del formato describe la disposición de los ficheros, y la del esquema la codificación de las secciones
+ * y de las entradas del índice. La del esquema se indica, desde la versión 4 del formato, en la cabecera de cada
+ * fichero, en cada registro de detalles de un paciente y en cada registro del diario; los formatos anteriores usan
+ * todos la versión {@value #BASE_SCHEMA_VERSION}. Los registros de versiones anteriores del esquema se actualizan
+ * al leerlos, con las migraciones de {@link SchemaMigrations}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class PatientCodec {
+
+    /**
+     * Número mágico al comienzo de una base de datos con este formato ("SGHD").
+     */
+    public static final int MAGIC = 0x53474844;
+
+    /**
+     * Versión actual del formato.
+     */
+    public static final byte FORMAT_VERSION = 4;
+
+    /**
+     * Versión actual del esquema de los registros de pacientes.
+     */
+    public static final int SCHEMA_VERSION = 2;
+
+    /**
+     * Versión del esquema de los registros de los formatos anteriores a la versión 4, que no la indican.
+     */
+    public static final int BASE_SCHEMA_VERSION = 1;
+
+    /**
+     * Versión del formato plano, con los pacientes completos a continuación de la cabecera.
+     */
+    public static final byte FLAT_VERSION = 1;
+
+    // Primera versión del formato que indica la del esquema
+    private static final byte SCHEMA_IN_HEADER_VERSION = 4;
+
+    // Bits de presencia de las secciones de un paciente
+    private static final int HAS_GENERALES = 1, HAS_PERSONALES = 1 << 1, HAS_CLINICOS = 1 << 2, HAS_BANCARIOS = 1 << 3;
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private PatientCodec() { }
+
+    /**
+     * Versiones del formato y del esquema leídas de una cabecera.
+     */
+    public static final class Version {
+
+        /**
+         * Versión del formato.
+         */
+        public final byte format;
+
+        /**
+         * Versión del esquema de los registros.
+         */
+        public final int schema;
+
+        private Version(byte format, int schema) {
+            this.format = format;
+            this.schema = schema;
+        }
+    }
+
+    /////////////////////// BASE DE DATOS ////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Escribe la cabecera de la base de datos: el número mágico, las versiones y los usuarios.
+     *
+     * @param out El destino
+     * @param users Los usuarios registrados, con su contraseña
+     * @throws IOException Si se produce un error de escritura
+     */
+    public static void writeHeader(DataOutput out, Map<String, String> users) throws IOException {
+
+        out.writeInt(MAGIC);
+        writeVersion(out);
+
+        writeVarLong(out, users.size());
+        for(Map.Entry<String, String> user : users.entrySet()) {
+            out.writeUTF(user.getKey());
+            out.writeUTF(user.getValue());
+        }
+    }
+
+    /**
+     * Lee la cabecera de la base de datos y añade sus usuarios a los indicados.
+     *
+     * @param in El origen
+     * @param users Los usuarios registrados (normalmente vacíos) a rellenar
+     * @return Las versiones del formato y del esquema del fichero
+     * @throws SchemaVersionException Si alguna de las versiones no está soportada
+     * @throws IOException Si se produce un error de lectura o el fichero no tiene este formato
+     */
+    public static Version readHeader(DataInput in, Map<String, String> users) throws IOException {
+
+        if(in.readInt() != MAGIC)
+            throw new IOException("El fichero no contiene una base de datos con este formato");
+        Version version = readVersion(in);
+
+        for(long i = readVarLong(in); i > 0; i--)
+            users.put(in.readUTF(), in.readUTF());
+        return version;
+    }
+
+    /**
+     * Lee los pacientes de una base de datos con el formato plano ({@value #FLAT_VERSION}), que
+     * siguen a la cabecera, y los añade a los indicados.
+     *
+     * @param in El origen, posicionado justo después de la cabecera
+     * @param patients Los pacientes a rellenar, por código SNS
+     * @throws IOException Si se produce un error de lectura
+     */
+    public static void readFlatPatients(DataInput in, Map<Long, ResumenPacienteModel> patients) throws IOException {
+
+        for(long i = readVarLong(in); i > 0; i--) {
+            long codeSNS = readVarLong(in);
+            patients.put(codeSNS, readPatient(in, BASE_SCHEMA_VERSION));
+        }
+    }
+
+    /////////////////////// PACIENTES Y SECCIONES ////////////////////////////////////////////////////////////////
+
+    /**
+     * Lee un paciente completo del formato plano: una máscara con las secciones presentes seguida de ellas.
+     *
+     * @param in El origen
+     * @param schema La versión del esquema con que se escribió
+     * @return El paciente, con sus secciones enlazadas
+     * @throws IOException Si se produce un error de lectura
+     */
+    public static ResumenPacienteModel readPatient(DataInput in, int schema) throws IOException {
+
+        int mask = in.readUnsignedByte();
+
+        return new ResumenPacienteModel(
+                (mask & HAS_GENERALES) != 0 ? readGenerales(in, schema) : null,
+                (mask & HAS_PERSONALES) != 0 ? readPersonales(in, schema) : null,
+                (mask & HAS_CLINICOS) != 0 ? readClinicos(in, schema, null) : null,
+                (mask & HAS_BANCARIOS) != 0 ? readBancarios(in, schema, null) : null);
+    }
+
+    /**
+     * Escribe las secciones de detalle de un paciente (datos personales, clínicos y bancarios), precedidas de
+     * la versión del esquema y de una máscara con las presentes. El paciente debe tener sus detalles cargados.
+     *
+     * @param out El destino
+     * @param patient El paciente
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo para escribirlas completas
+     * @throws IOException Si se produce un error de escritura
+     */
+    public static void writeDetails(DataOutput out, ResumenPacienteModel patient, StringDictionary dictionary)
+            throws IOException {
+
+        int mask = (patient.getDatosPersonales() != null ? HAS_PERSONALES : 0)
+                | (patient.getDatosClinicos() != null ? HAS_CLINICOS : 0)
+                | (patient.getDatosBancarios() != null ? HAS_BANCARIOS : 0);
+        out.writeByte(SCHEMA_VERSION);
+        out.writeByte(mask);
+
+        if(patient.getDatosPersonales() != null)  writePersonales(out, patient.getDatosPersonales());
+        if(patient.getDatosClinicos() != null)    writeClinicos(out, patient.getDatosClinicos(), dictionary);
+        if(patient.getDatosBancarios() != null)   writeBancarios(out, patient.getDatosBancarios(), dictionary);
+    }
+
+    /**
+     * Lee las secciones de detalle escritas con {@link #writeDetails} y las asigna al paciente,
+     * migrándolas si se escribieron con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param patient El paciente, pendiente de cargar sus detalles
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo si se escribieron completas
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static void readDetails(DataInput in, ResumenPacienteModel patient, StringDictionary dictionary)
+            throws IOException {
+        readDetails(in, patient, in.readUnsignedByte(), dictionary);
+    }
+
+    /**
+     * Lee las secciones de detalle de un registro sin versión del esquema (formatos anteriores al 4),
+     * escrito con la versión indicada, y las asigna al paciente.
+     *
+     * @param in El origen, posicionado en la máscara de las secciones
+     * @param patient El paciente, pendiente de cargar sus detalles
+     * @param schema La versión del esquema con que se escribió
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo si se escribieron completas
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static void readDetails(DataInput in, ResumenPacienteModel patient, int schema,
+            StringDictionary dictionary) throws IOException {
+
+        int mask = in.readUnsignedByte();
+
+        patient.attachDetails(
+                (mask & HAS_PERSONALES) != 0 ? readPersonales(in, schema) : null,
+                (mask & HAS_CLINICOS) != 0 ? readClinicos(in, schema, dictionary) : null,
+                (mask & HAS_BANCARIOS) != 0 ? readBancarios(in, schema, dictionary) : null);
+    }
+
+    /**
+     * Escribe una sección de paciente, según su tipo (el tipo no se codifica, lo debe conocer el lector).
+     *
+     * @param out El destino
+     * @param section La sección
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo para escribirlas completas
+     * @throws IOException Si se produce un error de escritura
+     */
+    public static void writeSection(DataOutput out, SeccionPacienteModel section, StringDictionary dictionary)
+            throws IOException {
+
+        if(section instanceof DatosPersonalesModel)
+            writePersonales(out, (DatosPersonalesModel) section);
+        else if(section instanceof DatosClinicosModel)
+            writeClinicos(out, (DatosClinicosModel) section, dictionary);
+        else if(section instanceof DatosBancariosModel)
+            writeBancarios(out, (DatosBancariosModel) section, dictionary);
+        else
+            writeGenerales(out, (DatoGeneralesModel) section);
+    }
+
+    /**
+     * Lee una sección de paciente del tipo indicado, migrándola si se escribió con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param record El tipo de sección
+     * @param schema La versión del esquema con que se escribió
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo si se escribieron completas
+     * @return La sección, con el esquema actual
+     * @throws IOException Si se produce un error de lectura, o no se puede migrar
+     */
+    public static SeccionPacienteModel readSection(DataInput in, Record record, int schema,
+            StringDictionary dictionary) throws IOException {
+
+        switch(record) {
+            case PERSONALES:
+                return readPersonales(in, schema);
+            case CLINICOS:
+                return readClinicos(in, schema, dictionary);
+            case BANCARIOS:
+                return readBancarios(in, schema, dictionary);
+            case GENERALES:
+                return readGenerales(in, schema);
+            default:
+                throw new IllegalArgumentException("No es una sección de paciente: " + record);
+        }
+    }
+
+    /**
+     * Lee los datos generales de un paciente, migrándolos si se escribieron con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param schema La versión del esquema con que se escribieron
+     * @return Los datos generales, con el esquema actual
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static DatoGeneralesModel readGenerales(DataInput in, int schema) throws IOException {
+        return readGenerales(SchemaMigrations.upgrade(Record.GENERALES, schema, in));
+    }
+
+    /**
+     * Lee los datos personales de un paciente, migrándolos si se escribieron con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param schema La versión del esquema con que se escribieron
+     * @return Los datos personales, con el esquema actual
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static DatosPersonalesModel readPersonales(DataInput in, int schema) throws IOException {
+        return readPersonales(SchemaMigrations.upgrade(Record.PERSONALES, schema, in));
+    }
+
+    /**
+     * Lee los datos clínicos de un paciente, migrándolos si se escribieron con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param schema La versión del esquema con que se escribieron
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo si se escribieron completas
+     * @return Los datos clínicos, con el esquema actual
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static DatosClinicosModel readClinicos(DataInput in, int schema, StringDictionary dictionary)
+            throws IOException {
+        return readClinicos(SchemaMigrations.upgrade(Record.CLINICOS, schema, in), dictionary);
+    }
+
+    /**
+     * Lee los datos bancarios de un paciente, migrándolos si se escribieron con una versión anterior del esquema.
+     *
+     * @param in El origen
+     * @param schema La versión del esquema con que se escribieron
+     * @param dictionary El diccionario de las cadenas repetidas, o nulo si se escribieron completas
+     * @return Los datos bancarios, con el esquema actual
+     * @throws IOException Si se produce un error de lectura, o no se pueden migrar
+     */
+    public static DatosBancariosModel readBancarios(DataInput in, int schema, StringDictionary dictionary)
+            throws IOException {
+        return readBancarios(SchemaMigrations.upgrade(Record.BANCARIOS, schema, in), dictionary);
+    }
+
+    public static void writeGenerales(DataOutput out, DatoGeneralesModel model) throws IOException {
+
+        out.writeByte(mask(model.getName(), model.getSurname(), model.getDni(), model.getCodeSNS(), model.getState()));
+
+        if(model.getName() != null)     out.writeUTF(model.getName());
+        if(model.getSurname() != null)  out.writeUTF(model.getSurname());
+        if(model.getDni() != null)      writeDNI(out, model.getDni());
+        if(model.getCodeSNS() != null)  writeVarLong(out, model.getCodeSNS());
+        if(model.getState() != null)    out.writeByte(model.getState().ordinal());
+    }
+
+    public static DatoGeneralesModel readGenerales(DataInput in) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        DatoGeneralesModel model = new DatoGeneralesModel();
+
+        if((mask & 1) != 0)         model.setName(in.readUTF());
+        if((mask & 1 << 1) != 0)    model.setSurname(in.readUTF());
+        if((mask & 1 << 2) != 0)    model.setDni(readDNI(in));
+        if((mask & 1 << 3) != 0)    model.setCodeSNS(readVarLong(in));
+        if((mask & 1 << 4) != 0)    model.setState(PatientStateEnum.values()[in.readUnsignedByte()]);
+
+        model.clearDirty();
+        return model;
+    }
+
+    public static void writePersonales(DataOutput out, DatosPersonalesModel model) throws IOException {
+
+        out.writeByte(mask(model.getBirthDate(), model.getPatientSex(),
+                model.getEmail(), model.getPostalAddress(), model.getPhoneNumber()));
+
+        if(model.getBirthDate() != null)        writeBirthdate(out, model.getBirthDate());
+        if(model.getPatientSex() != null)       out.writeByte(model.getPatientSex().ordinal());
+        if(model.getEmail() != null)            out.writeUTF(model.getEmail());
+        if(model.getPostalAddress() != null)    out.writeUTF(model.getPostalAddress());
+        if(model.getPhoneNumber() != null)      writeVarLong(out, model.getPhoneNumber());
+    }
+
+    public static DatosPersonalesModel readPersonales(DataInput in) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        DatosPersonalesModel model = new DatosPersonalesModel();
+
+        if((mask & 1) != 0)         model.setBirthDate(readBirthdate(in));
+        if((mask & 1 << 1) != 0)    model.setPatientSex(PatientSexEnum.values()[in.readUnsignedByte()]);
+        if((mask & 1 << 2) != 0)    model.setEmail(in.readUTF());
+        if((mask & 1 << 3) != 0)    model.setPostalAddress(in.readUTF());
+        if((mask & 1 << 4) != 0)    model.setPhoneNumber(readVarLong(in));
+
+        model.clearDirty();
+        return model;
+    }
+
+    public static void writeClinicos(DataOutput out, DatosClinicosModel model, StringDictionary dictionary)
+            throws IOException {
+
+        // el valor de 'rcp' viaja en la propia máscara, y 'allergiesByLine' se deriva de 'allergies'
+        out.writeByte(mask(model.getAsignedDoctor(), model.getCurrentMedication(), model.getRcp(),
+                model.getAllergies(), model.getTriajePriority())
+                | (Boolean.TRUE.equals(model.getRcp()) ? 1 << 7 : 0));
+
+        if(model.getAsignedDoctor() != null)        writeString(out, model.getAsignedDoctor(), dictionary);
+        if(model.getCurrentMedication() != null)    writeString(out, model.getCurrentMedication(), dictionary);
+        if(model.getAllergies() != null)            writeStringArray(out, model.getAllergies(), dictionary);
+        if(model.getTriajePriority() != null)       writeVarLong(out, model.getTriajePriority());
+    }
+
+    public static DatosClinicosModel readClinicos(DataInput in, StringDictionary dictionary) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        DatosClinicosModel model = new DatosClinicosModel();
+
+        if((mask & 1) != 0)         model.setAsignedDoctor(readString(in, dictionary));
+        if((mask & 1 << 1) != 0)    model.setCurrentMedication(readString(in, dictionary));
+        if((mask & 1 << 2) != 0)    model.setRcp((mask & 1 << 7) != 0);
+        if((mask & 1 << 3) != 0)    model.setAllergies(readStringArray(in, dictionary));
+        model.setTriajePriority((mask & 1 << 4) != 0 ? (int) readVarLong(in) : null);
+
+        model.clearDirty();
+        return model;
+    }
+
+    public static void writeBancarios(DataOutput out, DatosBancariosModel model, StringDictionary dictionary)
+            throws IOException {
+
+        // el valor de 'healthInsurance' viaja en la propia máscara
+        out.writeByte(mask(model.getAccountNumber(), model.getHealthInsurance(), model.getInsuranceCompany())
+                | (Boolean.TRUE.equals(model.getHealthInsurance()) ? 1 << 7 : 0));
+
+        if(model.getAccountNumber() != null)    writeVarLong(out, model.getAccountNumber());
+        if(model.getInsuranceCompany() != null) writeString(out, model.getInsuranceCompany(), dictionary);
+    }
+
+    public static DatosBancariosModel readBancarios(DataInput in, StringDictionary dictionary) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        DatosBancariosModel model = new DatosBancariosModel();
+
+        if((mask & 1) != 0)         model.setAccountNumber(readVarLong(in));
+        if((mask & 1 << 1) != 0)    model.setHealthInsurance((mask & 1 << 7) != 0);
+        if((mask & 1 << 2) != 0)    model.setInsuranceCompany(readString(in, dictionary));
+
+        model.clearDirty();
+        return model;
+    }
+
+    /////////////////////// ENTIDADES ////////////////////////////////////////////////////////////////////////////
+
+    public static void writeDNI(DataOutput out, DNI dni) throws IOException {
+
+        out.writeByte(mask(dni.getDigits()));
+        if(dni.getDigits() != null) writeVarLong(out, dni.getDigits());
+        out.writeChar(dni.getLetter());
+    }
+
+    public static DNI readDNI(DataInput in) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        Integer digits = (mask & 1) != 0 ? (int) readVarLong(in) : null;
+        return new DNI(digits, in.readChar());
+    }
+
+    public static void writeBirthdate(DataOutput out, Birthdate birthdate) throws IOException {
+
+        out.writeByte(mask(birthdate.getDay(), birthdate.getMonth(), birthdate.getYear()));
+        if(birthdate.getDay() != null)      writeVarLong(out, birthdate.getDay());
+        if(birthdate.getMonth() != null)    writeVarLong(out, birthdate.getMonth());
+        if(birthdate.getYear() != null)     writeVarLong(out, birthdate.getYear());
+    }
+
+    public static Birthdate readBirthdate(DataInput in) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        Integer day = (mask & 1) != 0 ? (int) readVarLong(in) : null;
+        Integer month = (mask & 1 << 1) != 0 ? (int) readVarLong(in) : null;
+        Integer year = (mask & 1 << 2) != 0 ? (int) readVarLong(in) : null;
+        return new Birthdate(day, month, year);
+    }
+
+    /////////////////////// PRIMITIVAS //////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Comprueba que la versión leída del formato está soportada por este codificador.
+     *
+     * @param version La versión leída
+     * @throws SchemaVersionException Si la versión no está soportada
+     */
+    public static void checkVersion(byte version) throws SchemaVersionException {
+
+        if(version < FLAT_VERSION || version > FORMAT_VERSION)
+            throw new SchemaVersionException("Versión de formato no soportada: " + version);
+    }
+
+    /**
+     * Escribe las versiones actuales del formato y del esquema.
+     *
+     * @param out El destino
+     * @throws IOException Si se produce un error de escritura
+     */
+    public static void writeVersion(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(SCHEMA_VERSION);
+    }
+
+    /**
+     * Lee las versiones escritas con {@link #writeVersion}, o solo la del formato en las versiones anteriores
+     * a la 4, y comprueba que están soportadas.
+     *
+     * @param in El origen
+     * @return Las versiones del formato y del esquema
+     * @throws SchemaVersionException Si alguna de las versiones no está soportada
+     * @throws IOException Si se produce un error de lectura
+     */
+    public static Version readVersion(DataInput in) throws IOException {
+
+        byte format = in.readByte();
+        checkVersion(format);
+        int schema = format >= SCHEMA_IN_HEADER_VERSION ? in.readUnsignedByte() : BASE_SCHEMA_VERSION;
+        SchemaMigrations.check(schema);
+        return new Version(format, schema);
+    }
+
+    /**
+     * Escribe un entero largo con longitud variable (7 bits por byte), en codificación zigzag
+     * para que los valores negativos pequeños también ocupen pocos bytes.
+     *
+     * @param out El destino
+     * @param value El valor
+     * @throws IOException Si se produce un error de escritura
+     */
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+
+        long zigzag = (value << 1) ^ (value >> 63);
+        while((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    /**
+     * Lee un entero largo escrito con {@link #writeVarLong}.
+     *
+     * @param in El origen
+     * @return El valor
+     * @throws IOException Si se produce un error de lectura o el valor está mal formado
+     */
+    public static long readVarLong(DataInput in) throws IOException {
+
+        long zigzag = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Entero de longitud variable mal formado");
+    }
+
+    /**
+     * Escribe una cadena de las que se repiten entre pacientes: su código en el diccionario, o {@link StringDictionary#NONE}
+     * seguido de la cadena completa (writeUTF) si no se codifica o no hay diccionario.
+     *
+     * @param out El destino
+     * @param value La cadena
+     * @param dictionary El diccionario, o nulo para escribirla completa
+     * @throws IOException Si se produce un error de escritura, o al añadirla al diccionario
+     */
+    public static void writeString(DataOutput out, String value, StringDictionary dictionary) throws IOException {
+
+        int code = dictionary != null ? dictionary.codeOf(value) : StringDictionary.NONE;
+        writeVarLong(out, code);
+        if(code == StringDictionary.NONE)
+            out.writeUTF(value);
+    }
+
+    /**
+     * Lee una cadena escrita con {@link #writeString}.
+     *
+     * @param in El origen
+     * @param dictionary El diccionario con que se escribió, o nulo si se escribió completa
+     * @return La cadena, la instancia del diccionario si está codificada
+     * @throws IOException Si se produce un error de lectura, o el código no es del diccionario
+     */
+    public static String readString(DataInput in, StringDictionary dictionary) throws IOException {
+
+        long code = readVarLong(in);
+        if(code == StringDictionary.NONE)
+            return in.readUTF();
+        String value = dictionary != null ? dictionary.valueOf((int) code) : null;
+        if(value == null)
+            throw new IOException("Cadena con un código que no es del diccionario: " + code);
+        return value;
+    }
+
+    private static void writeStringArray(DataOutput out, String[] array, StringDictionary dictionary) throws IOException {
+
+        writeVarLong(out, array.length);
+        for(String s : array) {
+            out.writeBoolean(s != null);
+            if(s != null) writeString(out, s, dictionary);
+        }
+    }
+
+    private static String[] readStringArray(DataInput in, StringDictionary dictionary) throws IOException {
+
+        String[] array = new String[(int) readVarLong(in)];
+        for(int i = 0; i < array.length; i++)
+            array[i] = in.readBoolean() ? readString(in, dictionary) : null;
+        return array;
+    }
+
+    private static int mask(Object... fields) {
+
+        int mask = 0;
+        for(int i = 0; i < fields.length; i++)
+            if(fields[i] != null) mask |= 1 << i;
+        return mask;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Tabla de resumen de los pacientes por columnas, paralela a los modelos, para los recuentos, filtros y
+ * ordenaciones sobre el censo completo ({@link PatientFilter}). Cada paciente es una fila, con un número
+ * correlativo, y cada dato una columna de tipo primitivo: código SNS, estado, sexo, prioridad de triaje, fecha
+ * de nacimiento (en días desde 1970) y médico asignado, codificado con un diccionario de los médicos distintos.
+ * Los recorridos son así bucles sobre arrays, sin saltar de objeto en objeto, y con muchas filas se reparten
+ * entre los núcleos.
+ * <p>
+ * Sobre las columnas de estado, sexo y prioridad hay además un {@link CompressedBitmap} por valor: esas
+ * condiciones se resuelven como intersección de uniones de mapas. Las de fecha de nacimiento (y de edad, ver
+ * {@link PatientFilter#ageBetween}) se resuelven con búsqueda binaria sobre las filas ordenadas por fecha, si
+ * dejan pocas filas, y solo el resto recorre las filas que quedan.
+ * <p>
+ * La tabla se mantiene paciente a paciente, al guardarlos. Los datos se toman del índice del paciente, sin
+ * cargar sus detalles; el médico asignado, solo si ya están cargados, o con {@link #setAssignedDoctor}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientColumns {
+
+    // Valor de las filas sin estado, sexo o prioridad válidos: no figuran en ningún mapa de esa columna
+    private static final byte NONE = -1;
+    // Médico de las filas sin médico asignado
+    private static final int NO_DOCTOR = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    // Filas de cada tramo de los recorridos, que se reparten entre los núcleos
+    private static final int CHUNK = 1 << 14;
+    // Fracción máxima de las filas (1 / N) que puede dejar un intervalo de fechas para resolverlo con el índice
+    // por fecha; si deja más, es más rápido recorrer la columna que ordenar las filas encontradas
+    private static final int BIRTH_INDEX_FRACTION = 8;
+
+    private final CompressedBitmap[] byState = bitmaps(PatientStateEnum.values().length);
+    private final CompressedBitmap[] bySex = bitmaps(PatientSexEnum.values().length);
+    private final CompressedBitmap[] byPriority = bitmaps(PatientFilter.MAX_PRIORITY + 1);
+
+    // Fila de cada paciente: <codeSNS, fila>
+    private final Map<Long, Integer> rows = new HashMap<>();
+    private long[] codes = new long[INITIAL_CAPACITY];
+    private byte[] states = new byte[INITIAL_CAPACITY];
+    private byte[] sexes = new byte[INITIAL_CAPACITY];
+    private byte[] priorities = new byte[INITIAL_CAPACITY];
+    private int[] birthDays = new int[INITIAL_CAPACITY];
+    private int[] doctors = new int[INITIAL_CAPACITY];
+    private int size;
+    // Diccionario de médicos asignados, ya normalizados (ver PatientIndexes.textKey): <médico, código>
+    private final Map<String, Integer> doctorCodes = new HashMap<>();
+    // Posición de cada fila en orden de código SNS, y la fila de cada posición; nulas tras añadir filas
+    private int[] ranks;
+    private int[] rowsByRank;
+    // Filas con fecha de nacimiento válida ordenadas por fecha, con la fecha en los 32 bits altos y la fila en
+    // los bajos; nulo tras cambiar alguna fecha
+    private long[] byBirth;
+
+    /**
+     * Construye la tabla con los pacientes indicados.
+     *
+     * @param patients Los pacientes registrados
+     */
+    public PatientColumns(Iterable<ResumenPacienteModel> patients) {
+        patients.forEach(this::update);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registra los datos actuales de un paciente recién guardado.
+     *
+     * @param patient El paciente
+     */
+    public synchronized void update(ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        if(generales == null || generales.getCodeSNS() == null)
+            return;
+
+        int row = rowOf(generales.getCodeSNS());
+        states[row] = move(byState, row, states[row], generales.getState() != null ? generales.getState().ordinal() : NONE);
+        sexes[row] = move(bySex, row, sexes[row], patient.getPatientSex() != null ? patient.getPatientSex().ordinal() : NONE);
+        Integer priority = patient.getTriajePriority();
+        priorities[row] = move(byPriority, row, priorities[row],
+                priority != null && priority >= 0 && priority <= PatientFilter.MAX_PRIORITY ? priority : NONE);
+        int birthDay = PatientFilter.epochDay(patient.getBirthDate());
+        if(birthDays[row] != birthDay) {
+            birthDays[row] = birthDay;
+            byBirth = null;
+        }
+        if(patient.isDetailLoaded())
+            doctors[row] = doctorCode(patient.getDatosClinicos() != null ? patient.getDatosClinicos().getAsignedDoctor() : null);
+    }
+
+    /**
+     * Registra el médico asignado de un paciente cuyos detalles no están cargados.
+     *
+     * @param codeSNS El código SNS del paciente
+     * @param doctor El médico asignado
+     */
+    public synchronized void setAssignedDoctor(long codeSNS, String doctor) {
+        Integer row = rows.get(codeSNS);
+        if(row != null)
+            doctors[row] = doctorCode(doctor);
+    }
+
+    /**
+     * Busca los pacientes que cumplen un filtro.
+     *
+     * @param filter El filtro
+     * @return Los códigos SNS de los pacientes, en el orden del filtro
+     */
+    public synchronized long[] find(PatientFilter filter) {
+
+        int[] selected = select(filter);
+        rank();
+
+        // la clave de cada fila lleva el criterio de orden en los 32 bits altos, y su posición por código SNS en
+        // los bajos, que deshace los empates
+        long[] keys = new long[selected.length];
+        for(int i = 0; i < selected.length; i++) {
+            int row = selected[i];
+            long order;
+            switch(filter.getSort()) {
+                case PRIORITY:  order = priorities[row] != NONE ? -priorities[row] : 1; break;
+                case AGE:       order = birthDays[row]; break;
+                default:        order = 0;
+            }
+            keys[i] = order << 32 | ranks[row];
+        }
+        Arrays.parallelSort(keys);
+
+        long[] found = new long[keys.length];
+        for(int i = 0; i < keys.length; i++)
+            found[i] = codes[rowsByRank[(int) keys[i]]];
+        return found;
+    }
+
+    /**
+     * Cuenta los pacientes que cumplen un filtro, sin obtenerlos.
+     *
+     * @param filter El filtro
+     * @return El número de pacientes
+     */
+    public synchronized int count(PatientFilter filter) {
+
+        CompressedBitmap matches = evaluate(filter);
+        int[] born = bornRange(filter);
+        if(born != null && matches == null && filter.getDoctor() == null)
+            return born[1] - born[0];
+
+        born = selective(born);
+        int[] candidates = candidates(matches, born);
+        IntPredicate scanned = scanned(filter, born == null);
+        if(scanned == null)
+            return candidates != null ? candidates.length : matches != null ? matches.cardinality() : size;
+        return scan(candidates, scanned).mapToInt((rows) -> rows.length).sum();
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return Las filas que cumplen el filtro, en orden de fila
+     */
+    private int[] select(PatientFilter filter) {
+
+        CompressedBitmap matches = evaluate(filter);
+        int[] born = selective(bornRange(filter));
+        int[] candidates = candidates(matches, born);
+        IntPredicate scanned = scanned(filter, born == null);
+        if(scanned == null)
+            return candidates != null ? candidates : IntStream.range(0, size).toArray();
+        return scan(candidates, scanned).flatMapToInt(IntStream::of).toArray();
+    }
+
+    /**
+     * Las filas que cumplen las condiciones de los mapas de bits y, si se resuelve con el índice por fecha, la de
+     * fecha de nacimiento.
+     *
+     * @param matches Las filas que cumplen las condiciones de los mapas de bits, o nulo si no hay ninguna
+     * @param born Las posiciones en el índice por fecha de las filas en el intervalo de fechas, o nulo
+     * @return Las filas, en orden de fila, o nulo si no hay ninguna condición de ese tipo
+     */
+    private int[] candidates(CompressedBitmap matches, int[] born) {
+
+        if(born == null)
+            return matches != null ? matches.toArray() : null;
+
+        // se parte del menor de los dos conjuntos, comprobando en cada fila la condición del otro; las fechas
+        // del intervalo son las de sus extremos en el índice, y el intervalo no está vacío
+        if(matches != null && matches.cardinality() < born[1] - born[0]) {
+            int[] rows = matches.toArray();
+            int from = (int) (byBirth[born[0]] >> 32);
+            int to = (int) (byBirth[born[1] - 1] >> 32);
+            int found = 0;
+            for(int row : rows)
+                if(birthDays[row] >= from && birthDays[row] <= to)
+                    rows[found++] = row;
+            return Arrays.copyOf(rows, found);
+        }
+        int[] rows = new int[born[1] - born[0]];
+        int found = 0;
+        for(int i = born[0]; i < born[1]; i++) {
+            int row = (int) byBirth[i];
+            if(matches == null || matches.contains(row))
+                rows[found++] = row;
+        }
+        rows = Arrays.copyOf(rows, found);
+        Arrays.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Resuelve la condición de fecha de nacimiento del filtro con búsqueda binaria en el índice por fecha.
+     *
+     * @return La primera posición en el índice dentro del intervalo de fechas y la siguiente a la última, o nulo si
+     * el filtro no tiene esa condición
+     */
+    private int[] bornRange(PatientFilter filter) {
+
+        if(filter.getBornFrom() == null && filter.getBornTo() == null)
+            return null;
+        if(byBirth == null) {
+            long[] sorted = new long[size];
+            int dated = 0;
+            for(int row = 0; row < size; row++)
+                if(birthDays[row] != PatientFilter.NO_DATE)
+                    sorted[dated++] = (long) birthDays[row] << 32 | row;
+            byBirth = Arrays.copyOf(sorted, dated);
+            Arrays.parallelSort(byBirth);
+        }
+
+        long from = filter.getBornFrom() != null ? Math.max(filter.getBornFrom().toEpochDay(), Integer.MIN_VALUE) : Integer.MIN_VALUE;
+        long to = filter.getBornTo() != null ? Math.min(filter.getBornTo().toEpochDay(), Integer.MAX_VALUE - 1) : Integer.MAX_VALUE - 1;
+        if(from > to)
+            return new int[] { 0, 0 };
+        return new int[] { lowerBound(from << 32), lowerBound((to + 1) << 32) };
+    }
+
+    /**
+     * @return El intervalo del índice por fecha indicado si deja pocas filas (ver {@link #BIRTH_INDEX_FRACTION}),
+     * o nulo si no, y la condición se comprueba recorriendo la columna
+     */
+    private int[] selective(int[] born) {
+        return born != null && (long) (born[1] - born[0]) * BIRTH_INDEX_FRACTION <= size ? born : null;
+    }
+
+    /**
+     * @return La primera posición del índice por fecha con una clave igual o mayor que la indicada
+     */
+    private int lowerBound(long key) {
+        int position = Arrays.binarySearch(byBirth, key);
+        // las filas no son negativas, y la clave de una fecha con la fila 0 puede estar en el índice
+        return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Recorre las filas indicadas, o todas, por tramos: cada tramo con un bucle, y los tramos repartidos entre
+     * los núcleos.
+     *
+     * @return Las filas que cumplen la condición, de cada tramo y en orden
+     */
+    private Stream<int[]> scan(int[] candidates, IntPredicate scanned) {
+
+        int count = candidates != null ? candidates.length : size;
+        return IntStream.range(0, (count + CHUNK - 1) / CHUNK).parallel().mapToObj((chunk) -> {
+            int[] found = new int[Math.min(CHUNK, count - chunk * CHUNK)];
+            int matches = 0;
+            for(int i = chunk * CHUNK, end = i + found.length; i < end; i++) {
+                int row = candidates != null ? candidates[i] : i;
+                if(scanned.test(row))
+                    found[matches++] = row;
+            }
+            return Arrays.copyOf(found, matches); });
+    }
+
+    /**
+     * Las condiciones del filtro con mapas de bits.
+     *
+     * @return Las filas que las cumplen, o nulo si el filtro no tiene ninguna de ellas
+     */
+    private CompressedBitmap evaluate(PatientFilter filter) {
+
+        CompressedBitmap matches = null;
+        if(filter.getStates() != null)
+            matches = and(matches, union(byState, ordinals(filter.getStates())));
+        if(filter.getSexes() != null)
+            matches = and(matches, union(bySex, ordinals(filter.getSexes())));
+        if(filter.isByPriority()) {
+            int[] values = new int[Math.max(0, filter.getMaxPriority() - filter.getMinPriority() + 1)];
+            for(int i = 0; i < values.length; i++)
+                values[i] = filter.getMinPriority() + i;
+            matches = and(matches, union(byPriority, values));
+        }
+        return matches;
+    }
+
+    /**
+     * Las condiciones del filtro que recorren las columnas.
+     *
+     * @param byBirthDay Si se recorre también la columna de fecha de nacimiento, por no resolverse con el índice
+     * @return La comprobación de una fila, o nula si el filtro no tiene ninguna de ellas
+     */
+    private IntPredicate scanned(PatientFilter filter, boolean byBirthDay) {
+
+        IntPredicate scanned = null;
+        if(filter.getDoctor() != null) {
+            Integer code = doctorCodes.get(PatientIndexes.textKey(filter.getDoctor()));
+            int[] column = doctors;
+            int doctor = code != null ? code : NO_DOCTOR - 1;
+            scanned = (row) -> column[row] == doctor;
+        }
+        if(byBirthDay && (filter.getBornFrom() != null || filter.getBornTo() != null)) {
+            int[] column = birthDays;
+            int from = filter.getBornFrom() != null ? (int) filter.getBornFrom().toEpochDay() : Integer.MIN_VALUE;
+            int to = filter.getBornTo() != null ? (int) filter.getBornTo().toEpochDay() : PatientFilter.NO_DATE - 1;
+            IntPredicate born = (row) -> column[row] >= from && column[row] <= to;
+            scanned = scanned != null ? scanned.and(born) : born;
+        }
+        return scanned;
+    }
+
+    /**
+     * Calcula, si hay filas nuevas, la posición de cada fila en orden de código SNS.
+     */
+    private void rank() {
+
+        if(ranks != null)
+            return;
+        long[] sorted = Arrays.copyOf(codes, size);
+        Arrays.parallelSort(sorted);
+        ranks = new int[size];
+        rowsByRank = new int[size];
+        IntStream.range(0, size).parallel().forEach((row) -> {
+            int rank = Arrays.binarySearch(sorted, codes[row]);
+            ranks[row] = rank;
+            rowsByRank[rank] = row; });
+    }
+
+    private int rowOf(long codeSNS) {
+
+        Integer row = rows.get(codeSNS);
+        if(row != null)
+            return row;
+
+        if(size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+            sexes = Arrays.copyOf(sexes, size * 2);
+            priorities = Arrays.copyOf(priorities, size * 2);
+            birthDays = Arrays.copyOf(birthDays, size * 2);
+            doctors = Arrays.copyOf(doctors, size * 2);
+        }
+        codes[size] = codeSNS;
+        states[size] = sexes[size] = priorities[size] = NONE;
+        birthDays[size] = PatientFilter.NO_DATE;
+        doctors[size] = NO_DOCTOR;
+        rows.put(codeSNS, size);
+        ranks = rowsByRank = null;
+        return size++;
+    }
+
+    private int doctorCode(String doctor) {
+
+        String key = PatientIndexes.textKey(doctor);
+        if(key == null)
+            return NO_DOCTOR;
+        Integer code = doctorCodes.get(key);
+        if(code == null) {
+            code = doctorCodes.size();
+            doctorCodes.put(key, code);
+        }
+        return code;
+    }
+
+    private static byte move(CompressedBitmap[] bitmaps, int row, byte previous, int current) {
+
+        if(previous != current) {
+            if(previous != NONE)
+                bitmaps[previous].remove(row);
+            if(current != NONE)
+                bitmaps[current].add(row);
+        }
+        return (byte) current;
+    }
+
+    private static CompressedBitmap and(CompressedBitmap matches, CompressedBitmap condition) {
+        return matches != null ? matches.and(condition) : condition;
+    }
+
+    private static CompressedBitmap union(CompressedBitmap[] bitmaps, int[] values) {
+        CompressedBitmap union = new CompressedBitmap();
+        for(int value : values)
+            union = union.or(bitmaps[value]);
+        return union;
+    }
+
+    private static int[] ordinals(Set<? extends Enum<?>> values) {
+        return values.stream().mapToInt(Enum::ordinal).toArray();
+    }
+
+    private static CompressedBitmap[] bitmaps(int count) {
+        CompressedBitmap[] bitmaps = new CompressedBitmap[count];
+        for(int i = 0; i < count; i++)
+            bitmaps[i] = new CompressedBitmap();
+        return bitmaps;
+    }
+}
\ No newline at end of file
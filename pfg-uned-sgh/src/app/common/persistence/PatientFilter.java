@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Filtro combinado de pacientes por estado, sexo, prioridad de triaje, médico asignado y fecha de nacimiento,
+ * para las vistas de planta: por ejemplo, los pacientes en espera con prioridad 7 o más, o las mujeres ingresadas.
+ * Un paciente cumple el filtro si cumple cada una de sus condiciones, y una condición con varios valores si tiene
+ * cualquiera de ellos. Las condiciones no indicadas no filtran. Los pacientes encontrados se ordenan por código
+ * SNS, o según {@link #sortBy(Sort)}, y a igualdad por código SNS.
+ * <p>
+ * Ejemplo: {@code new PatientFilter().state(PatientStateEnum.Espera).minPriority(7).sortBy(Sort.PRIORITY)}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientFilter implements Predicate<ResumenPacienteModel> {
+
+    /**
+     * Prioridad de triaje máxima (la mínima es 0).
+     */
+    public static final int MAX_PRIORITY = 10;
+    /**
+     * Fecha de nacimiento, en días desde 1970, de los pacientes sin una fecha válida: por detrás de todas.
+     */
+    public static final int NO_DATE = Birthdate.NO_DATE;
+
+    /**
+     * Orden de los pacientes encontrados.
+     */
+    public enum Sort {
+        /** Por código SNS. */
+        SNS,
+        /** Por prioridad de triaje, de mayor a menor; los pacientes sin prioridad, al final. */
+        PRIORITY,
+        /** Por edad, del mayor al menor; los pacientes sin fecha de nacimiento válida, al final. */
+        AGE
+    }
+
+    // Valores admitidos de cada condición; nulos si la condición no filtra
+    private Set<PatientStateEnum> states;
+    private Set<PatientSexEnum> sexes;
+    private int minPriority = 0;
+    private int maxPriority = MAX_PRIORITY;
+    private boolean byPriority;
+    private String doctor;
+    private LocalDate bornFrom;
+    private LocalDate bornTo;
+    private Sort sort = Sort.SNS;
+
+    /**
+     * Admite solo los pacientes en alguno de los estados indicados.
+     *
+     * @param states Los estados
+     * @return Este filtro
+     */
+    public PatientFilter state(PatientStateEnum... states) {
+        this.states = states.length > 0 ? EnumSet.copyOf(Arrays.asList(states)) : EnumSet.noneOf(PatientStateEnum.class);
+        return this;
+    }
+
+    /**
+     * Admite solo los pacientes de alguno de los sexos indicados.
+     *
+     * @param sexes Los sexos
+     * @return Este filtro
+     */
+    public PatientFilter sex(PatientSexEnum... sexes) {
+        this.sexes = sexes.length > 0 ? EnumSet.copyOf(Arrays.asList(sexes)) : EnumSet.noneOf(PatientSexEnum.class);
+        return this;
+    }
+
+    /**
+     * Admite solo los pacientes con una prioridad de triaje en el intervalo indicado, ambos extremos incluidos.
+     *
+     * @param min La prioridad mínima
+     * @param max La prioridad máxima
+     * @return Este filtro
+     */
+    public PatientFilter priority(int min, int max) {
+        this.minPriority = Math.max(min, 0);
+        this.maxPriority = Math.min(max, MAX_PRIORITY);
+        this.byPriority = true;
+        return this;
+    }
+
+    /**
+     * Admite solo los pacientes con la prioridad de triaje indicada o mayor.
+     *
+     * @param min La prioridad mínima
+     * @return Este filtro
+     */
+    public PatientFilter minPriority(int min) {
+        return priority(min, MAX_PRIORITY);
+    }
+
+    /**
+     * Admite solo los pacientes con el médico asignado indicado, sin distinguir mayúsculas y minúsculas ni los
+     * espacios en los extremos.
+     *
+     * @param doctor El médico asignado
+     * @return Este filtro
+     */
+    public PatientFilter doctor(String doctor) {
+        this.doctor = doctor;
+        return this;
+    }
+
+    /**
+     * Admite solo los pacientes nacidos en el intervalo indicado, ambos extremos incluidos.
+     *
+     * @param from La primera fecha, o nula para no limitar el comienzo
+     * @param to La última fecha, o nula para no limitar el final
+     * @return Este filtro
+     */
+    public PatientFilter bornBetween(LocalDate from, LocalDate to) {
+        this.bornFrom = from;
+        this.bornTo = to;
+        return this;
+    }
+
+    /**
+     * Admite solo los pacientes con una edad, en años cumplidos a día de hoy, en el intervalo indicado, ambos
+     * extremos incluidos: equivale a {@link #bornBetween} con las fechas de nacimiento correspondientes.
+     *
+     * @param min La edad mínima
+     * @param max La edad máxima
+     * @return Este filtro
+     */
+    public PatientFilter ageBetween(int min, int max) {
+        return ageBetween(min, max, LocalDate.now());
+    }
+
+    /**
+     * Admite solo los pacientes con una edad, en años cumplidos en la fecha indicada, en el intervalo indicado,
+     * ambos extremos incluidos (ver {@link Birthdate#ageAt}).
+     *
+     * @param min La edad mínima
+     * @param max La edad máxima
+     * @param date La fecha en que se calcula la edad
+     * @return Este filtro
+     */
+    public PatientFilter ageBetween(int min, int max, LocalDate date) {
+        // tiene max años quien nació después del día en que cumpliría max + 1
+        return bornBetween(date.minusYears(max + 1L).plusDays(1), date.minusYears(Math.max(min, 0)));
+    }
+
+    /**
+     * Ordena los pacientes encontrados según el criterio indicado.
+     *
+     * @param sort El criterio
+     * @return Este filtro
+     */
+    public PatientFilter sortBy(Sort sort) {
+        this.sort = sort;
+        return this;
+    }
+
+    /**
+     * @return Los estados admitidos, o nulo si el filtro no es por estado
+     */
+    public Set<PatientStateEnum> getStates() {
+        return states != null ? Collections.unmodifiableSet(states) : null;
+    }
+
+    /**
+     * @return Los sexos admitidos, o nulo si el filtro no es por sexo
+     */
+    public Set<PatientSexEnum> getSexes() {
+        return sexes != null ? Collections.unmodifiableSet(sexes) : null;
+    }
+
+    /**
+     * @return Verdadero si el filtro es por prioridad de triaje
+     */
+    public boolean isByPriority() {
+        return byPriority;
+    }
+
+    public int getMinPriority() {
+        return minPriority;
+    }
+
+    public int getMaxPriority() {
+        return maxPriority;
+    }
+
+    public String getDoctor() {
+        return doctor;
+    }
+
+    public LocalDate getBornFrom() {
+        return bornFrom;
+    }
+
+    public LocalDate getBornTo() {
+        return bornTo;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * Comprueba si un paciente cumple el filtro, con los datos de su índice; solo la condición de médico asignado
+     * carga sus detalles.
+     *
+     * @param patient El paciente
+     * @return Verdadero si cumple todas las condiciones
+     */
+    @Override
+    public boolean test(ResumenPacienteModel patient) {
+
+        if(states != null && (patient.getDatosGenerales() == null || !states.contains(patient.getDatosGenerales().getState())))
+            return false;
+        if(sexes != null && !sexes.contains(patient.getPatientSex()))
+            return false;
+        Integer priority = patient.getTriajePriority();
+        if(byPriority && (priority == null || priority < minPriority || priority > maxPriority))
+            return false;
+        if(bornFrom != null || bornTo != null) {
+            int birthDay = epochDay(patient.getBirthDate());
+            if(birthDay == NO_DATE || (bornFrom != null && birthDay < bornFrom.toEpochDay())
+                    || (bornTo != null && birthDay > bornTo.toEpochDay()))
+                return false;
+        }
+        return doctor == null || (patient.getDatosClinicos() != null && PatientIndexes.textKey(doctor) != null
+                && PatientIndexes.textKey(doctor).equals(PatientIndexes.textKey(patient.getDatosClinicos().getAsignedDoctor())));
+    }
+
+    /**
+     * Orden de los pacientes encontrados, para quien recorre a los pacientes en orden de código SNS: a igualdad
+     * de criterio, conserva ese orden.
+     *
+     * @return El comparador, o nulo si el orden es por código SNS
+     */
+    public Comparator<ResumenPacienteModel> comparator() {
+        switch(sort) {
+            case PRIORITY:
+                return Comparator.comparingInt((patient) -> patient.getTriajePriority() != null
+                        && patient.getTriajePriority() >= 0 && patient.getTriajePriority() <= MAX_PRIORITY ? -patient.getTriajePriority() : 1);
+            case AGE:
+                return Comparator.comparingInt((patient) -> epochDay(patient.getBirthDate()));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fecha de nacimiento en días desde 1970.
+     *
+     * @param birthDate La fecha de nacimiento
+     * @return Los días, o {@link #NO_DATE} si la fecha no existe o está incompleta
+     */
+    static int epochDay(Birthdate birthDate) {
+        return birthDate != null ? birthDate.getEpochDay() : NO_DATE;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Mapa de pacientes por código SNS con los códigos como primitivos, para la colección de pacientes registrados en
+ * memoria: una tabla hash de direccionamiento abierto, con sondeo lineal, sobre dos arrays paralelos de códigos y
+ * de pacientes. No hay un nodo ni un {@link Long} por paciente, y las consultas por código son en tiempo constante.
+ * <p>
+ * Los recorridos (de claves, valores o entradas) siguen el orden por código SNS, como en el resto de mapas de
+ * pacientes. Para ellos se ordenan los códigos en un array la primera vez que se recorre el mapa; el array se
+ * mantiene mientras los pacientes nuevos lleguen con códigos crecientes, y se descarta si se elimina alguno o se
+ * añade uno fuera de orden, hasta el siguiente recorrido.
+ * <p>
+ * No admite pacientes nulos. Como {@link java.util.TreeMap}, no está sincronizado, y sus recorridos fallan con
+ * {@link ConcurrentModificationException} si se añaden o eliminan pacientes mientras tanto.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class PatientHashMap extends AbstractMap<Long, ResumenPacienteModel> {
+
+    private static final int MIN_CAPACITY = 16;
+    // Constante de la dispersión multiplicativa (2^64 / razón áurea), que reparte también los códigos consecutivos
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    // Código y paciente de cada hueco; el hueco está libre si su paciente es nulo
+    private long[] keys;
+    private ResumenPacienteModel[] values;
+    private int size;
+    // Bits del índice de los huecos: la capacidad es 2^bits
+    private int bits;
+    // Pacientes añadidos y eliminados, para detectar los recorridos sobre un mapa modificado
+    private int modCount;
+    // Los códigos en orden, los sortedCount primeros; nulo hasta el siguiente recorrido
+    private long[] sortedKeys;
+    private int sortedCount;
+
+    /**
+     * Crea un mapa vacío.
+     */
+    public PatientHashMap() {
+        this(0);
+    }
+
+    /**
+     * Crea un mapa vacío con capacidad para el número de pacientes indicado sin ampliar la tabla.
+     *
+     * @param expectedSize El número de pacientes previsto
+     */
+    public PatientHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Crea un mapa con los pacientes de otro.
+     *
+     * @param patients Los pacientes, por código SNS
+     */
+    public PatientHashMap(Map<Long, ? extends ResumenPacienteModel> patients) {
+        this(patients.size());
+        putAll(patients);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Paciente con el código SNS indicado, sin convertir el código en un {@link Long}.
+     *
+     * @param codeSNS El código SNS
+     * @return El paciente, o nulo si no está en el mapa
+     */
+    public ResumenPacienteModel get(long codeSNS) {
+        int slot = find(codeSNS);
+        return slot >= 0 ? values[slot] : null;
+    }
+
+    @Override
+    public ResumenPacienteModel get(Object key) {
+        return key instanceof Long ? get(((Long) key).longValue()) : null;
+    }
+
+    public boolean containsKey(long codeSNS) {
+        return find(codeSNS) >= 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && containsKey(((Long) key).longValue());
+    }
+
+    /**
+     * Añade o sustituye el paciente con el código SNS indicado.
+     *
+     * @param codeSNS El código SNS
+     * @param patient El paciente
+     * @return El paciente sustituido, o nulo si no había ninguno con ese código
+     * @throws NullPointerException Si el paciente es nulo
+     */
+    public ResumenPacienteModel put(long codeSNS, ResumenPacienteModel patient) {
+
+        Objects.requireNonNull(patient, "El mapa no admite pacientes nulos");
+        int slot = slotOf(codeSNS);
+        while(values[slot] != null) {
+            if(keys[slot] == codeSNS) {
+                ResumenPacienteModel previous = values[slot];
+                values[slot] = patient;
+                return previous;
+            }
+            slot = (slot + 1) & mask();
+        }
+
+        keys[slot] = codeSNS;
+        values[slot] = patient;
+        size++;
+        modCount++;
+        addSorted(codeSNS);
+        // se amplía al superar 3/4 de ocupación, por encima de la cual crecen rápido las secuencias de sondeo
+        if(size > values.length - (values.length >> 2))
+            allocate(values.length << 1);
+        return null;
+    }
+
+    @Override
+    public ResumenPacienteModel put(Long key, ResumenPacienteModel value) {
+        return put(key.longValue(), value);
+    }
+
+    /**
+     * Elimina el paciente con el código SNS indicado.
+     *
+     * @param codeSNS El código SNS
+     * @return El paciente eliminado, o nulo si no había ninguno con ese código
+     */
+    public ResumenPacienteModel remove(long codeSNS) {
+
+        int hole = find(codeSNS);
+        if(hole < 0)
+            return null;
+
+        ResumenPacienteModel removed = values[hole];
+        values[hole] = null;
+        size--;
+        modCount++;
+        sortedKeys = null;
+
+        // sin marcas de borrado: los pacientes siguientes de la secuencia de sondeo se desplazan al hueco si su
+        // posición inicial no queda entre el hueco y su posición actual, para que sigan siendo alcanzables
+        for(int slot = (hole + 1) & mask(); values[slot] != null; slot = (slot + 1) & mask()) {
+            if(((slot - slotOf(keys[slot])) & mask()) >= ((slot - hole) & mask())) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                values[slot] = null;
+                hole = slot;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public ResumenPacienteModel remove(Object key) {
+        return key instanceof Long ? remove(((Long) key).longValue()) : null;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+        sortedKeys = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Pacientes con un código SNS en el intervalo indicado, por búsqueda binaria en los códigos ordenados.
+     *
+     * @param fromSNS El primer código, incluido
+     * @param toSNS El último código, excluido
+     * @return Los pacientes, en orden de código SNS
+     */
+    public List<ResumenPacienteModel> valuesBetween(long fromSNS, long toSNS) {
+
+        long[] sorted = sortedKeys();
+        int from = lowerBound(sorted, sortedCount, fromSNS);
+        int to = Math.max(from, lowerBound(sorted, sortedCount, toSNS));
+        List<ResumenPacienteModel> found = new ArrayList<>(to - from);
+        for(int i = from; i < to; i++)
+            found.add(get(sorted[i]));
+        return found;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super Long, ? super ResumenPacienteModel> action) {
+
+        long[] sorted = sortedKeys();
+        int count = sortedCount;
+        int expectedModCount = modCount;
+        for(int i = 0; i < count; i++) {
+            action.accept(sorted[i], get(sorted[i]));
+            if(modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    @Override
+    public Set<Long> keySet() {
+        return new AbstractSet<Long>() {
+            @Override public int size() { return size; }
+            @Override public boolean contains(Object key) { return containsKey(key); }
+            @Override public boolean remove(Object key) { return PatientHashMap.this.remove(key) != null; }
+            @Override public Iterator<Long> iterator() {
+                return new OrderedIterator<Long>() {
+                    @Override Long element(long key, ResumenPacienteModel value) { return key; }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Collection<ResumenPacienteModel> values() {
+        return new AbstractCollection<ResumenPacienteModel>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<ResumenPacienteModel> iterator() {
+                return new OrderedIterator<ResumenPacienteModel>() {
+                    @Override ResumenPacienteModel element(long key, ResumenPacienteModel value) { return value; }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<Long, ResumenPacienteModel>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, ResumenPacienteModel>>() {
+            @Override public int size() { return size; }
+            @Override public Iterator<Map.Entry<Long, ResumenPacienteModel>> iterator() {
+                return new OrderedIterator<Map.Entry<Long, ResumenPacienteModel>>() {
+                    @Override Map.Entry<Long, ResumenPacienteModel> element(long key, ResumenPacienteModel value) {
+                        return new PatientEntry(key, value);
+                    }
+                };
+            }
+        };
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return El hueco del código indicado, o -1 si no está en el mapa
+     */
+    private int find(long codeSNS) {
+
+        for(int slot = slotOf(codeSNS); values[slot] != null; slot = (slot + 1) & mask())
+            if(keys[slot] == codeSNS)
+                return slot;
+        return -1;
+    }
+
+    private int slotOf(long codeSNS) {
+        return (int) ((codeSNS * HASH_MULTIPLIER) >>> (64 - bits));
+    }
+
+    private int mask() {
+        return values.length - 1;
+    }
+
+    /**
+     * Crea una tabla con la capacidad indicada, una potencia de 2, y pasa a ella los pacientes de la actual.
+     */
+    private void allocate(int capacity) {
+
+        long[] oldKeys = keys;
+        ResumenPacienteModel[] oldValues = values;
+        keys = new long[capacity];
+        values = new ResumenPacienteModel[capacity];
+        bits = Integer.numberOfTrailingZeros(capacity);
+        if(oldValues == null)
+            return;
+
+        for(int i = 0; i < oldValues.length; i++) {
+            if(oldValues[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                while(values[slot] != null)
+                    slot = (slot + 1) & mask();
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int capacityFor(int expectedSize) {
+        // la menor potencia de 2 que deja la ocupación por debajo de 3/4
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 4 / 3 + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+
+    /**
+     * Los códigos en orden, ordenándolos si el array se había descartado.
+     */
+    private long[] sortedKeys() {
+
+        if(sortedKeys == null) {
+            long[] sorted = new long[Math.max(MIN_CAPACITY, size)];
+            int count = 0;
+            for(int i = 0; i < values.length; i++)
+                if(values[i] != null)
+                    sorted[count++] = keys[i];
+            Arrays.parallelSort(sorted, 0, count);
+            sortedCount = count;
+            sortedKeys = sorted;
+        }
+        return sortedKeys;
+    }
+
+    /**
+     * Añade un código nuevo al array ordenado, si lo hay y el código es mayor que todos; si no, lo descarta.
+     */
+    private void addSorted(long codeSNS) {
+
+        if(sortedKeys == null)
+            return;
+        if(sortedCount > 0 && codeSNS <= sortedKeys[sortedCount - 1]) {
+            sortedKeys = null;
+            return;
+        }
+        if(sortedCount == sortedKeys.length)
+            sortedKeys = Arrays.copyOf(sortedKeys, sortedCount << 1);
+        sortedKeys[sortedCount++] = codeSNS;
+    }
+
+    private static int lowerBound(long[] sorted, int count, long key) {
+        int position = Arrays.binarySearch(sorted, 0, count, key);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Recorrido de los pacientes en orden de código SNS, sobre los códigos ordenados al comenzarlo.
+     */
+    private abstract class OrderedIterator<T> implements Iterator<T> {
+
+        private final long[] sorted = sortedKeys();
+        private final int count = sortedCount;
+        private int next;
+        private int expectedModCount = modCount;
+        // Posición del último elemento devuelto, para remove(); -1 si no hay ninguno
+        private int last = -1;
+
+        abstract T element(long key, ResumenPacienteModel value);
+
+        @Override
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        @Override
+        public T next() {
+
+            if(modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if(next >= count)
+                throw new NoSuchElementException();
+            last = next++;
+            return element(sorted[last], get(sorted[last]));
+        }
+
+        @Override
+        public void remove() {
+
+            if(last < 0)
+                throw new IllegalStateException();
+            if(modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            // el recorrido sigue sobre su propia copia de los códigos ordenados
+            PatientHashMap.this.remove(sorted[last]);
+            expectedModCount = modCount;
+            last = -1;
+        }
+    }
+
+    /**
+     * Entrada del mapa, que al asignarle un paciente lo sustituye en el mapa.
+     */
+    private final class PatientEntry extends SimpleEntry<Long, ResumenPacienteModel> {
+
+        private static final long serialVersionUID = 1L;
+
+        PatientEntry(long key, ResumenPacienteModel value) {
+            super(key, value);
+        }
+
+        @Override
+        public ResumenPacienteModel setValue(ResumenPacienteModel value) {
+            put(getKey().longValue(), value);
+            return super.setValue(value);
+        }
+    }
+}
\ No newline at end of file
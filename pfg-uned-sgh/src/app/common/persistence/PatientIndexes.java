@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Índices secundarios de los pacientes respaldados en disco, cada uno un {@link SecondaryIndex} en su propio
+ * fichero junto a la instantánea: por DNI ("base.dni.sidx"), apellidos ("base.surname.sidx"), estado
+ * ("base.state.sidx") y médico asignado ("base.doctor.sidx").
+ * <p>
+ * Las búsquedas por texto no distinguen mayúsculas y minúsculas, ni los espacios en los extremos (ver
+ * {@link #textKey(String)}). El índice del médico asignado es el más costoso de reconstruir, ya que exige leer
+ * los datos clínicos de todos los pacientes; por eso cada índice se comprueba y, si hace falta, se reconstruye
+ * por separado.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientIndexes {
+
+    private static final Logger L = Logger.getLogger(PatientIndexes.class.getName());
+
+    private final SecondaryIndex dni;
+    private final SecondaryIndex surname;
+    private final SecondaryIndex state;
+    private final SecondaryIndex doctor;
+    private final List<SecondaryIndex> all;
+
+    /**
+     * Crea los índices junto a los ficheros de la instantánea indicada, sin abrirlos todavía.
+     *
+     * @param snapshot La instantánea
+     */
+    public PatientIndexes(ShardedSnapshot snapshot) {
+
+        dni = new SecondaryIndex("DNI", snapshot.siblingFile(".dni.sidx"), DatoGeneralesModel.class,
+                (patient) -> patient.getDatosGenerales() != null ? dniKey(patient.getDatosGenerales().getDni()) : null);
+        surname = new SecondaryIndex("apellidos", snapshot.siblingFile(".surname.sidx"), DatoGeneralesModel.class,
+                (patient) -> patient.getDatosGenerales() != null ? textKey(patient.getDatosGenerales().getSurname()) : null);
+        state = new SecondaryIndex("estado", snapshot.siblingFile(".state.sidx"), DatoGeneralesModel.class,
+                (patient) -> patient.getDatosGenerales() != null ? stateKey(patient.getDatosGenerales().getState()) : null);
+        doctor = new SecondaryIndex("médico asignado", snapshot.siblingFile(".doctor.sidx"), DatosClinicosModel.class,
+                (patient) -> patient.getDatosClinicos() != null ? textKey(patient.getDatosClinicos().getAsignedDoctor()) : null);
+        all = Arrays.asList(dni, surname, state, doctor);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Abre los índices que corresponden a la instantánea indicada, y reconstruye el resto a partir de los
+     * pacientes. Un índice que no se puede reconstruir queda cerrado, y sus búsquedas recorren los pacientes.
+     *
+     * @param stamp La marca de la instantánea leída
+     * @param patients Todos los pacientes registrados, ya aplicado el diario
+     * @param replayed Los pacientes modificados por el diario desde la instantánea
+     */
+    public void load(long stamp, Iterable<ResumenPacienteModel> patients, Collection<ResumenPacienteModel> replayed) {
+
+        for(SecondaryIndex index : all)
+            try {
+                if(index.open(stamp))
+                    replayed.forEach(index::update);
+                else {
+                    // desfasado o dañado: se reconstruye solo este índice
+                    L.log(Level.INFO, "Se reconstruye el índice de pacientes por {0}", index.getName());
+                    index.rebuild(patients, stamp);
+                } }
+            catch(IOException ioe) {
+                L.log(Level.WARNING, "No se ha podido abrir el índice de pacientes por " + index.getName(), ioe); }
+    }
+
+    /**
+     * Registra en los índices afectados la clave actual de un paciente, tras guardar una de sus secciones.
+     *
+     * @param patient El paciente
+     * @param section La sección guardada
+     */
+    public void update(ResumenPacienteModel patient, SeccionPacienteModel section) {
+
+        for(SecondaryIndex index : all)
+            if(index.isOpen() && index.indexes(section))
+                index.update(patient);
+    }
+
+    /**
+     * Consolida los cambios de cada índice con la instantánea recién escrita. Un índice que no se puede escribir
+     * se reconstruye en el siguiente arranque.
+     *
+     * @param stamp La marca de la instantánea recién escrita
+     */
+    public void write(long stamp) {
+
+        for(SecondaryIndex index : all)
+            try {
+                index.write(stamp); }
+            catch(IOException ioe) {
+                L.log(Level.WARNING, "No se ha podido escribir el índice de pacientes por " + index.getName(), ioe); }
+    }
+
+    /**
+     * Busca los pacientes con el DNI indicado: uno solo, salvo en las bases de datos anteriores a la comprobación
+     * de DNI repetidos.
+     *
+     * @param value El DNI
+     * @return Los códigos SNS de los pacientes, en orden, o nulo si el índice no está disponible
+     */
+    public List<Long> findByDNI(DNI value) {
+        return find(dni, dniKey(value));
+    }
+
+    /**
+     * Busca los pacientes con los apellidos indicados, sin distinguir mayúsculas y minúsculas.
+     *
+     * @param value Los apellidos
+     * @return Los códigos SNS de los pacientes, en orden, o nulo si el índice no está disponible
+     */
+    public List<Long> findBySurname(String value) {
+        return find(surname, textKey(value));
+    }
+
+    /**
+     * Busca los pacientes en el estado indicado.
+     *
+     * @param value El estado
+     * @return Los códigos SNS de los pacientes, en orden, o nulo si el índice no está disponible
+     */
+    public List<Long> findByState(PatientStateEnum value) {
+        return find(state, stateKey(value));
+    }
+
+    /**
+     * Busca los pacientes con el médico asignado indicado, sin distinguir mayúsculas y minúsculas.
+     *
+     * @param value El médico asignado
+     * @return Los códigos SNS de los pacientes, en orden, o nulo si el índice no está disponible
+     */
+    public List<Long> findByAssignedDoctor(String value) {
+        return find(doctor, textKey(value));
+    }
+
+    /**
+     * Recorre el índice por médico asignado.
+     *
+     * @param action La acción a realizar con cada médico, ya normalizado (ver {@link #textKey(String)}), y el
+     * código SNS de cada uno de sus pacientes
+     * @return Verdadero si el índice está disponible; si no, no se recorre nada
+     */
+    public boolean forEachAssignedDoctor(BiConsumer<String, Long> action) {
+
+        if(!doctor.isOpen())
+            return false;
+        doctor.forEach(action);
+        return true;
+    }
+
+    /**
+     * Clave de un DNI en el índice.
+     *
+     * @param value El DNI
+     * @return La clave, o nula si el DNI no tiene dígitos
+     */
+    public static String dniKey(DNI value) {
+        return value != null && value.getDigits() != null ? String.format("%08d%c", value.getDigits(), value.getLetter()) : null;
+    }
+
+    /**
+     * Clave de un texto en los índices: sin espacios en los extremos y en minúsculas.
+     *
+     * @param value El texto
+     * @return La clave, o nula si el texto es nulo o está vacío
+     */
+    public static String textKey(String value) {
+        return value != null && !value.trim().isEmpty() ? value.trim().toLowerCase(Locale.ROOT) : null;
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private static String stateKey(PatientStateEnum value) {
+        return value != null ? value.name() : null;
+    }
+
+    private static List<Long> find(SecondaryIndex index, String key) {
+        return index.isOpen() ? index.find(key) : null;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Repositorio de pacientes: el acceso de la aplicación a los pacientes registrados, independiente del
+ * motor de almacenamiento que los mantenga. Los recorridos siguen el orden por código SNS.
+ * <p>
+ * Implementaciones: {@link InMemoryPatientRepository}, sobre un mapa en memoria, {@link FilePatientRepository},
+ * que además persiste los cambios en la instantánea y el diario en disco, y {@link JdbcPatientRepository},
+ * sobre una base de datos SQL embebida.
+ *
+ * @author Alberto Bausá Cano
+ */
+public interface PatientRepository extends Iterable<ResumenPacienteModel> {
+
+    /**
+     * Busca un paciente por su código SNS.
+     *
+     * @param codeSNS El código SNS
+     * @return El paciente, o nulo si no está registrado
+     */
+    ResumenPacienteModel findBySNS(long codeSNS);
+
+    /**
+     * Busca un paciente por su DNI.
+     *
+     * @param dni El DNI
+     * @return El paciente, o nulo si no hay ninguno con ese DNI
+     */
+    ResumenPacienteModel findByDNI(DNI dni);
+
+    /**
+     * Busca los pacientes con los apellidos indicados, sin distinguir mayúsculas y minúsculas ni los espacios
+     * en los extremos.
+     *
+     * @param surname Los apellidos
+     * @return Los pacientes encontrados, en orden de código SNS
+     */
+    List<ResumenPacienteModel> findBySurname(String surname);
+
+    /**
+     * Busca los pacientes en el estado indicado.
+     *
+     * @param state El estado
+     * @return Los pacientes encontrados, en orden de código SNS
+     */
+    List<ResumenPacienteModel> findByState(PatientStateEnum state);
+
+    /**
+     * Busca los pacientes con el médico asignado indicado, sin distinguir mayúsculas y minúsculas ni los
+     * espacios en los extremos.
+     *
+     * @param doctor El médico asignado
+     * @return Los pacientes encontrados, en orden de código SNS
+     */
+    List<ResumenPacienteModel> findByAssignedDoctor(String doctor);
+
+    /**
+     * Busca los pacientes cuyo código SNS está en el intervalo indicado.
+     *
+     * @param fromSNS El primer código SNS del intervalo (incluido)
+     * @param toSNS El último código SNS del intervalo (excluido)
+     * @return Los pacientes del intervalo, en orden de código SNS
+     */
+    List<ResumenPacienteModel> findRange(long fromSNS, long toSNS);
+
+    /**
+     * Busca los pacientes que cumplen un filtro combinado (ver {@link PatientFilter}). Por defecto se recorren
+     * los pacientes.
+     *
+     * @param filter El filtro
+     * @return Los pacientes encontrados, en el orden del filtro
+     */
+    default List<ResumenPacienteModel> findByFilter(PatientFilter filter) {
+        Stream<ResumenPacienteModel> found = stream().filter(filter);
+        return (filter.comparator() != null ? found.sorted(filter.comparator()) : found).collect(Collectors.toList());
+    }
+
+    /**
+     * Cuenta los pacientes que cumplen un filtro combinado (ver {@link PatientFilter}). Por defecto se recorren
+     * los pacientes.
+     *
+     * @param filter El filtro
+     * @return El número de pacientes
+     */
+    default int countByFilter(PatientFilter filter) {
+        return (int) stream().filter(filter).count();
+    }
+
+    /**
+     * Busca los pacientes para la búsqueda mientras se escribe: cada palabra de la consulta debe coincidir,
+     * entera, como comienzo o con alguna errata, con el nombre o alguno de los apellidos del paciente, sin
+     * distinguir mayúsculas, minúsculas ni tildes, o con su código SNS o su DNI (ver {@link PatientSearchIndex}).
+     * Por defecto se recorren los pacientes.
+     *
+     * @param query La consulta
+     * @param limit El número máximo de pacientes a devolver
+     * @return Los pacientes más relevantes, en orden de relevancia y a igualdad de código SNS; ninguno si la
+     * consulta está vacía
+     */
+    default List<ResumenPacienteModel> search(String query, int limit) {
+        return PatientSearchIndex.scan(this, query, limit);
+    }
+
+    /**
+     * Cola de los pacientes por urgencia: por prioridad de triaje, de mayor a menor, y a igualdad por orden de
+     * llegada (ver {@link TriageQueue}). Por defecto se construye a partir de los pacientes actuales, y no sigue
+     * los cambios posteriores.
+     *
+     * @return La cola de pacientes
+     */
+    default TriageQueue triageQueue() {
+        return new TriageQueue(this, this::findBySNS);
+    }
+
+    /**
+     * Registra el paciente, si no lo estaba, y guarda sus cambios pendientes.
+     *
+     * @param patient El paciente, con sus datos generales (y su código SNS) asignados
+     * @throws IllegalArgumentException Si el repositorio rechaza el paciente nuevo (p.ej. porque su DNI ya está
+     * registrado para otro paciente); en tal caso no se registra
+     */
+    void save(ResumenPacienteModel patient);
+
+    /**
+     * Registra y guarda varios pacientes, como {@link #save} con cada uno de ellos.
+     *
+     * @param patients Los pacientes
+     */
+    void saveAll(Collection<ResumenPacienteModel> patients);
+
+    /**
+     * Guarda una sección de paciente recién modificada, si tiene cambios pendientes. Por defecto se
+     * guarda el paciente completo al que pertenece; si no está registrado no se guarda nada.
+     *
+     * @param section La sección del paciente
+     */
+    default void saveSection(SeccionPacienteModel section) {
+
+        ResumenPacienteModel patient = section.getCodeSNS() != null ? findBySNS(section.getCodeSNS()) : null;
+        if(patient != null && section.isDirty())
+            save(patient);
+    }
+
+    /**
+     * Guarda a la vez varias secciones recién modificadas (p.ej. las de un mismo guardado de la ficha del
+     * paciente), como {@link #saveSection} con cada una de ellas. Los repositorios que lo permiten las
+     * persisten juntas, en una sola escritura.
+     *
+     * @param sections Las secciones de paciente
+     */
+    default void saveSections(Collection<? extends SeccionPacienteModel> sections) {
+        sections.forEach(this::saveSection);
+    }
+
+    /**
+     * Guarda los cambios pendientes de todos los pacientes en memoria. Por defecto no hace nada,
+     * para los repositorios que no persisten sus pacientes.
+     */
+    default void flush() { }
+
+    /**
+     * Recorre todos los pacientes registrados, en orden de código SNS.
+     *
+     * @return El flujo de pacientes
+     */
+    Stream<ResumenPacienteModel> stream();
+
+    /**
+     * Número de pacientes registrados.
+     *
+     * @return El número de pacientes
+     */
+    int size();
+}
\ No newline at end of file
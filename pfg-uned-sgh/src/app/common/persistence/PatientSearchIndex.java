@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Índice de búsqueda de los pacientes, para la búsqueda mientras se escribe de los menús: cada palabra de la
+ * consulta debe coincidir con el nombre o alguno de los apellidos del paciente, o, si es numérica, con su código
+ * SNS o los dígitos de su DNI (con la letra, el DNI completo). Una palabra coincide con otra igual, con las que
+ * empiezan por ella y, a partir de {@value #MIN_FUZZY_LENGTH} letras, con las que están a una distancia de edición
+ * de 1, o de 2 a partir de {@value #MIN_FUZZY_LENGTH_2} letras (cambiar, añadir, quitar o intercambiar letras
+ * contiguas), para tolerar las erratas. Las búsquedas no distinguen mayúsculas, minúsculas ni tildes
+ * (ver {@link #normalize(String)}).
+ * <p>
+ * Los resultados se ordenan por relevancia: cada palabra puntúa según el modo en que coincide (igual, como
+ * comienzo, o a distancia 1 o 2), y los pacientes se ordenan por la suma, y a igualdad, por código SNS.
+ * <p>
+ * El índice se construye en memoria a partir de los pacientes, como tablas ordenadas sobre las que se busca por
+ * bisección: las palabras distintas de nombres y apellidos, ya normalizadas, cada una con los pacientes que la
+ * contienen, y los códigos SNS y los DNI como números. Un prefijo es así un intervalo de cada tabla, de forma que
+ * el coste de una búsqueda depende de los pacientes que coinciden, y no del total. Las palabras a distancia de
+ * edición se buscan a través de sus trigramas: solo se calcula la distancia a las palabras que comparten con la
+ * consulta los trigramas suficientes para estar a esa distancia. En las tablas, cada paciente se identifica por
+ * su posición en orden de código SNS.
+ * <p>
+ * Los pacientes guardados después de construirlo se mantienen aparte, y prevalecen sobre las tablas. Cuando son
+ * demasiados, el índice queda desfasado ({@link #isStale()}) y debe reconstruirse.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientSearchIndex {
+
+    /**
+     * Letras a partir de las cuales una palabra de la consulta coincide también con las que están a distancia
+     * de edición 1.
+     */
+    public static final int MIN_FUZZY_LENGTH = 4;
+    /**
+     * Letras a partir de las cuales una palabra de la consulta coincide también con las que están a distancia
+     * de edición 2.
+     */
+    public static final int MIN_FUZZY_LENGTH_2 = 8;
+
+    // Puntuación de cada modo de coincidencia de una palabra: igual, como comienzo, o a distancia d (PREFIX + d)
+    private static final int EXACT = 0, PREFIX = 1, MAX_SCORE = PREFIX + 2;
+    // Número de pacientes guardados tras la construcción a partir del cual el índice queda desfasado: una
+    // fracción de los indexados, con un mínimo
+    private static final int MIN_STALE_CHANGES = 1024;
+    private static final int STALE_FRACTION = 8;
+    // Máximo número de dígitos de un código SNS (el de un long) y de un DNI
+    private static final int MAX_SNS_DIGITS = 19;
+    private static final int MAX_DNI_DIGITS = 8;
+    // Relleno de las palabras para sus trigramas, de forma que el comienzo y el final cuenten
+    private static final String GRAM_START = "\u0001\u0001", GRAM_END = "\u0001";
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    // Caracteres hasta el final del alfabeto latino extendido (U+017F), ya normalizados, para normalizar sin
+    // descomponer el texto
+    private static final char[] LATIN_FOLD = new char[0x180];
+    // DNI completo en un texto normalizado, con guion entre dígitos y letra; y ya como una sola palabra, sin él
+    private static final Pattern DNI_TEXT = Pattern.compile("\\b(\\d{1,8})-([a-z])\\b");
+    private static final Pattern DNI_WORD = Pattern.compile("(\\d{1,8})([a-z])");
+    private static final Pattern NUMBER_WORD = Pattern.compile("\\d+");
+
+    static {
+        for(char c = 0; c < LATIN_FOLD.length; c++) {
+            String plain = DIACRITICS.matcher(Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD)).replaceAll("");
+            LATIN_FOLD[c] = Character.toLowerCase(plain.length() == 1 ? plain.charAt(0) : c);
+        }
+    }
+
+    // Códigos SNS de los pacientes indexados, en orden: la posición de cada uno lo identifica en el resto de tablas
+    private final long[] codes;
+    // Palabras distintas de nombres y apellidos, en orden; los pacientes de la palabra i son las posiciones
+    // postings[termStart[i]] a postings[termStart[i + 1] - 1]
+    private final String[] terms;
+    private final int[] termStart;
+    private final int[] postings;
+    // Palabras que contienen cada trigrama, por su número en la tabla de palabras
+    private final Map<String, int[]> termsByGram;
+    // DNI de los pacientes, como [dígitos << 32 | posición del paciente] y en orden, y la letra del DNI de cada paciente
+    private final long[] dnis;
+    private final char[] dniLetters;
+
+    // Pacientes guardados tras la construcción: <codeSNS, sus datos de búsqueda>, y las posiciones de los indexados
+    private final Map<Long, Entry> changed = new HashMap<>();
+    private final BitSet changedPositions = new BitSet();
+
+    /**
+     * Construye el índice a partir de los pacientes indicados.
+     *
+     * @param patients Todos los pacientes registrados, en orden de código SNS
+     * @throws IllegalArgumentException Si los pacientes no están en orden de código SNS
+     */
+    public PatientSearchIndex(Iterable<ResumenPacienteModel> patients) {
+
+        LongStream.Builder codeBuilder = LongStream.builder();
+        LongStream.Builder dniBuilder = LongStream.builder();
+        StringBuilder letters = new StringBuilder();
+        Map<String, IntStream.Builder> byTerm = new HashMap<>();
+
+        int position = 0;
+        long previous = Long.MIN_VALUE;
+        for(ResumenPacienteModel patient : patients) {
+            DatoGeneralesModel generales = patient.getDatosGenerales();
+            if(generales == null || generales.getCodeSNS() == null)
+                continue;
+            if(position > 0 && generales.getCodeSNS() <= previous)
+                throw new IllegalArgumentException("Los pacientes deben recorrerse en orden de código SNS");
+            previous = generales.getCodeSNS();
+
+            codeBuilder.add(previous);
+            for(String term : termsOf(generales))
+                byTerm.computeIfAbsent(term, (key) -> IntStream.builder()).add(position);
+            DNI dni = generales.getDni();
+            if(dni != null && dni.getDigits() != null && dni.getDigits() >= 0)
+                dniBuilder.add((long) dni.getDigits() << 32 | position);
+            letters.append(dni != null ? Character.toLowerCase(dni.getLetter()) : '\0');
+            position++;
+        }
+
+        codes = codeBuilder.build().toArray();
+        dnis = dniBuilder.build().sorted().toArray();
+        dniLetters = letters.toString().toCharArray();
+
+        terms = byTerm.keySet().toArray(new String[byTerm.size()]);
+        Arrays.sort(terms);
+        termStart = new int[terms.length + 1];
+        List<int[]> postingsOfTerm = new ArrayList<>(terms.length);
+        Map<String, IntStream.Builder> byGram = new HashMap<>();
+        for(int i = 0; i < terms.length; i++) {
+            postingsOfTerm.add(byTerm.remove(terms[i]).build().toArray());
+            termStart[i + 1] = termStart[i] + postingsOfTerm.get(i).length;
+            int term = i;
+            for(String gram : gramsOf(terms[i]))
+                byGram.computeIfAbsent(gram, (key) -> IntStream.builder()).add(term);
+        }
+        postings = new int[termStart[terms.length]];
+        for(int i = 0; i < terms.length; i++)
+            System.arraycopy(postingsOfTerm.get(i), 0, postings, termStart[i], postingsOfTerm.get(i).length);
+        termsByGram = new HashMap<>(byGram.size() * 4 / 3 + 1);
+        byGram.forEach((gram, builder) -> termsByGram.put(gram, builder.build().toArray()));
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Busca los pacientes que coinciden con todas las palabras de la consulta.
+     *
+     * @param query La consulta, tal cual la escribe el usuario
+     * @param limit El número máximo de resultados
+     * @return Los códigos SNS de los pacientes más relevantes, en orden de relevancia; ninguno si la consulta
+     * está vacía
+     */
+    public synchronized List<Long> search(String query, int limit) {
+
+        List<String> words = words(query);
+        if(words.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+
+        // posiciones que coinciden con cada palabra, por puntuación; las que coinciden con todas; y la mejor
+        // puntuación posible
+        List<BitSet[]> scores = new ArrayList<>(words.size());
+        BitSet matches = null;
+        int bestScore = 0;
+        for(String word : words) {
+            BitSet[] byScore = positionsOf(word);
+            BitSet any = new BitSet(codes.length);
+            for(BitSet positions : byScore)
+                any.or(positions);
+            for(int score = 0; score < byScore.length; score++)
+                if(!byScore[score].isEmpty()) {
+                    bestScore += score;
+                    break;
+                }
+            scores.add(byScore);
+            if(matches == null)
+                matches = any;
+            else
+                matches.and(any);
+            if(matches.isEmpty())
+                break;
+        }
+        matches.andNot(changedPositions);
+
+        // las posiciones siguen el orden de código SNS: con los resultados completos y todos con la mejor
+        // puntuación, los siguientes ya no pueden entrar
+        Ranking ranking = new Ranking(limit);
+        for(int i = matches.nextSetBit(0); i >= 0 && !ranking.isFull(bestScore); i = matches.nextSetBit(i + 1)) {
+            int score = 0;
+            for(BitSet[] byScore : scores)
+                score += scoreOf(byScore, i);
+            ranking.offer(score, codes[i]);
+        }
+        // y los pacientes guardados después
+        changed.forEach((codeSNS, entry) -> {
+            int score = entry.score(words);
+            if(score >= 0)
+                ranking.offer(score, codeSNS); });
+        return ranking.codes();
+    }
+
+    /**
+     * Registra los datos de búsqueda actuales de un paciente recién guardado.
+     *
+     * @param patient El paciente
+     */
+    public synchronized void update(ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        if(generales == null || generales.getCodeSNS() == null)
+            return;
+        changed.put(generales.getCodeSNS(), new Entry(generales));
+        int position = Arrays.binarySearch(codes, generales.getCodeSNS());
+        if(position >= 0)
+            changedPositions.set(position);
+    }
+
+    /**
+     * Indica si se han guardado demasiados pacientes desde la construcción del índice, y conviene reconstruirlo.
+     *
+     * @return Verdadero si el índice debe reconstruirse
+     */
+    public synchronized boolean isStale() {
+        return changed.size() > Math.max(MIN_STALE_CHANGES, codes.length / STALE_FRACTION);
+    }
+
+    /**
+     * Búsqueda equivalente a la del índice, recorriendo los pacientes sin construirlo.
+     *
+     * @param patients Los pacientes entre los que buscar
+     * @param query La consulta
+     * @param limit El número máximo de resultados
+     * @return Los pacientes más relevantes, en orden de relevancia; ninguno si la consulta está vacía
+     */
+    public static List<ResumenPacienteModel> scan(Iterable<ResumenPacienteModel> patients, String query, int limit) {
+
+        List<String> words = words(query);
+        if(words.isEmpty() || limit <= 0)
+            return new ArrayList<>();
+
+        Map<Long, ResumenPacienteModel> found = new HashMap<>();
+        Ranking ranking = new Ranking(limit);
+        for(ResumenPacienteModel patient : patients) {
+            DatoGeneralesModel generales = patient.getDatosGenerales();
+            if(generales == null || generales.getCodeSNS() == null)
+                continue;
+            int score = new Entry(generales).score(words);
+            if(score >= 0 && ranking.offer(score, generales.getCodeSNS()))
+                found.put(generales.getCodeSNS(), patient);
+        }
+        return ranking.codes().stream().map(found::get).collect(Collectors.toList());
+    }
+
+    /**
+     * Normaliza un texto para la búsqueda: sin tildes ni otros diacríticos, y en minúsculas.
+     *
+     * @param text El texto
+     * @return El texto normalizado
+     */
+    public static String normalize(String text) {
+
+        char[] normalized = new char[text.length()];
+        for(int i = 0; i < normalized.length; i++) {
+            char c = text.charAt(i);
+            if(c >= LATIN_FOLD.length)
+                // fuera del alfabeto latino, se descompone el texto completo
+                return DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+            normalized[i] = LATIN_FOLD[c];
+        }
+        return new String(normalized);
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private BitSet[] positionsOf(String word) {
+
+        BitSet[] byScore = new BitSet[MAX_SCORE + 1];
+        for(int score = 0; score <= MAX_SCORE; score++)
+            byScore[score] = new BitSet(codes.length);
+
+        Matcher dni = DNI_WORD.matcher(word);
+        if(dni.matches()) {
+            // DNI completo: los dígitos exactos y la letra
+            long digits = Long.parseLong(dni.group(1));
+            for(int i = lowerBound(dnis, digits << 32), end = lowerBound(dnis, (digits + 1) << 32); i < end; i++)
+                if(dniLetters[(int) dnis[i]] == dni.group(2).charAt(0))
+                    byScore[EXACT].set((int) dnis[i]);
+        }
+        else if(NUMBER_WORD.matcher(word).matches()) {
+            // el primer intervalo de cada número es el propio número
+            List<long[]> ranges = numberRanges(word, MAX_SNS_DIGITS);
+            for(int r = 0; r < ranges.size(); r++)
+                byScore[r == 0 ? EXACT : PREFIX].set(lowerBound(codes, ranges.get(r)[0]), lowerBound(codes, ranges.get(r)[1]));
+            ranges = numberRanges(word, MAX_DNI_DIGITS);
+            for(int r = 0; r < ranges.size(); r++)
+                for(int i = lowerBound(dnis, ranges.get(r)[0] << 32), end = lowerBound(dnis, ranges.get(r)[1] << 32); i < end; i++)
+                    byScore[r == 0 ? EXACT : PREFIX].set((int) dnis[i]);
+        }
+        else {
+            // las palabras con el prefijo forman un intervalo de la tabla ordenada, que empieza por la propia palabra
+            for(int term = lowerBound(terms, word), end = lowerBound(terms, word + Character.MAX_VALUE); term < end; term++)
+                setPostings(byScore[terms[term].equals(word) ? EXACT : PREFIX], term);
+            int maxDistance = maxDistance(word);
+            if(maxDistance > 0)
+                for(Map.Entry<Integer, Integer> fuzzy : fuzzyTerms(word, maxDistance).entrySet())
+                    setPostings(byScore[PREFIX + fuzzy.getValue()], fuzzy.getKey());
+        }
+
+        // cada posición cuenta solo con su mejor puntuación
+        for(int score = 1; score <= MAX_SCORE; score++)
+            for(int better = 0; better < score; better++)
+                byScore[score].andNot(byScore[better]);
+        return byScore;
+    }
+
+    private void setPostings(BitSet positions, int term) {
+        for(int i = termStart[term]; i < termStart[term + 1]; i++)
+            positions.set(postings[i]);
+    }
+
+    /**
+     * Palabras del índice, por su número, a la distancia de edición indicada como máximo (y mayor que cero), con
+     * su distancia. Solo se calcula la distancia a las que comparten con la palabra suficientes trigramas: cada
+     * edición altera como mucho 4 de ellos (3 al cambiar, añadir o quitar una letra, y 4 al intercambiar dos
+     * contiguas).
+     */
+    private Map<Integer, Integer> fuzzyTerms(String word, int maxDistance) {
+
+        Set<String> grams = gramsOf(word);
+        int minShared = grams.size() - 4 * maxDistance;
+        Map<Integer, Integer> shared = new HashMap<>();
+        for(String gram : grams)
+            for(int term : termsByGram.getOrDefault(gram, new int[0]))
+                shared.merge(term, 1, Integer::sum);
+
+        Map<Integer, Integer> found = new HashMap<>();
+        shared.forEach((term, count) -> {
+            if(count >= minShared) {
+                int distance = distance(word, terms[term], maxDistance);
+                if(distance > 0 && distance <= maxDistance)
+                    found.put(term, distance);
+            } });
+        return found;
+    }
+
+    private static int scoreOf(BitSet[] byScore, int position) {
+        for(int score = 0; score < byScore.length; score++)
+            if(byScore[score].get(position))
+                return score;
+        return -1;
+    }
+
+    private static int maxDistance(String word) {
+        return word.length() >= MIN_FUZZY_LENGTH_2 ? 2 : word.length() >= MIN_FUZZY_LENGTH ? 1 : 0;
+    }
+
+    /**
+     * Distancia de edición entre dos palabras, contando como una edición cambiar, añadir o quitar una letra, o
+     * intercambiar dos contiguas. Se deja de calcular en cuanto supera el máximo.
+     *
+     * @return La distancia, o una cualquiera mayor que el máximo si lo supera
+     */
+    private static int distance(String a, String b, int max) {
+
+        if(Math.abs(a.length() - b.length()) > max)
+            return max + 1;
+
+        int[] beforePrevious = new int[b.length() + 1], previous = new int[b.length() + 1], current = new int[b.length() + 1];
+        for(int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+        for(int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for(int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if(i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+                    current[j] = Math.min(current[j], beforePrevious[j - 2] + 1);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if(rowMin > max)
+                return max + 1;
+            int[] recycled = beforePrevious;
+            beforePrevious = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+
+    private static Set<String> gramsOf(String word) {
+
+        String padded = GRAM_START + word + GRAM_END;
+        Set<String> grams = new LinkedHashSet<>();
+        for(int i = 0; i + 3 <= padded.length(); i++)
+            grams.add(padded.substring(i, i + 3));
+        return grams;
+    }
+
+    /**
+     * Intervalos [desde, hasta) de los números que empiezan por los dígitos indicados: uno por cada número de
+     * dígitos posible, hasta el máximo, empezando por el del propio número.
+     */
+    private static List<long[]> numberRanges(String digits, int maxDigits) {
+
+        List<long[]> ranges = new ArrayList<>();
+        // ningún número escrito sin ceros a la izquierda empieza por cero, salvo el propio cero
+        if(digits.length() > maxDigits || (digits.length() > 1 && digits.charAt(0) == '0'))
+            return ranges;
+
+        long from;
+        try {
+            from = Long.parseLong(digits); }
+        catch(NumberFormatException nfe) {
+            // mayor que cualquier código SNS
+            return ranges; }
+        long to = from < Long.MAX_VALUE ? from + 1 : from;
+        for(int length = digits.length(); length <= maxDigits; length++) {
+            ranges.add(new long[] { from, to });
+            if(from == 0 || to > Long.MAX_VALUE / 10)
+                break;
+            from *= 10;
+            to *= 10;
+        }
+        return ranges;
+    }
+
+    private static List<String> words(String text) {
+
+        if(text == null)
+            return Collections.emptyList();
+        // el DNI completo cuenta como una sola palabra
+        String normalized = normalize(text);
+        if(normalized.indexOf('-') >= 0)
+            normalized = DNI_TEXT.matcher(normalized).replaceAll("$1$2");
+
+        // las palabras se separan por todo lo que no sea letra o dígito
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for(int i = 0; i <= normalized.length(); i++) {
+            boolean inWord = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if(inWord && start < 0)
+                start = i;
+            else if(!inWord && start >= 0) {
+                words.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return new ArrayList<>(words);
+    }
+
+    private static Set<String> termsOf(DatoGeneralesModel generales) {
+
+        Set<String> terms = new LinkedHashSet<>(words(generales.getName()));
+        terms.addAll(words(generales.getSurname()));
+        return terms;
+    }
+
+    private static int lowerBound(long[] values, long key) {
+
+        int low = 0, high = values.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(values[middle] < key)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    private static int lowerBound(String[] values, String key) {
+
+        int low = 0, high = values.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(values[middle].compareTo(key) < 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Los resultados más relevantes de una búsqueda: menor puntuación y, a igualdad, menor código SNS.
+     */
+    private static final class Ranking {
+
+        private static final Comparator<long[]> ORDER = Comparator.<long[]>comparingLong((result) -> result[0])
+                .thenComparingLong((result) -> result[1]);
+
+        private final int limit;
+        // los resultados retenidos, [puntuación, codeSNS], con el peor en la cabeza
+        private final PriorityQueue<long[]> best;
+
+        private Ranking(int limit) {
+            this.limit = limit;
+            this.best = new PriorityQueue<>(limit, ORDER.reversed());
+        }
+
+        private boolean offer(int score, long codeSNS) {
+
+            long[] result = { score, codeSNS };
+            if(best.size() == limit) {
+                if(ORDER.compare(result, best.peek()) >= 0)
+                    return false;
+                best.poll();
+            }
+            best.add(result);
+            return true;
+        }
+
+        private boolean isFull(int bestScore) {
+            return best.size() == limit && best.peek()[0] <= bestScore;
+        }
+
+        private List<Long> codes() {
+            List<long[]> ranked = new ArrayList<>(best);
+            ranked.sort(ORDER);
+            return ranked.stream().map((result) -> result[1]).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Datos de búsqueda de un paciente, con sus palabras ya normalizadas, para puntuarlo sin pasar por las tablas.
+     */
+    private static final class Entry {
+
+        private final String codeSNS;
+        private final String dniDigits;
+        private final char dniLetter;
+        private final Set<String> terms;
+
+        private Entry(DatoGeneralesModel generales) {
+            DNI dni = generales.getDni();
+            codeSNS = generales.getCodeSNS().toString();
+            dniDigits = dni != null && dni.getDigits() != null && dni.getDigits() >= 0 ? dni.getDigits().toString() : null;
+            dniLetter = dni != null ? Character.toLowerCase(dni.getLetter()) : '\0';
+            terms = termsOf(generales);
+        }
+
+        /**
+         * Puntuación del paciente para las palabras de una consulta: la suma de la de cada una, o -1 si alguna no coincide.
+         */
+        private int score(List<String> words) {
+
+            int total = 0;
+            for(String word : words) {
+                int score = score(word);
+                if(score < 0)
+                    return -1;
+                total += score;
+            }
+            return total;
+        }
+
+        private int score(String word) {
+
+            Matcher dni = DNI_WORD.matcher(word);
+            if(dni.matches())
+                return dniDigits != null && Long.parseLong(dniDigits) == Long.parseLong(dni.group(1))
+                        && dniLetter == dni.group(2).charAt(0) ? EXACT : -1;
+            if(NUMBER_WORD.matcher(word).matches())
+                return best(numberScore(codeSNS, word, MAX_SNS_DIGITS),
+                        dniDigits != null ? numberScore(dniDigits, word, MAX_DNI_DIGITS) : -1);
+
+            int best = -1;
+            int maxDistance = maxDistance(word);
+            for(String term : terms) {
+                int score = term.equals(word) ? EXACT : term.startsWith(word) ? PREFIX : -1;
+                if(score < 0 && maxDistance > 0) {
+                    int distance = distance(word, term, maxDistance);
+                    if(distance <= maxDistance)
+                        score = PREFIX + distance;
+                }
+                best = best(best, score);
+            }
+            return best;
+        }
+
+        private static int numberScore(String number, String word, int maxDigits) {
+            if(word.length() > maxDigits || !number.startsWith(word))
+                return -1;
+            return number.length() == word.length() ? EXACT : PREFIX;
+        }
+
+        private static int best(int score, int other) {
+            return score < 0 ? other : other < 0 ? score : Math.min(score, other);
+        }
+    }
+}
\ No newline at end of file
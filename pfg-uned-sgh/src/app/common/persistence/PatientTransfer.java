@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.Utils;
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import app.model.datospaciente.entity.DNI;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Importación y exportación masiva de pacientes en CSV o JSON, para trasladar listados de pacientes desde
+ * (y hacia) otros sistemas. El formato se elige por la extensión del fichero: ".csv" o ".json".
+ * <p>
+ * Cada fila (o cada objeto JSON) es un paciente completo, con las columnas de {@link #COLUMNS}: el código SNS
+ * es obligatorio y el resto de valores pueden faltar. El DNI se escribe como "12345678-Z" (se admite también
+ * sin guion) y debe llevar la letra de control que corresponde a sus dígitos, la fecha de nacimiento como "aaaa-mm-dd", el estado y el sexo por su nombre, y las alergias,
+ * en CSV, una por línea dentro de la celda (en JSON, como lista).
+ * <p>
+ * Los ficheros se procesan en flujo, por lotes de {@value #BATCH_SIZE} pacientes que se guardan en el
+ * repositorio de una vez: en memoria no hay más que el lote en curso, de forma que el consumo no depende
+ * del tamaño del fichero (salvo el que haga el propio repositorio con los pacientes que mantenga).
+ * Las filas que no se pueden interpretar se rechazan, indicando el motivo, sin detener la importación; también
+ * las de un paciente con el DNI de otro, ya registrado o anterior en el fichero, y las de los pacientes que el
+ * repositorio no consigue guardar.
+ * <p>
+ * Desde la línea de comandos, sobre la base de datos de la aplicación:
+ * {@code java app.common.persistence.PatientTransfer import|export fichero}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class PatientTransfer {
+
+    /**
+     * Número de pacientes de cada lote.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * Columnas de cada paciente, en el orden en que se exportan.
+     */
+    public static final List<String> COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            "code_sns", "name", "surname", "dni", "state",
+            "sex", "birth_date", "email", "postal_address", "phone_number",
+            "asigned_doctor", "current_medication", "rcp", "allergies", "triaje_priority",
+            "account_number", "health_insurance", "insurance_company"));
+
+    // DNI en texto: dígitos y letra, con o sin guion entre ellos
+    private static final Pattern DNI_PATTERN = Pattern.compile("(\\d{1,8})-?([A-Za-z])");
+
+    // Número máximo de rechazos que se conservan en el informe, con su motivo (el resto solo se cuentan)
+    private static final int MAX_REJECTIONS = 100;
+
+    // Códigos de salida de la importación o exportación desde la línea de comandos
+    static final int EXIT_OK = 0;
+    static final int EXIT_USAGE = 1;
+    static final int EXIT_FAILED = 2;
+
+    private static final Logger L = Logger.getLogger(PatientTransfer.class.getName());
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private PatientTransfer() { }
+
+    /**
+     * Lectura en flujo de las filas de un fichero, cada una como un mapa de columna a valor. Los valores son
+     * cadenas (también los números), o listas y mapas para los valores compuestos de JSON.
+     */
+    interface RowReader extends Closeable {
+
+        /**
+         * Lee la siguiente fila.
+         *
+         * @return La fila, o nulo al final del fichero
+         * @throws IllegalArgumentException Si la fila no es válida; la lectura puede continuar con la siguiente
+         * @throws IOException Si no se puede leer, o la sintaxis no permite seguir leyendo
+         */
+        Map<String, Object> next() throws IOException;
+
+        /**
+         * Línea del fichero en que comienza la última fila leída, para los rechazos.
+         *
+         * @return El número de línea
+         */
+        long line();
+    }
+
+    /**
+     * Escritura en flujo de las filas de un fichero. Los valores son del tipo de cada campo en los modelos
+     * (números, booleanos, enumerados...), o listas de cadenas para las alergias.
+     */
+    interface RowWriter extends Closeable {
+        void write(Map<String, Object> row) throws IOException;
+    }
+
+    /**
+     * Resultado de una importación o exportación.
+     */
+    public static final class Report {
+
+        private long rows;
+        private long rejectedRows;
+        private final List<String> rejections = new ArrayList<>();
+        private final long start = System.nanoTime();
+        private long elapsed;
+
+        /**
+         * Número de filas procesadas con éxito.
+         *
+         * @return Las filas importadas o exportadas
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * Número de filas rechazadas.
+         *
+         * @return Las filas rechazadas
+         */
+        public long getRejectedRows() {
+            return rejectedRows;
+        }
+
+        /**
+         * Motivos de los primeros rechazos, con la línea de cada uno.
+         *
+         * @return Los rechazos
+         */
+        public List<String> getRejections() {
+            return Collections.unmodifiableList(rejections);
+        }
+
+        /**
+         * Ritmo de proceso, en filas por segundo.
+         *
+         * @return Las filas (procesadas o rechazadas) por segundo
+         */
+        public double getRowsPerSecond() {
+            return elapsed > 0 ? (rows + rejectedRows) * 1e9 / elapsed : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d filas, %d rechazadas, %.0f filas/s", rows, rejectedRows, getRowsPerSecond());
+        }
+
+        private void reject(long line, String reason) {
+            rejectedRows++;
+            if(rejections.size() < MAX_REJECTIONS)
+                rejections.add("línea " + line + ": " + reason);
+        }
+
+        private Report finish() {
+            elapsed = System.nanoTime() - start;
+            return this;
+        }
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Importa los pacientes de un fichero CSV o JSON, guardándolos en el repositorio por lotes.
+     * Un paciente ya registrado con el mismo código SNS se sustituye. Si el repositorio no puede guardar un
+     * lote, se guardan sus pacientes uno a uno, y las filas de los que fallen se rechazan.
+     *
+     * @param file El fichero
+     * @param repository El repositorio de destino
+     * @return El informe de la importación
+     * @throws IOException Si no se puede leer el fichero; los lotes ya guardados se conservan
+     */
+    public static Report importFile(File file, PatientRepository repository) throws IOException {
+
+        Report report = new Report();
+        // lote en curso por código SNS: si un paciente se repite dentro del lote, prevalece la última fila
+        Map<Long, ResumenPacienteModel> batch = new LinkedHashMap<>();
+        // código SNS del lote en curso por DNI empaquetado, para rechazar los DNI repetidos antes de guardarlo
+        Map<Long, Long> batchDNIs = new HashMap<>();
+        // línea de cada paciente del lote en curso, para rechazar las filas que no se puedan guardar
+        Map<Long, Long> batchLines = new HashMap<>();
+
+        try(RowReader reader = openReader(file)) {
+            while(true) {
+                try {
+                    Map<String, Object> row = reader.next();
+                    if(row == null)
+                        break;
+                    ResumenPacienteModel patient = toPatient(row);
+                    checkDNI(patient, repository, batchDNIs);
+                    batch.put(patient.getDatosGenerales().getCodeSNS(), patient);
+                    batchLines.put(patient.getDatosGenerales().getCodeSNS(), reader.line()); }
+                catch(IllegalArgumentException iae) {
+                    report.reject(reader.line(), iae.getMessage());
+                    continue; }
+
+                if(batch.size() == BATCH_SIZE) {
+                    saveBatch(repository, batch, batchLines, report);
+                    batch.clear();
+                    batchDNIs.clear();
+                    batchLines.clear();
+                }
+            }
+        }
+        saveBatch(repository, batch, batchLines, report);
+
+        L.log(Level.INFO, "Importados los pacientes de {0}: {1}", new Object[] { file, report.finish() });
+        return report;
+    }
+
+    /**
+     * Exporta todos los pacientes del repositorio, en orden de código SNS, a un fichero CSV o JSON.
+     *
+     * @param repository El repositorio de origen
+     * @param file El fichero de destino, que se sustituye
+     * @return El informe de la exportación
+     * @throws IOException Si no se puede escribir el fichero
+     */
+    public static Report exportFile(PatientRepository repository, File file) throws IOException {
+
+        Report report = new Report();
+
+        try(RowWriter writer = openWriter(file)) {
+            for(ResumenPacienteModel patient : repository) {
+                writer.write(toRow(patient));
+                report.rows++;
+            }
+        }
+
+        L.log(Level.INFO, "Exportados los pacientes a {0}: {1}", new Object[] { file, report.finish() });
+        return report;
+    }
+
+    /**
+     * Importación o exportación desde la línea de comandos, sobre la base de datos de la aplicación.
+     *
+     * @param args La operación ("import" o "export") y el fichero
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Importación o exportación desde la línea de comandos, sin terminar el proceso. El informe y las filas
+     * rechazadas se registran en el log.
+     *
+     * @param args La operación ("import" o "export") y el fichero
+     * @return El código de salida: {@value #EXIT_OK} si se ha completado, {@value #EXIT_USAGE} si los argumentos
+     * no son válidos y {@value #EXIT_FAILED} si la operación no se ha podido completar
+     */
+    static int run(String[] args) {
+
+        if(args.length != 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            L.log(Level.SEVERE, "Uso: PatientTransfer import|export <fichero>");
+            return EXIT_USAGE;
+        }
+        try {
+            DataBase dataBase = Utils.readDB();
+            Report report;
+            if(args[0].equals("import")) {
+                report = importFile(new File(args[1]), dataBase.getPatients());
+                Utils.writeDB(dataBase);
+            }
+            else
+                report = exportFile(dataBase.getPatients(), new File(args[1]));
+
+            report.getRejections().forEach((rejection) -> L.log(Level.WARNING, "Fila rechazada: {0}", rejection));
+            return EXIT_OK; }
+        catch(IOException | IllegalStateException e) {
+            L.log(Level.SEVERE, "No se ha podido completar la operación " + args[0] + " con " + args[1], e);
+            return EXIT_FAILED; }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private static RowReader openReader(File file) throws IOException {
+
+        Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        return isJson(file) ? new JsonRowFormat.Reader(in) : new CsvRowFormat.Reader(in);
+    }
+
+    private static RowWriter openWriter(File file) throws IOException {
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        return isJson(file) ? new JsonRowFormat.Writer(out) : new CsvRowFormat.Writer(out, COLUMNS);
+    }
+
+    private static boolean isJson(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".json");
+    }
+
+    private static Map<String, Object> toRow(ResumenPacienteModel patient) {
+
+        Map<String, Object> row = new LinkedHashMap<>();
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        row.put("code_sns", generales.getCodeSNS());
+        row.put("name", generales.getName());
+        row.put("surname", generales.getSurname());
+        row.put("dni", generales.getDni());
+        row.put("state", generales.getState());
+
+        DatosPersonalesModel personales = patient.getDatosPersonales();
+        if(personales != null) {
+            Birthdate birthDate = personales.getBirthDate();
+            row.put("sex", personales.getPatientSex());
+            row.put("birth_date", birthDate != null && birthDate.getYear() != null && birthDate.getMonth() != null
+                    && birthDate.getDay() != null ? String.format(Locale.ROOT,
+                    "%04d-%02d-%02d", birthDate.getYear(), birthDate.getMonth(), birthDate.getDay()) : null);
+            row.put("email", personales.getEmail());
+            row.put("postal_address", personales.getPostalAddress());
+            row.put("phone_number", personales.getPhoneNumber());
+        }
+
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        if(clinicos != null) {
+            row.put("asigned_doctor", clinicos.getAsignedDoctor());
+            row.put("current_medication", clinicos.getCurrentMedication());
+            row.put("rcp", clinicos.getRcp());
+            row.put("allergies", clinicos.getAllergies() != null ? Arrays.asList(clinicos.getAllergies()) : null);
+            row.put("triaje_priority", clinicos.getTriajePriority());
+        }
+
+        DatosBancariosModel bancarios = patient.getDatosBancarios();
+        if(bancarios != null) {
+            row.put("account_number", bancarios.getAccountNumber());
+            row.put("health_insurance", bancarios.getHealthInsurance());
+            row.put("insurance_company", bancarios.getInsuranceCompany());
+        }
+
+        return row;
+    }
+
+    private static ResumenPacienteModel toPatient(Map<String, Object> row) {
+
+        for(String column : row.keySet())
+            if(!COLUMNS.contains(column))
+                throw new IllegalArgumentException("columna desconocida '" + column + "'");
+
+        Long codeSNS = parseLong(row, "code_sns");
+        if(codeSNS == null)
+            throw new IllegalArgumentException("falta el código SNS");
+
+        // las secciones se construyen con sus setters, para que queden con cambios pendientes de guardar
+        DatoGeneralesModel generales = new DatoGeneralesModel();
+        generales.setCodeSNS(codeSNS);
+        generales.setName(text(row, "name"));
+        generales.setSurname(text(row, "surname"));
+        generales.setDni(parseDNI(text(row, "dni")));
+        generales.setState(parseEnum(PatientStateEnum.class, row, "state"));
+
+        DatosPersonalesModel personales = new DatosPersonalesModel();
+        personales.setPatientSex(parseEnum(PatientSexEnum.class, row, "sex"));
+        personales.setBirthDate(parseBirthdate(text(row, "birth_date")));
+        personales.setEmail(text(row, "email"));
+        personales.setPostalAddress(text(row, "postal_address"));
+        personales.setPhoneNumber(parseLong(row, "phone_number"));
+
+        DatosClinicosModel clinicos = new DatosClinicosModel();
+        clinicos.setAsignedDoctor(text(row, "asigned_doctor"));
+        clinicos.setCurrentMedication(text(row, "current_medication"));
+        clinicos.setRcp(parseBoolean(row, "rcp"));
+        clinicos.setAllergies(parseAllergies(row.get("allergies")));
+        clinicos.setTriajePriority(parseInteger(row, "triaje_priority"));
+
+        DatosBancariosModel bancarios = new DatosBancariosModel();
+        bancarios.setAccountNumber(parseLong(row, "account_number"));
+        bancarios.setHealthInsurance(parseBoolean(row, "health_insurance"));
+        bancarios.setInsuranceCompany(text(row, "insurance_company"));
+
+        return new ResumenPacienteModel(generales, personales, clinicos, bancarios);
+    }
+
+    private static String text(Map<String, Object> row, String column) {
+
+        Object value = row.get(column);
+        if(value != null && !(value instanceof String))
+            throw new IllegalArgumentException("'" + column + "' debe ser un valor simple");
+        return value == null || ((String) value).isEmpty() ? null : (String) value;
+    }
+
+    private static Long parseLong(Map<String, Object> row, String column) {
+
+        String value = text(row, column);
+        try {
+            return value != null ? Long.valueOf(value.trim()) : null; }
+        catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException("'" + column + "' no es un número: " + value); }
+    }
+
+    private static Integer parseInteger(Map<String, Object> row, String column) {
+
+        String value = text(row, column);
+        try {
+            return value != null ? Integer.valueOf(value.trim()) : null; }
+        catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException("'" + column + "' no es un número entero: " + value); }
+    }
+
+    private static Boolean parseBoolean(Map<String, Object> row, String column) {
+
+        String value = text(row, column);
+        if(value == null)
+            return null;
+        if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false"))
+            return Boolean.valueOf(value);
+        throw new IllegalArgumentException("'" + column + "' no es true ni false: " + value);
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, Map<String, Object> row, String column) {
+
+        String value = text(row, column);
+        for(E constant : type.getEnumConstants())
+            if(constant.name().equalsIgnoreCase(value))
+                return constant;
+        if(value == null)
+            return null;
+        throw new IllegalArgumentException("'" + column + "' no admite el valor " + value);
+    }
+
+    private static DNI parseDNI(String value) {
+
+        if(value == null)
+            return null;
+        Matcher matcher = DNI_PATTERN.matcher(value.trim());
+        if(!matcher.matches())
+            throw new IllegalArgumentException("DNI no válido: " + value);
+        DNI dni = new DNI(Integer.valueOf(matcher.group(1)), Character.toUpperCase(matcher.group(2).charAt(0)));
+        if(!dni.isValid())
+            throw new IllegalArgumentException("la letra del DNI " + value + " no es la de control, "
+                    + DNI.controlLetter(dni.getDigits()));
+        return dni;
+    }
+
+    private static void saveBatch(PatientRepository repository, Map<Long, ResumenPacienteModel> batch,
+            Map<Long, Long> lines, Report report) {
+
+        if(batch.isEmpty())
+            return;
+        try {
+            repository.saveAll(batch.values());
+            report.rows += batch.size(); }
+        catch(RuntimeException re) {
+            // se reintenta paciente a paciente, para rechazar solo las filas que no se pueden guardar
+            L.log(Level.WARNING, "No se ha podido guardar un lote de la importación", re);
+            for(Map.Entry<Long, ResumenPacienteModel> entry : batch.entrySet())
+                try {
+                    repository.save(entry.getValue());
+                    report.rows++; }
+                catch(RuntimeException e) {
+                    report.reject(lines.get(entry.getKey()), "no se ha podido guardar el paciente: "
+                            + (e.getMessage() != null ? e.getMessage() : e)); }
+        }
+    }
+
+    private static void checkDNI(ResumenPacienteModel patient, PatientRepository repository, Map<Long, Long> batchDNIs) {
+
+        DNI dni = patient.getDatosGenerales().getDni();
+        if(dni == null)
+            return;
+        Long codeSNS = patient.getDatosGenerales().getCodeSNS();
+
+        // primero entre los pacientes del lote, aún sin guardar, y después entre los ya registrados
+        Long owner = batchDNIs.get(dni.pack());
+        if(owner == null) {
+            ResumenPacienteModel registered = repository.findByDNI(dni);
+            owner = registered != null ? registered.getDatosGenerales().getCodeSNS() : null;
+        }
+        if(owner != null && !owner.equals(codeSNS))
+            throw new IllegalArgumentException("el DNI " + dni + " ya está registrado para el paciente " + owner);
+        batchDNIs.put(dni.pack(), codeSNS);
+    }
+
+    private static Birthdate parseBirthdate(String value) {
+
+        if(value == null)
+            return null;
+        // LocalDate valida el día del mes, incluidos los años bisiestos
+        LocalDate date;
+        try {
+            date = LocalDate.parse(value.trim()); }
+        catch(DateTimeException dte) {
+            throw new IllegalArgumentException("fecha de nacimiento no válida: " + value); }
+        return Birthdate.of(date.getDayOfMonth(), date.getMonthValue(), date.getYear());
+    }
+
+    private static String[] parseAllergies(Object value) {
+
+        if(value == null)
+            return null;
+        List<?> allergies = value instanceof List ? (List<?>) value
+                : value instanceof String ? Arrays.asList(((String) value).split("\n")) : null;
+        if(allergies == null || allergies.stream().anyMatch((allergy) -> allergy != null && !(allergy instanceof String)))
+            throw new IllegalArgumentException("'allergies' debe ser una lista de alergias");
+
+        return allergies.stream()
+                .map((allergy) -> (String) allergy)
+                .filter((allergy) -> allergy != null && !allergy.trim().isEmpty())
+                .toArray(String[]::new);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro de migraciones del esquema de los registros de pacientes, para que la codificación de las
+ * secciones (ver {@link PatientCodec}) pueda evolucionar sin reescribir la base de datos en cada versión.
+ * <p>
+ * Cada registro persistido lleva la versión del esquema con que se escribió: la de la cabecera del fichero
+ * para las entradas del índice, la de cada registro para los detalles de un paciente, y la de cada registro
+ * del diario. Al leer un registro de una versión anterior a {@link PatientCodec#SCHEMA_VERSION}, se le aplican
+ * en orden las migraciones desde su versión hasta la actual, y se decodifica ya con el esquema actual. La
+ * migración es perezosa: los detalles de un paciente se migran al cargarlos, y el registro queda actualizado
+ * en disco cuando se vuelve a escribir su fragmento; los que no se cargan se copian tal cual, con su versión.
+ * <p>
+ * Para cambiar la codificación de un registro, se incrementa {@link PatientCodec#SCHEMA_VERSION} y se registra
+ * aquí, en el bloque estático, la migración desde la versión anterior. Los tipos de registro a los que no afecta
+ * una migración (ver {@link Migration#appliesTo}) se leen tal cual.
+ * <p>
+ * Versiones del esquema:
+ * <ol>
+ * <li>La de los registros de los formatos 1 a 3, anteriores a su versionado.</li>
+ * <li>Las cadenas repetidas de los datos clínicos y bancarios se escriben por su código en el diccionario
+ * (ver {@link PatientCodec#writeString}); los registros migrados las llevan completas.</li>
+ * </ol>
+ *
+ * @author Alberto Bausá Cano
+ */
+public final class SchemaMigrations {
+
+    /**
+     * Tipos de registro con esquema propio: las cuatro secciones de un paciente y las entradas del índice
+     * (máscara, datos generales, sexo, prioridad y fecha de nacimiento).
+     */
+    public enum Record { GENERALES, PERSONALES, CLINICOS, BANCARIOS, INDEX }
+
+    /**
+     * Migración de un registro desde una versión del esquema a la siguiente.
+     */
+    public interface Migration {
+
+        /**
+         * Lee un registro completo con el esquema de origen y lo escribe con el de la versión siguiente.
+         *
+         * @param record El tipo de registro
+         * @param in El origen, posicionado al comienzo del registro
+         * @param out El destino
+         * @throws IOException Si el registro no se puede leer o escribir
+         */
+        void migrate(Record record, DataInput in, DataOutput out) throws IOException;
+
+        /**
+         * Indica si la migración cambia la codificación de los registros del tipo indicado.
+         *
+         * @param record El tipo de registro
+         * @return Falso si los registros de ese tipo no cambian, y se leen tal cual
+         */
+        default boolean appliesTo(Record record) {
+            return true;
+        }
+    }
+
+    // Migraciones registradas, por versión de origen
+    private static final Map<Integer, Migration> MIGRATIONS = new ConcurrentHashMap<>();
+
+    static {
+        register(1, new Migration() {
+            @Override
+            public void migrate(Record record, DataInput in, DataOutput out) throws IOException {
+                dictionaryStrings(record, in, out);
+            }
+
+            @Override
+            public boolean appliesTo(Record record) {
+                return record == Record.CLINICOS || record == Record.BANCARIOS;
+            }
+        });
+    }
+
+    /**
+     * Constructor privado, clase no instanciable.
+     */
+    private SchemaMigrations() { }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Comprueba que los registros de la versión del esquema indicada se pueden leer, directamente o migrándolos.
+     *
+     * @param version La versión del esquema
+     * @throws SchemaVersionException Si es posterior a la actual, o falta alguna migración desde ella
+     */
+    public static void check(int version) throws SchemaVersionException {
+
+        if(version > PatientCodec.SCHEMA_VERSION)
+            throw new SchemaVersionException("Los datos se guardaron con la versión " + version + " del esquema,"
+                    + " posterior a la de esta aplicación (" + PatientCodec.SCHEMA_VERSION + ")");
+        if(version < PatientCodec.BASE_SCHEMA_VERSION)
+            throw new SchemaVersionException("Versión del esquema no válida: " + version);
+        for(int from = version; from < PatientCodec.SCHEMA_VERSION; from++)
+            if(!MIGRATIONS.containsKey(from))
+                throw new SchemaVersionException("No hay migración del esquema desde la versión " + from);
+    }
+
+    /**
+     * Lleva el siguiente registro del origen hasta la versión actual del esquema. Si ya la tiene, se devuelve
+     * el propio origen; si no, se consume el registro del origen y se devuelve otro origen con el registro migrado.
+     *
+     * @param record El tipo de registro
+     * @param version La versión del esquema con que se escribió
+     * @param in El origen, posicionado al comienzo del registro
+     * @return El origen del que leer el registro con el esquema actual
+     * @throws IOException Si no se puede migrar (ver {@link #check}) o leer el registro
+     */
+    public static DataInput upgrade(Record record, int version, DataInput in) throws IOException {
+
+        if(version == PatientCodec.SCHEMA_VERSION)
+            return in;
+
+        check(version);
+        DataInput current = in;
+        for(int from = version; from < PatientCodec.SCHEMA_VERSION; from++) {
+            Migration migration = MIGRATIONS.get(from);
+            if(!migration.appliesTo(record))
+                continue;
+            ByteArrayOutputStream migrated = new ByteArrayOutputStream(64);
+            migration.migrate(record, current, new DataOutputStream(migrated));
+            current = new DataInputStream(new ByteArrayInputStream(migrated.toByteArray()));
+        }
+        return current;
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registra la migración de los registros de la versión indicada a la siguiente.
+     *
+     * @param fromVersion La versión de origen
+     * @param migration La migración
+     */
+    static void register(int fromVersion, Migration migration) {
+        MIGRATIONS.put(fromVersion, migration);
+    }
+
+    /**
+     * Migración de la versión 1 a la 2: las cadenas repetidas de los datos clínicos (médico asignado, medicación
+     * y alergias) y bancarios (compañía aseguradora) pasan a escribirse con {@link PatientCodec#writeString}, en
+     * este caso completas, sin diccionario. El resto de campos se copian tal cual.
+     */
+    private static void dictionaryStrings(Record record, DataInput in, DataOutput out) throws IOException {
+
+        int mask = in.readUnsignedByte();
+        out.writeByte(mask);
+
+        if(record == Record.CLINICOS) {
+            if((mask & 1) != 0)         PatientCodec.writeString(out, in.readUTF(), null);
+            if((mask & 1 << 1) != 0)    PatientCodec.writeString(out, in.readUTF(), null);
+            if((mask & 1 << 3) != 0) {
+                long allergies = PatientCodec.readVarLong(in);
+                PatientCodec.writeVarLong(out, allergies);
+                for(long i = 0; i < allergies; i++) {
+                    boolean present = in.readBoolean();
+                    out.writeBoolean(present);
+                    if(present) PatientCodec.writeString(out, in.readUTF(), null);
+                }
+            }
+            if((mask & 1 << 4) != 0)    PatientCodec.writeVarLong(out, PatientCodec.readVarLong(in));
+        }
+        else {
+            if((mask & 1) != 0)         PatientCodec.writeVarLong(out, PatientCodec.readVarLong(in));
+            if((mask & 1 << 2) != 0)    PatientCodec.writeString(out, in.readUTF(), null);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.IOException;
+
+/**
+ * Excepción de lectura de una base de datos (o de un registro) con una versión del formato o del esquema
+ * que esta versión de la aplicación no sabe leer: guardada por una versión posterior, o por una versión
+ * antigua para la que no hay migración. A diferencia de un fichero dañado, los datos son válidos, por lo
+ * que no deben apartarse ni sustituirse por una base de datos nueva.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class SchemaVersionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SchemaVersionException(String message) {
+        super(message);
+    }
+
+    public SchemaVersionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Índice secundario persistente de los pacientes: asocia a cada clave (el DNI, los apellidos, el estado...) los
+ * códigos SNS de los pacientes que la tienen, de forma que buscarlos no exige recorrer todos los pacientes.
+ * <p>
+ * El índice se guarda en su propio fichero junto a la instantánea, y al arrancar se proyecta en memoria
+ * ({@link FileChannel#map}): una tabla de claves ordenadas, cada una con el intervalo de sus códigos SNS, sobre
+ * la que se busca por bisección. El fichero lleva la marca de la instantánea a la que corresponde
+ * ({@link ShardedSnapshot#getStamp()}), la versión del esquema de los pacientes y una suma de comprobación de su
+ * contenido: si alguna no coincide al abrirlo, el índice está desfasado o dañado y se reconstruye a partir de
+ * los pacientes.
+ * <p>
+ * Los cambios posteriores a la instantánea (los que se guardan, y los que se reproducen del diario al arrancar)
+ * se mantienen en memoria y prevalecen sobre el fichero para sus pacientes. Con cada nueva instantánea se
+ * consolidan en un nuevo fichero, que se escribe de forma atómica.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class SecondaryIndex {
+
+    // "SGHX"
+    private static final int MAGIC = 0x53474858;
+    private static final int VERSION = 1;
+
+    // Cabecera: [int MAGIC][int versión][int versión del esquema][int número de claves][int número de códigos]
+    // [int CRC32 del contenido][long marca de la instantánea]
+    private static final int HEADER_SIZE = 32;
+    private static final int H_SCHEMA = 8, H_KEYS = 12, H_CODES = 16, H_CRC = 20, H_STAMP = 24;
+    // Contenido: tabla de claves, con [int posición de la clave][int primer código] por clave, seguida de
+    // los códigos SNS (long) de cada clave, en orden, y de las claves ([int longitud][UTF-8])
+    private static final int KEY_SLOT = 8;
+
+    private final String name;
+    private final File file;
+    // Sección del paciente de la que procede la clave
+    private final Class<? extends SeccionPacienteModel> source;
+    // Clave de un paciente, o nula si no tiene
+    private final Function<ResumenPacienteModel, String> keyFunction;
+
+    // Proyección del fichero, nula mientras no se abra
+    private MappedByteBuffer buffer;
+    private int keyCount, codeCount, codesStart, keysStart;
+    // Cambios posteriores al fichero: <codeSNS, clave actual (nula si no tiene)>, y los mismos por clave
+    private final Map<Long, String> changed = new HashMap<>();
+    private final Map<String, Set<Long>> changedByKey = new HashMap<>();
+
+    /**
+     * Crea el índice sobre el fichero indicado, sin abrirlo todavía.
+     *
+     * @param name El nombre del índice, para las trazas
+     * @param file El fichero del índice
+     * @param source La sección del paciente de la que procede la clave
+     * @param keyFunction La clave de un paciente, o nula si no tiene
+     */
+    public SecondaryIndex(String name, File file, Class<? extends SeccionPacienteModel> source,
+            Function<ResumenPacienteModel, String> keyFunction) {
+        this.name = name;
+        this.file = file;
+        this.source = source;
+        this.keyFunction = keyFunction;
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Proyecta el fichero del índice, si es válido y corresponde a la instantánea indicada.
+     *
+     * @param stamp La marca de la instantánea actual
+     * @return Verdadero si se ha abierto; falso si no existe, está dañado o desfasado, y debe reconstruirse
+     * @throws IOException Si se produce un error al proyectar el fichero
+     */
+    public synchronized boolean open(long stamp) throws IOException {
+
+        clearChanges();
+        buffer = null;
+        if(!file.exists() || file.length() < HEADER_SIZE)
+            return false;
+
+        map();
+        if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(H_SCHEMA) != PatientCodec.SCHEMA_VERSION
+                || buffer.getLong(H_STAMP) != stamp || keyCount < 0 || codeCount < 0
+                || HEADER_SIZE + (long) KEY_SLOT * keyCount + 8L * codeCount > buffer.capacity()) {
+            buffer = null;
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.position(HEADER_SIZE);
+        crc.update(content);
+        if((int) crc.getValue() != buffer.getInt(H_CRC)) {
+            buffer = null;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reconstruye el índice a partir de los pacientes indicados, lo escribe y lo proyecta.
+     *
+     * @param patients Todos los pacientes registrados
+     * @param stamp La marca de la instantánea a la que corresponden
+     * @throws IOException Si no se puede escribir el índice, o cargar los datos de algún paciente
+     */
+    public void rebuild(Iterable<ResumenPacienteModel> patients, long stamp) throws IOException {
+
+        TreeMap<String, List<Long>> content = new TreeMap<>();
+        try {
+            for(ResumenPacienteModel patient : patients) {
+                if(patient.getDatosGenerales() == null || patient.getDatosGenerales().getCodeSNS() == null)
+                    continue;
+                String key = keyFunction.apply(patient);
+                if(key != null)
+                    content.computeIfAbsent(key, (k) -> new ArrayList<>()).add(patient.getDatosGenerales().getCodeSNS());
+            }
+        }
+        catch(UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+        content.values().forEach(Collections::sort);
+
+        AtomicFile.write(file, (out) -> writeContent(out, content, stamp));
+        synchronized(this) {
+            map();
+            clearChanges();
+        }
+    }
+
+    /**
+     * Indica si el índice está abierto (o reconstruido), y por tanto se puede consultar.
+     *
+     * @return Verdadero si el índice está disponible
+     */
+    public synchronized boolean isOpen() {
+        return buffer != null;
+    }
+
+    /**
+     * Indica si la clave del índice procede de la sección de paciente indicada.
+     *
+     * @param section La sección
+     * @return Verdadero si guardar esa sección puede cambiar la clave del paciente
+     */
+    public boolean indexes(SeccionPacienteModel section) {
+        return section.getClass() == source;
+    }
+
+    /**
+     * Registra la clave actual de un paciente recién guardado.
+     *
+     * @param patient El paciente
+     */
+    public void update(ResumenPacienteModel patient) {
+
+        if(patient.getDatosGenerales() == null || patient.getDatosGenerales().getCodeSNS() == null)
+            return;
+        long codeSNS = patient.getDatosGenerales().getCodeSNS();
+        String key = keyFunction.apply(patient);
+
+        synchronized(this) {
+            removeChange(codeSNS);
+            changed.put(codeSNS, key);
+            if(key != null)
+                changedByKey.computeIfAbsent(key, (k) -> new HashSet<>()).add(codeSNS);
+        }
+    }
+
+    /**
+     * Busca los pacientes con la clave indicada.
+     *
+     * @param key La clave
+     * @return Los códigos SNS de los pacientes, en orden
+     */
+    public synchronized List<Long> find(String key) {
+
+        List<Long> codes = new ArrayList<>();
+        if(key == null || buffer == null)
+            return codes;
+
+        int slot = search(key);
+        if(slot >= 0)
+            for(int i = firstCode(slot), end = firstCode(slot + 1); i < end; i++) {
+                long codeSNS = codeAt(i);
+                if(!changed.containsKey(codeSNS))
+                    codes.add(codeSNS);
+            }
+
+        Set<Long> added = changedByKey.get(key);
+        if(added != null) {
+            codes.addAll(added);
+            Collections.sort(codes);
+        }
+        return codes;
+    }
+
+    /**
+     * Recorre todas las entradas del índice, las del fichero y las de los cambios posteriores.
+     *
+     * @param action La acción a realizar con cada clave y el código SNS de uno de sus pacientes
+     */
+    public synchronized void forEach(BiConsumer<String, Long> action) {
+
+        if(buffer == null)
+            return;
+        for(int slot = 0; slot < keyCount; slot++) {
+            String key = null;
+            for(int i = firstCode(slot), end = firstCode(slot + 1); i < end; i++) {
+                long codeSNS = codeAt(i);
+                if(changed.containsKey(codeSNS))
+                    continue;
+                if(key == null)
+                    key = keyAt(slot);
+                action.accept(key, codeSNS);
+            }
+        }
+        changed.forEach((codeSNS, key) -> {
+            if(key != null)
+                action.accept(key, codeSNS); });
+    }
+
+    /**
+     * Consolida en un nuevo fichero los cambios posteriores al actual, con la marca de la instantánea recién
+     * escrita. Si no hay cambios basta con actualizar la marca del fichero.
+     *
+     * @param stamp La marca de la nueva instantánea
+     * @throws IOException Si no se puede escribir el fichero; en tal caso se reconstruye al volver a abrirlo
+     */
+    public void write(long stamp) throws IOException {
+
+        Map<Long, String> written;
+        TreeMap<String, List<Long>> content;
+        synchronized(this) {
+            if(buffer == null)
+                return;
+            if(changed.isEmpty()) {
+                restamp(stamp);
+                return;
+            }
+            written = new HashMap<>(changed);
+            content = merge(written);
+        }
+
+        File temp = AtomicFile.writeTemp(file, (out) -> writeContent(out, content, stamp));
+        synchronized(this) {
+            AtomicFile.replace(temp, file);
+            map();
+            // los cambios ya incluidos en el fichero dejan de mantenerse, salvo que hayan vuelto a cambiar
+            written.forEach((codeSNS, key) -> {
+                if(changed.containsKey(codeSNS) && Objects.equals(changed.get(codeSNS), key))
+                    removeChange(codeSNS); });
+        }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private void map() throws IOException {
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        keyCount = buffer.getInt(H_KEYS);
+        codeCount = buffer.getInt(H_CODES);
+        codesStart = HEADER_SIZE + KEY_SLOT * keyCount;
+        keysStart = codesStart + 8 * codeCount;
+    }
+
+    private void restamp(long stamp) throws IOException {
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(H_STAMP);
+            raf.writeLong(stamp);
+            raf.getFD().sync();
+        }
+    }
+
+    private TreeMap<String, List<Long>> merge(Map<Long, String> changes) {
+
+        TreeMap<String, List<Long>> content = new TreeMap<>();
+        for(int slot = 0; slot < keyCount; slot++) {
+            List<Long> codes = new ArrayList<>(firstCode(slot + 1) - firstCode(slot));
+            for(int i = firstCode(slot), end = firstCode(slot + 1); i < end; i++)
+                if(!changes.containsKey(codeAt(i)))
+                    codes.add(codeAt(i));
+            if(!codes.isEmpty())
+                content.put(keyAt(slot), codes);
+        }
+
+        changes.forEach((codeSNS, key) -> {
+            if(key != null)
+                content.computeIfAbsent(key, (k) -> new ArrayList<>()).add(codeSNS); });
+        content.values().forEach(Collections::sort);
+        return content;
+    }
+
+    private static void writeContent(DataOutputStream out, TreeMap<String, List<Long>> content, long stamp)
+            throws IOException {
+
+        ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        DataOutputStream keysOut = new DataOutputStream(keys);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+
+        int codes = 0;
+        for(Map.Entry<String, List<Long>> entry : content.entrySet()) {
+            bodyOut.writeInt(keysOut.size());
+            bodyOut.writeInt(codes);
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            keysOut.writeInt(key.length);
+            keysOut.write(key);
+            codes += entry.getValue().size();
+        }
+        for(List<Long> codesOfKey : content.values())
+            for(long codeSNS : codesOfKey)
+                bodyOut.writeLong(codeSNS);
+        keys.writeTo(bodyOut);
+
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(PatientCodec.SCHEMA_VERSION);
+        out.writeInt(content.size());
+        out.writeInt(codes);
+        out.writeInt((int) crc.getValue());
+        out.writeLong(stamp);
+        body.writeTo(out);
+    }
+
+    private int search(String key) {
+
+        int low = 0, high = keyCount - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = keyAt(middle).compareTo(key);
+            if(comparison < 0)
+                low = middle + 1;
+            else if(comparison > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private String keyAt(int slot) {
+
+        int position = keysStart + buffer.getInt(HEADER_SIZE + KEY_SLOT * slot);
+        byte[] key = new byte[buffer.getInt(position)];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 4);
+        view.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    private int firstCode(int slot) {
+        return slot < keyCount ? buffer.getInt(HEADER_SIZE + KEY_SLOT * slot + 4) : codeCount;
+    }
+
+    private long codeAt(int index) {
+        return buffer.getLong(codesStart + 8 * index);
+    }
+
+    private void removeChange(long codeSNS) {
+
+        if(!changed.containsKey(codeSNS))
+            return;
+        String key = changed.remove(codeSNS);
+        Set<Long> codes = key != null ? changedByKey.get(key) : null;
+        if(codes != null) {
+            codes.remove(codeSNS);
+            if(codes.isEmpty())
+                changedByKey.remove(key);
+        }
+    }
+
+    private void clearChanges() {
+        changed.clear();
+        changedByKey.clear();
+    }
+}
\ No newline at end of file
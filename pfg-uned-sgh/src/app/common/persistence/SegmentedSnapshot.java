@@ -0,0 +1,740 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.persistence.SchemaMigrations.Record;
+import app.common.enums.PatientSexEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.ResumenPacienteModel.DetailLoader;
+import app.model.datospaciente.entity.Birthdate;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Instantánea de la base de datos en dos niveles: un índice con lo que necesitan los listados de pacientes
+ * (datos generales, sexo, fecha de nacimiento y prioridad de triaje), que se carga completo al arrancar, y los detalles de cada
+ * paciente (datos personales, clínicos y bancarios), que solo se leen del fichero cuando se abre su ficha.
+ * Así, el tiempo de arranque y la memoria ocupada dependen únicamente del tamaño del índice.
+ * <p>
+ * Formato (versión 4 de {@link PatientCodec}): [cabecera] seguida, por cada grupo de hasta {@value #PATIENTS_PER_BLOCK}
+ * pacientes consecutivos, de un bloque con sus detalles y otro con sus entradas del índice. Cada bloque va comprimido
+ * (deflate) y tiene su propia cabecera: [int marca][byte tipo][int pacientes][int longitud original]
+ * [int longitud comprimida][int CRC32 del contenido comprimido]. Cada entrada del índice contiene el código SNS,
+ * una máscara con los campos presentes, los datos generales, el sexo, la prioridad, la fecha de nacimiento y la
+ * posición de los detalles del paciente (posición de su bloque y número de registro dentro de él). Las entradas
+ * del índice usan la versión del esquema de la cabecera; cada registro de detalles comienza por la suya propia, ya
+ * que se copia de una instantánea a la siguiente sin decodificarlo (en la versión 3 no la llevan, y se les añade al copiarlos).
+ * <p>
+ * Un bloque dañado (suma de comprobación incorrecta, o un fichero truncado a mitad de bloque) se descarta sin
+ * perder el resto: si es de índice, no se leen sus pacientes; si es de detalles, sus pacientes se muestran con
+ * los detalles vacíos. En ambos casos se registra el error, y la instantánea queda marcada como dañada (ver
+ * {@link #isDamaged()}): no se vuelve a escribir, para no reemplazar los datos dañados por los vacíos, hasta que
+ * se restaure el fichero. Al arrancar, los bloques del índice se descomprimen en paralelo.
+ * <p>
+ * Al escribir una nueva instantánea, los detalles de los pacientes que no se han llegado a cargar se copian
+ * de la anterior sin decodificarlos, por lo que las cadenas repetidas de los detalles, que se escriben por su
+ * código en el {@link StringDictionary} indicado, han de conservar su código de una instantánea a la siguiente.
+ * Las instantáneas con el formato plano de la versión 1, o con el índice al final de la versión 2, se siguen
+ * pudiendo leer, cargándose completas.
+ * <p>
+ * Si se indica un fichero de almacén, el índice se mantiene además en un {@link MappedPatientStore}: al
+ * arrancar basta con proyectarlo, sin leer el índice de la instantánea, y la base de datos usa su mapa de
+ * pacientes. El almacén se crea (o se reconstruye, si no corresponde a la instantánea) a partir del índice.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class SegmentedSnapshot {
+
+    // Versión con el índice sin comprimir al final del fichero, seguido de su posición
+    private static final byte INDEX_AT_END_VERSION = 2;
+    // Versión con los bloques comprimidos, anterior a la versión del esquema en cada registro de detalles
+    private static final byte INDEX_BLOCKS_VERSION = 3;
+
+    // Número máximo de pacientes por bloque
+    private static final int PATIENTS_PER_BLOCK = 256;
+    // Bits reservados para el número de registro dentro de su bloque en la posición empaquetada de los detalles
+    private static final int RECORD_BITS = 8;
+    private static final long RECORD_MASK = (1L << RECORD_BITS) - 1;
+
+    // Cabecera de cada bloque: "SGHB", tipo, pacientes, longitud original, longitud comprimida y CRC32
+    private static final int BLOCK_MAGIC = 0x53474842;
+    private static final int BLOCK_HEADER_SIZE = 4 + 1 + 4 + 4 + 4 + 4;
+    private static final byte DETAIL_BLOCK = 1, INDEX_BLOCK = 2;
+    // Longitud máxima admitida para el contenido de un bloque, para descartar cabeceras dañadas
+    private static final int MAX_BLOCK_LENGTH = 64 * 1024 * 1024;
+
+    // Bits de presencia de los campos de una entrada del índice
+    private static final int HAS_GENERALES = 1, HAS_SEX = 1 << 1, HAS_PRIORITY = 1 << 2, HAS_BIRTHDATE = 1 << 3;
+
+    // Detalles (vacíos) con que se muestran los pacientes de un bloque dañado
+    private static final byte[] EMPTY_DETAILS = emptyDetails();
+
+    private static final Logger L = Logger.getLogger(SegmentedSnapshot.class.getName());
+
+    private final File file;
+    private final File storeFile;
+    // Diccionario de las cadenas repetidas de los detalles, nulo si se escriben completas
+    private final StringDictionary dictionary;
+    // Posición de los detalles de cada paciente en el fichero actual: <codeSNS, bloque << 8 | registro>
+    // (sin uso mientras las posiciones las mantenga el almacén proyectado)
+    private final Map<Long, Long> details = new HashMap<>();
+    // Almacén proyectado con el índice, si lo hay
+    private MappedPatientStore store;
+    // Lector del fichero actual, abierto bajo demanda para cargar o copiar detalles
+    private RandomAccessFile reader;
+    // Versión del esquema de las entradas del índice del fichero actual, y si sus registros de detalles llevan la suya
+    private int indexSchema = PatientCodec.SCHEMA_VERSION;
+    private boolean versionedDetails = true;
+    // Marca del contenido del fichero actual (ver getStamp())
+    private long stamp;
+    // Último bloque de detalles descomprimido, ya que las cargas y copias consecutivas suelen caer en el mismo
+    private long cachedOffset = -1;
+    private DetailBlock cachedBlock;
+    // Indica si se ha encontrado algún bloque dañado en el fichero actual
+    private volatile boolean damaged;
+
+    /**
+     * Crea la instantánea sobre el fichero indicado, sin leerlo todavía ni mantener un almacén proyectado.
+     *
+     * @param file El fichero de la instantánea
+     */
+    public SegmentedSnapshot(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Crea la instantánea sobre el fichero indicado, sin leerlo todavía.
+     *
+     * @param file El fichero de la instantánea
+     * @param storeFile El fichero del almacén proyectado con el índice, o nulo para no usarlo
+     */
+    public SegmentedSnapshot(File file, File storeFile) {
+        this(file, storeFile, null);
+    }
+
+    /**
+     * Crea la instantánea sobre el fichero indicado, sin leerlo todavía.
+     *
+     * @param file El fichero de la instantánea
+     * @param storeFile El fichero del almacén proyectado con el índice, o nulo para no usarlo
+     * @param dictionary El diccionario de las cadenas repetidas de los detalles, o nulo para escribirlas completas
+     */
+    public SegmentedSnapshot(File file, File storeFile, StringDictionary dictionary) {
+        this.file = file;
+        this.storeFile = storeFile;
+        this.dictionary = dictionary;
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Lee los usuarios y el índice de pacientes de la instantánea y los añade a la base de datos. Los pacientes
+     * quedan con sus detalles pendientes de carga (salvo en los formatos anteriores, que se leen completos).
+     * Los bloques dañados se omiten, registrando un aviso.
+     *
+     * @param dataBase La base de datos (normalmente vacía) a rellenar
+     * @throws IOException Si el fichero no existe, no tiene este formato o no se puede leer su cabecera
+     */
+    public void read(DataBase dataBase) throws IOException {
+        dataBase.setRegisteredPatients(read(dataBase.getRegisteredUsers()));
+    }
+
+    /**
+     * Lee los usuarios y el índice de pacientes de la instantánea, como {@link #read(DataBase)}.
+     *
+     * @param users Los usuarios registrados (normalmente vacíos) a rellenar
+     * @return Los pacientes leídos, por código SNS, ordenados (el mapa del almacén proyectado, si lo hay)
+     * @throws IOException Si el fichero no existe, no tiene este formato o no se puede leer su cabecera
+     */
+    public synchronized Map<Long, ResumenPacienteModel> read(Map<String, String> users) throws IOException {
+
+        Map<Long, ResumenPacienteModel> patients = new PatientHashMap();
+        List<Block> indexBlocks = new ArrayList<>();
+        long length, checksum = 0, content = 0;
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            damaged = false;
+            PatientCodec.Version version = PatientCodec.readHeader(raf, users);
+            indexSchema = version.schema;
+            versionedDetails = version.format > INDEX_BLOCKS_VERSION;
+            stamp = raf.length();
+            if(version.format == PatientCodec.FLAT_VERSION) {
+                PatientCodec.readFlatPatients(bufferedInput(raf), patients);
+                return patients;
+            }
+            if(version.format == INDEX_AT_END_VERSION) {
+                readIndexAtEnd(raf, patients);
+                return patients;
+            }
+
+            length = raf.length();
+            for(Block block : scan(raf)) {
+                content = content * 31 + block.crc;
+                if(block.kind == INDEX_BLOCK) {
+                    indexBlocks.add(block);
+                    checksum = checksum * 31 + block.crc;
+                }
+            }
+            stamp = length * 31 + content;
+
+            // con el almacén proyectado al día, no hace falta leer el índice
+            if(storeFile != null) {
+                store = MappedPatientStore.open(storeFile, length, checksum, this::loaderFor);
+                if(store != null)
+                    return store.getPatients();
+            }
+
+            for(Block block : indexBlocks)
+                block.readPayload(raf);
+        }
+
+        // los bloques se descomprimen en paralelo y se incorporan después en su orden
+        List<List<IndexEntry>> decoded = indexBlocks.parallelStream()
+                .map(this::decodeIndex)
+                .collect(Collectors.toList());
+
+        for(List<IndexEntry> entries : decoded)
+            for(IndexEntry entry : entries) {
+                details.put(entry.codeSNS, entry.position);
+                patients.put(entry.codeSNS, entry.patient);
+            }
+
+        if(storeFile != null)
+            try {
+                store = MappedPatientStore.create(storeFile, patients, details, length, checksum, this::loaderFor);
+                details.clear();
+                return store.getPatients(); }
+            catch(IOException ioe) {
+                // se sigue con el índice en memoria
+                store = null;
+                L.log(Level.WARNING, "No se ha podido crear el almacén proyectado de pacientes", ioe); }
+        return patients;
+    }
+
+    /**
+     * Devuelve una marca que identifica el contenido del fichero actual de la instantánea (su longitud y la suma de
+     * comprobación de todos sus bloques), de forma que cambia con cada escritura que altere algún paciente.
+     *
+     * @return La marca del fichero leído o escrito por última vez, o 0 si todavía no se ha leído ni escrito
+     */
+    public synchronized long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Indica si se ha encontrado algún bloque dañado en el fichero actual, al leer su índice o al cargar o
+     * copiar los detalles de algún paciente. Mientras lo esté, la instantánea no se vuelve a escribir.
+     *
+     * @return Verdadero si el fichero tiene datos dañados
+     */
+    public boolean isDamaged() {
+        return damaged;
+    }
+
+    /**
+     * Escribe en el almacén proyectado, si lo hay, los campos del índice del paciente indicado.
+     *
+     * @param codeSNS El código SNS del paciente
+     */
+    public void updateIndex(long codeSNS) {
+
+        MappedPatientStore current = store;
+        if(current != null)
+            current.update(codeSNS);
+    }
+
+    /**
+     * Escribe de forma atómica (ver {@link AtomicFile}) una nueva instantánea de la base de datos. Se puede
+     * invocar mientras se usa la base de datos: los detalles se siguen leyendo de la instantánea anterior
+     * hasta el momento del reemplazo.
+     *
+     * @param dataBase La base de datos a escribir
+     * @throws IOException Si no se puede escribir, o la instantánea actual está dañada (ver {@link #isDamaged()});
+     * en tal caso la instantánea anterior queda intacta
+     */
+    public void write(DataBase dataBase) throws IOException {
+        write(dataBase.getRegisteredUsers(), dataBase.getRegisteredPatients());
+    }
+
+    /**
+     * Escribe una nueva instantánea con los usuarios y pacientes indicados, como {@link #write(DataBase)}.
+     *
+     * @param users Los usuarios registrados, con su contraseña
+     * @param patients Los pacientes, por código SNS
+     * @throws IOException Si no se puede escribir, o la instantánea actual está dañada (ver {@link #isDamaged()});
+     * en tal caso la instantánea anterior queda intacta
+     */
+    public void write(Map<String, String> users, Map<Long, ResumenPacienteModel> patients) throws IOException {
+
+        if(damaged)
+            throw new IOException("La instantánea " + file + " tiene datos dañados: no se reemplaza hasta restaurarla");
+
+        Map<Long, Long> written = new HashMap<>();
+        // suma de comprobación de los bloques del índice, y de todos los bloques
+        long[] checksum = new long[2];
+
+        File temp = AtomicFile.writeTemp(file, (out) -> {
+            PatientCodec.writeHeader(out, users);
+
+            List<Long> group = new ArrayList<>(PATIENTS_PER_BLOCK);
+            Deflater deflater = new Deflater();
+            try {
+                for(Iterator<Long> it = patients.keySet().iterator(); it.hasNext(); ) {
+                    group.add(it.next());
+                    if(group.size() == PATIENTS_PER_BLOCK || !it.hasNext()) {
+                        writeGroup(out, patients, group, written, deflater, checksum);
+                        group.clear();
+                    }
+                }
+            }
+            finally {
+                deflater.end();
+            }
+        });
+
+        // el reemplazo y las nuevas posiciones se publican a la vez para las cargas pendientes
+        synchronized(this) {
+            closeReader();
+            AtomicFile.replace(temp, file);
+            indexSchema = PatientCodec.SCHEMA_VERSION;
+            versionedDetails = true;
+            stamp = file.length() * 31 + checksum[1];
+            if(store == null || !store.refresh(written, file.length(), checksum[0])) {
+                // si el almacén ya no tiene las posiciones, se toman de la instantánea recién escrita
+                store = null;
+                details.clear();
+                details.putAll(written);
+            }
+        }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private void writeGroup(DataOutputStream out, Map<Long, ResumenPacienteModel> patients, List<Long> group,
+            Map<Long, Long> written, Deflater deflater, long[] checksum) throws IOException {
+
+        // bloque de detalles: [varint longitud de cada registro][registros]
+        List<ResumenPacienteModel> models = new ArrayList<>(group.size());
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        ByteArrayOutputStream detail = new ByteArrayOutputStream();
+        DataOutputStream detailOut = new DataOutputStream(detail);
+
+        for(Long codeSNS : group) {
+            // en el almacén proyectado, los pacientes que no se han consultado no se quedan en memoria
+            ResumenPacienteModel patient = LazyPatientMap.peek(patients, codeSNS);
+            int start = recordsOut.size();
+            if(patient.isDetailLoaded())
+                PatientCodec.writeDetails(recordsOut, patient, dictionary);
+            else {
+                byte[] raw = readRaw(codeSNS);
+                if(raw == null)
+                    throw new IOException("Los datos del paciente " + codeSNS + " están dañados en la instantánea "
+                            + file + ": no se reemplaza hasta restaurarla");
+                recordsOut.write(raw);
+            }
+            PatientCodec.writeVarLong(detailOut, recordsOut.size() - start);
+            models.add(patient);
+        }
+        records.writeTo(detailOut);
+
+        long detailOffset = out.size();
+        int detailCrc = writeBlock(out, DETAIL_BLOCK, group.size(), detail.toByteArray(), deflater);
+
+        // bloque del índice, con la posición de los detalles recién escritos
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        for(int i = 0; i < group.size(); i++) {
+            long position = detailOffset << RECORD_BITS | i;
+            PatientCodec.writeVarLong(indexOut, group.get(i));
+            writeIndexFields(indexOut, models.get(i));
+            PatientCodec.writeVarLong(indexOut, position);
+            written.put(group.get(i), position);
+        }
+
+        int indexCrc = writeBlock(out, INDEX_BLOCK, group.size(), index.toByteArray(), deflater);
+        checksum[0] = checksum[0] * 31 + indexCrc;
+        checksum[1] = (checksum[1] * 31 + detailCrc) * 31 + indexCrc;
+    }
+
+    private static int writeBlock(DataOutputStream out, byte kind, int count, byte[] content, Deflater deflater)
+            throws IOException {
+
+        deflater.reset();
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        while(!deflater.finished())
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+
+        byte[] payload = compressed.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        out.writeInt(BLOCK_MAGIC);
+        out.writeByte(kind);
+        out.writeInt(count);
+        out.writeInt(content.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void writeIndexFields(DataOutput out, ResumenPacienteModel patient) throws IOException {
+
+        out.writeByte((patient.getDatosGenerales() != null ? HAS_GENERALES : 0)
+                | (patient.getPatientSex() != null ? HAS_SEX : 0)
+                | (patient.getTriajePriority() != null ? HAS_PRIORITY : 0)
+                | (patient.getBirthDate() != null ? HAS_BIRTHDATE : 0));
+        if(patient.getDatosGenerales() != null)   PatientCodec.writeGenerales(out, patient.getDatosGenerales());
+        if(patient.getPatientSex() != null)       out.writeByte(patient.getPatientSex().ordinal());
+        if(patient.getTriajePriority() != null)   PatientCodec.writeVarLong(out, patient.getTriajePriority());
+        if(patient.getBirthDate() != null)        PatientCodec.writeBirthdate(out, patient.getBirthDate());
+    }
+
+    private static ResumenPacienteModel readIndexFields(DataInput source, DetailLoader loader, int schema) throws IOException {
+
+        DataInput in = SchemaMigrations.upgrade(Record.INDEX, schema, source);
+        int mask = in.readUnsignedByte();
+        DatoGeneralesModel generales = (mask & HAS_GENERALES) != 0 ? PatientCodec.readGenerales(in) : null;
+        PatientSexEnum sex = (mask & HAS_SEX) != 0 ? PatientSexEnum.values()[in.readUnsignedByte()] : null;
+        Integer priority = (mask & HAS_PRIORITY) != 0 ? (int) PatientCodec.readVarLong(in) : null;
+        Birthdate birthDate = (mask & HAS_BIRTHDATE) != 0 ? PatientCodec.readBirthdate(in) : null;
+        return new ResumenPacienteModel(generales, sex, birthDate, priority, loader);
+    }
+
+    private List<IndexEntry> decodeIndex(Block block) {
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(block.inflate()));
+            List<IndexEntry> entries = new ArrayList<>(block.count);
+            for(int i = 0; i < block.count; i++) {
+                long codeSNS = PatientCodec.readVarLong(in);
+                ResumenPacienteModel patient = readIndexFields(in, loaderFor(codeSNS), indexSchema);
+                entries.add(new IndexEntry(codeSNS, patient, PatientCodec.readVarLong(in)));
+            }
+            return entries; }
+        catch(IOException | RuntimeException e) {
+            damaged = true;
+            L.log(Level.SEVERE, "Se omite un bloque dañado del índice en la posición " + block.offset + " de "
+                    + file + ": no se leen sus " + block.count + " pacientes", e);
+            return new ArrayList<>(); }
+    }
+
+    private void readIndexAtEnd(RandomAccessFile raf, Map<Long, ResumenPacienteModel> patients) throws IOException {
+
+        raf.seek(raf.length() - 8);
+        raf.seek(raf.readLong());
+        DataInputStream in = bufferedInput(raf);
+
+        List<ResumenPacienteModel> read = new ArrayList<>();
+        List<long[]> positions = new ArrayList<>();
+        for(long i = PatientCodec.readVarLong(in); i > 0; i--) {
+            long codeSNS = PatientCodec.readVarLong(in);
+            read.add(readIndexFields(in, null, PatientCodec.BASE_SCHEMA_VERSION));
+            positions.add(new long[] { codeSNS, PatientCodec.readVarLong(in), PatientCodec.readVarLong(in) });
+        }
+
+        for(int i = 0; i < read.size(); i++) {
+            long[] position = positions.get(i);
+            byte[] bytes = new byte[(int) position[2]];
+            raf.seek(position[1]);
+            raf.readFully(bytes);
+            PatientCodec.readDetails(new DataInputStream(new ByteArrayInputStream(bytes)), read.get(i),
+                    PatientCodec.BASE_SCHEMA_VERSION, null);
+            patients.put(position[0], read.get(i));
+        }
+    }
+
+    private List<Block> scan(RandomAccessFile raf) throws IOException {
+
+        List<Block> blocks = new ArrayList<>();
+        long position = raf.getFilePointer(), length = raf.length();
+
+        while(position + BLOCK_HEADER_SIZE <= length) {
+            raf.seek(position);
+            Block block = new Block(position, raf);
+            if(block.isValid(length)) {
+                blocks.add(block);
+                position = block.end();
+                continue;
+            }
+
+            // cabecera dañada o bloque incompleto: se continúa desde el siguiente bloque reconocible
+            damaged = true;
+            long next = resync(raf, position + 1);
+            L.log(Level.SEVERE, "Se omiten los datos dañados entre las posiciones " + position + " y "
+                    + (next < 0 ? length : next) + " de " + file);
+            if(next < 0)
+                break;
+            position = next;
+        }
+        return blocks;
+    }
+
+    private static long resync(RandomAccessFile raf, long from) throws IOException {
+
+        raf.seek(from);
+        DataInputStream in = bufferedInput(raf);
+        int window = 0;
+        try {
+            for(long position = from; ; position++) {
+                window = window << 8 | in.readUnsignedByte();
+                if(window == BLOCK_MAGIC && position - 3 >= from)
+                    return position - 3;
+            }
+        }
+        catch(EOFException eofe) {
+            return -1;
+        }
+    }
+
+    private static DataInputStream bufferedInput(RandomAccessFile raf) {
+        // el canal comparte la posición del fichero
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+    }
+
+    private synchronized void loadDetails(long codeSNS, ResumenPacienteModel patient) throws IOException {
+        // los pacientes de un bloque dañado se muestran con los detalles vacíos
+        byte[] raw = readRaw(codeSNS);
+        PatientCodec.readDetails(new DataInputStream(new ByteArrayInputStream(raw != null ? raw : EMPTY_DETAILS)),
+                patient, dictionary);
+    }
+
+    private DetailLoader loaderFor(long codeSNS) {
+        return (patient) -> loadDetails(codeSNS, patient);
+    }
+
+    // Registro de detalles del paciente tal como está en el fichero, o nulo si su bloque está dañado
+    private synchronized byte[] readRaw(long codeSNS) throws IOException {
+
+        Long position = store != null ? store.detailPosition(codeSNS) : details.get(codeSNS);
+        if(position == null)
+            throw new IOException("No se encuentran en la instantánea los datos del paciente " + codeSNS);
+
+        long offset = position >>> RECORD_BITS;
+        if(offset != cachedOffset) {
+            if(reader == null)
+                reader = new RandomAccessFile(file, "r");
+            cachedBlock = readDetailBlock(offset);
+            cachedOffset = offset;
+        }
+        byte[] record = cachedBlock.record((int) (position & RECORD_MASK));
+        if(record == null)
+            damaged = true;
+        return record;
+    }
+
+    private DetailBlock readDetailBlock(long offset) throws IOException {
+
+        reader.seek(offset);
+        Block block = new Block(offset, reader);
+        if(!block.isValid(reader.length()) || block.kind != DETAIL_BLOCK) {
+            L.log(Level.SEVERE, "Bloque de detalles dañado en la posición " + offset + " de " + file
+                    + ": sus pacientes se muestran con los detalles vacíos");
+            return new DetailBlock(null, null, true);
+        }
+        block.readPayload(reader);
+
+        try {
+            byte[] content = block.inflate();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            int[] starts = new int[block.count + 1];
+            for(int i = 0; i < block.count; i++)
+                starts[i + 1] = starts[i] + (int) PatientCodec.readVarLong(in);
+            int base = content.length - in.available();
+            for(int i = 0; i <= block.count; i++)
+                starts[i] += base;
+            if(starts[block.count] != content.length)
+                throw new IOException("Las longitudes de los registros no corresponden al bloque");
+            return new DetailBlock(content, starts, versionedDetails); }
+        catch(IOException ioe) {
+            L.log(Level.SEVERE, "Bloque de detalles dañado en la posición " + offset + " de " + file
+                    + ": sus pacientes se muestran con los detalles vacíos", ioe);
+            return new DetailBlock(null, null, true); }
+    }
+
+    private void closeReader() throws IOException {
+
+        cachedOffset = -1;
+        cachedBlock = null;
+        if(reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    private static byte[] emptyDetails() {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            PatientCodec.writeDetails(new DataOutputStream(bytes), new ResumenPacienteModel(null,
+                    new DatosPersonalesModel(), new DatosClinicosModel(), new DatosBancariosModel()), null); }
+        catch(IOException ioe) {
+            throw new UncheckedIOException(ioe); }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Bloque de la instantánea, leído a partir de su cabecera.
+     */
+    private static final class Block {
+
+        final long offset;
+        final int magic;
+        final byte kind;
+        final int count;
+        final int length;
+        final int compressedLength;
+        final int crc;
+        byte[] payload;
+
+        Block(long offset, DataInput in) throws IOException {
+            this.offset = offset;
+            this.magic = in.readInt();
+            this.kind = in.readByte();
+            this.count = in.readInt();
+            this.length = in.readInt();
+            this.compressedLength = in.readInt();
+            this.crc = in.readInt();
+        }
+
+        boolean isValid(long fileLength) {
+            return magic == BLOCK_MAGIC && (kind == DETAIL_BLOCK || kind == INDEX_BLOCK)
+                    && count > 0 && count <= PATIENTS_PER_BLOCK
+                    && length >= 0 && length <= MAX_BLOCK_LENGTH
+                    && compressedLength >= 0 && end() <= fileLength;
+        }
+
+        long end() {
+            return offset + BLOCK_HEADER_SIZE + compressedLength;
+        }
+
+        void readPayload(RandomAccessFile raf) throws IOException {
+            payload = new byte[compressedLength];
+            raf.seek(offset + BLOCK_HEADER_SIZE);
+            raf.readFully(payload);
+        }
+
+        byte[] inflate() throws IOException {
+
+            CRC32 checksum = new CRC32();
+            checksum.update(payload);
+            if((int) checksum.getValue() != crc)
+                throw new IOException("La suma de comprobación del bloque no es correcta");
+
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(payload);
+                byte[] content = new byte[length];
+                int inflated = 0;
+                while(inflated < length) {
+                    int n = inflater.inflate(content, inflated, length - inflated);
+                    if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    inflated += n;
+                }
+                if(inflated != length)
+                    throw new IOException("La longitud del bloque descomprimido no es correcta");
+                return content; }
+            catch(DataFormatException dfe) {
+                throw new IOException("El contenido del bloque no se puede descomprimir", dfe); }
+            finally {
+                inflater.end(); }
+        }
+    }
+
+    /**
+     * Bloque de detalles descomprimido, con el comienzo de cada uno de sus registros.
+     */
+    private static final class DetailBlock {
+
+        // Nulos si el bloque está dañado
+        final byte[] content;
+        final int[] starts;
+        // Falso si los registros no comienzan por su versión del esquema (versión 3)
+        final boolean versioned;
+
+        DetailBlock(byte[] content, int[] starts, boolean versioned) {
+            this.content = content;
+            this.starts = starts;
+            this.versioned = versioned;
+        }
+
+        // Nulo si el bloque está dañado o no contiene el registro
+        byte[] record(int index) {
+
+            if(content == null || index + 1 >= starts.length)
+                return null;
+            if(versioned)
+                return Arrays.copyOfRange(content, starts[index], starts[index + 1]);
+
+            // se antepone la versión del esquema, para que el registro se pueda copiar tal cual a la nueva instantánea
+            byte[] record = new byte[starts[index + 1] - starts[index] + 1];
+            record[0] = (byte) PatientCodec.BASE_SCHEMA_VERSION;
+            System.arraycopy(content, starts[index], record, 1, record.length - 1);
+            return record;
+        }
+    }
+
+    /**
+     * Entrada del índice leída de un bloque.
+     */
+    private static final class IndexEntry {
+
+        final long codeSNS;
+        final ResumenPacienteModel patient;
+        final long position;
+
+        IndexEntry(long codeSNS, ResumenPacienteModel patient, long position) {
+            this.codeSNS = codeSNS;
+            this.patient = patient;
+            this.position = position;
+        }
+    }
+}
\ No newline at end of file
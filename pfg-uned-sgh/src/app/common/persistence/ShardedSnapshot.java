@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instantánea de la base de datos repartida en varios fragmentos (shards), cada uno de ellos una
+ * {@link SegmentedSnapshot} con su propio fichero y su propio almacén proyectado. Cada paciente pertenece
+ * al fragmento que le corresponde por el hash de su código SNS.
+ * <p>
+ * Al arrancar, los fragmentos se leen en paralelo sobre el {@link ForkJoinPool} común, y la base de datos
+ * usa un {@link ShardedPatientMap} que los reúne en un único mapa ordenado por código SNS. Al escribir,
+ * solo se vuelcan (también en paralelo) los fragmentos con pacientes modificados desde la última escritura,
+ * que se registran con {@link #markModified(long)}.
+ * <p>
+ * Ficheros, a partir de un nombre base: "base.N.dat" y "base.N.idx" para cada fragmento, "base.shards"
+ * (el manifiesto) con el número de fragmentos, que se escribe después de todos ellos, y "base.dict" con el
+ * {@link StringDictionary} de las cadenas repetidas, común a todos. Sin manifiesto se lee
+ * la instantánea anterior de un solo fichero, "base.dat" (incluido el formato antiguo de la serialización de
+ * Java), que se reparte entre los fragmentos con la primera escritura y después se elimina.
+ * <p>
+ * Un fragmento que no se puede leer, o con bloques dañados, se deja tal cual en disco y no se vuelve a escribir
+ * hasta que se restaure (ver {@link #getDamagedFiles()}), para no reemplazar sus pacientes por un fragmento
+ * vacío. Si en cambio falta su fichero (porque se ha apartado a mano), se da por vacío y se vuelve a crear.
+ * <p>
+ * El número de fragmentos se configura con la propiedad de sistema {@value #SHARDS_PROPERTY}; si no se indica
+ * se usa {@value #DEFAULT_SHARDS}. Solo se aplica al crear los fragmentos: después manda el manifiesto.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class ShardedSnapshot {
+
+    /**
+     * Propiedad de sistema con el número de fragmentos.
+     */
+    public static final String SHARDS_PROPERTY = "sgh.shards";
+
+    /**
+     * Número de fragmentos por defecto.
+     */
+    public static final int DEFAULT_SHARDS = 8;
+
+    private static final Logger L = Logger.getLogger(ShardedSnapshot.class.getName());
+
+    private final String basePath;
+    private final File manifest;
+    private final SegmentedSnapshot[] shards;
+    // Diccionario de las cadenas repetidas, común a todos los fragmentos y al diario
+    private final StringDictionary dictionary;
+    // Fragmentos con pacientes modificados desde la última escritura
+    private final BitSet modified = new BitSet();
+    // Fragmentos que no se han podido leer, y que no se escriben hasta restaurarlos
+    private final BitSet unreadable = new BitSet();
+
+    /**
+     * Crea la instantánea con el nombre base indicado y el número de fragmentos configurado en la
+     * propiedad {@value #SHARDS_PROPERTY}, sin leerla todavía.
+     *
+     * @param base El nombre base de los ficheros, sin extensión
+     * @throws IOException Si existe el manifiesto pero no se puede leer
+     */
+    public ShardedSnapshot(File base) throws IOException {
+        this(base, Integer.getInteger(SHARDS_PROPERTY, DEFAULT_SHARDS));
+    }
+
+    /**
+     * Crea la instantánea con el nombre base indicado, sin leerla todavía.
+     *
+     * @param base El nombre base de los ficheros, sin extensión
+     * @param count El número de fragmentos, si todavía no existen
+     * @throws IOException Si existe el manifiesto pero no se puede leer
+     */
+    public ShardedSnapshot(File base, int count) throws IOException {
+        this.basePath = base.getPath();
+        this.manifest = new File(basePath + ".shards");
+
+        if(manifest.exists())
+            try(DataInputStream in = new DataInputStream(new FileInputStream(manifest))) {
+                count = in.readInt();
+            }
+        else
+            // sin fragmentos todavía, la primera escritura los crea todos
+            modified.set(0, count);
+        if(count < 1)
+            throw new IOException("Número de fragmentos no válido: " + count);
+
+        dictionary = new StringDictionary(siblingFile(".dict"));
+        shards = new SegmentedSnapshot[count];
+        for(int i = 0; i < count; i++)
+            shards[i] = new SegmentedSnapshot(shardFile(i, ".dat"), shardFile(i, ".idx"), dictionary);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Lee en paralelo los usuarios y el índice de pacientes de todos los fragmentos y los añade a la base de
+     * datos, que pasa a usar un {@link ShardedPatientMap}. Un fragmento que no se puede leer se da por vacío y
+     * se continúa con el resto, sin tocar su fichero (ver {@link #getDamagedFiles()}).
+     *
+     * @param dataBase La base de datos (normalmente vacía) a rellenar
+     * @throws IOException Si no hay instantánea, o la de un solo fichero no se puede leer
+     */
+    public void read(DataBase dataBase) throws IOException {
+
+        if(!manifest.exists()) {
+            readSingle(dataBase);
+            return;
+        }
+
+        List<Map<String, String>> users = new ArrayList<>();
+        List<Callable<Map<Long, ResumenPacienteModel>>> tasks = new ArrayList<>();
+        for(int i = 0; i < shards.length; i++) {
+            int shard = i;
+            Map<String, String> shardUsers = new HashMap<>();
+            users.add(shardUsers);
+            tasks.add(() -> readShard(shard, shardUsers));
+        }
+
+        List<Map<Long, ResumenPacienteModel>> patients = new ArrayList<>();
+        for(Future<Map<Long, ResumenPacienteModel>> result : ForkJoinPool.commonPool().invokeAll(tasks))
+            patients.add(join(result));
+
+        users.forEach(dataBase.getRegisteredUsers()::putAll);
+        dataBase.setRegisteredPatients(new ShardedPatientMap(patients));
+    }
+
+    /**
+     * Devuelve los ficheros de los fragmentos que no se han podido leer o tienen bloques dañados. Sus pacientes
+     * (todos, o los de los bloques dañados) no están en la base de datos, y los fragmentos no se vuelven a escribir
+     * mientras no se restauren sus ficheros o, para darlos por perdidos, se aparten.
+     *
+     * @return Los ficheros dañados, vacío si no hay ninguno
+     */
+    public List<File> getDamagedFiles() {
+
+        List<File> damaged = new ArrayList<>();
+        synchronized(unreadable) {
+            for(int i = 0; i < shards.length; i++)
+                if(unreadable.get(i) || shards[i].isDamaged())
+                    damaged.add(shardFile(i, ".dat"));
+        }
+        return damaged;
+    }
+
+    /**
+     * Registra que un paciente ha sido modificado, de forma que su fragmento se incluya en la siguiente
+     * escritura. Debe invocarse antes de registrar el cambio en el diario.
+     *
+     * @param codeSNS El código SNS del paciente
+     */
+    public void markModified(long codeSNS) {
+        synchronized(modified) {
+            modified.set(shardOf(codeSNS, shards.length));
+        }
+    }
+
+    /**
+     * Registra que todos los fragmentos deben incluirse en la siguiente escritura.
+     */
+    public void markAllModified() {
+        synchronized(modified) {
+            modified.set(0, shards.length);
+        }
+    }
+
+    /**
+     * Indica si algún fragmento tiene pacientes modificados pendientes de escribir.
+     *
+     * @return Verdadero si la siguiente escritura tiene algún fragmento que volcar
+     */
+    public boolean isModified() {
+        synchronized(modified) {
+            return !modified.isEmpty();
+        }
+    }
+
+    /**
+     * Devuelve una marca que identifica el contenido en disco de todos los fragmentos: cambia con cada escritura
+     * que altere algún paciente (ver {@link SegmentedSnapshot#getStamp()}).
+     *
+     * @return La marca de los fragmentos, o 0 si todavía no se han creado
+     */
+    public long getStamp() {
+
+        if(!manifest.exists())
+            return 0;
+        long stamp = shards.length;
+        for(SegmentedSnapshot shard : shards)
+            stamp = stamp * 31 + shard.getStamp();
+        return stamp;
+    }
+
+    /**
+     * Devuelve el diccionario de las cadenas repetidas de los detalles de los pacientes, común a todos los
+     * fragmentos. Los registros del diario deben usar el mismo.
+     *
+     * @return El diccionario
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Devuelve un fichero junto a los de la instantánea, con su nombre base y la extensión indicada.
+     *
+     * @param extension La extensión, con el punto inicial
+     * @return El fichero
+     */
+    public File siblingFile(String extension) {
+        return new File(basePath + extension);
+    }
+
+    /**
+     * Escribe en el almacén proyectado de su fragmento, si lo hay, los campos del índice del paciente indicado.
+     *
+     * @param codeSNS El código SNS del paciente
+     */
+    public void updateIndex(long codeSNS) {
+        shards[shardOf(codeSNS, shards.length)].updateIndex(codeSNS);
+    }
+
+    /**
+     * Escribe en paralelo, cada uno de forma atómica, los fragmentos con pacientes modificados desde la última
+     * escritura. La primera vez escribe todos y, tras ellos, el manifiesto, eliminando la instantánea anterior
+     * de un solo fichero.
+     *
+     * @param dataBase La base de datos a escribir
+     * @throws IOException Si no se puede escribir algún fragmento, o alguno de los modificados está dañado (ver
+     * {@link #getDamagedFiles()}); en tal caso se reintentan todos en la siguiente escritura
+     */
+    public void write(DataBase dataBase) throws IOException {
+
+        BitSet pending;
+        synchronized(modified) {
+            pending = (BitSet) modified.clone();
+            modified.clear();
+        }
+
+        try {
+            synchronized(unreadable) {
+                if(pending.intersects(unreadable))
+                    throw new IOException("No se escriben los fragmentos " + unreadable + " de " + basePath
+                            + ": no se han podido leer, y hay que restaurarlos o apartarlos");
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for(int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+                int shard = i;
+                tasks.add(() -> {
+                    shards[shard].write(dataBase.getRegisteredUsers(), patientsOf(dataBase, shard));
+                    return null; });
+            }
+            for(Future<Void> result : ForkJoinPool.commonPool().invokeAll(tasks))
+                join(result);
+
+            if(!manifest.exists()) {
+                AtomicFile.write(manifest, (out) -> out.writeInt(shards.length));
+                new File(basePath + ".dat").delete();
+                new File(basePath + ".idx").delete();
+            }
+        }
+        catch(IOException | RuntimeException e) {
+            synchronized(modified) {
+                modified.or(pending);
+            }
+            throw e;
+        }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private void readSingle(DataBase dataBase) throws IOException {
+
+        File single = new File(basePath + ".dat");
+        try(InputStream in = new BufferedInputStream(new FileInputStream(single))) {
+            if(LegacySnapshotConverter.isLegacy(in)) {
+                DataBase legacy = LegacySnapshotConverter.readLegacy(in);
+                dataBase.getRegisteredUsers().putAll(legacy.getRegisteredUsers());
+                dataBase.setRegisteredPatients(legacy.getRegisteredPatients());
+                return;
+            }
+        }
+
+        // se carga completa, ya que tras repartirla entre los fragmentos se elimina
+        new SegmentedSnapshot(single).read(dataBase);
+        try {
+            dataBase.getRegisteredPatients().values().forEach(ResumenPacienteModel::loadDetails); }
+        catch(UncheckedIOException uioe) {
+            throw uioe.getCause(); }
+    }
+
+    private Map<Long, ResumenPacienteModel> readShard(int shard, Map<String, String> users) throws SchemaVersionException {
+
+        try {
+            return shards[shard].read(users); }
+        catch(SchemaVersionException sve) {
+            // fragmento válido, pero de otra versión de la aplicación: no se aparta
+            throw sve; }
+        catch(FileNotFoundException fnfe) {
+            // fragmento apartado a mano: se da por vacío y se vuelve a crear en la siguiente escritura
+            L.log(Level.WARNING, "No existe el fragmento {0} de la base de datos: se crea vacío", shardFile(shard, ".dat"));
+            synchronized(modified) {
+                modified.set(shard);
+            }
+            return new PatientHashMap(); }
+        catch(IOException ioe) {
+            // el fragmento ilegible se conserva tal cual, sin escribir encima, y se sigue con el resto de pacientes
+            L.log(Level.SEVERE, "No se ha podido leer el fragmento " + shardFile(shard, ".dat") + " de la base de datos"
+                    + ": no se escribirá hasta restaurarlo o apartarlo", ioe);
+            synchronized(unreadable) {
+                unreadable.set(shard);
+            }
+            return new PatientHashMap(); }
+    }
+
+    private Map<Long, ResumenPacienteModel> patientsOf(DataBase dataBase, int shard) {
+
+        Map<Long, ResumenPacienteModel> patients = dataBase.getRegisteredPatients();
+        if(patients instanceof ShardedPatientMap && ((ShardedPatientMap) patients).shards.size() == shards.length)
+            return ((ShardedPatientMap) patients).shards.get(shard);
+
+        // base de datos sin fragmentar todavía (instantánea de un solo fichero o datos iniciales)
+        Map<Long, ResumenPacienteModel> shardPatients = new PatientHashMap();
+        patients.forEach((codeSNS, patient) -> {
+            if(shardOf(codeSNS, shards.length) == shard)
+                shardPatients.put(codeSNS, patient); });
+        return shardPatients;
+    }
+
+    private File shardFile(int shard, String extension) {
+        return new File(basePath + "." + shard + extension);
+    }
+
+    private static int shardOf(long codeSNS, int count) {
+        return Math.floorMod(Long.hashCode(codeSNS), count);
+    }
+
+    private static <T> T join(Future<T> result) throws IOException {
+
+        try {
+            return result.get(); }
+        catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrumpida la lectura o escritura de los fragmentos"); }
+        catch(ExecutionException ee) {
+            if(ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            // las tareas que no admiten excepciones comprobadas las envuelven en una RuntimeException
+            if(ee.getCause() instanceof RuntimeException && ee.getCause().getCause() instanceof IOException)
+                throw (IOException) ee.getCause().getCause();
+            throw new IOException(ee.getCause()); }
+    }
+
+    /**
+     * Mapa de pacientes repartido en los mapas de cada fragmento: las consultas por código SNS se dirigen al
+     * fragmento del paciente, y los recorridos mezclan los fragmentos en orden de código SNS.
+     */
+    public static final class ShardedPatientMap extends AbstractMap<Long, ResumenPacienteModel> implements LazyPatientMap {
+
+        private final List<Map<Long, ResumenPacienteModel>> shards;
+
+        private ShardedPatientMap(List<Map<Long, ResumenPacienteModel>> shards) {
+            this.shards = shards;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Los pacientes se devuelven fragmento a fragmento, no en orden de código SNS.
+         */
+        @Override
+        public List<ResumenPacienteModel> loadedValues() {
+
+            List<ResumenPacienteModel> loaded = new ArrayList<>();
+            for(Map<Long, ResumenPacienteModel> shard : shards)
+                loaded.addAll(LazyPatientMap.loadedValues(shard));
+            return loaded;
+        }
+
+        @Override
+        public ResumenPacienteModel peek(Object key) {
+            return key instanceof Long ? LazyPatientMap.peek(shardFor((Long) key), key) : null;
+        }
+
+        @Override
+        public int size() {
+            return shards.stream().mapToInt(Map::size).sum();
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Long && shardFor((Long) key).containsKey(key);
+        }
+
+        @Override
+        public ResumenPacienteModel get(Object key) {
+            return key instanceof Long ? shardFor((Long) key).get(key) : null;
+        }
+
+        @Override
+        public ResumenPacienteModel put(Long key, ResumenPacienteModel value) {
+            return shardFor(key).put(key, value);
+        }
+
+        @Override
+        public ResumenPacienteModel remove(Object key) {
+            return key instanceof Long ? shardFor((Long) key).remove(key) : null;
+        }
+
+        @Override
+        public Set<Entry<Long, ResumenPacienteModel>> entrySet() {
+            return new AbstractSet<Entry<Long, ResumenPacienteModel>>() {
+                @Override
+                public Iterator<Entry<Long, ResumenPacienteModel>> iterator() {
+                    return new MergingIterator();
+                }
+
+                @Override
+                public int size() {
+                    return ShardedPatientMap.this.size();
+                }
+            };
+        }
+
+        private Map<Long, ResumenPacienteModel> shardFor(long codeSNS) {
+            return shards.get(shardOf(codeSNS, shards.size()));
+        }
+
+        /**
+         * Recorrido de los fragmentos (ordenados cada uno por código SNS) en un único orden por código SNS.
+         */
+        private final class MergingIterator implements Iterator<Entry<Long, ResumenPacienteModel>> {
+
+            private final PriorityQueue<Cursor> cursors = new PriorityQueue<>(
+                    Math.max(1, shards.size()), Comparator.comparing((Cursor cursor) -> cursor.head.getKey()));
+
+            MergingIterator() {
+                for(Map<Long, ResumenPacienteModel> shard : shards) {
+                    Iterator<Entry<Long, ResumenPacienteModel>> iterator = shard.entrySet().iterator();
+                    if(iterator.hasNext())
+                        cursors.add(new Cursor(iterator));
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !cursors.isEmpty();
+            }
+
+            @Override
+            public Entry<Long, ResumenPacienteModel> next() {
+
+                Cursor cursor = cursors.poll();
+                if(cursor == null)
+                    throw new NoSuchElementException();
+
+                Entry<Long, ResumenPacienteModel> entry = cursor.head;
+                if(cursor.iterator.hasNext()) {
+                    cursor.head = cursor.iterator.next();
+                    cursors.add(cursor);
+                }
+                return entry;
+            }
+        }
+
+        private static final class Cursor {
+
+            final Iterator<Entry<Long, ResumenPacienteModel>> iterator;
+            Entry<Long, ResumenPacienteModel> head;
+
+            Cursor(Iterator<Entry<Long, ResumenPacienteModel>> iterator) {
+                this.iterator = iterator;
+                this.head = iterator.next();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Diccionario de las cadenas que se repiten entre pacientes (médico asignado, medicación actual, alergias y compañía
+ * aseguradora): asigna a cada cadena distinta un código entero, con el que {@link PatientCodec} la escribe en lugar
+ * de la cadena. Al leer, todas las apariciones de una cadena devuelven la misma instancia, la del diccionario.
+ * <p>
+ * Los códigos son estables: las cadenas solo se añaden al final, y nunca se eliminan ni cambian de código, ya que
+ * los registros de detalles se copian de una instantánea a la siguiente sin decodificarlos. Cada cadena nueva se
+ * fuerza a disco antes de devolver su código, de forma que ningún registro (del diario o de la instantánea) llega
+ * a disco antes que las cadenas que usa. El diccionario es parte de la base de datos, junto a los fragmentos.
+ * <p>
+ * Para no crecer sin límite con los textos libres, las cadenas de más de {@value #MAX_LENGTH} caracteres no se
+ * codifican, ni ninguna nueva una vez alcanzadas {@value #MAX_SIZE}: en ambos casos el código es {@link #NONE}
+ * y la cadena se escribe completa.
+ * <p>
+ * Formato: [int MAGIC][int versión] seguido de las cadenas, en el orden de sus códigos, con writeUTF. Una cadena
+ * incompleta al final del fichero (una caída a mitad de escritura) se descarta, ya que ningún registro la usa.
+ * <p>
+ * Las lecturas de {@link #valueOf} no se bloquean, de forma que los fragmentos se pueden leer en paralelo.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class StringDictionary {
+
+    /**
+     * Código de una cadena que no está en el diccionario.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Longitud máxima de las cadenas que se codifican.
+     */
+    public static final int MAX_LENGTH = 64;
+
+    /**
+     * Número máximo de cadenas del diccionario.
+     */
+    public static final int MAX_SIZE = 1 << 16;
+
+    // Número mágico al comienzo del fichero ("SGHS") y versión de su formato
+    private static final int MAGIC = 0x53474853;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    // Código de cada cadena
+    private final Map<String, Integer> codes = new HashMap<>();
+    // Cadena de cada código: se reasigna tras cada alta, para publicarla a las lecturas sin bloqueo
+    private volatile String[] values = new String[16];
+    private int size;
+    // Fichero abierto para añadir cadenas, nulo hasta la primera
+    private RandomAccessFile writer;
+    private long length;
+
+    /**
+     * Crea el diccionario sobre el fichero indicado, leyendo sus cadenas si ya existe.
+     *
+     * @param file El fichero del diccionario
+     * @throws IOException Si existe pero no se puede leer, o no es un diccionario
+     */
+    public StringDictionary(File file) throws IOException {
+        this.file = file;
+        if(file.exists())
+            read();
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Código de una cadena, que se añade al diccionario (y a disco) si todavía no estaba.
+     *
+     * @param value La cadena
+     * @return Su código, o {@link #NONE} si no se codifica (por su longitud, o por estar lleno el diccionario)
+     * @throws IOException Si la cadena es nueva y no se puede escribir en disco
+     */
+    public synchronized int codeOf(String value) throws IOException {
+
+        Integer code = codes.get(value);
+        if(code != null)
+            return code;
+        if(value.length() > MAX_LENGTH || size >= MAX_SIZE)
+            return NONE;
+
+        append(value);
+        add(value);
+        return size - 1;
+    }
+
+    /**
+     * Cadena con el código indicado.
+     *
+     * @param code El código
+     * @return La cadena, o nula si el código no es del diccionario
+     */
+    public String valueOf(int code) {
+        String[] current = values;
+        return code >= 0 && code < current.length ? current[code] : null;
+    }
+
+    /**
+     * Número de cadenas del diccionario.
+     *
+     * @return El número de cadenas
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Cierra el fichero del diccionario, si se llegó a abrir para añadir cadenas.
+     *
+     * @throws IOException Si se produce un error al cerrarlo
+     */
+    public synchronized void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private void read() throws IOException {
+
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(raf.getChannel()));
+            if(raf.length() < HEADER_SIZE)
+                return; // creado a medias: se vuelve a escribir con la primera cadena
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("El fichero " + file + " no es un diccionario de cadenas");
+
+            length = HEADER_SIZE;
+            try {
+                while(length < raf.length()) {
+                    add(in.readUTF());
+                    length = raf.getFilePointer();
+                } }
+            catch(EOFException eofe) { } // cadena incompleta tras una caída
+        }
+    }
+
+    private void append(String value) throws IOException {
+
+        if(writer == null) {
+            writer = new RandomAccessFile(file, "rw");
+            if(length < HEADER_SIZE) {
+                writer.setLength(0);
+                writer.writeInt(MAGIC);
+                writer.writeInt(VERSION);
+                length = HEADER_SIZE;
+            }
+            // se descarta cualquier cadena incompleta, para que las siguientes queden bien alineadas
+            writer.setLength(length);
+            writer.seek(length);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() + 2);
+        new DataOutputStream(bytes).writeUTF(value);
+        writer.write(bytes.toByteArray());
+        writer.getChannel().force(false);
+        length += bytes.size();
+    }
+
+    private void add(String value) {
+
+        String[] current = values;
+        if(size == current.length)
+            current = Arrays.copyOf(current, size * 2);
+        current[size] = value;
+        codes.put(value, size++);
+        values = current;
+    }
+}
\ No newline at end of file
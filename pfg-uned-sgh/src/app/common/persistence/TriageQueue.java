@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Cola de pacientes por urgencia, para el menú del facultativo: por prioridad de triaje, de mayor a menor, y a
+ * igualdad de prioridad por orden de llegada. La llegada es la entrada del paciente en la cola: al construirla,
+ * los pacientes ya registrados entran en orden de código SNS, y después, cada alta por detrás de las anteriores.
+ * Los pacientes sin prioridad asignada quedan por detrás de todos los demás.
+ * <p>
+ * La cola es un montículo binario indexado por código SNS: un cambio de prioridad recoloca solo a su paciente,
+ * en tiempo logarítmico, sin reordenar al resto. De cada paciente se guardan solo su código SNS y su clave, de
+ * forma que la cola no retiene a los pacientes; se obtienen del repositorio al recorrerla. Quien muestre la cola
+ * puede seguir sus cambios, paciente a paciente, con {@link #addListener(Consumer)}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class TriageQueue implements Iterable<ResumenPacienteModel> {
+
+    // Clave de los pacientes sin prioridad de triaje, por detrás de todas las prioridades válidas
+    private static final int NO_PRIORITY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Obtiene un paciente a partir de su código SNS
+    private final LongFunction<ResumenPacienteModel> patients;
+    private final List<Consumer<ResumenPacienteModel>> listeners = new CopyOnWriteArrayList<>();
+
+    // Montículo: código SNS, prioridad y orden de llegada del paciente de cada posición, con el más urgente en la 0
+    private long[] codes = new long[INITIAL_CAPACITY];
+    private int[] priorities = new int[INITIAL_CAPACITY];
+    private long[] arrivals = new long[INITIAL_CAPACITY];
+    private int size;
+    // Posición en el montículo de cada paciente: <codeSNS, posición>
+    private final Map<Long, Integer> positions = new HashMap<>();
+    // Orden de llegada del siguiente paciente
+    private long nextArrival;
+
+    /**
+     * Construye la cola con los pacientes indicados, que llegan en el orden en que se recorren.
+     *
+     * @param registered Los pacientes registrados, en orden de código SNS
+     * @param patients La obtención de un paciente por su código SNS, para recorrer la cola
+     */
+    public TriageQueue(Iterable<ResumenPacienteModel> registered, LongFunction<ResumenPacienteModel> patients) {
+
+        this.patients = patients;
+        for(ResumenPacienteModel patient : registered) {
+            Long codeSNS = codeOf(patient);
+            if(codeSNS != null && !positions.containsKey(codeSNS))
+                append(codeSNS, priorityOf(patient));
+        }
+        // se ordena el montículo completo de una vez, en tiempo lineal
+        for(int i = size / 2 - 1; i >= 0; i--)
+            siftDown(i);
+    }
+
+    /////////////////////// INTERFAZ PÚBLICA /////////////////////////////////////////////////////////////////////
+
+    /**
+     * Registra la prioridad actual de un paciente recién guardado: si es nuevo entra en la cola, por detrás de
+     * los de su misma prioridad, y si ha cambiado su prioridad se recoloca. En ambos casos se avisa a los oyentes.
+     *
+     * @param patient El paciente
+     */
+    public void update(ResumenPacienteModel patient) {
+
+        Long codeSNS = codeOf(patient);
+        if(codeSNS == null)
+            return;
+
+        int priority = priorityOf(patient);
+        synchronized(this) {
+            Integer position = positions.get(codeSNS);
+            if(position == null)
+                siftUp(append(codeSNS, priority));
+            else if(priorities[position] != priority) {
+                priorities[position] = priority;
+                siftDown(siftUp(position));
+            }
+            else
+                return;
+        }
+        listeners.forEach((listener) -> listener.accept(patient));
+    }
+
+    /**
+     * Los pacientes más urgentes, sin retirarlos de la cola. Se recorren solo las posiciones del montículo
+     * necesarias, en tiempo proporcional al número de pacientes devueltos.
+     *
+     * @param limit El número máximo de pacientes
+     * @return Los pacientes, del más urgente al menos
+     */
+    public List<ResumenPacienteModel> first(int limit) {
+
+        List<Long> ordered = new ArrayList<>(Math.max(0, Math.min(limit, size())));
+        synchronized(this) {
+            // cada posición solo puede ir detrás de su padre: basta con una frontera de candidatos
+            PriorityQueue<Integer> frontier = new PriorityQueue<>(this::compare);
+            if(size > 0)
+                frontier.add(0);
+            while(!frontier.isEmpty() && ordered.size() < limit) {
+                int position = frontier.poll();
+                ordered.add(codes[position]);
+                for(int child = 2 * position + 1; child <= 2 * position + 2 && child < size; child++)
+                    frontier.add(child);
+            }
+        }
+
+        List<ResumenPacienteModel> found = new ArrayList<>(ordered.size());
+        for(long codeSNS : ordered) {
+            ResumenPacienteModel patient = patients.apply(codeSNS);
+            if(patient != null)
+                found.add(patient);
+        }
+        return found;
+    }
+
+    /**
+     * Recorre todos los pacientes de la cola, del más urgente al menos, tal y como están al empezar.
+     *
+     * @return El iterador
+     */
+    @Override
+    public Iterator<ResumenPacienteModel> iterator() {
+        return first(Integer.MAX_VALUE).iterator();
+    }
+
+    /**
+     * El orden de la cola entre dos pacientes, según la prioridad con la que figuran en ella. Los pacientes
+     * que no están en la cola van por detrás de todos los demás.
+     *
+     * @return El comparador, del más urgente al menos
+     */
+    public Comparator<ResumenPacienteModel> comparator() {
+        return (a, b) -> {
+            synchronized(this) {
+                Integer first = positions.get(codeOf(a)), second = positions.get(codeOf(b));
+                if(first == null || second == null)
+                    return first != null ? -1 : second != null ? 1 : 0;
+                return compare(first, second);
+            } };
+    }
+
+    /**
+     * Añade un oyente, al que se avisa con cada paciente que entra en la cola o cambia de prioridad. El aviso
+     * llega en el hilo que guarda al paciente.
+     *
+     * @param listener El oyente
+     */
+    public void addListener(Consumer<ResumenPacienteModel> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Retira un oyente añadido con {@link #addListener(Consumer)}.
+     *
+     * @param listener El oyente
+     */
+    public void removeListener(Consumer<ResumenPacienteModel> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Número de pacientes en la cola.
+     *
+     * @return El número de pacientes
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /////////////////////// INTERFAZ PRIVADA /////////////////////////////////////////////////////////////////////
+
+    private int append(long codeSNS, int priority) {
+
+        if(size == codes.length) {
+            codes = Arrays.copyOf(codes, size * 2);
+            priorities = Arrays.copyOf(priorities, size * 2);
+            arrivals = Arrays.copyOf(arrivals, size * 2);
+        }
+        codes[size] = codeSNS;
+        priorities[size] = priority;
+        arrivals[size] = nextArrival++;
+        positions.put(codeSNS, size);
+        return size++;
+    }
+
+    /**
+     * Sube el paciente de la posición indicada mientras sea más urgente que su padre.
+     *
+     * @return La posición final del paciente
+     */
+    private int siftUp(int position) {
+
+        while(position > 0) {
+            int parent = (position - 1) / 2;
+            if(compare(position, parent) >= 0)
+                break;
+            swap(position, parent);
+            position = parent;
+        }
+        return position;
+    }
+
+    /**
+     * Baja el paciente de la posición indicada mientras alguno de sus hijos sea más urgente que él.
+     */
+    private void siftDown(int position) {
+
+        while(true) {
+            int child = 2 * position + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && compare(child + 1, child) < 0)
+                child++;
+            if(compare(child, position) >= 0)
+                break;
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private int compare(int first, int second) {
+        if(priorities[first] != priorities[second])
+            return Integer.compare(priorities[second], priorities[first]);
+        return Long.compare(arrivals[first], arrivals[second]);
+    }
+
+    private void swap(int first, int second) {
+
+        long code = codes[first];
+        codes[first] = codes[second];
+        codes[second] = code;
+        int priority = priorities[first];
+        priorities[first] = priorities[second];
+        priorities[second] = priority;
+        long arrival = arrivals[first];
+        arrivals[first] = arrivals[second];
+        arrivals[second] = arrival;
+        positions.put(codes[first], first);
+        positions.put(codes[second], second);
+    }
+
+    private static Long codeOf(ResumenPacienteModel patient) {
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        return generales != null ? generales.getCodeSNS() : null;
+    }
+
+    private static int priorityOf(ResumenPacienteModel patient) {
+        // solo del índice del paciente, sin cargar sus detalles
+        Integer priority = patient.getTriajePriority();
+        return priority != null ? priority : NO_PRIORITY;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model;
+
+import java.util.Objects;
+
+/**
+ * Modelo con seguimiento de cambios: sus setters marcan el modelo como modificado ('dirty')
+ * únicamente cuando el nuevo valor es distinto del actual, de forma que solo se persistan
+ * los modelos que realmente han cambiado desde la última vez que se guardaron.
+ *
+ * @author Alberto Bausá Cano
+ */
+public abstract class TrackedModel implements IModel {
+    
+    private static final long serialVersionUID = 1L;
+    
+    // Indica si el modelo tiene cambios pendientes de persistir. No se persiste.
+    private transient boolean dirty;
+
+    /**
+     * Indica si el modelo tiene cambios pendientes de persistir.
+     *
+     * @return Verdadero si algún setter ha cambiado su valor desde el último guardado
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Marca el modelo como persistido, sin cambios pendientes.
+     */
+    public void clearDirty() {
+        dirty = false;
+    }
+
+    /**
+     * Para usar en los setters: marca el modelo como modificado si el nuevo valor difiere del actual.
+     *
+     * @param <T> El tipo del campo
+     * @param current El valor actual del campo
+     * @param value El nuevo valor
+     * @return El nuevo valor, para asignarlo al campo
+     */
+    protected final <T> T track(T current, T value) {
+        if(!Objects.deepEquals(current, value))
+            dirty = true;
+        return value;
+    }
+}
\ No newline at end of file
@@ -18,14 +18,35 @@ package app.model.datospaciente;
 
 import app.model.datospaciente.entity.DNI;
 import app.common.enums.PatientStateEnum;
-import app.model.IModel;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 
 /**
- * Modelo para los datos generales del paciente.
+ * Modelo para los datos generales del paciente. Existen una sola vez por paciente: las secciones de detalle hacen
+ * referencia a ellos (ver {@link DetallePacienteModel}).
+ * <p>
+ * El código SNS se guarda como primitivo, sin envoltorio; que no tenga valor se indica con un bit de la máscara
+ * de campos presentes. Los getters y setters mantienen los tipos de siempre, con nulo para el campo sin valor.
  *
  * @author Alberto Bausá Cano
  */
-public class DatoGeneralesModel implements IModel {
+public class DatoGeneralesModel extends SeccionPacienteModel {
+
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = -5820860186036985500L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: el código SNS con su envoltorio
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("name", String.class),
+        new ObjectStreamField("surname", String.class),
+        new ObjectStreamField("dni", DNI.class),
+        new ObjectStreamField("codeSNS", Long.class),
+        new ObjectStreamField("state", PatientStateEnum.class)
+    };
+
+    // Bits de la máscara de campos presentes
+    private static final int HAS_CODE_SNS = 1;
 
     public DatoGeneralesModel() { }
 
@@ -34,22 +55,24 @@ public class DatoGeneralesModel implements IModel {
         this.name = name;
         this.surname = surname;
         this.dni = dni;
-        this.codeSNS = codeSNS;
+        assignCodeSNS(codeSNS);
         this.state = state;
     }
 
     private String name;
     private String surname;
     private DNI dni;
-    private Long codeSNS;
+    private transient long codeSNS;
     private PatientStateEnum state;
+    // Campos primitivos con valor, un bit por campo
+    private transient byte present;
 
     public String getName() {
         return name;
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = track(this.name, name);
     }
     
     public String getSurname() {
@@ -57,7 +80,7 @@ public class DatoGeneralesModel implements IModel {
     }
     
     public void setSurname(String surname) {
-        this.surname = surname;
+        this.surname = track(this.surname, surname);
     }
 
     public DNI getDni() {
@@ -65,15 +88,21 @@ public class DatoGeneralesModel implements IModel {
     }
 
     public void setDni(DNI dni) {
-        this.dni = dni;
+        this.dni = track(this.dni, dni);
     }
 
+    @Override
     public Long getCodeSNS() {
-        return codeSNS;
+        return (present & HAS_CODE_SNS) != 0 ? codeSNS : null;
     }
 
     public void setCodeSNS(Long codeSNS) {
-        this.codeSNS = codeSNS;
+        assignCodeSNS(track(getCodeSNS(), codeSNS));
+    }
+
+    private void assignCodeSNS(Long codeSNS) {
+        this.codeSNS = codeSNS != null ? codeSNS : 0;
+        this.present = (byte) (codeSNS != null ? present | HAS_CODE_SNS : present & ~HAS_CODE_SNS);
     }
 
     public PatientStateEnum getState() {
@@ -81,6 +110,36 @@ public class DatoGeneralesModel implements IModel {
     }
 
     public void setState(PatientStateEnum state) {
-        this.state = state;
+        this.state = track(this.state, state);
+    }
+
+    @Override
+    public boolean isDirty() {
+        return super.isDirty() || (dni != null && dni.isDirty());
+    }
+
+    @Override
+    public void clearDirty() {
+        super.clearDirty();
+        if(dni != null) dni.clearDirty();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", name);
+        fields.put("surname", surname);
+        fields.put("dni", dni);
+        fields.put("codeSNS", getCodeSNS());
+        fields.put("state", state);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        name = (String) fields.get("name", null);
+        surname = (String) fields.get("surname", null);
+        dni = (DNI) fields.get("dni", null);
+        assignCodeSNS((Long) fields.get("codeSNS", null));
+        state = (PatientStateEnum) fields.get("state", null);
     }
 }
\ No newline at end of file
@@ -16,33 +16,66 @@
  */
 package app.model.datospaciente;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+
 /**
- * Modelo para los datos bancarios del paciente, extiende de {@link DatoGeneralesModel}.
+ * Modelo para los datos bancarios del paciente, una de sus secciones de detalle (ver {@link DetallePacienteModel}).
+ * <p>
+ * El número de cuenta y el seguro médico se guardan como primitivos, con un bit por campo en la máscara de campos
+ * presentes para indicar que no tienen valor.
  *
  * @author Alberto Bausá Cano
  */
-public class DatosBancariosModel extends DatoGeneralesModel {
+public class DatosBancariosModel extends DetallePacienteModel {
+    
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = 3169130589388075499L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: los primitivos con su envoltorio
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("accountNumber", Long.class),
+        new ObjectStreamField("healthInsurance", Boolean.class),
+        new ObjectStreamField("insuranceCompany", String.class)
+    };
+
+    // Bits de la máscara de campos presentes
+    private static final int HAS_ACCOUNT_NUMBER = 1;
+    private static final int HAS_HEALTH_INSURANCE = 1 << 1;
     
     public DatosBancariosModel() { }
     
-    private Long accountNumber;
-    private Boolean healthInsurance;
+    private transient long accountNumber;
+    private transient boolean healthInsurance;
     private String insuranceCompany;
+    // Campos primitivos con valor, un bit por campo
+    private transient byte present;
 
     public Long getAccountNumber() {
-        return accountNumber;
+        return (present & HAS_ACCOUNT_NUMBER) != 0 ? accountNumber : null;
     }
 
     public void setAccountNumber(Long accountNumber) {
-        this.accountNumber = accountNumber;
+        assignAccountNumber(track(getAccountNumber(), accountNumber));
+    }
+
+    private void assignAccountNumber(Long accountNumber) {
+        this.accountNumber = accountNumber != null ? accountNumber : 0;
+        this.present = (byte) (accountNumber != null ? present | HAS_ACCOUNT_NUMBER : present & ~HAS_ACCOUNT_NUMBER);
     }
 
     public Boolean getHealthInsurance() {
-        return healthInsurance;
+        return (present & HAS_HEALTH_INSURANCE) != 0 ? healthInsurance : null;
     }
 
     public void setHealthInsurance(Boolean healthInsurance) {
-        this.healthInsurance = healthInsurance;
+        assignHealthInsurance(track(getHealthInsurance(), healthInsurance));
+    }
+
+    private void assignHealthInsurance(Boolean healthInsurance) {
+        this.healthInsurance = healthInsurance != null && healthInsurance;
+        this.present = (byte) (healthInsurance != null ? present | HAS_HEALTH_INSURANCE : present & ~HAS_HEALTH_INSURANCE);
     }
 
     public String getInsuranceCompany() {
@@ -50,6 +83,21 @@ public class DatosBancariosModel extends DatoGeneralesModel {
     }
 
     public void setInsuranceCompany(String insuranceCompany) {
-        this.insuranceCompany = insuranceCompany;
+        this.insuranceCompany = track(this.insuranceCompany, insuranceCompany);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("accountNumber", getAccountNumber());
+        fields.put("healthInsurance", getHealthInsurance());
+        fields.put("insuranceCompany", insuranceCompany);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        assignAccountNumber((Long) fields.get("accountNumber", null));
+        assignHealthInsurance((Boolean) fields.get("healthInsurance", null));
+        insuranceCompany = (String) fields.get("insuranceCompany", null);
     }
 }
\ No newline at end of file
@@ -16,28 +16,54 @@
  */
 package app.model.datospaciente;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+
 /**
- * Modelo para los datos clínicos del paciente, extiende de {@link DatoGeneralesModel}.
+ * Modelo para los datos clínicos del paciente, una de sus secciones de detalle (ver {@link DetallePacienteModel}).
+ * <p>
+ * La RCP y la prioridad de triaje se guardan como primitivos, con un bit por campo en la máscara de campos
+ * presentes para indicar que no tienen valor.
  *
  * @author Alberto Bausá Cano
  */
-public class DatosClinicosModel extends DatoGeneralesModel {
+public class DatosClinicosModel extends DetallePacienteModel {
+    
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = -6580363541655228170L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: los primitivos con su envoltorio
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("asignedDoctor", String.class),
+        new ObjectStreamField("currentMedication", String.class),
+        new ObjectStreamField("rcp", Boolean.class),
+        new ObjectStreamField("allergies", String[].class),
+        new ObjectStreamField("allergiesByLine", String.class),
+        new ObjectStreamField("triajePriority", Integer.class)
+    };
+
+    // Bits de la máscara de campos presentes
+    private static final int HAS_RCP = 1;
+    private static final int HAS_TRIAJE_PRIORITY = 1 << 1;
     
     public DatosClinicosModel() { }
     
     private String asignedDoctor;
     private String currentMedication;
-    private Boolean rcp;
+    private transient boolean rcp;
     private String[] allergies;
     private String allergiesByLine;
-    private Integer triajePriority = 0;
+    private transient int triajePriority;
+    // Campos primitivos con valor, un bit por campo; la prioridad de triaje empieza en 0
+    private transient byte present = HAS_TRIAJE_PRIORITY;
 
     public String getAsignedDoctor() {
         return asignedDoctor;
     }
 
     public void setAsignedDoctor(String asignedDoctor) {
-        this.asignedDoctor = asignedDoctor;
+        this.asignedDoctor = track(this.asignedDoctor, asignedDoctor);
     }
 
     public String getCurrentMedication() {
@@ -45,15 +71,20 @@ public class DatosClinicosModel extends DatoGeneralesModel {
     }
 
     public void setCurrentMedication(String currentMedication) {
-        this.currentMedication = currentMedication;
+        this.currentMedication = track(this.currentMedication, currentMedication);
     }
 
     public Boolean getRcp() {
-        return rcp;
+        return (present & HAS_RCP) != 0 ? rcp : null;
     }
 
     public void setRcp(Boolean rcp) {
-        this.rcp = rcp;
+        assignRcp(track(getRcp(), rcp));
+    }
+
+    private void assignRcp(Boolean rcp) {
+        this.rcp = rcp != null && rcp;
+        this.present = (byte) (rcp != null ? present | HAS_RCP : present & ~HAS_RCP);
     }
 
     public String[] getAllergies() {
@@ -61,7 +92,7 @@ public class DatosClinicosModel extends DatoGeneralesModel {
     }
 
     public void setAllergies(String[] allergies) {
-        this.allergies = allergies;
+        this.allergies = track(this.allergies, allergies);
     }
 
     public String getAllergies(int index) {
@@ -86,10 +117,36 @@ public class DatosClinicosModel extends DatoGeneralesModel {
     }
 
     public Integer getTriajePriority() {
-        return triajePriority;
+        return (present & HAS_TRIAJE_PRIORITY) != 0 ? triajePriority : null;
     }
 
     public void setTriajePriority(Integer triajePriority) {
-        this.triajePriority = triajePriority;
+        assignTriajePriority(track(getTriajePriority(), triajePriority));
+    }
+
+    private void assignTriajePriority(Integer triajePriority) {
+        this.triajePriority = triajePriority != null ? triajePriority : 0;
+        this.present = (byte) (triajePriority != null ? present | HAS_TRIAJE_PRIORITY : present & ~HAS_TRIAJE_PRIORITY);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("asignedDoctor", asignedDoctor);
+        fields.put("currentMedication", currentMedication);
+        fields.put("rcp", getRcp());
+        fields.put("allergies", allergies);
+        fields.put("allergiesByLine", allergiesByLine);
+        fields.put("triajePriority", getTriajePriority());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        asignedDoctor = (String) fields.get("asignedDoctor", null);
+        currentMedication = (String) fields.get("currentMedication", null);
+        assignRcp((Boolean) fields.get("rcp", null));
+        allergies = (String[]) fields.get("allergies", null);
+        allergiesByLine = (String) fields.get("allergiesByLine", null);
+        assignTriajePriority((Integer) fields.get("triajePriority", null));
     }
 }
\ No newline at end of file
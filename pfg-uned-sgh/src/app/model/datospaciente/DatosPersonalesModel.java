@@ -18,13 +18,33 @@ package app.model.datospaciente;
 
 import app.common.enums.PatientSexEnum;
 import app.model.datospaciente.entity.Birthdate;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 
 /**
- * Modelo para los datos personales del paciente, extiende de {@link DatoGeneralesModel}.
+ * Modelo para los datos personales del paciente, una de sus secciones de detalle (ver {@link DetallePacienteModel}).
+ * <p>
+ * El teléfono se guarda como primitivo, con un bit de la máscara de campos presentes para indicar que no tiene valor.
  *
  * @author Alberto Bausá Cano
  */
-public class DatosPersonalesModel extends DatoGeneralesModel {
+public class DatosPersonalesModel extends DetallePacienteModel {
+    
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = 2989313476351294859L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: el teléfono con su envoltorio
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("birthDate", Birthdate.class),
+        new ObjectStreamField("patientSex", PatientSexEnum.class),
+        new ObjectStreamField("email", String.class),
+        new ObjectStreamField("postalAddress", String.class),
+        new ObjectStreamField("phoneNumber", Long.class)
+    };
+
+    // Bits de la máscara de campos presentes
+    private static final int HAS_PHONE_NUMBER = 1;
     
     public DatosPersonalesModel() { }
     
@@ -32,14 +52,16 @@ public class DatosPersonalesModel extends DatoGeneralesModel {
     private PatientSexEnum patientSex;
     private String email;
     private String postalAddress;
-    private Long phoneNumber;
+    private transient long phoneNumber;
+    // Campos primitivos con valor, un bit por campo
+    private transient byte present;
 
     public Birthdate getBirthDate() {
         return birthDate;
     }
 
     public void setBirthDate(Birthdate birthDate) {
-        this.birthDate = birthDate;
+        this.birthDate = track(this.birthDate, birthDate);
     }
 
     public PatientSexEnum getPatientSex() {
@@ -47,7 +69,7 @@ public class DatosPersonalesModel extends DatoGeneralesModel {
     }
 
     public void setPatientSex(PatientSexEnum patientSex) {
-        this.patientSex = patientSex;
+        this.patientSex = track(this.patientSex, patientSex);
     }
 
     public String getEmail() {
@@ -55,7 +77,7 @@ public class DatosPersonalesModel extends DatoGeneralesModel {
     }
 
     public void setEmail(String email) {
-        this.email = email;
+        this.email = track(this.email, email);
     }
 
     public String getPostalAddress() {
@@ -63,14 +85,49 @@ public class DatosPersonalesModel extends DatoGeneralesModel {
     }
 
     public void setPostalAddress(String postalAddress) {
-        this.postalAddress = postalAddress;
+        this.postalAddress = track(this.postalAddress, postalAddress);
     }
 
     public Long getPhoneNumber() {
-        return phoneNumber;
+        return (present & HAS_PHONE_NUMBER) != 0 ? phoneNumber : null;
     }
 
     public void setPhoneNumber(Long phoneNumber) {
-        this.phoneNumber = phoneNumber;
+        assignPhoneNumber(track(getPhoneNumber(), phoneNumber));
+    }
+
+    private void assignPhoneNumber(Long phoneNumber) {
+        this.phoneNumber = phoneNumber != null ? phoneNumber : 0;
+        this.present = (byte) (phoneNumber != null ? present | HAS_PHONE_NUMBER : present & ~HAS_PHONE_NUMBER);
+    }
+
+    @Override
+    public boolean isDirty() {
+        return super.isDirty() || (birthDate != null && birthDate.isDirty());
+    }
+
+    @Override
+    public void clearDirty() {
+        super.clearDirty();
+        if(birthDate != null) birthDate.clearDirty();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("birthDate", birthDate);
+        fields.put("patientSex", patientSex);
+        fields.put("email", email);
+        fields.put("postalAddress", postalAddress);
+        fields.put("phoneNumber", getPhoneNumber());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        birthDate = (Birthdate) fields.get("birthDate", null);
+        patientSex = (PatientSexEnum) fields.get("patientSex", null);
+        email = (String) fields.get("email", null);
+        postalAddress = (String) fields.get("postalAddress", null);
+        assignPhoneNumber((Long) fields.get("phoneNumber", null));
     }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente;
+
+/**
+ * Sección de detalle de un paciente (datos personales, clínicos o bancarios).
+ * <p>
+ * Los datos generales existen una sola vez por paciente: la sección no los repite, sino que hace referencia a los
+ * de su paciente (ver {@link ResumenPacienteModel#linkSections}). La referencia no se serializa.
+ *
+ * @author Alberto Bausá Cano
+ */
+public abstract class DetallePacienteModel extends SeccionPacienteModel {
+
+    private static final long serialVersionUID = 1L;
+
+    // Datos generales del paciente al que pertenece la sección, nulos mientras no se asigne a uno
+    private transient DatoGeneralesModel datosGenerales;
+
+    /**
+     * Datos generales del paciente al que pertenece la sección.
+     *
+     * @return Los datos generales, o nulo si la sección no se ha asignado aún a un paciente
+     */
+    public DatoGeneralesModel getDatosGenerales() {
+        return datosGenerales;
+    }
+
+    @Override
+    public Long getCodeSNS() {
+        return datosGenerales != null ? datosGenerales.getCodeSNS() : null;
+    }
+
+    /**
+     * Asigna la sección al paciente con los datos generales indicados, sin considerarlo un cambio.
+     *
+     * @param datosGenerales Los datos generales del paciente
+     */
+    void linkTo(DatoGeneralesModel datosGenerales) {
+        this.datosGenerales = datosGenerales;
+    }
+}
\ No newline at end of file
@@ -16,16 +16,28 @@
  */
 package app.model.datospaciente;
 
+import app.common.enums.PatientSexEnum;
 import app.model.IModel;
+import app.model.datospaciente.entity.Birthdate;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.UncheckedIOException;
 
 /**
  * Clase que sirve como representación de un paciente en el sistema. Engloba
  * todos sus datos, generales, así como los personales, clínicos y bancarios.
+ * <p>
+ * Un paciente puede crearse solo a partir de su índice (datos generales, sexo, fecha de nacimiento y prioridad de triaje),
+ * con sus secciones de detalle (datos personales, clínicos y bancarios) pendientes de carga: estas se
+ * leen de disco la primera vez que se accede a ellas, o al llamar a {@link #loadDetails()}.
  *
  * @author Alberto Bausá Cano
  */
 public class ResumenPacienteModel implements IModel {
     
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = 4590998340174633464L;
+    
     public ResumenPacienteModel() { }
 
     public ResumenPacienteModel(DatoGeneralesModel datosPaciente, DatosPersonalesModel datosPersonales,
@@ -34,12 +46,45 @@ public class ResumenPacienteModel implements IModel {
         this.datosPersonales = datosPersonales;
         this.datosClinicos = datosClinicos;
         this.datosBancarios = datosBancarios;
+        linkSections();
+    }
+
+    /**
+     * Crea un paciente a partir de su índice, con las secciones de detalle pendientes de carga.
+     * 
+     * @param datosGenerales Los datos generales del paciente
+     * @param patientSex El sexo del paciente, para los listados
+     * @param birthDate La fecha de nacimiento del paciente, para los listados
+     * @param triajePriority La prioridad de triaje del paciente, para los listados
+     * @param detailLoader La carga bajo demanda de las secciones de detalle
+     */
+    public ResumenPacienteModel(DatoGeneralesModel datosGenerales, PatientSexEnum patientSex, Birthdate birthDate,
+                        Integer triajePriority, DetailLoader detailLoader) {
+        this.datosGenerales = datosGenerales;
+        this.indexedSex = patientSex;
+        this.indexedBirthDate = birthDate;
+        this.indexedPriority = triajePriority;
+        this.detailLoader = detailLoader;
     }
     
     private DatoGeneralesModel datosGenerales;
     private DatosPersonalesModel datosPersonales;
     private DatosClinicosModel datosClinicos;
     private DatosBancariosModel datosBancarios;
+    
+    // Carga de las secciones de detalle; nula una vez cargadas (o si el paciente se creó completo)
+    private transient volatile DetailLoader detailLoader;
+    // Sexo, fecha de nacimiento y prioridad de triaje leídos del índice, válidos mientras no se carguen los detalles
+    private transient PatientSexEnum indexedSex;
+    private transient Birthdate indexedBirthDate;
+    private transient Integer indexedPriority;
+
+    /**
+     * Carga bajo demanda de las secciones de detalle de un paciente.
+     */
+    public interface DetailLoader {
+        void loadDetails(ResumenPacienteModel patient) throws IOException;
+    }
 
     public DatoGeneralesModel getDatosGenerales() {
         return datosGenerales;
@@ -47,29 +92,161 @@ public class ResumenPacienteModel implements IModel {
 
     public void setDatosGenerales(DatoGeneralesModel datosGenerales) {
         this.datosGenerales = datosGenerales;
+        linkSections();
     }
 
     public DatosPersonalesModel getDatosPersonales() {
+        loadDetails();
         return datosPersonales;
     }
 
     public void setDatosPersonales(DatosPersonalesModel datosPersonales) {
+        // se cargan antes los detalles, para que no sobrescriban después a la nueva sección
+        loadDetails();
         this.datosPersonales = datosPersonales;
+        linkSections();
     }
 
     public DatosClinicosModel getDatosClinicos() {
+        loadDetails();
         return datosClinicos;
     }
 
     public void setDatosClinicos(DatosClinicosModel datosClinicos) {
+        // se cargan antes los detalles, para que no sobrescriban después a la nueva sección
+        loadDetails();
         this.datosClinicos = datosClinicos;
+        linkSections();
     }
 
     public DatosBancariosModel getDatosBancarios() {
+        loadDetails();
         return datosBancarios;
     }
 
     public void setDatosBancarios(DatosBancariosModel datosBancarios) {
+        // se cargan antes los detalles, para que no sobrescriban después a la nueva sección
+        loadDetails();
         this.datosBancarios = datosBancarios;
+        linkSections();
+    }
+
+    /**
+     * Sexo del paciente, disponible sin necesidad de cargar sus detalles.
+     * 
+     * @return El sexo del paciente
+     */
+    public PatientSexEnum getPatientSex() {
+        if(datosPersonales != null)
+            return datosPersonales.getPatientSex();
+        return isDetailLoaded() ? null : indexedSex;
+    }
+
+    /**
+     * Fecha de nacimiento del paciente, disponible sin necesidad de cargar sus detalles.
+     * 
+     * @return La fecha de nacimiento del paciente
+     */
+    public Birthdate getBirthDate() {
+        if(datosPersonales != null)
+            return datosPersonales.getBirthDate();
+        return isDetailLoaded() ? null : indexedBirthDate;
+    }
+
+    /**
+     * Prioridad de triaje del paciente, disponible sin necesidad de cargar sus detalles.
+     * 
+     * @return La prioridad de triaje del paciente
+     */
+    public Integer getTriajePriority() {
+        if(datosClinicos != null)
+            return datosClinicos.getTriajePriority();
+        return isDetailLoaded() ? null : indexedPriority;
+    }
+
+    /**
+     * Indica si las secciones de detalle del paciente están ya en memoria.
+     * 
+     * @return Verdadero si no queda nada pendiente de cargar
+     */
+    public boolean isDetailLoaded() {
+        return detailLoader == null;
+    }
+
+    /**
+     * Carga, si no lo estaban ya, las secciones de detalle del paciente (datos personales, clínicos y bancarios).
+     * 
+     * @throws UncheckedIOException Si no se pueden leer de disco; en tal caso quedan pendientes de carga
+     */
+    public void loadDetails() {
+        DetailLoader loader = detailLoader;
+        if(loader == null)
+            return;
+        
+        synchronized(this) {
+            if(detailLoader == null)
+                return;
+            try {
+                loader.loadDetails(this); }
+            catch(IOException ioe) {
+                throw new UncheckedIOException("No se han podido cargar los datos del paciente", ioe); }
+            detailLoader = null;
+            indexedSex = null;
+            indexedBirthDate = null;
+            indexedPriority = null;
+        }
+    }
+
+    /**
+     * Asigna las secciones de detalle leídas de disco. Las secciones ya asignadas no se sustituyen.
+     * 
+     * @param datosPersonales Los datos personales leídos
+     * @param datosClinicos Los datos clínicos leídos
+     * @param datosBancarios Los datos bancarios leídos
+     */
+    public void attachDetails(DatosPersonalesModel datosPersonales, DatosClinicosModel datosClinicos,
+                        DatosBancariosModel datosBancarios) {
+        if(this.datosPersonales == null)    this.datosPersonales = datosPersonales;
+        if(this.datosClinicos == null)      this.datosClinicos = datosClinicos;
+        if(this.datosBancarios == null)     this.datosBancarios = datosBancarios;
+        linkSections();
+    }
+
+    /**
+     * Asigna a cada una de las secciones de detalle del paciente (datos personales, clínicos y bancarios) sus
+     * datos generales, de forma que cualquiera de ellas identifique por sí sola a su paciente.
+     */
+    public final void linkSections() {
+        if(datosPersonales != null) datosPersonales.linkTo(datosGenerales);
+        if(datosClinicos != null)   datosClinicos.linkTo(datosGenerales);
+        if(datosBancarios != null)  datosBancarios.linkTo(datosGenerales);
+    }
+
+    /**
+     * Indica si alguna de las secciones del paciente tiene cambios pendientes de persistir.
+     *
+     * @return Verdadero si el paciente ha sido modificado desde el último guardado
+     */
+    public boolean isDirty() {
+        return (datosGenerales != null && datosGenerales.isDirty())
+                || (datosPersonales != null && datosPersonales.isDirty())
+                || (datosClinicos != null && datosClinicos.isDirty())
+                || (datosBancarios != null && datosBancarios.isDirty());
+    }
+
+    /**
+     * Marca todas las secciones del paciente como persistidas, sin cambios pendientes.
+     */
+    public void clearDirty() {
+        if(datosGenerales != null)  datosGenerales.clearDirty();
+        if(datosPersonales != null) datosPersonales.clearDirty();
+        if(datosClinicos != null)   datosClinicos.clearDirty();
+        if(datosBancarios != null)  datosBancarios.clearDirty();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // la referencia de cada sección a los datos generales no se serializa
+        linkSections();
     }
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente;
+
+import app.model.TrackedModel;
+
+/**
+ * Sección de los datos de un paciente: sus datos generales, o una de sus secciones de detalle (datos personales,
+ * clínicos y bancarios). Es la unidad en que se guardan los cambios de un paciente.
+ *
+ * @author Alberto Bausá Cano
+ */
+public abstract class SeccionPacienteModel extends TrackedModel {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Código SNS del paciente al que pertenece la sección, que lo identifica.
+     *
+     * @return El código SNS, o nulo si la sección no pertenece aún a un paciente con código
+     */
+    public abstract Long getCodeSNS();
+}
\ No newline at end of file
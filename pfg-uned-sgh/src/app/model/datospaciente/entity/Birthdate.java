@@ -16,46 +16,197 @@
  */
 package app.model.datospaciente.entity;
 
-import app.model.IModel;
+import app.model.TrackedModel;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 
 /**
- * Clase que representa la fecha de nacimiento como tres enteros, para día, mes y año.
+ * Clase que representa la fecha de nacimiento, con su día, mes y año.
+ * <p>
+ * Una fecha completa y válida se guarda como un solo entero, sus días desde 1970 (ver {@link #getEpochDay()}), del
+ * que se calculan día, mes, año y edad sin crear objetos. Las fechas se construyen validadas con {@link #of}; el
+ * constructor y los métodos de asignación admiten además fechas incompletas o inválidas, las de las bases de datos
+ * ya existentes y las de los formularios a medio editar, que se guardan tal cual y no tienen edad.
  *
  * @author Alberto Bausá Cano
  */
-public class Birthdate implements IModel {
+public class Birthdate extends TrackedModel {
     
-    private Integer day;
-    private Integer month;
-    private Integer year;
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = -6833396545696340106L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: los tres enteros con su envoltorio
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("day", Integer.class),
+        new ObjectStreamField("month", Integer.class),
+        new ObjectStreamField("year", Integer.class)
+    };
+
+
+    /**
+     * Días desde 1970 de las fechas incompletas o inválidas: por detrás de todas las válidas.
+     */
+    public static final int NO_DATE = Integer.MAX_VALUE;
+    // Años admitidos en una fecha válida, los de cuatro cifras
+    private static final int MIN_YEAR = 1;
+    private static final int MAX_YEAR = 9999;
+    // Días del 1 de marzo del año 0 al 1 de enero de 1970, y de cada ciclo de 400 años del calendario gregoriano
+    private static final int DAYS_0000_TO_1970 = 719468;
+    private static final int DAYS_PER_CYCLE = 146097;
+    
+    // Días desde 1970 de la fecha, o NO_DATE si es incompleta o inválida
+    private transient int epochDay;
+    // Día, mes y año de una fecha incompleta o inválida, tal cual se asignaron; nulo si la fecha es válida
+    private transient Integer[] invalidFields;
 
     public Birthdate(Integer day, Integer month, Integer year) {
-        this.day = day;
-        this.month = month;
-        this.year = year;
+        assign(day, month, year);
+    }
+
+    /**
+     * Crea una fecha de nacimiento, que debe ser válida.
+     *
+     * @param day El día del mes
+     * @param month El mes, de 1 a 12
+     * @param year El año, de cuatro cifras
+     * @return La fecha de nacimiento
+     * @throws IllegalArgumentException Si la fecha no existe, incluido el 29 de febrero de los años no bisiestos
+     */
+    public static Birthdate of(int day, int month, int year) {
+        if(!isValid(day, month, year))
+            throw new IllegalArgumentException("fecha de nacimiento no válida: " + day + "/" + month + "/" + year);
+        return new Birthdate(day, month, year);
+    }
+
+    /**
+     * Indica si una fecha existe, y por tanto se puede construir con {@link #of}.
+     *
+     * @param day El día del mes
+     * @param month El mes
+     * @param year El año
+     * @return Verdadero si la fecha es válida
+     */
+    public static boolean isValid(int day, int month, int year) {
+        return year >= MIN_YEAR && year <= MAX_YEAR && month >= 1 && month <= 12
+                && day >= 1 && day <= daysInMonth(month, year);
+    }
+
+    /**
+     * @return Verdadero si la fecha está completa y es válida
+     */
+    public boolean isValid() {
+        return invalidFields == null;
+    }
+
+    /**
+     * Fecha en días desde el 1 de enero de 1970, como {@link java.time.LocalDate#toEpochDay()}: ordena las fechas
+     * como enteros.
+     *
+     * @return Los días, o {@link #NO_DATE} si la fecha es incompleta o inválida
+     */
+    public int getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * Edad, en años cumplidos, en la fecha indicada. Los nacidos un 29 de febrero cumplen años el 1 de marzo en los
+     * años no bisiestos. No crea objetos.
+     *
+     * @param epochDay La fecha, en días desde 1970
+     * @return La edad, o -1 si la fecha de nacimiento es incompleta o inválida, o posterior a la indicada
+     */
+    public int ageAt(int epochDay) {
+        if(invalidFields != null || epochDay < this.epochDay)
+            return -1;
+        int date = civil(epochDay);
+        int birth = civil(this.epochDay);
+        // el año va en los bits altos, y el mes y el día en los 9 bajos, que se comparan como un número
+        return (date >> 9) - (birth >> 9) - ((date & 0x1FF) < (birth & 0x1FF) ? 1 : 0);
     }
 
     public Integer getDay() {
-        return day;
+        return invalidFields != null ? invalidFields[0] : Integer.valueOf(civil(epochDay) & 0x1F);
     }
 
     public void setDay(Integer day) {
-        this.day = day;
+        assign(track(getDay(), day), getMonth(), getYear());
     }
 
     public Integer getMonth() {
-        return month;
+        return invalidFields != null ? invalidFields[1] : Integer.valueOf(civil(epochDay) >> 5 & 0xF);
     }
 
     public void setMonth(Integer month) {
-        this.month = month;
+        assign(getDay(), track(getMonth(), month), getYear());
     }
 
     public Integer getYear() {
-        return year;
+        return invalidFields != null ? invalidFields[2] : Integer.valueOf(civil(epochDay) >> 9);
     }
 
     public void setYear(Integer year) {
-        this.year = year;
+        assign(getDay(), getMonth(), track(getYear(), year));
+    }
+
+    private void assign(Integer day, Integer month, Integer year) {
+        if(day != null && month != null && year != null && isValid(day, month, year)) {
+            this.epochDay = epochDay(day, month, year);
+            this.invalidFields = null;
+        }
+        else {
+            this.epochDay = NO_DATE;
+            this.invalidFields = new Integer[] { day, month, year };
+        }
+    }
+
+    private static int daysInMonth(int month, int year) {
+        if(month == 2)
+            return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0 ? 29 : 28;
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Días desde 1970 de una fecha válida. Los años se cuentan desde marzo, para dejar el 29 de febrero al final,
+     * en ciclos de 400 años.
+     */
+    private static int epochDay(int day, int month, int year) {
+        int y = month <= 2 ? year - 1 : year;
+        int cycle = y / 400;
+        int yearOfCycle = y - cycle * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfCycle = yearOfCycle * 365 + yearOfCycle / 4 - yearOfCycle / 100 + dayOfYear;
+        return cycle * DAYS_PER_CYCLE + dayOfCycle - DAYS_0000_TO_1970;
+    }
+
+    /**
+     * Inversa de {@link #epochDay(int, int, int)}, sin crear objetos.
+     *
+     * @return El año, el mes y el día de una fecha válida, en un entero: año &lt;&lt; 9 | mes &lt;&lt; 5 | día
+     */
+    private static int civil(int epochDay) {
+        int days = epochDay + DAYS_0000_TO_1970;
+        int cycle = days / DAYS_PER_CYCLE;
+        int dayOfCycle = days - cycle * DAYS_PER_CYCLE;
+        int yearOfCycle = (dayOfCycle - dayOfCycle / 1460 + dayOfCycle / 36524 - dayOfCycle / 146096) / 365;
+        int dayOfYear = dayOfCycle - (365 * yearOfCycle + yearOfCycle / 4 - yearOfCycle / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = cycle * 400 + yearOfCycle + (month <= 2 ? 1 : 0);
+        return year << 9 | month << 5 | day;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("day", getDay());
+        fields.put("month", getMonth());
+        fields.put("year", getYear());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        assign((Integer) fields.get("day", null), (Integer) fields.get("month", null), (Integer) fields.get("year", null));
     }
 }
\ No newline at end of file
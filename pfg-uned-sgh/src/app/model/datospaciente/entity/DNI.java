@@ -16,41 +16,143 @@
  */
 package app.model.datospaciente.entity;
 
-import app.model.IModel;
+import app.model.TrackedModel;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 
 /**
  * Clase que representa un DNI como una secuencia de dígitos y una letra.
+ * <p>
+ * Los dígitos y la letra se guardan empaquetados en un solo valor (ver {@link #pack()}). El DNI es mutable (el
+ * formulario de datos generales lo edita en el sitio), por lo que no se compara por valor ni debe usarse como
+ * clave de un mapa: para comparar dos DNI, o como clave, se usa su valor empaquetado, como en el índice por DNI
+ * de los pacientes. La letra de control se puede comprobar con {@link #isValid()}.
  *
  * @author Alberto Bausá Cano
  */
-public class DNI implements IModel {
+public class DNI extends TrackedModel {
     
-    private Integer digits;
-    private char letter;
+    // Versión de serialización fijada a la de las bases de datos ya existentes en disco
+    private static final long serialVersionUID = -8180616957133977227L;
+    // Campos serializados, los de las bases de datos ya existentes en disco: los dígitos y la letra por separado
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("digits", Integer.class),
+        new ObjectStreamField("letter", char.class)
+    };
+
+    // Letra de control para cada resto de la división de los dígitos entre 23
+    private static final String CONTROL_LETTERS = "TRWAGMYFPDXBNJZSQVHLCKE";
+    private static final int MAX_DIGITS = 99999999;
+    // Valor empaquetado de los dígitos cuando faltan
+    private static final long NO_DIGITS = -1;
+    private static final int LETTER_BITS = 16;
+    
+    // Dígitos y letra empaquetados: [dígitos, o -1 si faltan][16 bits de la letra]
+    private transient long packed;
 
     public DNI(Integer digits, char letter) {
-        this.digits = digits;
-        this.letter = letter;
+        this.packed = pack(digits, letter);
+    }
+
+    /**
+     * Crea un DNI a partir de su valor empaquetado.
+     * 
+     * @param packed El valor empaquetado, de {@link #pack()}
+     * @return El DNI
+     */
+    public static DNI unpack(long packed) {
+        DNI dni = new DNI(null, '\0');
+        dni.packed = packed;
+        return dni;
     }
 
     public Integer getDigits() {
-        return digits;
+        long digits = packed >> LETTER_BITS;
+        return digits != NO_DIGITS ? (int) digits : null;
     }
 
     public void setDigits(Integer digits) {
-        this.digits = digits;
+        packed = pack(track(getDigits(), digits), getLetter());
     }
 
     public char getLetter() {
-        return letter;
+        return (char) packed;
     }
 
     public void setLetter(char letter) {
-        this.letter = letter;
+        packed = pack(getDigits(), track(getLetter(), letter));
+    }
+
+    /**
+     * Valor empaquetado del DNI, que lo identifica: dos DNI son iguales si y solo si lo es su valor empaquetado.
+     * Al cambiar los dígitos o la letra cambia también el valor empaquetado.
+     * 
+     * @return Los dígitos y la letra en un solo valor
+     */
+    public long pack() {
+        return packed;
+    }
+
+    /**
+     * Empaqueta los dígitos y la letra de un DNI en un solo valor.
+     * 
+     * @param digits Los dígitos, o nulo si faltan
+     * @param letter La letra
+     * @return El valor empaquetado
+     */
+    public static long pack(Integer digits, char letter) {
+        return (digits != null ? (long) digits : NO_DIGITS) << LETTER_BITS | letter;
+    }
+
+    /**
+     * Letra de control que corresponde a los dígitos de un DNI.
+     * 
+     * @param digits Los dígitos, entre 0 y 99999999
+     * @return La letra de control, en mayúsculas
+     * @throws IllegalArgumentException Si los dígitos están fuera de rango
+     */
+    public static char controlLetter(int digits) {
+        if(digits < 0 || digits > MAX_DIGITS)
+            throw new IllegalArgumentException("Los dígitos del DNI deben estar entre 0 y " + MAX_DIGITS + ": " + digits);
+        return CONTROL_LETTERS.charAt(digits % CONTROL_LETTERS.length());
+    }
+
+    /**
+     * Comprueba si la letra del DNI es la de control que corresponde a sus dígitos.
+     * 
+     * @return Verdadero si el DNI es válido
+     */
+    public boolean isValid() {
+        return isValid(getDigits(), getLetter());
+    }
+
+    /**
+     * Comprueba si la letra indicada es la de control que corresponde a los dígitos.
+     * 
+     * @param digits Los dígitos, o nulo si faltan
+     * @param letter La letra, que debe estar en mayúsculas
+     * @return Verdadero si forman un DNI válido
+     */
+    public static boolean isValid(Integer digits, char letter) {
+        return digits != null && digits >= 0 && digits <= MAX_DIGITS && letter == controlLetter(digits);
     }
 
     @Override
     public String toString() {
-        return digits + "-" + letter;
+        return getDigits() + "-" + getLetter();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("digits", getDigits());
+        fields.put("letter", getLetter());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        packed = pack((Integer) fields.get("digits", null), fields.get("letter", '\0'));
     }
 }
\ No newline at end of file
@@ -16,9 +16,8 @@
  */
 package app.model.menuprincipal;
 
+import app.common.persistence.PatientRepository;
 import app.model.IModel;
-import app.model.datospaciente.ResumenPacienteModel;
-import java.util.Map;
 
 /**
  * Modelo para la pantalla del menu principal del rol 'Facultativo'.
@@ -29,17 +28,17 @@ public class MenuFacultativoModel implements IModel {
     
     public MenuFacultativoModel() { }
     
-    public MenuFacultativoModel(Map<Long, ResumenPacienteModel> listaPacientes) {
+    public MenuFacultativoModel(PatientRepository listaPacientes) {
         this.listaPacientes = listaPacientes;
     }
     
-    private Map<Long, ResumenPacienteModel> listaPacientes;
+    private PatientRepository listaPacientes;
 
-    public Map<Long, ResumenPacienteModel> getListaPacientes() {
+    public PatientRepository getListaPacientes() {
         return listaPacientes;
     }
 
-    public void setListaPacientes(Map<Long, ResumenPacienteModel> listaPacientes) {
+    public void setListaPacientes(PatientRepository listaPacientes) {
         this.listaPacientes = listaPacientes;
     }
 }
\ No newline at end of file
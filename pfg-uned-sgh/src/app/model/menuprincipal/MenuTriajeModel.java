@@ -16,9 +16,8 @@
  */
 package app.model.menuprincipal;
 
+import app.common.persistence.PatientRepository;
 import app.model.IModel;
-import app.model.datospaciente.ResumenPacienteModel;
-import java.util.Map;
 
 /**
  * Modelo para la pantalla del menu principal del rol 'Triaje'.
@@ -29,17 +28,17 @@ public class MenuTriajeModel implements IModel {
     
     public MenuTriajeModel() { }
 
-    public MenuTriajeModel(Map<Long, ResumenPacienteModel> listaPacientes) {
+    public MenuTriajeModel(PatientRepository listaPacientes) {
         this.listaPacientes = listaPacientes;
     }
     
-    private Map<Long, ResumenPacienteModel> listaPacientes;
+    private PatientRepository listaPacientes;
 
-    public Map<Long, ResumenPacienteModel> getListaPacientes() {
+    public PatientRepository getListaPacientes() {
         return listaPacientes;
     }
 
-    public void setListaPacientes(Map<Long, ResumenPacienteModel> listaPacientes) {
+    public void setListaPacientes(PatientRepository listaPacientes) {
         this.listaPacientes = listaPacientes;
     }
 }
\ No newline at end of file
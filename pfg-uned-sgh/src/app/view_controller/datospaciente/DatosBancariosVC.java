@@ -154,6 +154,15 @@ public class DatosBancariosVC extends library.JIASimpleDialog {
         this.model.setAccountNumber(Long.parseLong(tfAccountNumber.getText()));
         this.model.setHealthInsurance(rbHealthInsurance.isSelected());
         this.model.setInsuranceCompany(model.getHealthInsurance() ? tfCompanyInsurance.getText() : "");
+        // y se persiste el cambio, junto con el del resto de diálogos de la ficha, avisando si no se ha podido
+        Utils.saveSection(model, this);
+    }
+
+    @Override
+    public boolean isModified() {
+        // los campos enlazados escriben directamente en el modelo, que queda marcado como modificado,
+        // por lo que solo falta comparar la casilla del seguro médico con el valor del modelo
+        return model.isDirty() || rbHealthInsurance.isSelected() != Boolean.TRUE.equals(model.getHealthInsurance());
     }
 
     @Override
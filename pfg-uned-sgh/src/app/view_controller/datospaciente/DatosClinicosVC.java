@@ -206,7 +206,19 @@ public class DatosClinicosVC extends library.JIASimpleDialog {
         if(Utils.validateString(taAllergies.getText()))
             this.model.setAllergiesByLine(taAllergies.getText());
         this.model.setTriajePriority(sliderTriaje.getValue());
-        
+        // y se persiste el cambio, junto con el del resto de diálogos de la ficha, avisando si no se ha podido
+        Utils.saveSection(model, this);
+    }
+
+    @Override
+    public boolean isModified() {
+        // los campos enlazados escriben directamente en el modelo, que queda marcado como modificado,
+        // por lo que solo falta comparar el resto de componentes con los valores del modelo
+        return model.isDirty()
+                || cbRCP.isSelected() != Boolean.TRUE.equals(model.getRcp())
+                || !taAllergies.getText().equals(model.getAllergiesByLine())
+                || model.getTriajePriority() == null
+                || sliderTriaje.getValue() != model.getTriajePriority();
     }
 
     @Override
@@ -20,6 +20,7 @@ import app.common.DataBase;
 import app.common.Utils;
 import app.common.enums.PatientStateEnum;
 import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.entity.DNI;
 import java.util.Arrays;
 import java.util.List;
 import javax.swing.JComboBox;
@@ -33,6 +34,8 @@ public class DatosGeneralesVC extends library.JIASimpleDialog {
 
     private DatoGeneralesModel model;
     private final List<PatientStateEnum> estadosCombobox;
+    // DNI guardado del paciente, empaquetado (los campos enlazados modifican el del modelo), o nulo si no tiene
+    private Long savedDNI;
 
     /**
      * Creates new form DatosPaciente
@@ -41,6 +44,7 @@ public class DatosGeneralesVC extends library.JIASimpleDialog {
      */
     public DatosGeneralesVC(DatoGeneralesModel datosPacienteModel) {
         model = datosPacienteModel;
+        savedDNI = model.getDni() != null ? model.getDni().pack() : null;
         estadosCombobox = Arrays.asList(PatientStateEnum.values());
         initComponents();
         jComboBox1.setSelectedItem(model.getState());
@@ -264,13 +268,35 @@ public class DatosGeneralesVC extends library.JIASimpleDialog {
                 && Utils.validateString(tfDNIletter.getText())
                 && tfDNIletter.getText().trim().length() == 1
                 && Utils.validateString(tfSNSCode.getText())
-                && jComboBox1.getSelectedItem() != null;
+                && jComboBox1.getSelectedItem() != null
+                && validateDNI();
+    }
+
+    private boolean validateDNI() {
+        // si se cambia el DNI, la letra debe ser la de control de los dígitos (los DNI guardados antes de
+        // comprobarla pueden no tenerla), y en cualquier caso el DNI no puede tenerlo ya otro paciente
+        DNI dni;
+        try {
+            dni = new DNI(Integer.valueOf(tfDNInumber.getText().trim()), tfDNIletter.getText().trim().charAt(0)); }
+        catch(NumberFormatException nfe) {
+            return false; }
+        boolean changed = savedDNI == null || savedDNI != dni.pack();
+        return (!changed || dni.isValid()) && Utils.isDNIAvailable(dni, model.getCodeSNS());
     }
 
     @Override
     public void saveThis() {
         // guarda el nuevo estado en el modelo, y con ello, en la base de datos
         this.model.setState((PatientStateEnum) jComboBox1.getSelectedItem());
+        // y se persiste el cambio, junto con el del resto de diálogos de la ficha, avisando si no se ha podido
+        Utils.saveSection(model, this);
+    }
+
+    @Override
+    public boolean isModified() {
+        // los campos enlazados escriben directamente en el modelo, que queda marcado como modificado,
+        // por lo que solo falta comparar el estado seleccionado con el del modelo
+        return model.isDirty() || jComboBox1.getSelectedItem() != model.getState();
     }
 
     @Override
@@ -285,6 +311,7 @@ public class DatosGeneralesVC extends library.JIASimpleDialog {
 
     public void setModel(DatoGeneralesModel model) {
         this.model = model;
+        this.savedDNI = model.getDni() != null ? model.getDni().pack() : null;
     }
 
     public List<PatientStateEnum> getEstadosCombobox() {
@@ -262,7 +262,7 @@ public class DatosPersonalesVC extends library.JIASimpleDialog {
 
     @Override
     public boolean validateThis() {
-        // valida que los campos no estén vaciós, y que la fecha tenga el formato 'dd/mm/aaaa'
+        // valida que los campos no estén vaciós, y que la fecha tenga el formato 'dd/mm/aaaa' y exista
         // además, se debe proporcionar uno de ambos entre el email o el número de teléfono
         return Utils.validateString(tfDay.getText())
                 && tfDay.getText().trim().length() == 2
@@ -270,6 +270,7 @@ public class DatosPersonalesVC extends library.JIASimpleDialog {
                 && tfMonth.getText().trim().length() == 2
                 && Utils.validateString(tfYear.getText())
                 && tfYear.getText().trim().length() == 4
+                && isValidDate()
                 && Utils.validateString(tfPostalAddress.getText())
                 && (Utils.validateString(tfEmail.getText())
                     || Utils.validateString(tfPhoneNumber.getText()))
@@ -279,12 +280,28 @@ public class DatosPersonalesVC extends library.JIASimpleDialog {
     @Override
     public void saveThis() {
         // guarda los datos en el modelo, y con ello, en la base de datos
-        this.model.setBirthDate(new Birthdate((Integer.parseInt(tfDay.getText())),
-                Integer.parseInt(tfMonth.getText()), Integer.parseInt(tfYear.getText())));
+        this.model.setBirthDate(Birthdate.of(Integer.parseInt(tfDay.getText().trim()),
+                Integer.parseInt(tfMonth.getText().trim()), Integer.parseInt(tfYear.getText().trim())));
         this.model.setPatientSex((PatientSexEnum) jComboBox1.getSelectedItem());
         this.model.setEmail(tfEmail.getText());
         this.model.setPostalAddress(tfPostalAddress.getText());
         this.model.setPhoneNumber(Long.parseLong(tfPhoneNumber.getText().trim()));
+        // y se persiste el cambio, junto con el del resto de diálogos de la ficha, avisando si no se ha podido
+        Utils.saveSection(model, this);
+    }
+
+    @Override
+    public boolean isModified() {
+        // los campos enlazados escriben directamente en el modelo, que queda marcado como modificado;
+        // el sexo y la fecha (que no se enlaza mientras el modelo no tenga una) se comparan a mano
+        Birthdate birthDate = model.getBirthDate();
+        return model.isDirty()
+                || jComboBox1.getSelectedItem() != (model.getPatientSex() == null ?
+                        PatientSexEnum.Desconocido : model.getPatientSex())
+                || birthDate == null
+                || !isSameNumber(tfDay.getText(), birthDate.getDay())
+                || !isSameNumber(tfMonth.getText(), birthDate.getMonth())
+                || !isSameNumber(tfYear.getText(), birthDate.getYear());
     }
 
     @Override
@@ -293,6 +310,17 @@ public class DatosPersonalesVC extends library.JIASimpleDialog {
     @Override
     public void getExternVal(String id, Object value) { }
 
+    private boolean isValidDate() {
+        try { return Birthdate.isValid(Integer.parseInt(tfDay.getText().trim()),
+                Integer.parseInt(tfMonth.getText().trim()), Integer.parseInt(tfYear.getText().trim())); }
+        catch(NumberFormatException nfe) { return false; }
+    }
+
+    private boolean isSameNumber(String text, Integer value) {
+        try { return value != null && Integer.parseInt(text.trim()) == value; }
+        catch(NumberFormatException nfe) { return false; }
+    }
+
     public DatosPersonalesModel getModel() {
         return model;
     }
@@ -141,6 +141,9 @@ public class FilaPacienteTriajeVC extends library.JIASimpleDialog {
     private void modifyData(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_modifyData
         ((MenuTriajeVC) ((JButton) evt.getSource()).getParent().getParent()).getTopLevelAncestor().setVisible(false);
         
+        // se cargan de disco los datos personales, clínicos y bancarios del paciente
+        model.loadDetails();
+        
         ResumenPacienteVC resumenPacienteVC = (ResumenPacienteVC) Utils.initDialog(new ResumenPacienteVC(model));
         DatosGeneralesVC datosGeneralesVC = (DatosGeneralesVC) Utils.initDialog(new DatosGeneralesVC(model.getDatosGenerales()));
         datosGeneralesVC.setCaption("General");
@@ -175,7 +178,8 @@ public class FilaPacienteTriajeVC extends library.JIASimpleDialog {
     public void getExternVal(String id, Object value) { }
 
     private void initData() {
-        lbSexImage.setIcon(new ImageIcon(getSexImagePath(model.getDatosPersonales().getPatientSex())));
+        // solo datos del índice del paciente, sin cargar sus detalles
+        lbSexImage.setIcon(new ImageIcon(getSexImagePath(model.getPatientSex())));
         lbCompleteName.setText(getCompleteName());
         lbCompleteName.setToolTipText(getCompleteName());
     }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.view_controller.menuprincipal;
+
+import app.common.Utils;
+import app.common.persistence.PatientRepository;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JTextField;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Búsqueda de pacientes mientras se escribe, para los menús principales. A cada cambio en el campo de búsqueda
+ * se consulta el repositorio de pacientes ({@link PatientRepository#search}) en segundo plano, con un
+ * {@link SwingWorker}, de forma que escribir nunca espera a la búsqueda; los resultados se entregan al menú en
+ * el hilo de la interfaz. Si se sigue escribiendo antes de que termine una búsqueda, sus resultados se descartan.
+ * <p>
+ * Con el campo vacío se muestran todos los pacientes, en el orden del repositorio o en el que indique el menú.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class BuscadorPacientes implements DocumentListener {
+
+    /**
+     * Número máximo de pacientes que se muestran como resultado de una búsqueda.
+     */
+    public static final int MAX_RESULTS = 50;
+
+    private static final Logger L = Logger.getLogger(BuscadorPacientes.class.getName());
+
+    private final JTextField field;
+    private final PatientRepository repository;
+    private final Iterable<ResumenPacienteModel> allPatients;
+    private final Consumer<Iterable<ResumenPacienteModel>> showPatients;
+    // Búsqueda en curso; solo se accede desde el hilo de la interfaz
+    private SwingWorker<List<ResumenPacienteModel>, Void> current;
+
+    /**
+     * Asocia la búsqueda al campo indicado.
+     * 
+     * @param field El campo de búsqueda
+     * @param repository Los pacientes entre los que buscar
+     * @param showPatients Muestra en el menú los pacientes encontrados (o todos, con el campo vacío)
+     */
+    public BuscadorPacientes(JTextField field, PatientRepository repository, Consumer<Iterable<ResumenPacienteModel>> showPatients) {
+        this(field, repository, repository, showPatients);
+    }
+
+    /**
+     * Asocia la búsqueda al campo indicado, mostrando con el campo vacío los pacientes en el orden indicado.
+     * 
+     * @param field El campo de búsqueda
+     * @param repository Los pacientes entre los que buscar
+     * @param allPatients Todos los pacientes, en el orden en que se muestran con el campo vacío
+     * @param showPatients Muestra en el menú los pacientes encontrados (o todos, con el campo vacío)
+     */
+    public BuscadorPacientes(JTextField field, PatientRepository repository, Iterable<ResumenPacienteModel> allPatients,
+                        Consumer<Iterable<ResumenPacienteModel>> showPatients) {
+        this.field = field;
+        this.repository = repository;
+        this.allPatients = allPatients;
+        this.showPatients = showPatients;
+        field.getDocument().addDocumentListener(this);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) { search(); }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) { search(); }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) { search(); }
+
+    private void search() {
+        // la búsqueda anterior ya no interesa
+        if(current != null)
+            current.cancel(false);
+        
+        String query = field.getText();
+        if(!Utils.validateString(query)) {
+            current = null;
+            showPatients.accept(allPatients);
+            return;
+        }
+        
+        current = new SwingWorker<List<ResumenPacienteModel>, Void>() {
+            @Override
+            protected List<ResumenPacienteModel> doInBackground() {
+                return repository.search(query, MAX_RESULTS);
+            }
+
+            @Override
+            protected void done() {
+                if(isCancelled() || current != this)
+                    return;
+                try {
+                    showPatients.accept(get()); }
+                catch(InterruptedException | ExecutionException e) {
+                    // se siguen mostrando los resultados anteriores
+                    L.log(Level.WARNING, "No se ha podido completar la búsqueda de pacientes", e); }
+            }
+        };
+        current.execute();
+    }
+}
\ No newline at end of file
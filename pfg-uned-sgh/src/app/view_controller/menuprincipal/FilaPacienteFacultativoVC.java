@@ -113,10 +113,14 @@ public class FilaPacienteFacultativoVC extends library.JIASimpleDialog {
         if(JOptionPane.showConfirmDialog(null, "¿Desea iniciar la atención de este paciente?",
         "Confirmar inicio atención", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE) == 0) {
             
-            ((MenuFacultativoVC) ((JButton) evt.getSource()).getParent().getParent()).getTopLevelAncestor().setVisible(false);
+            // el menú se guarda ahora: al cerrar la ficha esta fila puede haberse recolocado, y ya no estar en él
+            final MenuFacultativoVC menu = (MenuFacultativoVC) ((JButton) evt.getSource()).getParent().getParent();
+            menu.getTopLevelAncestor().setVisible(false);
             
             ResumenPacienteModel modeloPaciente =
                     ((FilaPacienteFacultativoVC) ((JButton) evt.getSource()).getParent()).getModel();
+            // se cargan de disco los datos personales, clínicos y bancarios del paciente
+            modeloPaciente.loadDetails();
             
             ResumenPacienteVC resumenPacienteVC = (ResumenPacienteVC) Utils.initDialog(new ResumenPacienteVC(modeloPaciente));
             DatosGeneralesVC datosGeneralesVC = (DatosGeneralesVC) Utils.initDialog(new DatosGeneralesVC(modeloPaciente.getDatosGenerales()));
@@ -141,8 +145,8 @@ public class FilaPacienteFacultativoVC extends library.JIASimpleDialog {
             
             ((JFrame) fichaPaciente.getTopLevelAncestor()).addWindowListener(new WindowAdapter() {
                 @Override public void windowClosed(WindowEvent e) {
-                    ((MenuFacultativoVC) ((JButton) evt.getSource()).getParent().getParent()).getTopLevelAncestor().setVisible(true);
-                    ((MenuFacultativoVC) ((JButton) evt.getSource()).getParent().getParent()).getTopLevelAncestor().revalidate();
+                    menu.getTopLevelAncestor().setVisible(true);
+                    menu.getTopLevelAncestor().revalidate();
                 }
             });
         }
@@ -177,9 +181,10 @@ public class FilaPacienteFacultativoVC extends library.JIASimpleDialog {
         String path = "";
         try { path = aux.getCanonicalPath() + "/src/images"; } catch (IOException ioe) { }
         
-        if(!path.trim().isEmpty() && model.getDatosClinicos().getTriajePriority() != null) {
+        // solo datos del índice del paciente, sin cargar sus detalles
+        if(!path.trim().isEmpty() && model.getTriajePriority() != null) {
 
-            Integer val = model.getDatosClinicos().getTriajePriority();
+            Integer val = model.getTriajePriority();
             if(val >= 0 && val <= 3)
                 path += "/prioridad1Normal.png";
             else if(val > 3 && val <= 5)
@@ -16,19 +16,38 @@
  */
 package app.view_controller.menuprincipal;
 
+import app.common.persistence.TriageQueue;
 import app.model.datospaciente.ResumenPacienteModel;
 import app.model.menuprincipal.MenuFacultativoModel;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 /**
+ * Menú principal del facultativo: los pacientes, del más urgente al menos (ver {@link TriageQueue}). Cuando
+ * cambia la prioridad de un paciente, o se registra uno nuevo, solo se recoloca su fila.
  *
  * @author Alberto Bausá Cano
  */
 public class MenuFacultativoVC extends library.JIASimpleDialog {
 
     private final MenuFacultativoModel model;
+    // Pacientes por urgencia, y el aviso de sus cambios mientras el menú está abierto
+    private final TriageQueue colaTriaje;
+    private final Consumer<ResumenPacienteModel> cambioPrioridad = this::recolocarPaciente;
+    // Campo de búsqueda de pacientes, y filas de los pacientes mostrados, en orden
+    private final JTextField tfSearch = new JTextField();
+    private final List<FilaPacienteFacultativoVC> filas = new ArrayList<>();
+    // Indica si se muestran todos los pacientes por urgencia, y no los resultados de una búsqueda
+    private boolean porUrgencia;
     
     /**
      * Creates new form MenuFacultativoVC
@@ -37,6 +56,7 @@ public class MenuFacultativoVC extends library.JIASimpleDialog {
      */
     public MenuFacultativoVC(MenuFacultativoModel registeredPatients) {
         model = registeredPatients;
+        colaTriaje = model.getListaPacientes().triageQueue();
         initComponents();
         initListData();
     }
@@ -68,33 +88,111 @@ public class MenuFacultativoVC extends library.JIASimpleDialog {
         return model;
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        colaTriaje.addListener(cambioPrioridad);
+    }
+
+    @Override
+    public void removeNotify() {
+        colaTriaje.removeListener(cambioPrioridad);
+        super.removeNotify();
+    }
+
     private void initListData() {
-        FilaPacienteFacultativoVC fila;
-        
+        // búsqueda de pacientes mientras se escribe, sobre la lista
         GridBagConstraints constraints = new GridBagConstraints();
         constraints.gridx = 0;
         constraints.gridy = 0;
-        constraints.fill = GridBagConstraints.BOTH;
+        constraints.fill = GridBagConstraints.HORIZONTAL;
         constraints.weightx = 1.0;
-        constraints.weighty = 1.0;
-        constraints.insets = new Insets(0, 20, 20, 20);
+        constraints.insets = new Insets(20, 20, 0, 20);
+        tfSearch.setToolTipText("Buscar por nombre, apellidos, código SNS o DNI");
+        this.add(tfSearch, constraints);
+        new BuscadorPacientes(tfSearch, model.getListaPacientes(), colaTriaje, this::showPatients);
         
-        for(ResumenPacienteModel paciente : model.getListaPacientes().values()) {
-            fila = new FilaPacienteFacultativoVC(paciente);
-            
-            if(constraints.gridy == 0)
-                constraints.insets = new Insets(20, 20, 20, 20);
-            else if(constraints.gridy == model.getListaPacientes().size()-1)
-                constraints.insets = new Insets(0, 20, 5, 20);
-            else
-                constraints.insets = new Insets(0, 20, 20, 20);
-            
-            constraints.gridy++;
-            this.add(fila, constraints);
-        }
+        showPatients(colaTriaje);
         
         this.setPreferredSize(new Dimension(this.getPreferredSize().width,
-                this.getPreferredSize().height + 40*model.getListaPacientes().size()));
+                this.getPreferredSize().height + 40 + 40*model.getListaPacientes().size()));
+    }
+
+    private void showPatients(Iterable<ResumenPacienteModel> pacientes) {
+        
+        filas.forEach(this::remove);
+        filas.clear();
+        porUrgencia = pacientes == colaTriaje;
+        
+        pacientes.forEach((paciente) -> filas.add(new FilaPacienteFacultativoVC(paciente)));
+        for(int i = 0; i < filas.size(); i++)
+            this.add(filas.get(i), rowConstraints(i));
+        
+        this.revalidate();
+        this.repaint();
+    }
+
+    /**
+     * Recoloca la fila de un paciente que ha cambiado de prioridad, o añade la de un paciente nuevo, sin
+     * rehacer el resto de filas. Los resultados de una búsqueda mantienen su orden.
+     */
+    private void recolocarPaciente(ResumenPacienteModel paciente) {
+        // el aviso llega en el hilo que guarda al paciente
+        if(!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> recolocarPaciente(paciente));
+            return;
+        }
+        if(!porUrgencia)
+            return;
+        
+        Long codeSNS = paciente.getDatosGenerales().getCodeSNS();
+        boolean nuevo = true;
+        for(int i = 0; i < filas.size(); i++)
+            if(codeSNS.equals(filas.get(i).getModel().getDatosGenerales().getCodeSNS())) {
+                this.remove(filas.remove(i));
+                nuevo = false;
+                break;
+            }
+        
+        // la fila se crea de nuevo, con el icono de su prioridad actual
+        FilaPacienteFacultativoVC fila = new FilaPacienteFacultativoVC(paciente);
+        int index = Collections.binarySearch(filas, fila,
+                Comparator.comparing(FilaPacienteFacultativoVC::getModel, colaTriaje.comparator()));
+        index = index < 0 ? -index - 1 : index;
+        filas.add(index, fila);
+        // las filas siguen al campo de búsqueda, que es el primer componente
+        this.add(fila, rowConstraints(index), index + 1);
+        
+        // y cambian los márgenes de la primera y la última fila
+        GridBagLayout layout = (GridBagLayout) this.getLayout();
+        for(int i : new int[] { 0, 1, filas.size() - 2, filas.size() - 1 })
+            if(i >= 0 && i < filas.size())
+                layout.setConstraints(filas.get(i), rowConstraints(i));
+        
+        if(nuevo)
+            this.setPreferredSize(new Dimension(this.getPreferredSize().width, this.getPreferredSize().height + 40));
+        this.revalidate();
+        this.repaint();
+    }
+
+    /**
+     * Posición de la fila indicada: cada fila debajo de la anterior, por orden de los componentes.
+     */
+    private GridBagConstraints rowConstraints(int index) {
+        GridBagConstraints constraints = new GridBagConstraints();
+        constraints.gridx = 0;
+        constraints.gridy = GridBagConstraints.RELATIVE;
+        constraints.fill = GridBagConstraints.BOTH;
+        constraints.weightx = 1.0;
+        constraints.weighty = 1.0;
+        
+        if(index == 0)
+            constraints.insets = new Insets(20, 20, 20, 20);
+        else if(index == filas.size()-1)
+            constraints.insets = new Insets(0, 20, 5, 20);
+        else
+            constraints.insets = new Insets(0, 20, 20, 20);
+        return constraints;
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
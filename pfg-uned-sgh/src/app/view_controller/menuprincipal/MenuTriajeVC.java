@@ -20,9 +20,13 @@ import app.common.Utils;
 import app.model.datospaciente.ResumenPacienteModel;
 import app.model.menuprincipal.MenuTriajeModel;
 import app.view_controller.datospaciente.FilaPacienteTriajeVC;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.Insets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JTextField;
 
 /**
  *
@@ -31,6 +35,9 @@ import java.awt.Insets;
 public class MenuTriajeVC extends library.JIASimpleDialog {
 
     private final MenuTriajeModel model;
+    // Campo de búsqueda de pacientes, y filas de los pacientes mostrados
+    private final JTextField tfSearch = new JTextField();
+    private final List<Component> filas = new ArrayList<>();
     /**
      * Creates new form MenuTriajeVC
      * 
@@ -94,22 +101,43 @@ public class MenuTriajeVC extends library.JIASimpleDialog {
     }
     
     private void initListData() {
+        // búsqueda de pacientes mientras se escribe, sobre la lista
+        GridBagConstraints constraints = new GridBagConstraints();
+        constraints.gridx = 0;
+        constraints.gridy = 2;
+        constraints.fill = GridBagConstraints.HORIZONTAL;
+        constraints.insets = new Insets(0, 20, 20, 20);
+        tfSearch.setToolTipText("Buscar por nombre, apellidos, código SNS o DNI");
+        this.add(tfSearch, constraints);
+        new BuscadorPacientes(tfSearch, model.getListaPacientes(), this::showPatients);
+        
+        showPatients(model.getListaPacientes());
+        
+        this.setPreferredSize(new Dimension(this.getPreferredSize().width,
+                this.getPreferredSize().height + 40 + 55*model.getListaPacientes().size()));
+    }
+
+    private void showPatients(Iterable<ResumenPacienteModel> pacientes) {
         FilaPacienteTriajeVC fila;
         
+        filas.forEach(this::remove);
+        filas.clear();
+        
         GridBagConstraints constraints = new GridBagConstraints();
         constraints.gridx = 0;
-        constraints.gridy = 1;
+        constraints.gridy = 2;
         constraints.fill = GridBagConstraints.BOTH;
         constraints.insets = new Insets(0, 20, 20, 20);
         
-        for(ResumenPacienteModel paciente : model.getListaPacientes().values()) {
+        for(ResumenPacienteModel paciente : pacientes) {
             fila = new FilaPacienteTriajeVC(paciente);
             ++constraints.gridy;
             this.add(fila, constraints);
+            filas.add(fila);
         }
         
-        this.setPreferredSize(new Dimension(this.getPreferredSize().width,
-                this.getPreferredSize().height + 55*model.getListaPacientes().size()));
+        this.revalidate();
+        this.repaint();
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la escritura atómica de ficheros: el contenido nuevo reemplaza al anterior, y una escritura
+ * fallida deja intacto el fichero anterior y no deja el temporal.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class AtomicFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeReplacesPreviousContent() throws IOException {
+
+        File target = new File(folder.getRoot(), "dataBase.dat");
+        AtomicFile.write(target, (out) -> out.writeUTF("anterior"));
+        AtomicFile.write(target, (out) -> out.writeUTF("nuevo"));
+
+        assertArrayEquals(utf("nuevo"), Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void failedWriteKeepsPreviousFile() throws IOException {
+
+        File target = new File(folder.getRoot(), "dataBase.dat");
+        AtomicFile.write(target, (out) -> out.writeUTF("anterior"));
+        try {
+            AtomicFile.write(target, (out) -> {
+                out.writeUTF("a medias");
+                throw new IOException("Fallo simulado"); });
+            fail("No ha fallado la escritura"); }
+        catch(IOException ioe) { }
+
+        assertArrayEquals(utf("anterior"), Files.readAllBytes(target.toPath()));
+        assertFalse(new File(target.getPath() + ".tmp").exists());
+    }
+
+    private static byte[] utf(String text) {
+
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        byte[] expected = new byte[bytes.length + 2];
+        expected[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, expected, 2, bytes.length);
+        return expected;
+    }
+}
\ No newline at end of file
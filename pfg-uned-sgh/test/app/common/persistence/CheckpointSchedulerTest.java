@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas del planificador de puntos de control: las solicitudes se ejecutan en segundo plano, y un punto de
+ * control fallido no detiene los siguientes.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class CheckpointSchedulerTest {
+
+    @Test
+    public void requestedCheckpointsRunAfterAFailure() throws InterruptedException {
+
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(2);
+        CheckpointScheduler scheduler = new CheckpointScheduler(() -> {
+            int run = runs.incrementAndGet();
+            done.countDown();
+            if(run == 1)
+                throw new IllegalStateException("Fallo simulado");
+        }, () -> { }, 0);
+
+        scheduler.request();
+        scheduler.request();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void requestDoesNotBlockTheCaller() throws InterruptedException {
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        CheckpointScheduler scheduler = new CheckpointScheduler(() -> {
+            release.await();
+            done.countDown();
+        }, () -> { }, 0);
+
+        // el punto de control espera a que se libere, y la solicitud vuelve antes
+        scheduler.request();
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas del conjunto de enteros comprimido, comparándolo con un {@link BitSet}: bloques dispersos y densos,
+ * paso de lista a mapa de bits y vuelta, intersección y unión entre todas las combinaciones de bloques.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class CompressedBitmapTest {
+
+    // Valores de las pruebas: cuatro bloques de 65536
+    private static final int RANGE = 4 << 16;
+
+    @Test
+    public void addRemoveAndContainsMatchBitSet() {
+
+        Random random = new Random(7);
+        CompressedBitmap bitmap = new CompressedBitmap();
+        BitSet expected = new BitSet();
+        assertTrue(bitmap.isEmpty());
+
+        // el bloque 1 supera el máximo de la lista y pasa a mapa de bits; el resto sigue disperso
+        for(int i = 0; i < 20000; i++) {
+            int value = i < 10000 ? (1 << 16) + random.nextInt(1 << 16) : random.nextInt(RANGE);
+            bitmap.add(value);
+            expected.set(value);
+        }
+        assertBitmap(expected, bitmap);
+
+        // al vaciarse el bloque denso vuelve a lista, y los bloques vacíos desaparecen
+        for(int value = 1 << 16; value < 2 << 16; value++)
+            if(random.nextInt(10) != 0) {
+                bitmap.remove(value);
+                expected.clear(value);
+            }
+        for(int value = 3 << 16; value < 4 << 16; value++) {
+            bitmap.remove(value);
+            expected.clear(value);
+        }
+        assertBitmap(expected, bitmap);
+        assertFalse(bitmap.contains(-1 >>> 1));
+    }
+
+    @Test
+    public void andAndOrMatchBitSet() {
+
+        Random random = new Random(11);
+        // disperso, denso y mezcla de ambos por bloques
+        BitSet[] sets = { random(random, 3000), random(random, 150000), new BitSet() };
+        for(int value = 0; value < RANGE; value += value < (2 << 16) ? 3 : 997)
+            sets[2].set(value);
+
+        for(BitSet first : sets)
+            for(BitSet second : sets) {
+                CompressedBitmap a = bitmapOf(first), b = bitmapOf(second);
+
+                BitSet and = (BitSet) first.clone();
+                and.and(second);
+                assertBitmap(and, a.and(b));
+
+                BitSet or = (BitSet) first.clone();
+                or.or(second);
+                assertBitmap(or, a.or(b));
+
+                // los operandos no cambian
+                assertBitmap(first, a);
+                assertBitmap(second, b);
+            }
+    }
+
+    private static BitSet random(Random random, int count) {
+
+        BitSet set = new BitSet();
+        for(int i = 0; i < count; i++)
+            set.set(random.nextInt(RANGE));
+        return set;
+    }
+
+    private static CompressedBitmap bitmapOf(BitSet set) {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        set.stream().forEach(bitmap::add);
+        return bitmap;
+    }
+
+    private static void assertBitmap(BitSet expected, CompressedBitmap bitmap) {
+
+        assertEquals(expected.cardinality(), bitmap.cardinality());
+        assertEquals(expected.isEmpty(), bitmap.isEmpty());
+        assertArrayEquals(expected.stream().toArray(), bitmap.toArray());
+
+        List<Integer> visited = new ArrayList<>();
+        bitmap.forEach(visited::add);
+        assertEquals(expected.stream().boxed().collect(Collectors.toList()), visited);
+        for(int value : visited)
+            assertTrue(bitmap.contains(value));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.DatoGeneralesModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la durabilidad de los guardados del repositorio en disco: una sección solo deja de tener cambios
+ * pendientes una vez confirmada en el diario, los errores del diario se propagan, el punto de control
+ * consolida los cambios que no se pudieron registrar y nunca descarta un diario que no se pudo aplicar.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class FilePatientRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savedSectionIsDurableBeforeItIsClean() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(1, "Original"));
+
+        DatoGeneralesModel generales = repository.findBySNS(1).getDatosGenerales();
+        generales.setSurname("Cambiado");
+        assertTrue(generales.isDirty());
+        repository.saveSection(generales);
+        assertFalse(generales.isDirty());
+
+        // sin punto de control: el cambio ya está en el diario
+        repository = TestDataBase.open(directory);
+        assertEquals("Cambiado", repository.findBySNS(1).getDatosGenerales().getSurname());
+    }
+
+    @Test
+    public void journalFailureKeepsChangePendingUntilCheckpoint() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(1, "Original"));
+        repository.checkpoint();
+
+        // un directorio en lugar del diario impide escribir en él
+        File journal = new File(directory, "dataBase.journal");
+        assertTrue(journal.mkdir());
+
+        DatoGeneralesModel generales = repository.findBySNS(1).getDatosGenerales();
+        generales.setSurname("Cambiado");
+        try {
+            repository.saveSection(generales);
+            fail("El error del diario no se ha propagado"); }
+        catch(UncheckedIOException uioe) { }
+        assertTrue(generales.isDirty());
+
+        // el punto de control consolida el cambio aunque el diario esté vacío
+        assertTrue(journal.delete());
+        repository.checkpoint();
+
+        repository = TestDataBase.open(directory);
+        assertEquals("Cambiado", repository.findBySNS(1).getDatosGenerales().getSurname());
+    }
+
+    @Test
+    public void damagedJournalIsNeverCompacted() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(1, "Primero"));
+        repository.save(TestDataBase.patient(2, "Segundo"));
+
+        // un byte alterado en el último registro del diario
+        File journal = new File(directory, "dataBase.journal");
+        long length = journal.length();
+        try(RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(length - 1);
+            int value = raf.read();
+            raf.seek(length - 1);
+            raf.write(value ^ 0xFF);
+        }
+
+        repository = TestDataBase.openSnapshot(directory);
+        try {
+            repository.replay();
+            fail("Se ha aplicado un diario dañado"); }
+        catch(IOException ioe) { }
+
+        // ni el punto de control ni los nuevos guardados descartan el diario
+        repository.save(TestDataBase.patient(3, "Tercero"));
+        try {
+            repository.checkpoint();
+            fail("Se ha consolidado un diario que no se ha podido aplicar"); }
+        catch(IOException ioe) { }
+        assertTrue(journal.length() > length);
+        assertFalse(new File(directory, "dataBase.journal.old").exists());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del repositorio SQL sobre una base de datos H2 en un directorio temporal: lectura perezosa de las
+ * secciones de detalle, rechazo de los DNI duplicados, errores de escritura y guardado de varias secciones a la vez.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class JdbcPatientRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String url;
+    private JdbcPatientRepository repository;
+
+    @Before
+    public void open() throws SQLException {
+        url = "jdbc:h2:" + folder.getRoot().getAbsolutePath() + "/sgh";
+        repository = new JdbcPatientRepository(url);
+    }
+
+    @After
+    public void close() {
+        repository.close();
+    }
+
+    @Test
+    public void savedPatientsAreReadBackLazily() throws SQLException {
+
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Lectura");
+        patient.getDatosClinicos().setAllergies(new String[] { "Polen", "Penicilina" });
+        patient.getDatosClinicos().setTriajePriority(4);
+        repository.save(patient);
+        reopen();
+
+        ResumenPacienteModel read = repository.findBySNS(1);
+        assertFalse(read.isDetailLoaded());
+        assertEquals(Integer.valueOf(4), read.getTriajePriority());
+        assertEquals(read, repository.findByDNI(patient.getDatosGenerales().getDni()));
+        assertEquals(Arrays.asList(read), repository.findBySurname("lectura"));
+
+        read.loadDetails();
+        assertTrue(read.isDetailLoaded());
+        assertEquals("Doctor 1", read.getDatosClinicos().getAsignedDoctor());
+        assertArrayEquals(new String[] { "Polen", "Penicilina" }, read.getDatosClinicos().getAllergies());
+        assertFalse(read.isDirty());
+    }
+
+    @Test
+    public void newPatientWithRegisteredDNIIsRejected() {
+
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Alta");
+        repository.save(patient);
+
+        ResumenPacienteModel duplicate = TestDataBase.patient(2, "Duplicado");
+        duplicate.getDatosGenerales().setDni(patient.getDatosGenerales().getDni());
+        assertRejected(Arrays.asList(duplicate));
+        assertNull(repository.findBySNS(2));
+
+        // dos altas con el mismo DNI en un mismo lote: no se guarda ninguna
+        ResumenPacienteModel first = TestDataBase.patient(3, "Primero");
+        ResumenPacienteModel second = TestDataBase.patient(4, "Segundo");
+        second.getDatosGenerales().setDni(first.getDatosGenerales().getDni());
+        assertRejected(Arrays.asList(first, second));
+        assertNull(repository.findBySNS(3));
+        assertEquals(1, repository.size());
+
+        // el propio paciente sí puede volver a guardarse con su DNI
+        repository.saveAll(Arrays.asList(TestDataBase.patient(1, "Alta")));
+        assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void failedSaveKeepsChangesPending() {
+
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Fallo");
+        repository.save(patient);
+
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        clinicos.setAsignedDoctor("Otro doctor");
+        repository.close();
+        try {
+            repository.saveSection(clinicos);
+            fail("No ha fallado el guardado con la conexión cerrada"); }
+        catch(UncheckedIOException uioe) { }
+        assertTrue(clinicos.isDirty());
+    }
+
+    @Test
+    public void sectionsAreSavedTogether() throws SQLException {
+
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Ficha");
+        repository.save(patient);
+
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        DatosBancariosModel bancarios = patient.getDatosBancarios();
+        clinicos.setAsignedDoctor("Otro doctor");
+        bancarios.setInsuranceCompany("Aseguradora");
+        repository.saveSections(Arrays.asList(clinicos, bancarios));
+        assertFalse(clinicos.isDirty());
+        assertFalse(bancarios.isDirty());
+
+        reopen();
+        ResumenPacienteModel read = repository.findBySNS(1);
+        read.loadDetails();
+        assertEquals("Otro doctor", read.getDatosClinicos().getAsignedDoctor());
+        assertEquals("Aseguradora", read.getDatosBancarios().getInsuranceCompany());
+    }
+
+    private void assertRejected(List<ResumenPacienteModel> patients) {
+        try {
+            repository.saveAll(patients);
+            fail("Se ha registrado un paciente con un DNI duplicado"); }
+        catch(IllegalArgumentException iae) { }
+    }
+
+    private void reopen() throws SQLException {
+        repository.close();
+        repository = new JdbcPatientRepository(url);
+    }
+}
\ No newline at end of file
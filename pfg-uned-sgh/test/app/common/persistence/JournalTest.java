@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del diario: reproducción de los registros, también tras una caída a mitad de escritura o con un
+ * registro dañado, rotación, escrituras agrupadas desde varios hilos y secciones de pacientes que se dan de
+ * alta más adelante.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayRegistersAndUpdatesPatients() throws IOException {
+
+        File file = folder.newFile("dataBase.journal");
+        Journal journal = new Journal(file, 0);
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Original");
+        journal.append(patient.getDatosGenerales());
+        journal.append(patient.getDatosClinicos());
+        patient.getDatosGenerales().setSurname("Cambiado");
+        journal.append(patient.getDatosGenerales());
+        journal.close();
+
+        DataBase dataBase = new TestDataBase();
+        assertEquals(3, new Journal(file, 0).replay(dataBase));
+        ResumenPacienteModel replayed = dataBase.getRegisteredPatients().get(1L);
+        assertEquals("Cambiado", replayed.getDatosGenerales().getSurname());
+        assertEquals("Doctor 1", replayed.getDatosClinicos().getAsignedDoctor());
+
+        // reproducir dos veces los mismos registros no altera el resultado
+        assertEquals(3, new Journal(file, 0).replay(dataBase));
+        assertEquals(1, dataBase.getRegisteredPatients().size());
+        assertEquals("Cambiado", dataBase.getRegisteredPatients().get(1L).getDatosGenerales().getSurname());
+    }
+
+    @Test
+    public void replayAfterCrashDiscardsIncompleteRecord() throws IOException {
+
+        File file = folder.newFile("dataBase.journal");
+        Journal journal = new Journal(file, 0);
+        journal.append(TestDataBase.patient(1, "Primero").getDatosGenerales());
+        journal.sync();
+        long firstRecord = file.length();
+        journal.append(TestDataBase.patient(2, "Segundo").getDatosGenerales());
+        journal.close();
+
+        // caída a mitad de escritura del segundo registro
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+
+        DataBase dataBase = new TestDataBase();
+        journal = new Journal(file, 0);
+        assertEquals(1, journal.replay(dataBase));
+        assertEquals(firstRecord, file.length());
+        assertNull(dataBase.getRegisteredPatients().get(2L));
+
+        // los registros siguientes quedan bien alineados
+        journal.append(TestDataBase.patient(3, "Tercero").getDatosGenerales());
+        journal.close();
+        dataBase = new TestDataBase();
+        assertEquals(2, new Journal(file, 0).replay(dataBase));
+        assertEquals("Tercero", dataBase.getRegisteredPatients().get(3L).getDatosGenerales().getSurname());
+    }
+
+    @Test
+    public void damagedRecordFailsReplayAndKeepsJournal() throws IOException {
+
+        File file = folder.newFile("dataBase.journal");
+        Journal journal = new Journal(file, 0);
+        journal.append(TestDataBase.patient(1, "Primero").getDatosGenerales());
+        journal.sync();
+        long firstRecord = file.length();
+        journal.append(TestDataBase.patient(2, "Segundo").getDatosGenerales());
+        journal.append(TestDataBase.patient(3, "Tercero").getDatosGenerales());
+        journal.close();
+        long length = file.length();
+
+        // un byte alterado en medio del segundo registro
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(firstRecord + 12);
+            int value = raf.read();
+            raf.seek(firstRecord + 12);
+            raf.write(value ^ 0xFF);
+        }
+
+        try {
+            new Journal(file, 0).replay(new TestDataBase());
+            fail("Se ha reproducido un registro dañado"); }
+        catch(IOException ioe) { }
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void rotatedRecordsAreReplayedFirst() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.journal");
+        Journal journal = new Journal(file, 0);
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Rotado");
+        journal.append(patient.getDatosGenerales());
+        journal.rotate();
+        assertFalse(journal.isEmpty());
+        patient.getDatosGenerales().setSurname("En curso");
+        journal.append(patient.getDatosGenerales());
+        journal.sync();
+
+        DataBase dataBase = new TestDataBase();
+        assertEquals(2, journal.replay(dataBase));
+        assertEquals("En curso", dataBase.getRegisteredPatients().get(1L).getDatosGenerales().getSurname());
+
+        // una vez volcada la instantánea, los rotados se descartan
+        journal.discardRotated();
+        journal.rotate();
+        journal.discardRotated();
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void concurrentAppendsAreAllCommitted() throws Exception {
+
+        File file = new File(folder.getRoot(), "dataBase.journal");
+        Journal journal = new Journal(file, 2);
+        List<Thread> threads = new ArrayList<>();
+        List<CompletableFuture<Void>> committed = Collections.synchronizedList(new ArrayList<>());
+        for(int t = 0; t < 4; t++) {
+            int first = t * 50;
+            threads.add(new Thread(() -> {
+                try {
+                    for(int i = first; i < first + 50; i++)
+                        committed.add(journal.append(TestDataBase.patient(i + 1, "Hilo").getDatosGenerales())); }
+                catch(IOException ioe) {
+                    throw new IllegalStateException(ioe); }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for(Thread thread : threads)
+            thread.join();
+        for(CompletableFuture<Void> record : committed)
+            journal.awaitCommit(record);
+
+        DataBase dataBase = new TestDataBase();
+        assertEquals(200, new Journal(file, 0).replay(dataBase));
+        assertEquals(200, dataBase.getRegisteredPatients().size());
+    }
+
+    @Test
+    public void sectionsBeforeRegistrationAreNotDropped() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.journal");
+        Journal journal = new Journal(file, 0);
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Tardío");
+        journal.append(patient.getDatosClinicos());
+        journal.append(patient.getDatosGenerales());
+        journal.close();
+
+        DataBase dataBase = new TestDataBase();
+        assertEquals(2, new Journal(file, 0).replay(dataBase));
+        DatosClinicosModel clinicos = dataBase.getRegisteredPatients().get(1L).getDatosClinicos();
+        assertEquals("Doctor 1", clinicos.getAsignedDoctor());
+
+        // una sección de un paciente que nunca se da de alta hace fallar la reproducción
+        journal = new Journal(file, 0);
+        journal.append(TestDataBase.patient(2, "Huérfano").getDatosClinicos());
+        journal.close();
+        try {
+            new Journal(file, 0).replay(new TestDataBase());
+            fail("Se ha descartado un registro del diario"); }
+        catch(IOException ioe) { }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la conversión de una base de datos guardada con la serialización de Java al formato compacto,
+ * también desde la línea de comandos.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class LegacySnapshotConverterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void legacyDataBaseIsConverted() throws IOException {
+
+        DataBase legacy = new TestDataBase();
+        legacy.getRegisteredPatients().put(1L, TestDataBase.patient(1, "Antiguo"));
+        File source = folder.newFile("dataBase.dat");
+        try(ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(source))) {
+            out.writeObject(legacy);
+        }
+
+        File target = new File(folder.getRoot(), "dataBase.sgh");
+        assertEquals(LegacySnapshotConverter.EXIT_OK,
+                LegacySnapshotConverter.run(new String[] { source.getPath(), target.getPath() }));
+
+        DataBase dataBase = new TestDataBase();
+        new SegmentedSnapshot(target).read(dataBase);
+        ResumenPacienteModel patient = dataBase.getRegisteredPatients().get(1L);
+        assertEquals("Antiguo", patient.getDatosGenerales().getSurname());
+        assertEquals("Doctor 1", patient.getDatosClinicos().getAsignedDoctor());
+    }
+
+    @Test
+    public void failuresAreReportedThroughExitStatus() throws IOException {
+
+        assertEquals(LegacySnapshotConverter.EXIT_USAGE, LegacySnapshotConverter.run(new String[0]));
+
+        // un fichero que no es una base de datos serializada
+        File source = folder.newFile("dataBase.dat");
+        File target = new File(folder.getRoot(), "dataBase.sgh");
+        assertEquals(LegacySnapshotConverter.EXIT_FAILED,
+                LegacySnapshotConverter.run(new String[] { source.getPath(), target.getPath() }));
+        assertFalse(target.exists());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del almacén proyectado de pacientes a través del repositorio en disco: altas después de un punto de
+ * control, reproducción del diario sobre el almacén y reconstrucción del almacén con los pacientes nuevos.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class MappedPatientStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void newPatientAfterCheckpointIsKeptAcrossRestarts() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(10, "Antiguo"));
+        repository.save(TestDataBase.patient(30, "Antiguo"));
+        repository.checkpoint();
+
+        // tras el punto de control, los pacientes se abren del almacén proyectado
+        repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(20, "Nuevo"));
+        assertEquals(3, repository.size());
+        assertEquals("Nuevo", repository.findBySNS(20).getDatosGenerales().getSurname());
+        assertEquals(keys(10, 20, 30), keysOf(repository));
+        repository.checkpoint();
+        // los detalles de los pacientes antiguos se leen de la nueva instantánea
+        assertEquals("Doctor 10", detailsOf(repository, 10));
+
+        repository = TestDataBase.open(directory);
+        assertEquals(keys(10, 20, 30), keysOf(repository));
+        assertEquals("Doctor 20", detailsOf(repository, 20));
+        assertEquals("Doctor 30", detailsOf(repository, 30));
+    }
+
+    @Test
+    public void replayRegistersNewPatientsOnTheMappedStore() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(10, "Antiguo"));
+        repository.checkpoint();
+
+        // alta registrada solo en el diario, como tras una caída antes del siguiente punto de control
+        repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(5, "Nuevo"));
+        repository.flush();
+
+        repository = TestDataBase.open(directory);
+        assertEquals(keys(5, 10), keysOf(repository));
+        assertEquals("Nuevo", repository.findBySNS(5).getDatosGenerales().getSurname());
+        assertEquals("Doctor 5", detailsOf(repository, 5));
+        assertFalse(repository.findBySurname("Nuevo").isEmpty());
+
+        repository.checkpoint();
+        repository = TestDataBase.open(directory);
+        assertEquals("Doctor 5", detailsOf(repository, 5));
+        assertEquals("Doctor 10", detailsOf(repository, 10));
+    }
+
+    @Test
+    public void patientMapMergesNewPatientsInOrder() throws IOException {
+
+        File directory = folder.getRoot();
+        Map<Long, Long> positions = new HashMap<>();
+        Map<Long, ResumenPacienteModel> patients = new TreeMap<>();
+        for(long codeSNS : new long[] { 2, 4, 6 }) {
+            patients.put(codeSNS, TestDataBase.patient(codeSNS, "Hueco"));
+            positions.put(codeSNS, codeSNS);
+        }
+        MappedPatientStore store = MappedPatientStore.create(new File(directory, "store.idx"), patients, positions,
+                100, 1, (codeSNS) -> null);
+        try {
+            Map<Long, ResumenPacienteModel> map = store.getPatients();
+            map.put(5L, TestDataBase.patient(5, "Nuevo"));
+            map.put(1L, TestDataBase.patient(1, "Nuevo"));
+            map.put(7L, TestDataBase.patient(7, "Nuevo"));
+
+            assertEquals(6, map.size());
+            assertEquals(keys(1, 2, 4, 5, 6, 7), new ArrayList<>(map.keySet()));
+            assertTrue(map.containsKey(5L));
+            assertEquals(keys(1, 5, 7), keysOf(((MappedPatientStore.PatientMap) map).loadedValues()));
+
+            // con pacientes sin hueco el almacén se invalida, pero sus huecos toman las nuevas posiciones
+            positions.put(2L, 20L);
+            assertTrue(store.refresh(positions, 200, 2));
+            assertEquals(Long.valueOf(20), store.detailPosition(2));
+            assertEquals(null, MappedPatientStore.open(new File(directory, "store.idx"), 200, 2, (codeSNS) -> null));
+
+            // sin la posición de alguno de sus huecos, las posiciones del almacén dejan de valer
+            positions.remove(4L);
+            assertFalse(store.refresh(positions, 300, 3));
+        }
+        finally {
+            store.close();
+        }
+    }
+
+    private static List<Long> keys(long... codes) {
+
+        List<Long> keys = new ArrayList<>();
+        for(long codeSNS : codes)
+            keys.add(codeSNS);
+        return keys;
+    }
+
+    private static List<Long> keysOf(FilePatientRepository repository) {
+
+        List<Long> keys = new ArrayList<>();
+        repository.stream().forEach((patient) -> keys.add(patient.getDatosGenerales().getCodeSNS()));
+        return keys;
+    }
+
+    private static List<Long> keysOf(List<ResumenPacienteModel> patients) {
+
+        List<Long> keys = new ArrayList<>();
+        patients.forEach((patient) -> keys.add(patient.getDatosGenerales().getCodeSNS()));
+        return keys;
+    }
+
+    private static String detailsOf(FilePatientRepository repository, long codeSNS) {
+
+        ResumenPacienteModel patient = repository.findBySNS(codeSNS);
+        assertNotNull(patient);
+        return patient.getDatosClinicos().getAsignedDoctor();
+    }
+}
\ No newline at end of file
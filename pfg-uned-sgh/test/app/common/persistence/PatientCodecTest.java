@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.persistence.SchemaMigrations.Record;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.SeccionPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de {@link PatientCodec}: ida y vuelta de cada sección, con y sin diccionario, y lectura de registros
+ * escritos con la versión anterior del esquema a través de {@link SchemaMigrations}.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientCodecTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sectionsRoundTrip() throws IOException {
+
+        assertSectionsRoundTrip(null);
+    }
+
+    @Test
+    public void sectionsRoundTripWithDictionary() throws IOException {
+
+        StringDictionary dictionary = new StringDictionary(new File(folder.getRoot(), "dataBase.dict"));
+        try {
+            assertSectionsRoundTrip(dictionary); }
+        finally {
+            dictionary.close(); }
+    }
+
+    @Test
+    public void readsClinicosFromPreviousSchema() throws IOException {
+
+        // datos clínicos con la versión 1 del esquema: cadenas con writeUTF, sin código del diccionario
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1 | 1 << 1 | 1 << 2 | 1 << 3 | 1 << 4 | 1 << 7);
+        out.writeUTF("Doctor");
+        out.writeUTF("Ibuprofeno");
+        PatientCodec.writeVarLong(out, 2);
+        out.writeBoolean(true);
+        out.writeUTF("Polen");
+        out.writeBoolean(false);
+        PatientCodec.writeVarLong(out, 3);
+
+        DatosClinicosModel clinicos = PatientCodec.readClinicos(input(bytes), PatientCodec.BASE_SCHEMA_VERSION, null);
+        assertEquals("Doctor", clinicos.getAsignedDoctor());
+        assertEquals("Ibuprofeno", clinicos.getCurrentMedication());
+        assertEquals(Boolean.TRUE, clinicos.getRcp());
+        assertArrayEquals(new String[] { "Polen", null }, clinicos.getAllergies());
+        assertEquals(Integer.valueOf(3), clinicos.getTriajePriority());
+        assertFalse(clinicos.isDirty());
+    }
+
+    @Test
+    public void readsPatientFromFlatFormat() throws IOException {
+
+        ResumenPacienteModel patient = TestDataBase.patient(42, "Plano");
+
+        // formato plano de la versión 1: máscara de las secciones presentes seguida de ellas
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1 | 1 << 2); // datos generales y clínicos
+        PatientCodec.writeGenerales(out, patient.getDatosGenerales());
+        out.writeByte(1);
+        out.writeUTF(patient.getDatosClinicos().getAsignedDoctor());
+
+        ResumenPacienteModel read = PatientCodec.readPatient(input(bytes), PatientCodec.BASE_SCHEMA_VERSION);
+        assertEquals("Plano", read.getDatosGenerales().getSurname());
+        assertEquals(patient.getDatosGenerales().getDni().pack(), read.getDatosGenerales().getDni().pack());
+        assertEquals("Doctor 42", read.getDatosClinicos().getAsignedDoctor());
+        assertEquals(null, read.getDatosPersonales());
+    }
+
+    private static void assertSectionsRoundTrip(StringDictionary dictionary) throws IOException {
+
+        ResumenPacienteModel patient = TestDataBase.patient(7, "Ida y vuelta");
+        DatosPersonalesModel personales = patient.getDatosPersonales();
+        personales.setBirthDate(Birthdate.of(29, 2, 2000));
+        personales.setPatientSex(PatientSexEnum.values()[1]);
+        personales.setEmail("paciente@example.org");
+        personales.setPhoneNumber(600123456L);
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        clinicos.setCurrentMedication("Paracetamol");
+        clinicos.setRcp(false);
+        clinicos.setAllergies(new String[] { "Gluten", "Lactosa" });
+        clinicos.setTriajePriority(4);
+        DatosBancariosModel bancarios = patient.getDatosBancarios();
+        bancarios.setAccountNumber(1234567890L);
+        bancarios.setHealthInsurance(true);
+        bancarios.setInsuranceCompany("Aseguradora");
+
+        DatoGeneralesModel generales = roundTrip(patient.getDatosGenerales(), Record.GENERALES, dictionary);
+        assertEquals(patient.getDatosGenerales().getName(), generales.getName());
+        assertEquals("Ida y vuelta", generales.getSurname());
+        assertEquals(patient.getDatosGenerales().getDni().pack(), generales.getDni().pack());
+        assertEquals(Long.valueOf(7), generales.getCodeSNS());
+        assertEquals(patient.getDatosGenerales().getState(), generales.getState());
+
+        DatosPersonalesModel personalesRead = roundTrip(personales, Record.PERSONALES, dictionary);
+        assertEquals(personales.getBirthDate().getEpochDay(), personalesRead.getBirthDate().getEpochDay());
+        assertEquals(personales.getPatientSex(), personalesRead.getPatientSex());
+        assertEquals("paciente@example.org", personalesRead.getEmail());
+        assertEquals(null, personalesRead.getPostalAddress());
+        assertEquals(Long.valueOf(600123456L), personalesRead.getPhoneNumber());
+
+        DatosClinicosModel clinicosRead = roundTrip(clinicos, Record.CLINICOS, dictionary);
+        assertEquals("Doctor 7", clinicosRead.getAsignedDoctor());
+        assertEquals("Paracetamol", clinicosRead.getCurrentMedication());
+        assertEquals(Boolean.FALSE, clinicosRead.getRcp());
+        assertArrayEquals(new String[] { "Gluten", "Lactosa" }, clinicosRead.getAllergies());
+        assertEquals(Integer.valueOf(4), clinicosRead.getTriajePriority());
+
+        DatosBancariosModel bancariosRead = roundTrip(bancarios, Record.BANCARIOS, dictionary);
+        assertEquals(Long.valueOf(1234567890L), bancariosRead.getAccountNumber());
+        assertEquals(Boolean.TRUE, bancariosRead.getHealthInsurance());
+        assertEquals("Aseguradora", bancariosRead.getInsuranceCompany());
+        assertFalse(bancariosRead.isDirty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends SeccionPacienteModel> T roundTrip(T section, Record record,
+            StringDictionary dictionary) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PatientCodec.writeSection(new DataOutputStream(bytes), section, dictionary);
+        return (T) PatientCodec.readSection(input(bytes), record, PatientCodec.SCHEMA_VERSION, dictionary);
+    }
+
+    private static DataInputStream input(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.Birthdate;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la tabla de resumen por columnas: cada filtro (por estado, sexo, prioridad, fecha de nacimiento,
+ * edad y médico, y sus combinaciones) encuentra y ordena los mismos pacientes que el recorrido de los modelos,
+ * también tras guardar cambios; y el repositorio en disco filtra con ella sin cargar los detalles.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientColumnsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Fecha de cálculo de las edades
+    private static final LocalDate TODAY = LocalDate.of(2017, 6, 15);
+
+    @Test
+    public void filtersMatchModels() {
+
+        Random random = new Random(5);
+        List<ResumenPacienteModel> patients = patients(random, 3000);
+        PatientColumns columns = new PatientColumns(patients);
+        assertFilters(columns, patients);
+
+        // cambios guardados paciente a paciente
+        for(int i = 0; i < 500; i++) {
+            ResumenPacienteModel patient = patients.get(random.nextInt(patients.size()));
+            randomize(random, patient);
+            columns.update(patient);
+        }
+        assertFilters(columns, patients);
+    }
+
+    @Test
+    public void ageRangeUsesWholeYears() {
+
+        List<ResumenPacienteModel> patients = new ArrayList<>();
+        int[][] born = { { 15, 6, 2007 }, { 16, 6, 2007 }, { 14, 6, 2007 }, { 16, 6, 2006 }, { 15, 6, 1952 } };
+        for(int i = 0; i < born.length; i++) {
+            ResumenPacienteModel patient = TestDataBase.patient(i + 1, "Apellido " + (i + 1));
+            patient.getDatosPersonales().setBirthDate(Birthdate.of(born[i][0], born[i][1], born[i][2]));
+            patients.add(patient);
+        }
+        PatientColumns columns = new PatientColumns(patients);
+
+        // cumple 10 años el mismo día; quien nació un día después todavía tiene 9
+        assertArrayEquals(new long[] { 1, 3, 4 }, columns.find(new PatientFilter().ageBetween(10, 10, TODAY)));
+        assertArrayEquals(new long[] { 2 }, columns.find(new PatientFilter().ageBetween(0, 9, TODAY)));
+        assertArrayEquals(new long[] { 5, 4, 3, 1, 2 },
+                columns.find(new PatientFilter().ageBetween(0, 65, TODAY).sortBy(PatientFilter.Sort.AGE)));
+        assertEquals(1, columns.count(new PatientFilter().ageBetween(65, 120, TODAY)));
+    }
+
+    @Test
+    public void fileRepositoryFiltersWithoutLoadingDetails() throws IOException {
+
+        FilePatientRepository repository = TestDataBase.open(folder.getRoot());
+        for(long codeSNS = 1; codeSNS <= 6; codeSNS++) {
+            ResumenPacienteModel patient = TestDataBase.patient(codeSNS, "Apellido " + codeSNS);
+            patient.getDatosClinicos().setAsignedDoctor(codeSNS % 2 == 0 ? "Doctora Pares" : "Doctor Impares");
+            patient.getDatosClinicos().setTriajePriority((int) codeSNS);
+            repository.save(patient);
+        }
+        repository.checkpoint();
+
+        // tras reabrir, el médico asignado de los pacientes sin cargar sale de su índice secundario
+        repository = TestDataBase.open(folder.getRoot());
+        PatientFilter filter = new PatientFilter().doctor("doctora pares").sortBy(PatientFilter.Sort.PRIORITY);
+        assertEquals(Arrays.asList(6L, 4L, 2L), codesOf(repository.findByFilter(filter)));
+        assertEquals(2, repository.countByFilter(new PatientFilter().doctor("Doctor Impares").minPriority(3)));
+        assertFalse(repository.findBySNS(4).isDetailLoaded());
+
+        // y la tabla sigue los cambios guardados
+        ResumenPacienteModel patient = repository.findBySNS(4);
+        patient.getDatosGenerales().setState(PatientStateEnum.Alta);
+        repository.saveSection(patient.getDatosGenerales());
+        assertEquals(Arrays.asList(4L), codesOf(repository.findByFilter(new PatientFilter().state(PatientStateEnum.Alta))));
+    }
+
+    private static List<Long> codesOf(List<ResumenPacienteModel> patients) {
+        return patients.stream().map((patient) -> patient.getDatosGenerales().getCodeSNS()).collect(Collectors.toList());
+    }
+
+    private static void assertFilters(PatientColumns columns, List<ResumenPacienteModel> patients) {
+
+        List<PatientFilter> filters = Arrays.asList(
+                new PatientFilter(),
+                new PatientFilter().state(PatientStateEnum.Espera).minPriority(7),
+                new PatientFilter().state(PatientStateEnum.Ingreso).sex(PatientSexEnum.Mujer),
+                new PatientFilter().state(PatientStateEnum.Espera, PatientStateEnum.Alta).sortBy(PatientFilter.Sort.PRIORITY),
+                new PatientFilter().priority(2, 4).sex(PatientSexEnum.Hombre, PatientSexEnum.Desconocido),
+                new PatientFilter().bornBetween(LocalDate.of(1950, 1, 1), LocalDate.of(1960, 12, 31)),
+                new PatientFilter().ageBetween(0, 14, TODAY).sortBy(PatientFilter.Sort.AGE),
+                new PatientFilter().ageBetween(65, 200, TODAY).state(PatientStateEnum.Ingreso),
+                new PatientFilter().doctor(" doctor 3 ").sortBy(PatientFilter.Sort.AGE));
+
+        for(PatientFilter filter : filters) {
+            Stream<ResumenPacienteModel> matching = patients.stream().filter(filter);
+            if(filter.comparator() != null)
+                matching = matching.sorted(filter.comparator());
+            long[] expected = matching.mapToLong((patient) -> patient.getDatosGenerales().getCodeSNS()).toArray();
+            assertArrayEquals(expected, columns.find(filter));
+            assertEquals(expected.length, columns.count(filter));
+        }
+    }
+
+    private static List<ResumenPacienteModel> patients(Random random, int count) {
+
+        List<ResumenPacienteModel> patients = new ArrayList<>();
+        for(long codeSNS = 1; codeSNS <= count; codeSNS++) {
+            ResumenPacienteModel patient = TestDataBase.patient(codeSNS, "Apellido " + codeSNS);
+            randomize(random, patient);
+            patients.add(patient);
+        }
+        return patients;
+    }
+
+    private static void randomize(Random random, ResumenPacienteModel patient) {
+
+        PatientStateEnum[] states = PatientStateEnum.values();
+        PatientSexEnum[] sexes = PatientSexEnum.values();
+        patient.getDatosGenerales().setState(states[random.nextInt(states.length)]);
+        patient.getDatosPersonales().setPatientSex(random.nextInt(10) > 0 ? sexes[random.nextInt(sexes.length)] : null);
+        patient.getDatosClinicos().setTriajePriority(random.nextInt(10) > 0 ? random.nextInt(11) : null);
+        patient.getDatosClinicos().setAsignedDoctor("Doctor " + random.nextInt(5));
+        LocalDate born = TODAY.minusDays(random.nextInt(100 * 365));
+        patient.getDatosPersonales().setBirthDate(random.nextInt(20) > 0
+                ? Birthdate.of(born.getDayOfMonth(), born.getMonthValue(), born.getYear()) : null);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Pruebas del mapa de pacientes por código SNS, comparándolo con un {@link TreeMap}: altas, sustituciones y
+ * bajas con colisiones, recorridos en orden de código SNS, intervalos de códigos y modificaciones durante un
+ * recorrido.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientHashMapTest {
+
+    @Test
+    public void behavesLikeTreeMap() {
+
+        Random random = new Random(13);
+        PatientHashMap map = new PatientHashMap();
+        TreeMap<Long, ResumenPacienteModel> expected = new TreeMap<>();
+
+        for(int i = 0; i < 20000; i++) {
+            // códigos múltiplos de potencias de dos, que colisionan en la tabla, y algunos extremos
+            long codeSNS = random.nextInt(4) == 0 ? (long) random.nextInt(64) << 20 : random.nextInt(5000) - 100;
+            if(random.nextInt(50) == 0)
+                codeSNS = random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE;
+
+            if(random.nextInt(3) == 0)
+                assertSame(expected.remove(codeSNS), map.remove(codeSNS));
+            else {
+                ResumenPacienteModel patient = TestDataBase.patient(Math.abs(codeSNS % 1000), "Apellido");
+                assertSame(expected.put(codeSNS, patient), map.put(codeSNS, patient));
+            }
+            assertEquals(expected.size(), map.size());
+
+            if(i % 1000 == 0)
+                assertSameContent(expected, map);
+        }
+
+        for(long codeSNS = -200; codeSNS < 5100; codeSNS++) {
+            assertEquals(expected.containsKey(codeSNS), map.containsKey(codeSNS));
+            assertSame(expected.get(codeSNS), map.get(codeSNS));
+        }
+        assertSameContent(expected, map);
+        assertEquals(new ArrayList<>(expected.subMap(100L, 2000L).values()), map.valuesBetween(100, 2000));
+        assertEquals(new ArrayList<>(expected.subMap(-50L, 0L).values()), map.valuesBetween(-50, 0));
+        assertEquals(0, map.valuesBetween(10, 5).size());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(0L));
+        assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void iteratorRemovesAndDetectsConcurrentChanges() {
+
+        PatientHashMap map = new PatientHashMap();
+        for(long codeSNS = 20; codeSNS > 0; codeSNS--)
+            map.put(codeSNS, TestDataBase.patient(codeSNS, "Apellido"));
+
+        // bajas por el iterador: los pares
+        for(Iterator<Long> codes = map.keySet().iterator(); codes.hasNext(); )
+            if(codes.next() % 2 == 0)
+                codes.remove();
+        assertEquals(10, map.size());
+        assertEquals(Arrays.asList(1L, 3L, 5L, 7L, 9L, 11L, 13L, 15L, 17L, 19L),
+                new ArrayList<>(map.keySet()));
+
+        try {
+            for(Map.Entry<Long, ResumenPacienteModel> entry : map.entrySet())
+                if(entry.getKey() == 5)
+                    map.put(100L, entry.getValue());
+            fail("No se ha detectado el alta durante el recorrido");
+        }
+        catch(ConcurrentModificationException cme) { }
+
+        try {
+            map.put(1L, null);
+            fail("Se ha admitido un paciente nulo");
+        }
+        catch(NullPointerException npe) { }
+    }
+
+    private static void assertSameContent(TreeMap<Long, ResumenPacienteModel> expected, PatientHashMap map) {
+
+        assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(map.keySet()));
+        assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(map.values()));
+        assertEquals(expected, map);
+    }
+}
\ No newline at end of file
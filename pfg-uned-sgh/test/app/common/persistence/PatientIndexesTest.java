@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de los índices secundarios persistentes: siguen a los guardados, al diario y a los puntos de
+ * control, y un índice desfasado o dañado se reconstruye sin tocar el resto.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientIndexesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findersFollowSavesReplayAndCheckpoint() throws IOException {
+
+        File directory = folder.getRoot();
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(1, "García"));
+        repository.save(TestDataBase.patient(2, "López"));
+        repository.save(TestDataBase.patient(3, "García"));
+        assertEquals(Arrays.asList(1L, 3L), codes(repository.findBySurname(" GARCÍA ")));
+
+        DatoGeneralesModel generales = repository.findBySNS(3).getDatosGenerales();
+        generales.setSurname("López");
+        repository.saveSection(generales);
+        assertFinders(repository);
+
+        // sin punto de control: los cambios del diario se aplican a los índices al abrirlos
+        repository = TestDataBase.open(directory);
+        assertFinders(repository);
+
+        repository.checkpoint();
+        assertTrue(new File(directory, "dataBase.surname.sidx").exists());
+        repository = TestDataBase.open(directory);
+        assertFinders(repository);
+    }
+
+    @Test
+    public void staleOrDamagedIndexIsRebuiltAlone() throws IOException {
+
+        ShardedSnapshot snapshot = new ShardedSnapshot(new File(folder.getRoot(), "dataBase"), TestDataBase.SHARDS);
+        List<ResumenPacienteModel> patients = new ArrayList<>();
+        for(long codeSNS = 1; codeSNS <= 3; codeSNS++)
+            patients.add(TestDataBase.patient(codeSNS, "Apellido " + codeSNS));
+
+        PatientIndexes indexes = new PatientIndexes(snapshot);
+        indexes.load(7, patients, Collections.emptyList());
+        indexes.write(7);
+
+        // se daña el índice por apellidos y se cambia el paciente que lo comprueba
+        File surname = snapshot.siblingFile(".surname.sidx");
+        try(RandomAccessFile raf = new RandomAccessFile(surname, "rw")) {
+            raf.seek(raf.length() - 1);
+            int value = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(value ^ 0xFF);
+        }
+        patients.get(0).getDatosGenerales().setSurname("Cambiado");
+        byte[] dni = Files.readAllBytes(snapshot.siblingFile(".dni.sidx").toPath());
+
+        indexes = new PatientIndexes(snapshot);
+        indexes.load(7, patients, Collections.emptyList());
+        assertEquals(Collections.singletonList(1L), indexes.findBySurname("Cambiado"));
+        assertEquals(Arrays.asList(1L, 2L, 3L), indexes.findByState(PatientStateEnum.values()[0]));
+        assertArrayEquals(dni, Files.readAllBytes(snapshot.siblingFile(".dni.sidx").toPath()));
+        assertEquals(Collections.singletonList(2L), indexes.findByDNI(patients.get(1).getDatosGenerales().getDni()));
+
+        // con otra marca de instantánea todos están desfasados y se reconstruyen
+        patients.get(1).getDatosClinicos().setAsignedDoctor("Doctor 1");
+        indexes = new PatientIndexes(snapshot);
+        indexes.load(8, patients, Collections.emptyList());
+        assertEquals(Arrays.asList(1L, 2L), indexes.findByAssignedDoctor("doctor 1"));
+    }
+
+    private static void assertFinders(FilePatientRepository repository) {
+
+        assertEquals(Collections.singletonList(1L), codes(repository.findBySurname("García")));
+        assertEquals(Arrays.asList(2L, 3L), codes(repository.findBySurname("López")));
+        assertEquals(Arrays.asList(1L, 2L, 3L), codes(repository.findByState(PatientStateEnum.values()[0])));
+        assertEquals(Collections.singletonList(3L), codes(repository.findByAssignedDoctor("Doctor 3")));
+    }
+
+    private static List<Long> codes(List<ResumenPacienteModel> patients) {
+        return patients.stream().map((patient) -> patient.getDatosGenerales().getCodeSNS()).collect(Collectors.toList());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del contrato de {@link PatientRepository#save}: registra los pacientes nuevos, en memoria y en disco
+ * (también sobre el almacén proyectado), rechaza sin registrarlo un paciente nuevo con un DNI ya registrado y sigue el DNI editado en su sitio.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void inMemorySaveRegistersNewPatients() {
+
+        InMemoryPatientRepository repository = new InMemoryPatientRepository(new TestDataBase());
+        assertRegistersNewPatients(repository);
+    }
+
+    @Test
+    public void fileSaveRegistersNewPatientsAfterCheckpoint() throws IOException {
+
+        FilePatientRepository repository = TestDataBase.open(folder.getRoot());
+        repository.save(TestDataBase.patient(100, "Existente"));
+        repository.checkpoint();
+
+        repository = TestDataBase.open(folder.getRoot());
+        assertRegistersNewPatients(repository);
+    }
+
+    private static void assertRegistersNewPatients(PatientRepository repository) {
+
+        int size = repository.size();
+        ResumenPacienteModel patient = TestDataBase.patient(1, "Alta");
+        repository.save(patient);
+
+        assertEquals(size + 1, repository.size());
+        assertSame(patient, repository.findBySNS(1));
+        assertSame(patient, repository.findByDNI(patient.getDatosGenerales().getDni()));
+        assertEquals(1, repository.findBySurname("Alta").size());
+
+        // un paciente nuevo con el DNI de otro no se registra
+        ResumenPacienteModel duplicate = TestDataBase.patient(2, "Duplicado");
+        DatoGeneralesModel generales = duplicate.getDatosGenerales();
+        generales.setDni(patient.getDatosGenerales().getDni());
+        try {
+            repository.save(duplicate);
+            fail("Se ha registrado un paciente con un DNI duplicado"); }
+        catch(IllegalArgumentException iae) { }
+        assertNull(repository.findBySNS(2));
+        assertEquals(size + 1, repository.size());
+
+        // el DNI se edita en su sitio: al guardar, se encuentra por el nuevo y ya no por el anterior
+        DNI previous = DNI.unpack(patient.getDatosGenerales().getDni().pack());
+        patient.getDatosGenerales().getDni().setDigits(12345678);
+        patient.getDatosGenerales().getDni().setLetter(DNI.controlLetter(12345678));
+        repository.save(patient);
+        assertSame(patient, repository.findByDNI(new DNI(12345678, DNI.controlLetter(12345678))));
+        assertNull(repository.findByDNI(previous));
+    }
+}
\ No newline at end of file
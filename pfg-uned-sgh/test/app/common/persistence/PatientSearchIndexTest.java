@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas del índice de búsqueda mientras se escribe: prefijos de nombres, apellidos, códigos SNS y DNI; y,
+ * sin distinguir mayúsculas ni tildes, orden por relevancia y tolerancia a erratas, comparado con el recorrido
+ * de los pacientes sin índice.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientSearchIndexTest {
+
+    private static final List<ResumenPacienteModel> PATIENTS = Arrays.asList(
+            patient(101, "Ana", "García López", 12345678),
+            patient(102, "Andrés", "Garrido Pérez", 23456789),
+            patient(103, "Ángela", "Martínez García", 34567890),
+            patient(204, "Luis", "Gracia Ruiz", 45678901),
+            patient(205, "Lucía", "Marín", 56789012));
+
+    @Test
+    public void prefixesOfNamesCodesAndDNIMatch() {
+
+        PatientSearchIndex index = new PatientSearchIndex(PATIENTS);
+
+        assertEquals(Arrays.asList(101L, 102L, 103L), index.search("an", 10));
+        assertEquals(Arrays.asList(101L), index.search("ana garcia", 10));
+        assertEquals(Arrays.asList(102L, 204L, 205L), index.search("2", 10));
+        assertEquals(Arrays.asList(101L), index.search("12345678Z", 10));
+        assertEquals(Arrays.asList(101L), index.search("12345678-z", 10));
+        assertEquals(Arrays.asList(102L), index.search("2345", 10));
+        assertTrue(index.search("", 10).isEmpty());
+        assertTrue(index.search("ana ruiz", 10).isEmpty());
+    }
+
+    @Test
+    public void savedPatientsPrevailOverTheTables() {
+
+        PatientSearchIndex index = new PatientSearchIndex(PATIENTS);
+        ResumenPacienteModel renamed = patient(205, "Lucía", "Sanz", 56789012);
+        index.update(renamed);
+        index.update(patient(300, "Nuevo", "Marín", 67890123));
+
+        assertEquals(Arrays.asList(300L), index.search("marin", 10));
+        assertEquals(Arrays.asList(205L), index.search("sanz", 10));
+        assertFalse(index.isStale());
+    }
+
+    @Test
+    public void accentsAndCaseAreIgnored() {
+
+        PatientSearchIndex index = new PatientSearchIndex(PATIENTS);
+
+        assertEquals("angela martinez", PatientSearchIndex.normalize("ÁNGELA Martínez"));
+        assertEquals(index.search("angela", 10), index.search("ÁNGELA", 10));
+        assertEquals(Arrays.asList(103L), index.search("ANGELA MARTINEZ", 10));
+        assertEquals(Arrays.asList(102L), index.search("andres perez", 10));
+    }
+
+    @Test
+    public void exactMatchesRankFirstAndTyposAreTolerated() {
+
+        PatientSearchIndex index = new PatientSearchIndex(PATIENTS);
+
+        // "garcia" exacta antes que "gracia", a una transposición; y a igualdad, por código SNS
+        assertEquals(Arrays.asList(101L, 103L, 204L), index.search("garcia", 10));
+        // una errata a partir de cuatro letras; ninguna por debajo
+        assertEquals(Arrays.asList(101L, 103L), index.search("garcai", 2));
+        assertTrue(index.search("lia", 10).isEmpty());
+        // dos erratas a partir de ocho letras
+        assertEquals(Arrays.asList(103L), index.search("matrinex", 10));
+        assertEquals(Arrays.asList(101L), index.search("garcia ana", 1));
+    }
+
+    @Test
+    public void indexMatchesScan() {
+
+        Random random = new Random(17);
+        String[] names = { "Ana", "Andrés", "Ángela", "Luis", "Lucía", "María", "Mario", "José", "Josefa", "Íñigo" };
+        String[] surnames = { "García", "Garrido", "Gracia", "Martínez", "Marín", "López", "Pérez", "Ruiz", "Núñez" };
+        List<ResumenPacienteModel> patients = new ArrayList<>();
+        for(int i = 0; i < 2000; i++)
+            patients.add(patient(1000 + i * 3, names[random.nextInt(names.length)],
+                    surnames[random.nextInt(surnames.length)] + " " + surnames[random.nextInt(surnames.length)],
+                    random.nextInt(100_000_000)));
+        PatientSearchIndex index = new PatientSearchIndex(patients);
+
+        String[] queries = { "ana", "an gar", "MARTINEZ", "martniez", "garica ruiz", "lucia nunez", "10", "1003",
+                "jose", "inigo lopez", "gracia garcia", "perez perez", "mari" };
+        for(String query : queries)
+            assertEquals(query, codesOf(PatientSearchIndex.scan(patients, query, 25)), index.search(query, 25));
+    }
+
+    private static List<Long> codesOf(List<ResumenPacienteModel> patients) {
+        return patients.stream().map((patient) -> patient.getDatosGenerales().getCodeSNS()).collect(Collectors.toList());
+    }
+
+    private static ResumenPacienteModel patient(long codeSNS, String name, String surname, int dniDigits) {
+
+        DatoGeneralesModel generales = new DatoGeneralesModel(name, surname, new DNI(dniDigits, DNI.controlLetter(dniDigits)),
+                codeSNS, PatientStateEnum.values()[0]);
+        return new ResumenPacienteModel(generales, new DatosPersonalesModel(), new DatosClinicosModel(), new DatosBancariosModel());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la importación de {@link PatientTransfer}: sobre una base de datos en disco ya consolidada en una
+ * instantánea, y con errores del repositorio al guardar, que se rechazan fila a fila; y los argumentos de la línea de
+ * comandos.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class PatientTransferTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void invalidArgumentsReturnUsageStatus() {
+
+        assertEquals(PatientTransfer.EXIT_USAGE, PatientTransfer.run(new String[0]));
+        assertEquals(PatientTransfer.EXIT_USAGE, PatientTransfer.run(new String[] { "copiar", "pacientes.csv" }));
+    }
+
+    @Test
+    public void importIntoCheckpointedFileDataBase() throws IOException {
+
+        File directory = folder.newFolder("database");
+        FilePatientRepository repository = TestDataBase.open(directory);
+        repository.save(TestDataBase.patient(100, "Existente"));
+        repository.checkpoint();
+
+        repository = TestDataBase.open(directory);
+        File csv = csv("code_sns,name,surname,dni",
+                "1,Ana,Nueva," + dni(1),
+                "100,Luis,Cambiado," + dni(100),
+                "x,Mal,Código,",
+                "2,Eva,Nueva," + dni(2));
+        PatientTransfer.Report report = PatientTransfer.importFile(csv, repository);
+        repository.flush();
+
+        assertEquals(3, report.getRows());
+        assertEquals(1, report.getRejectedRows());
+        assertTrue(report.getRejections().get(0).startsWith("línea 4"));
+
+        repository = TestDataBase.open(directory);
+        assertEquals(3, repository.size());
+        assertEquals("Nueva", repository.findBySNS(1).getDatosGenerales().getSurname());
+        assertEquals("Nueva", repository.findBySNS(2).getDatosGenerales().getSurname());
+        assertEquals("Cambiado", repository.findBySNS(100).getDatosGenerales().getSurname());
+    }
+
+    @Test
+    public void storageFailuresBecomeRowRejects() throws IOException {
+
+        InMemoryPatientRepository repository = new InMemoryPatientRepository() {
+            @Override
+            public void save(ResumenPacienteModel patient) {
+                if(patient.getDatosGenerales().getCodeSNS() == 2)
+                    throw new IllegalStateException("sin espacio");
+                super.save(patient);
+            }
+        };
+        File csv = csv("code_sns,name,surname",
+                "1,Ana,Nueva",
+                "2,Eva,Fallida",
+                "3,Luis,Nuevo");
+        PatientTransfer.Report report = PatientTransfer.importFile(csv, repository);
+
+        assertEquals(2, report.getRows());
+        assertEquals(1, report.getRejectedRows());
+        assertTrue(report.getRejections().get(0).startsWith("línea 3"));
+        assertTrue(report.getRejections().get(0).contains("sin espacio"));
+        assertNotNull(repository.findBySNS(1));
+        assertNull(repository.findBySNS(2));
+        assertNotNull(repository.findBySNS(3));
+    }
+
+    private File csv(String... lines) throws IOException {
+
+        File file = folder.newFile("pacientes.csv");
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static String dni(int digits) {
+        return digits + "-" + DNI.controlLetter(digits);
+    }
+}
\ No newline at end of file
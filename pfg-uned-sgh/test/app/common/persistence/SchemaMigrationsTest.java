@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.persistence.SchemaMigrations.Record;
+import app.model.datospaciente.DatosBancariosModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Pruebas del registro de migraciones del esquema: versiones que no se pueden leer, registros que no cambian, y
+ * migración de un registro sin alterar lo que le sigue en el origen.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class SchemaMigrationsTest {
+
+    @Test
+    public void rejectsUnreadableVersions() throws IOException {
+
+        SchemaMigrations.check(PatientCodec.BASE_SCHEMA_VERSION);
+        SchemaMigrations.check(PatientCodec.SCHEMA_VERSION);
+        for(int version : new int[] { PatientCodec.SCHEMA_VERSION + 1, PatientCodec.BASE_SCHEMA_VERSION - 1 })
+            try {
+                SchemaMigrations.check(version);
+                fail("Se ha admitido la versión " + version + " del esquema"); }
+            catch(SchemaVersionException sve) { }
+    }
+
+    @Test
+    public void unchangedRecordsAreReadAsTheyAre() throws IOException {
+
+        DataInput in = new DataInputStream(new ByteArrayInputStream(new byte[0]));
+        assertSame(in, SchemaMigrations.upgrade(Record.BANCARIOS, PatientCodec.SCHEMA_VERSION, in));
+        // la migración de la versión 1 no afecta a los datos generales ni al índice
+        assertSame(in, SchemaMigrations.upgrade(Record.GENERALES, PatientCodec.BASE_SCHEMA_VERSION, in));
+        assertSame(in, SchemaMigrations.upgrade(Record.INDEX, PatientCodec.BASE_SCHEMA_VERSION, in));
+    }
+
+    @Test
+    public void migratesOneRecordAndKeepsTheRest() throws IOException {
+
+        // datos bancarios con la versión 1 del esquema, seguidos de otro dato
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1 | 1 << 1 | 1 << 2 | 1 << 7);
+        PatientCodec.writeVarLong(out, 1234567890L);
+        out.writeUTF("ADESLAS");
+        out.writeInt(0xCAFE);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        DataInput migrated = SchemaMigrations.upgrade(Record.BANCARIOS, PatientCodec.BASE_SCHEMA_VERSION, in);
+        assertNotSame(in, migrated);
+
+        DatosBancariosModel bancarios = PatientCodec.readBancarios(migrated, PatientCodec.SCHEMA_VERSION, null);
+        assertEquals(Long.valueOf(1234567890L), bancarios.getAccountNumber());
+        assertEquals(Boolean.TRUE, bancarios.getHealthInsurance());
+        assertEquals("ADESLAS", bancarios.getInsuranceCompany());
+        assertEquals(0xCAFE, in.readInt());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la instantánea en bloques comprimidos: ida y vuelta con carga de los detalles bajo demanda, copia
+ * de los detalles sin cargar a la siguiente instantánea, y bloques dañados que se descartan sin perder el resto
+ * y sin que se llegue a escribir encima de ellos.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class SegmentedSnapshotTest {
+
+    // Pacientes de las pruebas: más de dos bloques completos
+    private static final int PATIENTS = 600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndReadWithDetailsOnDemand() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dat");
+        new SegmentedSnapshot(file).write(dataBase());
+
+        DataBase dataBase = new TestDataBase();
+        new SegmentedSnapshot(file).read(dataBase);
+        Map<Long, ResumenPacienteModel> read = dataBase.getRegisteredPatients();
+        assertEquals(dataBase().getRegisteredUsers(), dataBase.getRegisteredUsers());
+        assertEquals(PATIENTS, read.size());
+
+        ResumenPacienteModel patient = read.get(300L);
+        assertEquals("Apellido 300", patient.getDatosGenerales().getSurname());
+        assertFalse(patient.isDetailLoaded());
+        assertEquals("Doctor 300", patient.getDatosClinicos().getAsignedDoctor());
+    }
+
+    @Test
+    public void unloadedDetailsAreCopiedToTheNextSnapshot() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dat");
+        new SegmentedSnapshot(file).write(dataBase());
+
+        SegmentedSnapshot reread = new SegmentedSnapshot(file);
+        DataBase dataBase = new TestDataBase();
+        reread.read(dataBase);
+        Map<Long, ResumenPacienteModel> read = dataBase.getRegisteredPatients();
+        read.get(1L).getDatosGenerales().setSurname("Cambiado");
+        read.get(2L).getDatosClinicos().setAsignedDoctor("Otro doctor");
+        reread.write(dataBase);
+
+        read = read(new SegmentedSnapshot(file));
+        assertEquals("Cambiado", read.get(1L).getDatosGenerales().getSurname());
+        assertEquals("Doctor 1", read.get(1L).getDatosClinicos().getAsignedDoctor());
+        assertEquals("Otro doctor", read.get(2L).getDatosClinicos().getAsignedDoctor());
+        assertEquals("Doctor 599", read.get(599L).getDatosClinicos().getAsignedDoctor());
+    }
+
+    @Test
+    public void damagedIndexBlockLosesOnlyItsPatients() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dat");
+        new SegmentedSnapshot(file).write(dataBase());
+
+        // el último bloque es el índice de los últimos pacientes
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 4);
+            int value = raf.read();
+            raf.seek(raf.length() - 4);
+            raf.write(value ^ 0xFF);
+        }
+
+        SegmentedSnapshot snapshot = new SegmentedSnapshot(file);
+        Map<Long, ResumenPacienteModel> read = read(snapshot);
+        assertEquals(512, read.size());
+        assertEquals("Doctor 1", read.get(1L).getDatosClinicos().getAsignedDoctor());
+        assertNull(read.get(599L));
+
+        // no se escribe una instantánea sin los pacientes perdidos
+        assertTrue(snapshot.isDamaged());
+        assertWriteRefused(snapshot, file, read);
+    }
+
+    @Test
+    public void damagedDetailBlockIsNeverOverwritten() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dat");
+        new SegmentedSnapshot(file).write(dataBase());
+
+        // el primer bloque es el de los detalles de los primeros pacientes
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = firstBlock(raf) + 40;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+
+        SegmentedSnapshot snapshot = new SegmentedSnapshot(file);
+        Map<Long, ResumenPacienteModel> read = read(snapshot);
+        assertEquals(PATIENTS, read.size());
+        assertFalse(snapshot.isDamaged());
+
+        // sus pacientes se muestran con los detalles vacíos, pero esos detalles no reemplazan a los dañados
+        assertNull(read.get(1L).getDatosClinicos().getAsignedDoctor());
+        assertTrue(snapshot.isDamaged());
+        assertWriteRefused(snapshot, file, read);
+
+        // tampoco si se escribe sin haber cargado antes los detalles
+        snapshot = new SegmentedSnapshot(file);
+        read = read(snapshot);
+        assertWriteRefused(snapshot, file, read);
+        assertTrue(snapshot.isDamaged());
+    }
+
+    private static Map<Long, ResumenPacienteModel> read(SegmentedSnapshot snapshot) throws IOException {
+
+        DataBase dataBase = new TestDataBase();
+        snapshot.read(dataBase);
+        return dataBase.getRegisteredPatients();
+    }
+
+    private static void assertWriteRefused(SegmentedSnapshot snapshot, File file,
+            Map<Long, ResumenPacienteModel> patients) throws IOException {
+
+        DataBase dataBase = new TestDataBase();
+        dataBase.getRegisteredPatients().putAll(patients);
+        byte[] before = Files.readAllBytes(file.toPath());
+        try {
+            snapshot.write(dataBase);
+            fail("Se ha reemplazado una instantánea dañada"); }
+        catch(IOException ioe) { }
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    private static long firstBlock(RandomAccessFile raf) throws IOException {
+
+        // "SGHB" seguido del tipo de bloque
+        for(long position = 0; ; position++) {
+            raf.seek(position);
+            if(raf.readInt() == 0x53474842)
+                return position;
+        }
+    }
+
+    private static DataBase dataBase() {
+
+        DataBase dataBase = new TestDataBase();
+        dataBase.getRegisteredUsers().put("Triaje", "");
+        dataBase.getRegisteredUsers().put("Facultativo", "clave");
+        for(long codeSNS = 0; codeSNS < PATIENTS; codeSNS++)
+            dataBase.getRegisteredPatients().put(codeSNS, TestDataBase.patient(codeSNS, "Apellido " + codeSNS));
+        return dataBase;
+    }
+}
\ No newline at end of file
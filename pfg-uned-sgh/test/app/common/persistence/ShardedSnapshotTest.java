@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.model.datospaciente.ResumenPacienteModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas de la instantánea repartida en fragmentos: ida y vuelta en orden de código SNS, escritura de solo los
+ * fragmentos modificados, fragmentos ilegibles que no se sobrescriben y conversión de la instantánea de un solo
+ * fichero.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class ShardedSnapshotTest {
+
+    private static final int SHARDS = 4;
+    private static final int PATIENTS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeAndReadAllShards() throws IOException {
+
+        File base = new File(folder.getRoot(), "dataBase");
+        ShardedSnapshot snapshot = new ShardedSnapshot(base, SHARDS);
+        assertTrue(snapshot.isModified());
+        snapshot.write(dataBase());
+        assertFalse(snapshot.isModified());
+
+        DataBase read = new TestDataBase();
+        new ShardedSnapshot(base, 1).read(read);
+        assertEquals("clave", read.getRegisteredUsers().get("Facultativo"));
+        assertTrue(read.getRegisteredPatients() instanceof ShardedSnapshot.ShardedPatientMap);
+        assertEquals(PATIENTS, read.getRegisteredPatients().size());
+
+        // los recorridos mezclan los fragmentos en orden de código SNS
+        List<Long> codes = new ArrayList<>(read.getRegisteredPatients().keySet());
+        for(int i = 0; i < PATIENTS; i++)
+            assertEquals(Long.valueOf(i), codes.get(i));
+        assertEquals("Doctor 42", read.getRegisteredPatients().get(42L).getDatosClinicos().getAsignedDoctor());
+    }
+
+    @Test
+    public void writesOnlyModifiedShards() throws IOException {
+
+        File base = new File(folder.getRoot(), "dataBase");
+        new ShardedSnapshot(base, SHARDS).write(dataBase());
+
+        ShardedSnapshot snapshot = new ShardedSnapshot(base);
+        DataBase read = new TestDataBase();
+        snapshot.read(read);
+        byte[][] before = shardContents(base);
+
+        ResumenPacienteModel patient = read.getRegisteredPatients().get(1L);
+        patient.getDatosGenerales().setSurname("Cambiado");
+        snapshot.markModified(1L);
+        snapshot.write(read);
+
+        byte[][] after = shardContents(base);
+        for(int shard = 0; shard < SHARDS; shard++)
+            if(shard == Math.floorMod(Long.hashCode(1L), SHARDS))
+                assertFalse(Arrays.equals(before[shard], after[shard]));
+            else
+                assertArrayEquals(before[shard], after[shard]);
+
+        DataBase reread = new TestDataBase();
+        new ShardedSnapshot(base).read(reread);
+        assertEquals("Cambiado", reread.getRegisteredPatients().get(1L).getDatosGenerales().getSurname());
+        assertEquals(PATIENTS, reread.getRegisteredPatients().size());
+    }
+
+    @Test
+    public void convertsSingleFileSnapshot() throws IOException {
+
+        File base = new File(folder.getRoot(), "dataBase");
+        DataBase dataBase = dataBase();
+        new SegmentedSnapshot(new File(base.getPath() + ".dat"))
+                .write(dataBase.getRegisteredUsers(), dataBase.getRegisteredPatients());
+
+        ShardedSnapshot snapshot = new ShardedSnapshot(base, SHARDS);
+        DataBase read = new TestDataBase();
+        snapshot.read(read);
+        assertEquals(PATIENTS, read.getRegisteredPatients().size());
+        snapshot.write(read);
+
+        assertFalse(new File(base.getPath() + ".dat").exists());
+        assertTrue(new File(base.getPath() + ".shards").exists());
+        DataBase reread = new TestDataBase();
+        new ShardedSnapshot(base).read(reread);
+        assertEquals(PATIENTS, reread.getRegisteredPatients().size());
+        assertEquals("Doctor 7", reread.getRegisteredPatients().get(7L).getDatosClinicos().getAsignedDoctor());
+    }
+
+    @Test
+    public void unreadableShardIsKeptUntilSetAside() throws IOException {
+
+        File base = new File(folder.getRoot(), "dataBase");
+        new ShardedSnapshot(base, SHARDS).write(dataBase());
+
+        // un fragmento ilegible en su conjunto
+        int damagedShard = Math.floorMod(Long.hashCode(1L), SHARDS);
+        File damagedFile = new File(base.getPath() + "." + damagedShard + ".dat");
+        byte[] damagedContent = { 1, 2, 3 };
+        Files.write(damagedFile.toPath(), damagedContent);
+
+        ShardedSnapshot snapshot = new ShardedSnapshot(base);
+        DataBase read = new TestDataBase();
+        snapshot.read(read);
+        assertEquals(Arrays.asList(damagedFile), snapshot.getDamagedFiles());
+        assertFalse(read.getRegisteredPatients().containsKey(1L));
+
+        // un alta en el fragmento dañado no lo sustituye por uno con solo ese paciente
+        read.getRegisteredPatients().put(1L, TestDataBase.patient(1, "Nuevo"));
+        snapshot.markModified(1L);
+        try {
+            snapshot.write(read);
+            fail("Se ha escrito encima de un fragmento dañado"); }
+        catch(IOException ioe) { }
+        assertTrue(snapshot.isModified());
+        assertArrayEquals(damagedContent, Files.readAllBytes(damagedFile.toPath()));
+
+        // una vez apartado, el fragmento se vuelve a crear
+        assertTrue(damagedFile.delete());
+        snapshot = new ShardedSnapshot(base);
+        read = new TestDataBase();
+        snapshot.read(read);
+        assertTrue(snapshot.getDamagedFiles().isEmpty());
+        assertTrue(snapshot.isModified());
+        snapshot.write(read);
+        assertTrue(damagedFile.exists());
+    }
+
+    private static DataBase dataBase() {
+
+        DataBase dataBase = new TestDataBase();
+        dataBase.getRegisteredUsers().put("Facultativo", "clave");
+        Map<Long, ResumenPacienteModel> patients = dataBase.getRegisteredPatients();
+        for(long codeSNS = PATIENTS - 1; codeSNS >= 0; codeSNS--)
+            patients.put(codeSNS, TestDataBase.patient(codeSNS, "Apellido " + codeSNS));
+        return dataBase;
+    }
+
+    private static byte[][] shardContents(File base) throws IOException {
+
+        byte[][] contents = new byte[SHARDS][];
+        for(int shard = 0; shard < SHARDS; shard++)
+            contents[shard] = Files.readAllBytes(new File(base.getPath() + "." + shard + ".dat").toPath());
+        return contents;
+    }
+}
\ No newline at end of file
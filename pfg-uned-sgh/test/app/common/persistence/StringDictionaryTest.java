@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Pruebas del diccionario de cadenas repetidas: códigos estables al reabrirlo, cadenas que no se codifican, y
+ * cadena incompleta al final del fichero tras una caída.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class StringDictionaryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void codesAreStableAcrossReopen() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dict");
+        StringDictionary dictionary = new StringDictionary(file);
+        int adeslas = dictionary.codeOf("ADESLAS");
+        int doctor = dictionary.codeOf("Doctor Pérez");
+        assertEquals(adeslas, dictionary.codeOf("ADESLAS"));
+        assertEquals(2, dictionary.size());
+        // todas las apariciones de una cadena devuelven la instancia del diccionario
+        assertSame(dictionary.valueOf(adeslas), dictionary.valueOf(dictionary.codeOf(new String("ADESLAS"))));
+        dictionary.close();
+
+        dictionary = new StringDictionary(file);
+        assertEquals("ADESLAS", dictionary.valueOf(adeslas));
+        assertEquals("Doctor Pérez", dictionary.valueOf(doctor));
+        assertEquals(doctor, dictionary.codeOf("Doctor Pérez"));
+        assertNull(dictionary.valueOf(2));
+        assertNull(dictionary.valueOf(StringDictionary.NONE));
+        dictionary.close();
+    }
+
+    @Test
+    public void longStringsAreNotEncoded() throws IOException {
+
+        StringDictionary dictionary = new StringDictionary(new File(folder.getRoot(), "dataBase.dict"));
+        StringBuilder text = new StringBuilder();
+        while(text.length() <= StringDictionary.MAX_LENGTH)
+            text.append("texto libre ");
+        assertEquals(StringDictionary.NONE, dictionary.codeOf(text.toString()));
+        assertEquals(0, dictionary.size());
+        dictionary.close();
+    }
+
+    @Test
+    public void incompleteTrailingStringIsDiscarded() throws IOException {
+
+        File file = new File(folder.getRoot(), "dataBase.dict");
+        StringDictionary dictionary = new StringDictionary(file);
+        dictionary.codeOf("Polen");
+        dictionary.close();
+
+        // caída a mitad de escritura: longitud de la cadena sin sus caracteres
+        try(FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 0, 10, 'G', 'l' });
+        }
+
+        dictionary = new StringDictionary(file);
+        assertEquals(1, dictionary.size());
+        assertEquals("Polen", dictionary.valueOf(0));
+        assertEquals(1, dictionary.codeOf("Gluten"));
+        dictionary.close();
+
+        assertEquals("Gluten", new StringDictionary(file).valueOf(1));
+    }
+}
\ No newline at end of file
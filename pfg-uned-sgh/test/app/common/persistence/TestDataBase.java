@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.common.DataBase;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.DatoGeneralesModel;
+import app.model.datospaciente.DatosBancariosModel;
+import app.model.datospaciente.DatosClinicosModel;
+import app.model.datospaciente.DatosPersonalesModel;
+import app.model.datospaciente.ResumenPacienteModel;
+import app.model.datospaciente.entity.DNI;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Base de datos vacía para las pruebas, que se abre sobre un directorio temporal igual que la de la aplicación
+ * (ver {@code Utils.readDB()}): instantánea repartida en fragmentos, diario y repositorio en disco.
+ *
+ * @author Alberto Bausá Cano
+ */
+class TestDataBase extends DataBase {
+
+    // Número de fragmentos de la instantánea de las pruebas
+    static final int SHARDS = 2;
+
+    TestDataBase() {
+        super(false);
+    }
+
+    /**
+     * Abre la base de datos del directorio indicado (vacía si todavía no hay instantánea) y aplica su diario.
+     *
+     * @param directory El directorio de los ficheros de la base de datos
+     * @return El repositorio en disco de la base de datos abierta
+     * @throws IOException Si no se puede leer la instantánea o el diario
+     */
+    static FilePatientRepository open(File directory) throws IOException {
+
+        FilePatientRepository repository = openSnapshot(directory);
+        repository.replay();
+        return repository;
+    }
+
+    /**
+     * Abre la base de datos del directorio indicado (vacía si todavía no hay instantánea), sin aplicar su diario.
+     *
+     * @param directory El directorio de los ficheros de la base de datos
+     * @return El repositorio en disco de la base de datos abierta
+     * @throws IOException Si no se puede leer la instantánea
+     */
+    static FilePatientRepository openSnapshot(File directory) throws IOException {
+
+        ShardedSnapshot snapshot = new ShardedSnapshot(new File(directory, "dataBase"), SHARDS);
+        DataBase dataBase = new TestDataBase();
+        try {
+            snapshot.read(dataBase);
+            dataBase.getRegisteredPatients().values().forEach(ResumenPacienteModel::linkSections); }
+        catch(FileNotFoundException fnfe) { } // todavía no hay instantánea
+
+        FilePatientRepository repository = new FilePatientRepository(dataBase, snapshot,
+                new File(directory, "dataBase.journal"));
+        dataBase.setPatientRepository(repository);
+        return repository;
+    }
+
+    /**
+     * Crea un paciente nuevo, con un DNI válido derivado de su código SNS y un médico asignado.
+     *
+     * @param codeSNS El código SNS del paciente
+     * @param surname Sus apellidos
+     * @return El paciente
+     */
+    static ResumenPacienteModel patient(long codeSNS, String surname) {
+
+        int digits = (int) (codeSNS % 100_000_000);
+        DatoGeneralesModel generales = new DatoGeneralesModel("Nombre " + codeSNS, surname,
+                new DNI(digits, DNI.controlLetter(digits)), codeSNS, PatientStateEnum.values()[0]);
+        DatosClinicosModel clinicos = new DatosClinicosModel();
+        clinicos.setAsignedDoctor("Doctor " + codeSNS);
+        return new ResumenPacienteModel(generales, new DatosPersonalesModel(), clinicos, new DatosBancariosModel());
+    }
+}
\ No newline at end of file
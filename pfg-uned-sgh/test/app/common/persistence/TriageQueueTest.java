@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.common.persistence;
+
+import app.model.datospaciente.ResumenPacienteModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas de la cola de pacientes por urgencia: orden por prioridad y llegada, recolocación de un paciente al
+ * cambiar su prioridad, avisos a los oyentes y coherencia del montículo tras muchos cambios.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class TriageQueueTest {
+
+    @Test
+    public void ordersByPriorityThenArrival() {
+
+        PatientHashMap patients = patients(3, null, 7, 7, 1, 3);
+        TriageQueue queue = new TriageQueue(patients.values(), patients::get);
+
+        assertEquals(6, queue.size());
+        assertEquals(Arrays.asList(3L, 4L, 1L, 6L, 5L, 2L), codes(queue));
+        assertEquals(Arrays.asList(3L, 4L), codes(queue.first(2)));
+        assertTrue(queue.comparator().compare(patients.get(1L), patients.get(2L)) < 0);
+    }
+
+    @Test
+    public void updateRekeysAndNotifiesListeners() {
+
+        PatientHashMap patients = patients(3, null, 7, 7, 1, 3);
+        TriageQueue queue = new TriageQueue(patients.values(), patients::get);
+        List<Long> notified = new ArrayList<>();
+        queue.addListener((patient) -> notified.add(patient.getDatosGenerales().getCodeSNS()));
+
+        ResumenPacienteModel patient = patients.get(5L);
+        patient.getDatosClinicos().setTriajePriority(9);
+        queue.update(patient);
+        // sin cambio de prioridad no se recoloca ni se avisa
+        queue.update(patients.get(1L));
+
+        ResumenPacienteModel arrived = TestDataBase.patient(7, "Apellido 7");
+        arrived.getDatosClinicos().setTriajePriority(3);
+        patients.put(7L, arrived);
+        queue.update(arrived);
+
+        assertEquals(Arrays.asList(5L, 7L), notified);
+        assertEquals(Arrays.asList(5L, 3L, 4L, 1L, 6L, 7L, 2L), codes(queue));
+    }
+
+    @Test
+    public void heapStaysOrderedAfterManyChanges() {
+
+        Random random = new Random(42);
+        PatientHashMap patients = new PatientHashMap();
+        for(long codeSNS = 0; codeSNS < 500; codeSNS++) {
+            ResumenPacienteModel patient = TestDataBase.patient(codeSNS, "Apellido " + codeSNS);
+            patient.getDatosClinicos().setTriajePriority(random.nextInt(11));
+            patients.put(codeSNS, patient);
+        }
+        TriageQueue queue = new TriageQueue(patients.values(), patients::get);
+
+        for(int i = 0; i < 2000; i++) {
+            ResumenPacienteModel patient = patients.get((long) random.nextInt(500));
+            patient.getDatosClinicos().setTriajePriority(random.nextBoolean() ? random.nextInt(11) : null);
+            queue.update(patient);
+        }
+
+        // todos los pacientes llegaron al construir la cola, en orden de código SNS
+        List<Long> expected = patients.values().stream()
+                .sorted(Comparator.comparingInt(TriageQueueTest::priorityOf).reversed()
+                        .thenComparing((patient) -> patient.getDatosGenerales().getCodeSNS()))
+                .map((patient) -> patient.getDatosGenerales().getCodeSNS())
+                .collect(Collectors.toList());
+        assertEquals(expected, codes(queue));
+    }
+
+    private static PatientHashMap patients(Integer... priorities) {
+
+        PatientHashMap patients = new PatientHashMap();
+        for(int i = 0; i < priorities.length; i++) {
+            ResumenPacienteModel patient = TestDataBase.patient(i + 1, "Apellido " + (i + 1));
+            patient.getDatosClinicos().setTriajePriority(priorities[i]);
+            patients.put(i + 1L, patient);
+        }
+        return patients;
+    }
+
+    private static int priorityOf(ResumenPacienteModel patient) {
+        Integer priority = patient.getTriajePriority();
+        return priority != null ? priority : -1;
+    }
+
+    private static List<Long> codes(Iterable<ResumenPacienteModel> patients) {
+
+        List<Long> codes = new ArrayList<>();
+        patients.forEach((patient) -> codes.add(patient.getDatosGenerales().getCodeSNS()));
+        return codes;
+    }
+}
\ No newline at end of file
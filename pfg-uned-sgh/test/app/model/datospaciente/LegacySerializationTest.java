@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Pruebas de la serialización de Java de los modelos del paciente, la de las bases de datos ya existentes en disco:
+ * se leen pacientes serializados con las clases anteriores a los campos primitivos ("legacy-patients.ser", un
+ * paciente completo y otro sin datos), con sus secciones enlazadas a sus datos generales, y se vuelven a escribir
+ * con los mismos campos, también los ausentes.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class LegacySerializationTest {
+
+    @Test
+    public void legacyPatientsAreRead() throws IOException, ClassNotFoundException {
+
+        List<ResumenPacienteModel> patients = readLegacy();
+        assertComplete(patients.get(0));
+        assertEmpty(patients.get(1));
+    }
+
+    @Test
+    public void patientsRoundTrip() throws IOException, ClassNotFoundException {
+
+        List<ResumenPacienteModel> patients = roundTrip(readLegacy());
+        assertComplete(patients.get(0));
+        assertEmpty(patients.get(1));
+    }
+
+    @Test
+    public void serializedFieldsAreTheLegacyOnes() {
+
+        assertFields(DatosPersonalesModel.class, "birthDate", "email", "patientSex", "phoneNumber", "postalAddress");
+        assertFields(DatosClinicosModel.class, "allergies", "allergiesByLine", "asignedDoctor", "currentMedication",
+                "rcp", "triajePriority");
+        assertFields(DatosBancariosModel.class, "accountNumber", "healthInsurance", "insuranceCompany");
+        assertEquals(Boolean.class, ObjectStreamClass.lookup(DatosClinicosModel.class).getField("rcp").getType());
+        assertEquals(Integer.class, ObjectStreamClass.lookup(DatosClinicosModel.class).getField("triajePriority").getType());
+        assertEquals(Long.class, ObjectStreamClass.lookup(DatosBancariosModel.class).getField("accountNumber").getType());
+    }
+
+    private static void assertComplete(ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        assertEquals("Ana", generales.getName());
+        assertEquals("García López", generales.getSurname());
+        assertEquals(Integer.valueOf(12345678), generales.getDni().getDigits());
+        assertEquals('Z', generales.getDni().getLetter());
+        assertEquals(Long.valueOf(1001), generales.getCodeSNS());
+        assertEquals(PatientStateEnum.Ingreso, generales.getState());
+
+        DatosPersonalesModel personales = patient.getDatosPersonales();
+        assertEquals(Integer.valueOf(3), personales.getBirthDate().getDay());
+        assertEquals(Integer.valueOf(4), personales.getBirthDate().getMonth());
+        assertEquals(Integer.valueOf(1980), personales.getBirthDate().getYear());
+        assertEquals(PatientSexEnum.Mujer, personales.getPatientSex());
+        assertEquals("ana@example.com", personales.getEmail());
+        assertEquals("Calle Mayor 1", personales.getPostalAddress());
+        assertEquals(Long.valueOf(600123456), personales.getPhoneNumber());
+
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        assertEquals("Doctor House", clinicos.getAsignedDoctor());
+        assertEquals("Ibuprofeno", clinicos.getCurrentMedication());
+        assertEquals(Boolean.TRUE, clinicos.getRcp());
+        assertArrayEquals(new String[] { "Polen", "Penicilina" }, clinicos.getAllergies());
+        assertEquals(Integer.valueOf(7), clinicos.getTriajePriority());
+
+        DatosBancariosModel bancarios = patient.getDatosBancarios();
+        assertEquals(Long.valueOf(1234567890123L), bancarios.getAccountNumber());
+        assertEquals(Boolean.TRUE, bancarios.getHealthInsurance());
+        assertEquals("Aseguradora", bancarios.getInsuranceCompany());
+
+        // las secciones de detalle identifican a su paciente por sus datos generales, que no repiten
+        assertEquals(Long.valueOf(1001), personales.getCodeSNS());
+        assertEquals(Long.valueOf(1001), clinicos.getCodeSNS());
+        assertEquals(generales, bancarios.getDatosGenerales());
+        assertFalse(patient.isDirty());
+    }
+
+    private static void assertEmpty(ResumenPacienteModel patient) {
+
+        DatoGeneralesModel generales = patient.getDatosGenerales();
+        assertNull(generales.getDni().getDigits());
+        assertEquals('A', generales.getDni().getLetter());
+        assertNull(generales.getState());
+
+        DatosPersonalesModel personales = patient.getDatosPersonales();
+        assertNull(personales.getBirthDate());
+        assertNull(personales.getPatientSex());
+        assertNull(personales.getPhoneNumber());
+
+        DatosClinicosModel clinicos = patient.getDatosClinicos();
+        assertNull(clinicos.getRcp());
+        assertNull(clinicos.getTriajePriority());
+        assertNull(clinicos.getAllergies());
+
+        DatosBancariosModel bancarios = patient.getDatosBancarios();
+        assertNull(bancarios.getAccountNumber());
+        assertNull(bancarios.getHealthInsurance());
+        assertTrue(patient.isDetailLoaded());
+    }
+
+    private static void assertFields(Class<?> model, String... names) {
+
+        List<String> fields = new ArrayList<>();
+        for(ObjectStreamField field : ObjectStreamClass.lookup(model).getFields())
+            fields.add(field.getName());
+        assertEquals(Arrays.asList(names), fields);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ResumenPacienteModel> readLegacy() throws IOException, ClassNotFoundException {
+
+        try(InputStream resource = LegacySerializationTest.class.getResourceAsStream("legacy-patients.ser");
+                ObjectInputStream in = new ObjectInputStream(resource)) {
+            return (List<ResumenPacienteModel>) in.readObject(); }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ResumenPacienteModel> roundTrip(List<ResumenPacienteModel> patients)
+            throws IOException, ClassNotFoundException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(patients); }
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (List<ResumenPacienteModel>) in.readObject(); }
+    }
+}
\ No newline at end of file
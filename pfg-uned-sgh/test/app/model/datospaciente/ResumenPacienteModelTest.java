@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente;
+
+import app.common.enums.PatientSexEnum;
+import app.common.enums.PatientStateEnum;
+import app.model.datospaciente.entity.Birthdate;
+import app.model.datospaciente.entity.DNI;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Pruebas de la carga bajo demanda de un paciente creado a partir de su índice: las columnas del índice sin
+ * cargar los detalles, una única carga al acceder a ellos, y los fallos de carga, que la dejan pendiente.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class ResumenPacienteModelTest {
+
+    @Test
+    public void indexColumnsDoNotLoadDetails() {
+
+        AtomicInteger loads = new AtomicInteger();
+        ResumenPacienteModel patient = indexed((p) -> loads.incrementAndGet());
+
+        assertFalse(patient.isDetailLoaded());
+        assertEquals(PatientSexEnum.values()[0], patient.getPatientSex());
+        assertEquals(Integer.valueOf(1990), patient.getBirthDate().getYear());
+        assertEquals(Integer.valueOf(3), patient.getTriajePriority());
+        assertEquals(0, loads.get());
+    }
+
+    @Test
+    public void detailsAreLoadedOnceOnFirstAccess() {
+
+        AtomicInteger loads = new AtomicInteger();
+        DatosClinicosModel clinicos = new DatosClinicosModel();
+        clinicos.setTriajePriority(5);
+        ResumenPacienteModel patient = indexed((p) -> {
+            loads.incrementAndGet();
+            p.attachDetails(new DatosPersonalesModel(), clinicos, new DatosBancariosModel()); });
+
+        assertSame(clinicos, patient.getDatosClinicos());
+        assertTrue(patient.isDetailLoaded());
+        patient.getDatosPersonales();
+        patient.loadDetails();
+        assertEquals(1, loads.get());
+
+        // una vez cargados, las columnas se toman de las secciones
+        assertEquals(Integer.valueOf(5), patient.getTriajePriority());
+        assertNull(patient.getPatientSex());
+        assertEquals(patient.getDatosGenerales().getCodeSNS(), clinicos.getCodeSNS());
+    }
+
+    @Test
+    public void failedLoadStaysPending() {
+
+        AtomicInteger loads = new AtomicInteger();
+        ResumenPacienteModel patient = indexed((p) -> {
+            if(loads.incrementAndGet() == 1)
+                throw new IOException("Fallo simulado");
+            p.attachDetails(new DatosPersonalesModel(), new DatosClinicosModel(), new DatosBancariosModel()); });
+
+        try {
+            patient.getDatosBancarios();
+            fail("No ha fallado la carga"); }
+        catch(UncheckedIOException uioe) { }
+        assertFalse(patient.isDetailLoaded());
+        assertEquals(Integer.valueOf(3), patient.getTriajePriority());
+
+        patient.loadDetails();
+        assertTrue(patient.isDetailLoaded());
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void sectionSetBeforeLoadingIsKept() {
+
+        DatosBancariosModel bancarios = new DatosBancariosModel();
+        ResumenPacienteModel patient = indexed((p) ->
+                p.attachDetails(new DatosPersonalesModel(), new DatosClinicosModel(), new DatosBancariosModel()));
+
+        patient.setDatosBancarios(bancarios);
+        assertSame(bancarios, patient.getDatosBancarios());
+        assertTrue(patient.isDetailLoaded());
+    }
+
+    private static ResumenPacienteModel indexed(ResumenPacienteModel.DetailLoader loader) {
+
+        DatoGeneralesModel generales = new DatoGeneralesModel("Nombre", "Apellido", new DNI(12345678, 'Z'), 7L,
+                PatientStateEnum.values()[0]);
+        return new ResumenPacienteModel(generales, PatientSexEnum.values()[0], new Birthdate(1, 2, 1990), 3,
+                loader);
+    }
+}
\ No newline at end of file
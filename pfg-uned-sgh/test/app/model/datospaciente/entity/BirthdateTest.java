@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente.entity;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Pruebas de la fecha de nacimiento empaquetada: días desde 1970 y edad comparados con {@link LocalDate}, y
+ * fechas incompletas o inválidas.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class BirthdateTest {
+
+    @Test
+    public void epochDayAndAgeMatchLocalDate() {
+
+        Random random = new Random(3);
+        for(int i = 0; i < 10000; i++) {
+            LocalDate born = LocalDate.ofEpochDay(random.nextInt(80000) - 40000);
+            LocalDate date = born.plusDays(random.nextInt(40000));
+            Birthdate birthdate = Birthdate.of(born.getDayOfMonth(), born.getMonthValue(), born.getYear());
+
+            assertEquals(born.toEpochDay(), birthdate.getEpochDay());
+            assertEquals(Integer.valueOf(born.getDayOfMonth()), birthdate.getDay());
+            assertEquals(Integer.valueOf(born.getMonthValue()), birthdate.getMonth());
+            assertEquals(Integer.valueOf(born.getYear()), birthdate.getYear());
+            assertEquals(Period.between(born, date).getYears(), birthdate.ageAt((int) date.toEpochDay()));
+        }
+    }
+
+    @Test
+    public void leapDayBirthdaysFallOnMarchFirst() {
+
+        Birthdate birthdate = Birthdate.of(29, 2, 2000);
+        assertEquals(0, birthdate.ageAt((int) LocalDate.of(2001, 2, 28).toEpochDay()));
+        assertEquals(1, birthdate.ageAt((int) LocalDate.of(2001, 3, 1).toEpochDay()));
+        assertEquals(4, birthdate.ageAt((int) LocalDate.of(2004, 2, 29).toEpochDay()));
+        assertEquals(-1, birthdate.ageAt((int) LocalDate.of(1999, 12, 31).toEpochDay()));
+    }
+
+    @Test
+    public void invalidDatesKeepTheirFields() {
+
+        assertFalse(Birthdate.isValid(29, 2, 2001));
+        assertTrue(Birthdate.isValid(29, 2, 2004));
+        try {
+            Birthdate.of(31, 4, 1990);
+            fail("Se ha admitido el 31 de abril");
+        }
+        catch(IllegalArgumentException iae) { }
+
+        Birthdate incomplete = new Birthdate(12, null, 1990);
+        assertFalse(incomplete.isValid());
+        assertEquals(Birthdate.NO_DATE, incomplete.getEpochDay());
+        assertEquals(-1, incomplete.ageAt(0));
+        assertEquals(Integer.valueOf(12), incomplete.getDay());
+
+        // al completarse pasa a ser válida
+        incomplete.setMonth(6);
+        assertTrue(incomplete.isValid());
+        assertEquals(LocalDate.of(1990, 6, 12).toEpochDay(), incomplete.getEpochDay());
+    }
+}
\ No newline at end of file
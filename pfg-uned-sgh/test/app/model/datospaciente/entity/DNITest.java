@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Alberto Bausá Cano
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package app.model.datospaciente.entity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Pruebas del DNI: letra de control módulo 23, empaquetado y serialización con los campos del formato anterior.
+ *
+ * @author Alberto Bausá Cano
+ */
+public class DNITest {
+
+    @Test
+    public void controlLetterIsDigitsModulo23() {
+
+        assertEquals('T', DNI.controlLetter(0));
+        assertEquals('Z', DNI.controlLetter(12345678));
+        assertEquals('E', DNI.controlLetter(22));
+        assertEquals('T', DNI.controlLetter(23));
+        assertEquals(DNI.controlLetter(99999999 % 23), DNI.controlLetter(99999999));
+        try {
+            DNI.controlLetter(100_000_000);
+            fail("Se ha aceptado un DNI de nueve dígitos"); }
+        catch(IllegalArgumentException iae) { }
+    }
+
+    @Test
+    public void validityChecksTheControlLetter() {
+
+        assertTrue(new DNI(12345678, 'Z').isValid());
+        assertFalse(new DNI(12345678, 'A').isValid());
+        assertFalse(new DNI(12345678, 'z').isValid());
+        assertFalse(DNI.isValid(null, 'T'));
+        assertFalse(DNI.isValid(-1, 'T'));
+    }
+
+    @Test
+    public void packFollowsInPlaceEdits() {
+
+        DNI dni = new DNI(12345678, 'Z');
+        long packed = dni.pack();
+        assertEquals(packed, DNI.unpack(packed).pack());
+
+        dni.setDigits(87654321);
+        dni.setLetter(DNI.controlLetter(87654321));
+        assertEquals(DNI.pack(87654321, 'X'), dni.pack());
+        assertFalse(packed == dni.pack());
+
+        DNI missing = DNI.unpack(DNI.pack(null, 'A'));
+        assertNull(missing.getDigits());
+        assertEquals('A', missing.getLetter());
+    }
+
+    @Test
+    public void serializationKeepsTheLegacyFields() throws IOException, ClassNotFoundException {
+
+        DNI copy = roundTrip(new DNI(12345678, 'Z'));
+        assertEquals(Integer.valueOf(12345678), copy.getDigits());
+        assertEquals('Z', copy.getLetter());
+
+        copy = roundTrip(new DNI(null, 'A'));
+        assertNull(copy.getDigits());
+        assertEquals('A', copy.getLetter());
+    }
+
+    private static DNI roundTrip(DNI dni) throws IOException, ClassNotFoundException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(dni); }
+        try(ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (DNI) in.readObject(); }
+    }
+}
\ No newline at end of file